@@ -34,6 +34,34 @@ public interface LocalCompress {
 	void compressToStream(BufferedImage image, OutputStream outputStream)
 		throws IOException;
 
+    /**
+     * Compresses a buffered image to a byte array.
+     * 
+     * @param image
+     *            the buffered image.
+     * @return the compressed image.
+     * @throws IOException
+     *             if there is a problem when compressing the image.
+     */
+	byte[] compressToBytes(BufferedImage image) throws IOException;
+
+    /**
+     * Compresses packed RGB pixels, as rendered by
+     * {@link omeis.providers.re.Renderer#renderAsPackedInt}, to a byte array
+     * without first copying them into a buffered image.
+     * 
+     * @param buf
+     *            the packed pixels, row by row.
+     * @param sizeX
+     *            the width of the image.
+     * @param sizeY
+     *            the height of the image.
+     * @return the compressed image.
+     * @throws IOException
+     *             if there is a problem when compressing the image.
+     */
+	byte[] compressToBytes(int[] buf, int sizeX, int sizeY) throws IOException;
+
 	/**
 	 * Sets the current compression level for the service. (The default is 85%)
 	 * 
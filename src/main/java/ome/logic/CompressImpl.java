@@ -11,16 +11,18 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-
 import ome.api.local.LocalCompress;
 
+/**
+ * Compresses rendered images to JPEG. The encoding itself is delegated to a
+ * {@link JpegEncoder} shared by all instances, which pools the JPEG writers
+ * and output buffers of each thread.
+ */
 public class CompressImpl implements LocalCompress {
 
+    /** The encoder shared by all instances. */
+    private static final JpegEncoder ENCODER = new JpegEncoder();
+
 	/** The default compression quality in fractional percent. */
     private float quality = 0.85F;
 	
@@ -30,25 +32,24 @@ public class CompressImpl implements LocalCompress {
     public void compressToStream(BufferedImage image, OutputStream outputStream)
     	throws IOException
     {
-        // Get a JPEG image writer
-        ImageWriter jpegWriter =
-        	ImageIO.getImageWritersByFormatName("jpeg").next();
+        ENCODER.encode(image, quality, outputStream);
+    }
 
-        // Setup the compression value from (0.05, 0.75 and 0.95)
-        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
-        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        iwp.setCompressionQuality(quality);
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compressToBytes(java.awt.image.BufferedImage)
+     */
+    public byte[] compressToBytes(BufferedImage image) throws IOException
+    {
+        return ENCODER.encode(image, quality);
+    }
 
-        // Write the JPEG to our ByteArray stream
-    	ImageOutputStream imageOutputStream = null;
-        try {
-        	imageOutputStream = ImageIO.createImageOutputStream(outputStream);
-        	jpegWriter.setOutput(imageOutputStream);
-        	jpegWriter.write(null, new IIOImage(image, null, null), iwp);
-        } finally {
-        	if (imageOutputStream != null)
-        		imageOutputStream.close();
-        }
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compressToBytes(int[], int, int)
+     */
+    public byte[] compressToBytes(int[] buf, int sizeX, int sizeY)
+        throws IOException
+    {
+        return ENCODER.encode(buf, sizeX, sizeY, quality);
     }
 
 	/* (non-Javadoc)
@@ -0,0 +1,183 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.logic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes images as JPEG while keeping per-thread state so that repeated
+ * calls, such as for the tiles of a viewer or the thumbnails of a set, do not
+ * each look up a new {@link ImageWriter}, build a new {@link ImageWriteParam}
+ * or cache the encoded stream to a temporary file. Packed RGB pixels may be
+ * encoded directly from the renderer's <code>int[]</code> and the encoded
+ * bytes are collected in a per-thread buffer that grows as needed.
+ * <p>
+ * Instances are thread-safe; the state of each thread is confined to it.
+ * </p>
+ *
+ * @see CompressImpl
+ * @since 5.5
+ */
+public class JpegEncoder {
+
+    /** Buffers larger than this are not kept for the next call. */
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+    /** The initial size of a thread's output buffer. */
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    /** The color model of packed RGB pixels as produced by the renderer. */
+    private static final DirectColorModel RGB =
+            new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+
+    /** The bit masks of {@link #RGB}. */
+    private static final int[] RGB_MASKS =
+            new int[] { 0x00ff0000, 0x0000ff00, 0x000000ff };
+
+    /** A byte stream of which the buffer is reused once its content is taken. */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(INITIAL_BUFFER);
+        }
+
+        /** @return if the buffer is too large to keep for the next call */
+        boolean isOversized() {
+            return buf.length > MAX_RETAINED_BUFFER;
+        }
+
+        /** @return the content, resetting the buffer for reuse */
+        byte[] take() {
+            final byte[] content = Arrays.copyOf(buf, count);
+            reset();
+            return content;
+        }
+    }
+
+    /** The encoding state belonging to one thread. */
+    private static final class State {
+
+        final ImageWriter writer;
+
+        final ImageWriteParam param;
+
+        Buffer buffer = new Buffer();
+
+        State() {
+            writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+    }
+
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * Wraps packed RGB pixels in a {@link BufferedImage} without copying them.
+     * @param buf the packed pixels, row by row
+     * @param sizeX the width of the image
+     * @param sizeY the height of the image
+     * @return the image, backed by <code>buf</code>
+     */
+    public static BufferedImage wrap(int[] buf, int sizeX, int sizeY) {
+        if (buf.length < sizeX * sizeY) {
+            throw new IllegalArgumentException(String.format(
+                    "%d pixels for a %dx%d image", buf.length, sizeX, sizeY));
+        }
+        final DataBuffer data = new DataBufferInt(buf, sizeX * sizeY);
+        final WritableRaster raster = Raster.createPackedRaster(data, sizeX,
+                sizeY, sizeX, RGB_MASKS, null);
+        return new BufferedImage(RGB, raster, false, null);
+    }
+
+    /**
+     * Encodes an image, writing it to a stream.
+     * @param image the image to encode
+     * @param quality the compression quality, from 0 to 1
+     * @param outputStream the stream to write to
+     * @throws IOException if the image could not be written to the stream
+     */
+    public void encode(BufferedImage image, float quality,
+            OutputStream outputStream) throws IOException {
+        final State current = state.get();
+        final ImageOutputStream imageOutputStream =
+                new MemoryCacheImageOutputStream(outputStream);
+        boolean written = false;
+        try {
+            current.param.setCompressionQuality(quality);
+            current.writer.setOutput(imageOutputStream);
+            current.writer.write(null, new IIOImage(image, null, null),
+                    current.param);
+            written = true;
+        } finally {
+            if (written) {
+                current.writer.setOutput(null);
+            } else {
+                // Do not reuse a writer which may be in an unknown state.
+                state.remove();
+                current.writer.dispose();
+            }
+            imageOutputStream.close();
+        }
+    }
+
+    /**
+     * Encodes an image.
+     * @param image the image to encode
+     * @param quality the compression quality, from 0 to 1
+     * @return the encoded image
+     * @throws IOException if the image could not be encoded
+     */
+    public byte[] encode(BufferedImage image, float quality)
+            throws IOException {
+        final State current = state.get();
+        final Buffer buffer = current.buffer;
+        try {
+            encode(image, quality, buffer);
+            return buffer.take();
+        } finally {
+            buffer.reset();
+            if (buffer.isOversized()) {
+                current.buffer = new Buffer();
+            }
+        }
+    }
+
+    /**
+     * Encodes packed RGB pixels as produced by the renderer.
+     * @param buf the packed pixels, row by row
+     * @param sizeX the width of the image
+     * @param sizeY the height of the image
+     * @param quality the compression quality, from 0 to 1
+     * @return the encoded image
+     * @throws IOException if the image could not be encoded
+     */
+    public byte[] encode(int[] buf, int sizeX, int sizeY, float quality)
+            throws IOException {
+        return encode(wrap(buf, sizeX, sizeY), quality);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.logic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.perf4j.StopWatch;
+import org.perf4j.slf4j.Slf4JStopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.api.IScale;
+import ome.conditions.InternalException;
+
+/**
+ * Provides methods for scaling buffered images by area-averaging their packed
+ * RGB pixels directly, without going through Java2D. Each destination pixel is
+ * the average of the source pixels it covers, weighted by the covered area, so
+ * the result is comparable to {@link java.awt.image.AreaAveragingScaleFilter}.
+ * <p>
+ * The kernel is separable: for each source row the horizontal reduction is
+ * accumulated, with the row's vertical weight, into one row of per-channel
+ * sums so that the source is read once, sequentially. Large images are split
+ * into bands of destination rows which are scaled in parallel.
+ * </p>
+ *
+ * @see JavaImageScalingService
+ * @see AWTScaleService
+ * @since 5.5
+ */
+public class PackedIntScaleService implements IScale {
+
+    /** The logger for this class. */
+    private static Logger log = LoggerFactory.getLogger(PackedIntScaleService.class);
+
+    /** The color model of the scaled images. */
+    private static final DirectColorModel RGB =
+            new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+
+    /** Source images with fewer pixels than this are scaled in one band. */
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 1024 * 1024;
+
+    /** The pool on which bands are scaled, or {@code null} to not use bands. */
+    private final ForkJoinPool pool;
+
+    /** The number of source pixels from which to scale in bands. */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Creates a scaling service which scales large images in parallel on as
+     * many threads as there are processors.
+     */
+    public PackedIntScaleService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a scaling service.
+     * @param threads the number of threads on which to scale the bands of
+     * large images; if not greater than 1 then images are scaled in the
+     * calling thread.
+     */
+    public PackedIntScaleService(int threads) {
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Sets the number of source pixels from which images are scaled in bands.
+     * @param parallelThreshold a number of pixels
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Stops the threads of the pool, if any.
+     */
+    public void destroy() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ome.api.IScale#scaleBufferedImage(java.awt.image.BufferedImage,
+     * float, float)
+     */
+    public BufferedImage scaleBufferedImage(BufferedImage image, float xScale,
+            float yScale) {
+        final int sizeX = image.getWidth();
+        final int sizeY = image.getHeight();
+        final int thumbWidth = Math.max(1, (int) (sizeX * xScale));
+        final int thumbHeight = Math.max(1, (int) (sizeY * yScale));
+        log.debug("Scaling to: " + thumbHeight + "x" + thumbWidth);
+
+        StopWatch s1 = new Slf4JStopWatch("omero.packedIntScale");
+        try {
+            final int[] scaled = scale(getPackedPixels(image), sizeX, sizeY,
+                    thumbWidth, thumbHeight);
+            return JpegEncoder.wrap(scaled, thumbWidth, thumbHeight);
+        } finally {
+            s1.stop();
+        }
+    }
+
+    /**
+     * Retrieves the packed RGB pixels of an image, without copying them if
+     * the image is already backed by them.
+     * @param image an image
+     * @return the packed pixels, row by row
+     */
+    static int[] getPackedPixels(BufferedImage image) {
+        final int sizeX = image.getWidth();
+        final int sizeY = image.getHeight();
+        final DataBuffer data = image.getRaster().getDataBuffer();
+        if (data instanceof DataBufferInt && data.getNumBanks() == 1
+                && data.getOffset() == 0
+                && image.getColorModel() instanceof DirectColorModel
+                && image.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && image.getRaster().getParent() == null) {
+            final DirectColorModel cm = (DirectColorModel) image.getColorModel();
+            final SinglePixelPackedSampleModel sm =
+                    (SinglePixelPackedSampleModel) image.getSampleModel();
+            if (cm.getRedMask() == RGB.getRedMask()
+                    && cm.getGreenMask() == RGB.getGreenMask()
+                    && cm.getBlueMask() == RGB.getBlueMask()
+                    && sm.getScanlineStride() == sizeX) {
+                return ((DataBufferInt) data).getData();
+            }
+        }
+        return image.getRGB(0, 0, sizeX, sizeY, null, 0, sizeX);
+    }
+
+    /**
+     * The contributions of source pixels to destination pixels along one
+     * axis. Destination pixel <code>d</code> covers source pixels
+     * <code>first[d]</code> to <code>first[d] + count[d] - 1</code>, with the
+     * normalized weights <code>weights[offset[d]]</code> onward.
+     */
+    static final class Coverage {
+
+        final int[] first;
+
+        final int[] count;
+
+        final int[] offset;
+
+        final float[] weights;
+
+        Coverage(int sourceSize, int destinationSize) {
+            first = new int[destinationSize];
+            count = new int[destinationSize];
+            offset = new int[destinationSize];
+            // Each destination pixel covers its share of the source plus at
+            // most two partial pixels, so this bounds the contributions.
+            final float[] all = new float[sourceSize + 2 * destinationSize];
+            final double step = (double) sourceSize / destinationSize;
+            int size = 0;
+            for (int d = 0; d < destinationSize; d++) {
+                final double start = d * step;
+                final double end = Math.min(sourceSize, (d + 1) * step);
+                first[d] = Math.min(sourceSize - 1, (int) Math.floor(start));
+                offset[d] = size;
+                for (int s = first[d]; s < end; s++) {
+                    final double overlap =
+                            Math.min(end, s + 1) - Math.max(start, s);
+                    all[size++] = (float) (overlap / (end - start));
+                }
+                if (size == offset[d]) {
+                    all[size++] = 1f;
+                }
+                count[d] = size - offset[d];
+            }
+            weights = Arrays.copyOf(all, size);
+        }
+    }
+
+    /**
+     * Scales packed RGB pixels by area-averaging.
+     * @param src the source pixels, row by row
+     * @param srcWidth the width of the source
+     * @param srcHeight the height of the source
+     * @param dstWidth the width of the destination
+     * @param dstHeight the height of the destination
+     * @return the scaled pixels, row by row
+     */
+    public int[] scale(final int[] src, final int srcWidth,
+            final int srcHeight, final int dstWidth, final int dstHeight) {
+        final int[] dst = new int[dstWidth * dstHeight];
+        final Coverage xs = new Coverage(srcWidth, dstWidth);
+        final Coverage ys = new Coverage(srcHeight, dstHeight);
+        final long pixels = (long) srcWidth * srcHeight;
+        if (pool == null || pixels < parallelThreshold || dstHeight < 2) {
+            scaleBand(src, srcWidth, dst, dstWidth, xs, ys, 0, dstHeight);
+            return dst;
+        }
+        final int bands = Math.min(dstHeight, pool.getParallelism());
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int from = (int) ((long) dstHeight * band / bands);
+            final int to = (int) ((long) dstHeight * (band + 1) / bands);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    scaleBand(src, srcWidth, dst, dstWidth, xs, ys, from, to);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (final Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while scaling");
+        } catch (ExecutionException e) {
+            final InternalException ie = new InternalException(
+                    "Failed to scale: " + e.getCause());
+            ie.initCause(e.getCause());
+            throw ie;
+        }
+        return dst;
+    }
+
+    /**
+     * Scales the destination rows <code>from</code> to <code>to - 1</code>.
+     */
+    private static void scaleBand(int[] src, int srcWidth, int[] dst,
+            int dstWidth, Coverage xs, Coverage ys, int from, int to) {
+        final float[] sums = new float[dstWidth * 3];
+        for (int dy = from; dy < to; dy++) {
+            Arrays.fill(sums, 0f);
+            final int yCount = ys.count[dy];
+            for (int j = 0; j < yCount; j++) {
+                final float wy = ys.weights[ys.offset[dy] + j];
+                final int row = (ys.first[dy] + j) * srcWidth;
+                for (int dx = 0, k = 0; dx < dstWidth; dx++, k += 3) {
+                    float r = 0, g = 0, b = 0;
+                    int index = row + xs.first[dx];
+                    final int xOffset = xs.offset[dx];
+                    final int xCount = xs.count[dx];
+                    for (int i = 0; i < xCount; i++, index++) {
+                        final int pixel = src[index];
+                        final float wx = xs.weights[xOffset + i];
+                        r += wx * ((pixel >> 16) & 0xff);
+                        g += wx * ((pixel >> 8) & 0xff);
+                        b += wx * (pixel & 0xff);
+                    }
+                    sums[k] += wy * r;
+                    sums[k + 1] += wy * g;
+                    sums[k + 2] += wy * b;
+                }
+            }
+            final int out = dy * dstWidth;
+            for (int dx = 0, k = 0; dx < dstWidth; dx++, k += 3) {
+                dst[out + dx] = (clamp(sums[k]) << 16)
+                        | (clamp(sums[k + 1]) << 8) | clamp(sums[k + 2]);
+            }
+        }
+    }
+
+    private static int clamp(float value) {
+        final int rounded = (int) (value + 0.5f);
+        return rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded);
+    }
+}
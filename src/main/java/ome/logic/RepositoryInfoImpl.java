@@ -5,7 +5,15 @@
 
 package ome.logic;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import ome.annotations.RolesAllowed;
 import ome.api.IRepositoryInfo;
@@ -16,6 +24,10 @@ import ome.io.nio.OriginalFilesService;
 import ome.io.nio.PixelsService;
 import ome.io.nio.ThumbnailService;
 import ome.tools.RepositoryTask;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
 import ome.util.SqlAction;
 
 import org.apache.commons.io.FileSystemUtils;
@@ -29,6 +41,11 @@ import org.springframework.transaction.annotation.Transactional;
  * Stateless ome.logic to determine disk space utilization at the server's data
  * image mount point, e.g. /OMERO See source code documentation for more.
  * <p>
+ * The usage of the file systems holding the data directory and its top-level
+ * directories is sampled in the background by {@link #sampleUsage()} and
+ * published as an immutable snapshot, so that
+ * {@link #sanityCheckRepository()} on each write only reads a volatile field.
+ * <p>
  * Copyright 2007 Glencoe Software Inc. All rights reserved. Use is subject to
  * license terms supplied in LICENSE.txt
  * <p/>
@@ -47,15 +64,30 @@ public class RepositoryInfoImpl extends AbstractLevel2Service implements
      * Time (2 minutes) between successive calls to
      * {@link #sanityCheckRepository()} needed to trigger an actual call to
      * {@link #getUsageFraction()}
+     * @deprecated the usage is sampled in the background every
+     * {@link #setUsageInterval(long) usage interval}
      */
+    @Deprecated
     public final static long INITIAL_DELAY = 2 * 60 * 1000L;
 
+    /**
+     * Number of usage intervals after which the last sample is taken to be
+     * stale, the background sampling having stopped
+     */
+    public final static int STALE_INTERVALS = 3;
+
     /**
      * Percentage (100.0 - 0.0) of disk use which will cause an exception during
      * {@link #sanityCheckRepository()}
      */
     public final static double CRITICAL_USAGE = 95.0;
 
+    /**
+     * Percentage (100.0 - 0.0) of disk use from which warnings are logged
+     * when the usage is sampled
+     */
+    public final static double WARNING_USAGE = CRITICAL_USAGE - 5.0;
+
     /* The logger for this class. */
     private transient static Logger log = LoggerFactory
             .getLogger(RepositoryInfoImpl.class);
@@ -75,26 +107,58 @@ public class RepositoryInfoImpl extends AbstractLevel2Service implements
     /* JDBC operations for removedUnusedFiles */
     private transient SqlAction sql;
 
+    /* Milliseconds between background samplings of the usage */
+    private transient long usageInterval = 30000;
+
     // Static state
     // =========================================================================
 
     /**
-     * Time of the last true {@link #sanityCheckRepository()}
+     * The disk usage of the repository at one point in time.
      */
-    private volatile long lastCheck = 0;
+    public static final class Usage {
+
+        /** Time at which the usage was sampled */
+        public final long time;
+
+        /** Percentage (100.0 - 0.0) used of the fullest file system */
+        public final double percent;
+
+        /** The fullest file system */
+        public final String fileStore;
+
+        /** Bytes available on the fullest file system */
+        public final long usableBytes;
+
+        public Usage(long time, double percent, String fileStore,
+                long usableBytes) {
+            this.time = time;
+            this.percent = percent;
+            this.fileStore = fileStore;
+            this.usableBytes = usableBytes;
+        }
+    }
 
     /**
-     * Cached value from the last true {@link #sanityCheckRepository()}
+     * Usage from the last sampling, or <code>null</code> if not yet sampled
      */
-    private volatile double lastUsage = 0.0;
+    private volatile Usage lastUsage = null;
 
     /**
-     * Lock-object around the call to the true {@link #sanityCheckRepository()}.
-     * Should be used to protected all sections of code which change
-     * {@link #lastCheck} and {@link #lastUsage}
+     * Lock-object around sampling the usage. Should be used to protected all
+     * sections of code which change {@link #lastUsage}
      */
     private final Object lastLock = new Object();
 
+    private transient Counter warningCount = new NullMetrics().counter(this,
+            "usageWarnings");
+
+    private transient Counter criticalCount = new NullMetrics().counter(this,
+            "usageCritical");
+
+    private transient Histogram usagePercent = new NullMetrics().histogram(
+            this, "usagePercent");
+
     private static final String DEPRECATED =
         "This UNSAFE method has been deprecated. Server side functionality " +
         "has been REMOVED.";
@@ -127,6 +191,25 @@ public class RepositoryInfoImpl extends AbstractLevel2Service implements
         this.fileService = fileService;
     }
 
+    /**
+     * Bean injection setter for the metrics of the sampled usage
+     * @param metrics the metrics
+     */
+    public void setMetrics(Metrics metrics) {
+        this.warningCount = metrics.counter(this, "usageWarnings");
+        this.criticalCount = metrics.counter(this, "usageCritical");
+        this.usagePercent = metrics.histogram(this, "usagePercent");
+    }
+
+    /**
+     * Bean injection setter for the interval at which {@link #sampleUsage()}
+     * is called in the background
+     * @param usageInterval the interval in milliseconds
+     */
+    public void setUsageInterval(long usageInterval) {
+        this.usageInterval = usageInterval;
+    }
+
     /**
      * Bean injection setter for SQL operations
      * @param sql the SQL action instance
@@ -197,40 +280,29 @@ public class RepositoryInfoImpl extends AbstractLevel2Service implements
 
     /**
      * Calculates based on the cached usage and the
-     * elapsed time whether or not a real
-     * {@link #sanityCheckRepository()} should be calculated.
+     * elapsed time whether or not the usage should be sampled
+     * before {@link #sanityCheckRepository()}, as a fallback
+     * should the background sampling not have run yet or have stopped.
      * @return if the repository needs a sanity check
      */
     public boolean needsSanityCheck() {
+        return isStale(lastUsage, System.currentTimeMillis());
+    }
 
-        // Disabled in 4.0. See ticket:1230
-        // --------------------------------
-        // The getUsage() information is not being properly calculated
-        // and doing so in Java 1.5 requires undue hoop jumping.
-        if (true) {
-            return false;
-        }
-
-        long time = System.currentTimeMillis();
-        long elapsed = time - lastCheck;
-
-        // If the usage is within 5% of the critical usage
-        // return true regardless
-        if (lastUsage > CRITICAL_USAGE - 5.0) {
-            return true;
-        }
-
-        // Otherwise, scale the initial delay down based on how high our
-        // usage is, and if we've passed that value, then return true.
-        // For example, if the initial delay 2 minutes and our previous usage is
-        // 80 percent, then 100 - 80 / 100 = .2 * 2 minute = 24 seconds.
-        double scale = (100 - lastUsage) / 100;
-        if (elapsed > scale * INITIAL_DELAY) {
+    /**
+     * Whether a sampled usage is too old to be relied on. While the
+     * background sampling runs, every {@link #setUsageInterval(long) usage
+     * interval}, no sample is older than {@link #STALE_INTERVALS} intervals
+     * so writes do not sample the usage themselves.
+     * @param usage a sampled usage, may be <code>null</code>
+     * @param now the current time
+     * @return if the usage is missing or stale
+     */
+    public boolean isStale(Usage usage, long now) {
+        if (usage == null) {
             return true;
         }
-
-        return false;
-
+        return now - usage.time > STALE_INTERVALS * usageInterval;
     }
 
     /**
@@ -238,31 +310,117 @@ public class RepositoryInfoImpl extends AbstractLevel2Service implements
      */
     @RolesAllowed("user")
     public void sanityCheckRepository() throws InternalException {
+        Usage usage = lastUsage;
         if (needsSanityCheck()) {
             synchronized (lastLock) {
                 // Check the time again, in case another thread
                 // updated the values.
                 if (needsSanityCheck()) {
-                    try {
-                        lastUsage = getUsageFraction() * 100;
-                    } catch (Throwable t) {
-                        log.error(
-                                "Critical failure sanity checking repository.",
-                                t);
-                        throw new InternalException(
-                                "Error in sanityCheckRepository(): "
-                                        + t.getMessage());
-                    }
-                    lastCheck = System.currentTimeMillis();
+                    sampleUsage();
                 }
             }
+            usage = lastUsage;
         }
 
-        if (lastUsage > CRITICAL_USAGE) {
+        if (usage.percent > CRITICAL_USAGE) {
             throw new ResourceError(String.format(
                     "Server repository disk space usage (%s%%) exceeds %s%%",
-                    lastUsage, CRITICAL_USAGE));
+                    usage.percent, CRITICAL_USAGE));
+        }
+    }
+
+    /**
+     * @return the usage from the last sampling, or <code>null</code> if not
+     * yet sampled
+     */
+    public Usage getLastUsage() {
+        return lastUsage;
+    }
+
+    /**
+     * Samples the usage of the file systems holding the data directory and
+     * its top-level directories, which may be mounted separately, and
+     * publishes it for {@link #sanityCheckRepository()}. Logs warnings and
+     * updates the metrics as the usage approaches {@link #CRITICAL_USAGE}.
+     * Called periodically in the background.
+     * @return the new usage
+     */
+    public Usage sampleUsage() {
+        final Usage usage;
+        try {
+            usage = measureUsage();
+        } catch (Throwable t) {
+            log.error("Critical failure sanity checking repository.", t);
+            throw new InternalException(
+                    "Error in sanityCheckRepository(): " + t.getMessage());
+        }
+        synchronized (lastLock) {
+            final Usage previous = lastUsage;
+            final double before = previous == null ? 0.0 : previous.percent;
+            usagePercent.update((int) usage.percent);
+            if (usage.percent > CRITICAL_USAGE) {
+                criticalCount.inc();
+                if (before <= CRITICAL_USAGE) {
+                    log.error(String.format("Disk usage of %s is %.1f%%, "
+                            + "writes to the repository are refused above "
+                            + "%s%%", usage.fileStore, usage.percent,
+                            CRITICAL_USAGE));
+                }
+            } else if (usage.percent > WARNING_USAGE) {
+                warningCount.inc();
+                if (before <= WARNING_USAGE || before > CRITICAL_USAGE) {
+                    log.warn(String.format("Disk usage of %s is %.1f%%, "
+                            + "approaching %s%%: %d bytes free",
+                            usage.fileStore, usage.percent, CRITICAL_USAGE,
+                            usage.usableBytes));
+                }
+            } else if (before > WARNING_USAGE) {
+                log.info(String.format("Disk usage of %s is back to %.1f%%",
+                        usage.fileStore, usage.percent));
+            }
+            lastUsage = usage;
+        }
+        return usage;
+    }
+
+    /**
+     * Finds the fullest of the file systems holding the data directory.
+     */
+    private Usage measureUsage() throws IOException {
+        final Map<FileStore, Path> stores = new LinkedHashMap<FileStore, Path>();
+        final Path root = Paths.get(datadir);
+        stores.put(Files.getFileStore(root), root);
+        final File[] children = root.toFile().listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                if (child.isDirectory()) {
+                    final Path path = child.toPath();
+                    final FileStore store = Files.getFileStore(path);
+                    if (!stores.containsKey(store)) {
+                        stores.put(store, path);
+                    }
+                }
+            }
+        }
+        double percent = 0.0;
+        String fullest = root.toString();
+        long usable = Long.MAX_VALUE;
+        for (final Map.Entry<FileStore, Path> entry : stores.entrySet()) {
+            final FileStore store = entry.getKey();
+            final long total = store.getTotalSpace();
+            if (total <= 0) {
+                continue;
+            }
+            final long free = store.getUsableSpace();
+            final double used = 100.0 * (total - free) / total;
+            if (used >= percent) {
+                percent = used;
+                fullest = entry.getValue().toString();
+                usable = free;
+            }
         }
+        return new Usage(System.currentTimeMillis(), percent, fullest,
+                usable == Long.MAX_VALUE ? 0 : usable);
     }
 
     /*
@@ -59,7 +59,7 @@ public class BasicEventContext extends SimpleEventContext {
 
     private Set<IObject> lockCandidates;
 
-    private List<EventLog> logs;
+    private EventLogBuffer logs;
 
     private Event event;
 
@@ -320,11 +320,35 @@ public class BasicEventContext extends SimpleEventContext {
         this.lockCandidates = lockCandidates;
     }
 
+    /**
+     * @return the logs as model objects, created anew on each call
+     * @see #getLogBuffer()
+     */
     public List<EventLog> getLogs() {
-        return logs;
+        return logs == null ? null : logs.toEventLogs();
     }
 
+    /**
+     * @param logs the logs, replacing any held
+     * @see #setLogBuffer(EventLogBuffer)
+     */
     public void setLogs(List<EventLog> logs) {
+        if (logs == null) {
+            this.logs = null;
+        } else {
+            this.logs = new EventLogBuffer();
+            for (EventLog l : logs) {
+                this.logs.add(l.getAction(), l.getEntityType(),
+                        l.getEntityId(), l.getEvent());
+            }
+        }
+    }
+
+    public EventLogBuffer getLogBuffer() {
+        return logs;
+    }
+
+    public void setLogBuffer(EventLogBuffer logs) {
         this.logs = logs;
     }
 
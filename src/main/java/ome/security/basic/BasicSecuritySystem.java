@@ -71,8 +71,6 @@ import org.springframework.context.ApplicationListener;
 import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.util.Assert;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 
 /**
  * simplest implementation of {@link SecuritySystem}. Uses an ctor-injected
@@ -516,26 +514,25 @@ public class BasicSecuritySystem implements SecuritySystem,
         return cd.getLogs();
     }
 
+    /**
+     * @return the logs of the current transaction in their compact form
+     */
+    public EventLogBuffer getLogBuffer() {
+        return cd.getLogBuffer();
+    }
+
     public void clearLogs() {
         if (log.isDebugEnabled()) {
             log.debug("Clearing EventLogs.");
         }
 
-        List<EventLog> logs = getLogs();
+        EventLogBuffer logs = getLogBuffer();
         if (!logs.isEmpty()) {
 
-            boolean foundAdminType = false;
-            final Multimap<String, EventLog> map = ArrayListMultimap.create();
-
-            for (EventLog el : getLogs()) {
-                String t = el.getEntityType();
-                if (Experimenter.class.getName().equals(t)
-                        || ExperimenterGroup.class.getName().equals(t)
-                        || GroupExperimenterMap.class.getName().equals(t)) {
-                    foundAdminType = true;
-                }
-                map.put(t, el);
-            }
+            final boolean foundAdminType =
+                    logs.hasEntityType(Experimenter.class.getName())
+                    || logs.hasEntityType(ExperimenterGroup.class.getName())
+                    || logs.hasEntityType(GroupExperimenterMap.class.getName());
 
             if (ctx == null) {
                 log.error("No context found for publishing");
@@ -544,7 +541,7 @@ public class BasicSecuritySystem implements SecuritySystem,
                 if (foundAdminType) {
                     this.ctx.publishEvent(new UserGroupUpdateEvent(this));
                 }
-                this.ctx.publishEvent(new EventLogsMessage(this, map));
+                this.ctx.publishEvent(new EventLogsMessage(this, logs));
             }
         }
         
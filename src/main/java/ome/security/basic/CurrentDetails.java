@@ -7,7 +7,6 @@ package ome.security.basic;
 
 // Java imports
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -384,39 +383,41 @@ public class CurrentDetails implements PrincipalHolder {
             }
         }
 
-        if (log.isInfoEnabled()) {
-            log.info("Adding log:" + action + "," + klass + "," + id);
+        if (log.isDebugEnabled()) {
+            log.debug("Adding log:" + action + "," + klass + "," + id);
         }
 
         BasicEventContext c = current();
-        List<EventLog> list = current().getLogs();
-        if (list == null) {
-            list = new ArrayList<EventLog>();
-            c.setLogs(list);
+        EventLogBuffer buffer = c.getLogBuffer();
+        if (buffer == null) {
+            buffer = new EventLogBuffer();
+            c.setLogBuffer(buffer);
         }
-
-        EventLog l = new EventLog();
-        l.setAction(action);
-        l.setEntityType(klass.getName()); // TODO could be id to Type entity
-        l.setEntityId(id);
-        l.setEvent(c.getEvent());
-        Details d = Details.create();
-        d.setPermissions(Permissions.WORLD_IMMUTABLE);
-        l.getDetails().copy(d);
-        list.add(l);
+        buffer.add(action, klass.getName(), id, c.getEvent());
     }
 
     public SessionStats getStats() {
         return current().getStats();
     }
 
-    public List<EventLog> getLogs() { // TODO defensive copy
-        List<EventLog> logs = current().getLogs();
-        return logs == null ? new ArrayList<EventLog>() : logs;
+    /**
+     * @return the logs of the current transaction as model objects
+     * @see #getLogBuffer()
+     */
+    public List<EventLog> getLogs() {
+        return getLogBuffer().toEventLogs();
+    }
+
+    /**
+     * @return the logs of the current transaction, never null
+     */
+    public EventLogBuffer getLogBuffer() {
+        EventLogBuffer logs = current().getLogBuffer();
+        return logs == null ? new EventLogBuffer() : logs;
     }
 
     public void clearLogs() {
-        current().setLogs(null);
+        current().setLogBuffer(null);
     }
 
     /**
@@ -5,15 +5,11 @@
 
 package ome.security.basic;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import ome.api.StatefulServiceInterface;
 import ome.conditions.ApiUsageException;
 import ome.conditions.InternalException;
 import ome.conditions.SessionTimeoutException;
 import ome.model.meta.Event;
-import ome.model.meta.EventLog;
 import ome.services.messages.ContextMessage;
 import ome.services.util.ReadOnlyStatus;
 import ome.system.EventContext;
@@ -52,6 +48,12 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
 
     private static Logger log = LoggerFactory.getLogger(EventHandler.class);
 
+    /**
+     * Maximum number of event logs written by one call to
+     * {@link SqlAction#insertLogs(java.util.List)}.
+     */
+    static final int LOG_BATCH_SIZE = 10000;
+
     protected final TransactionAttributeSource txSource;
 
     protected final BasicSecuritySystem secSys;
@@ -275,11 +277,11 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
      */
     void saveLogs(boolean readOnly, Session session) {
 
-        // Grabbing a copy to prevent ConcurrentModificationEx
-        final List<EventLog> logs = new ArrayList<EventLog>(secSys.getLogs());
+        // Detaching the buffer: logs added later go to a new one
+        final EventLogBuffer logs = secSys.getLogBuffer();
         secSys.clearLogs();
 
-        if (logs == null || logs.size() == 0) {
+        if (logs.isEmpty()) {
             return; // EARLY EXIT
         }
 
@@ -287,40 +289,31 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
             // If we reach here, we have logs when we shouldn't.
             StringBuilder sb = new StringBuilder();
             sb.append("EventLogs in readOnly transaction:\n");
-            for (EventLog eventLog : logs) {
-                sb.append(eventLog.getAction());
+            for (int i = 0; i < logs.size(); i++) {
+                sb.append(logs.getAction(i));
                 sb.append(" ");
-                sb.append(eventLog);
-                sb.append(eventLog.getEntityType());
+                sb.append(logs.getEntityType(i));
                 sb.append(" ");
-                sb.append(eventLog.getEntityId());
+                sb.append(logs.getEntityId(i));
                 sb.append("\b");
             }
             throw new InternalException(sb.toString());
         }
 
         try {
-            long lastValue = sql.nextValue("seq_eventlog", logs.size());
-            long id = lastValue - logs.size() + 1;
-            List<Object[]> batchData = new ArrayList<Object[]>();
-            for (EventLog l : logs) {
-                Event e = l.getEvent();
+            for (Event e : logs.getEvents()) {
                 if (e.getId() == null) {
                     throw new RuntimeException("Transient event");
                 }
-                batchData
-                        .add(new Object[] { id++, -35L, l.getEntityId(),
-                                l.getEntityType(), l.getAction(),
-                                l.getEvent().getId() });
             }
-
-            sql.insertLogs(batchData);
+            long lastValue = sql.nextValue("seq_eventlog", logs.size());
+            logs.insertLogs(sql, lastValue - logs.size() + 1, LOG_BATCH_SIZE);
 
         } catch (Exception ex) {
-            log.error("Error saving event logs: " + logs, ex);
+            log.error("Error saving " + logs.size() + " event logs", ex);
         }
 
-        if (secSys.getLogs().size() > 0) {
+        if (!secSys.getLogBuffer().isEmpty()) {
             throw new InternalException("More logs present after saveLogs()");
         }
 
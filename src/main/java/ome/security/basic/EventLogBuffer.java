@@ -0,0 +1,279 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.security.basic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ome.model.meta.Event;
+import ome.model.meta.EventLog;
+import ome.util.SqlAction;
+
+/**
+ * Compact store of the {@link EventLog event logs} of a transaction, held by
+ * {@link BasicEventContext} until {@link EventHandler} saves them. Rather than
+ * one model object per log, the entity ids are held in a primitive array and
+ * the entity types and actions as codes of process-wide interned tables. The
+ * event of the logs is stored once for each run of logs with the same event,
+ * normally once for the whole transaction.
+ * <p>
+ * Not thread-safe, as {@link BasicEventContext}.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class EventLogBuffer {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Interned entity types, added to while holding {@link #TYPE_CODES}. */
+    private static final ConcurrentMap<String, Integer> TYPE_CODES =
+            new ConcurrentHashMap<String, Integer>();
+
+    private static volatile String[] types = new String[0];
+
+    /** Interned actions, added to while holding {@link #ACTION_CODES}. */
+    private static final ConcurrentMap<String, Integer> ACTION_CODES =
+            new ConcurrentHashMap<String, Integer>();
+
+    private static volatile String[] actions = new String[0];
+
+    private long[] entityIds = new long[INITIAL_CAPACITY];
+
+    private int[] typeCodes = new int[INITIAL_CAPACITY];
+
+    private int[] actionCodes = new int[INITIAL_CAPACITY];
+
+    private int size;
+
+    /** The event of each run of logs, starting at {@link #eventStarts}. */
+    private Event[] events = new Event[1];
+
+    private int[] eventStarts = new int[1];
+
+    private int eventCount;
+
+    /**
+     * Returns the code of a value in an intern table, adding it if missing.
+     */
+    private static int intern(ConcurrentMap<String, Integer> codes,
+            String value, boolean isType) {
+        final Integer known = codes.get(value);
+        if (known != null) {
+            return known;
+        }
+        synchronized (codes) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                final String[] current = isType ? types : actions;
+                code = current.length;
+                final String[] extended = Arrays.copyOf(current, code + 1);
+                extended[code] = value;
+                if (isType) {
+                    types = extended;
+                } else {
+                    actions = extended;
+                }
+                codes.put(value, code);
+            }
+            return code;
+        }
+    }
+
+    /**
+     * Adds a log.
+     * @param action the action, e.g. <code>INSERT</code>
+     * @param entityType the class name of the entity
+     * @param entityId the id of the entity
+     * @param event the event of the log
+     */
+    public void add(String action, String entityType, long entityId, Event event) {
+        final int typeCode = intern(TYPE_CODES, entityType, true);
+        final int actionCode = intern(ACTION_CODES, action, false);
+        if (size == entityIds.length) {
+            final int capacity = size * 2;
+            entityIds = Arrays.copyOf(entityIds, capacity);
+            typeCodes = Arrays.copyOf(typeCodes, capacity);
+            actionCodes = Arrays.copyOf(actionCodes, capacity);
+        }
+        if (eventCount == 0 || events[eventCount - 1] != event) {
+            if (eventCount == events.length) {
+                events = Arrays.copyOf(events, eventCount * 2);
+                eventStarts = Arrays.copyOf(eventStarts, eventCount * 2);
+            }
+            events[eventCount] = event;
+            eventStarts[eventCount] = size;
+            eventCount++;
+        }
+        entityIds[size] = entityId;
+        typeCodes[size] = typeCode;
+        actionCodes[size] = actionCode;
+        size++;
+    }
+
+    /**
+     * @return the number of logs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return if there are no logs
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param index the index of a log
+     * @return the id of the log's entity
+     */
+    public long getEntityId(int index) {
+        checkIndex(index);
+        return entityIds[index];
+    }
+
+    /**
+     * @param index the index of a log
+     * @return the class name of the log's entity
+     */
+    public String getEntityType(int index) {
+        checkIndex(index);
+        return types[typeCodes[index]];
+    }
+
+    /**
+     * @param index the index of a log
+     * @return the log's action
+     */
+    public String getAction(int index) {
+        checkIndex(index);
+        return actions[actionCodes[index]];
+    }
+
+    /**
+     * @param index the index of a log
+     * @return the log's event
+     */
+    public Event getEvent(int index) {
+        checkIndex(index);
+        int run = eventCount - 1;
+        while (eventStarts[run] > index) {
+            run--;
+        }
+        return events[run];
+    }
+
+    /**
+     * @return the distinct events of the logs, in order of first use
+     */
+    public List<Event> getEvents() {
+        final List<Event> distinct = new ArrayList<Event>(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            if (!distinct.contains(events[i])) {
+                distinct.add(events[i]);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Creates the model objects of the logs, for consumers which need them.
+     * Only the action, entity and event of each are set.
+     * @return the logs
+     */
+    public List<EventLog> toEventLogs() {
+        final List<EventLog> logs = new ArrayList<EventLog>(size);
+        for (int i = 0; i < size; i++) {
+            logs.add(toEventLog(i));
+        }
+        return logs;
+    }
+
+    /**
+     * Creates the model objects of only those logs which have the given
+     * entity type and action.
+     * @param entityType the class name of the entity
+     * @param action the action, e.g. <code>INSERT</code>
+     * @return the matching logs
+     */
+    public List<EventLog> toEventLogs(String entityType, String action) {
+        final List<EventLog> logs = new ArrayList<EventLog>();
+        final Integer typeCode = TYPE_CODES.get(entityType);
+        final Integer actionCode = ACTION_CODES.get(action);
+        if (typeCode == null || actionCode == null) {
+            return logs;
+        }
+        final int type = typeCode;
+        final int act = actionCode;
+        for (int i = 0; i < size; i++) {
+            if (typeCodes[i] == type && actionCodes[i] == act) {
+                logs.add(toEventLog(i));
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * @param entityType the class name of an entity
+     * @return if any log is of an entity of the given type
+     */
+    public boolean hasEntityType(String entityType) {
+        final Integer typeCode = TYPE_CODES.get(entityType);
+        if (typeCode == null) {
+            return false;
+        }
+        final int type = typeCode;
+        for (int i = 0; i < size; i++) {
+            if (typeCodes[i] == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the logs through {@link SqlAction#insertLogs(List)} in batches
+     * of at most the given size, in the order in which they were added.
+     * @param sql the SQL action with which to write the logs
+     * @param firstId the id of the first log, the others following on
+     * @param batchSize the maximum number of logs written by one call
+     */
+    public void insertLogs(SqlAction sql, long firstId, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size " + batchSize);
+        }
+        long id = firstId;
+        for (int start = 0; start < size; start += batchSize) {
+            final int end = Math.min(size, start + batchSize);
+            final List<Object[]> batch = new ArrayList<Object[]>(end - start);
+            for (int i = start; i < end; i++) {
+                batch.add(new Object[] {id++, -35L, entityIds[i],
+                        getEntityType(i), getAction(i), getEvent(i).getId()});
+            }
+            sql.insertLogs(batch);
+        }
+    }
+
+    private EventLog toEventLog(int index) {
+        final EventLog l = new EventLog();
+        l.setAction(getAction(index));
+        l.setEntityType(getEntityType(index));
+        l.setEntityId(entityIds[index]);
+        l.setEvent(getEvent(index));
+        return l;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " of " + size);
+        }
+    }
+}
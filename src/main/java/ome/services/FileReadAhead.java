@@ -0,0 +1,261 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import ome.io.nio.FileBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read path of {@link RawFileBean} for one open file. Reads are passed
+ * straight to the {@link FileBuffer} until the client reads sequentially,
+ * from then on they are served from a read-ahead window which is refilled
+ * with one large read whenever the client reaches its end. Files opened only
+ * for reading which are at least the mapping threshold in size, and which
+ * the server cannot write to, have their windows memory-mapped from a
+ * separate read-only channel rather than copied into the heap. Files which
+ * may be modified are never mapped since truncating a file under a mapping
+ * faults the reader.
+ * <p>
+ * Writes through the same {@link RawFileBean} must {@link #invalidate()} the
+ * window. Changes by others are detected from the size and modification
+ * time of the file, which are checked before each read from a window.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class FileReadAhead {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(FileReadAhead.class);
+
+    /** The minimum size of the windows. */
+    private final int windowSize;
+
+    /** The file size from which windows of read-only files are mapped. */
+    private final long mapThreshold;
+
+    /** The window, positioned at its start, or {@code null}. */
+    private ByteBuffer window;
+
+    /** The heap buffer reused for unmapped windows. */
+    private ByteBuffer heapWindow;
+
+    /** The position in the file of the start of {@link #window}. */
+    private long windowStart;
+
+    /** The size of the file when {@link #window} was filled. */
+    private long windowFileSize;
+
+    /** The modification time of the file when {@link #window} was filled. */
+    private FileTime windowModified;
+
+    /** The position after the last read, to detect sequential reads. */
+    private long nextPosition = -1;
+
+    /** The read-only channel from which windows are mapped. */
+    private FileChannel mapChannel;
+
+    private long bytesRead;
+
+    private long reads;
+
+    private long nanos;
+
+    /**
+     * Creates a read path which never reads ahead.
+     */
+    public FileReadAhead() {
+        this(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a read path.
+     * @param windowSize the minimum number of bytes to read ahead once reads
+     * are sequential; if not positive then reads are never served from a
+     * window
+     * @param mapThreshold the size in bytes from which the windows of files
+     * opened only for reading are memory-mapped
+     */
+    public FileReadAhead(int windowSize, long mapThreshold) {
+        this.windowSize = windowSize;
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Reads from a file as a single {@link FileBuffer#read(ByteBuffer, long)}
+     * would: the bytes beyond the end of the file are left as they are.
+     * @param buffer the file's buffer
+     * @param readOnly if the file is opened only for reading so that its
+     * windows may be mapped
+     * @param position the position from which to read
+     * @param dst the array to fill
+     * @return the number of bytes read, <code>-1</code> if the position is at
+     * or beyond the end of the file
+     * @throws IOException if the file could not be read
+     */
+    public synchronized int read(FileBuffer buffer, boolean readOnly,
+            long position, byte[] dst) throws IOException {
+        final long start = System.nanoTime();
+        final boolean sequential = position == nextPosition;
+        nextPosition = position + dst.length;
+        if (window != null && isChanged(buffer)) {
+            window = null;
+        }
+        int read;
+        if (windowSize > 0 && (sequential || covers(position))) {
+            read = readFromWindows(buffer, readOnly, position, dst);
+        } else {
+            read = buffer.read(ByteBuffer.wrap(dst), position);
+        }
+        reads++;
+        if (read > 0) {
+            bytesRead += read;
+        }
+        nanos += System.nanoTime() - start;
+        return read;
+    }
+
+    /**
+     * @return if the file has changed since the window was filled
+     */
+    private boolean isChanged(FileBuffer buffer) {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(
+                    Paths.get(buffer.getPath()), BasicFileAttributes.class);
+            return attrs.size() != windowFileSize
+                    || !attrs.lastModifiedTime().equals(windowModified);
+        } catch (IOException e) {
+            log.debug("Cannot check {} for changes", buffer.getPath(), e);
+            return true;
+        }
+    }
+
+    private boolean covers(long position) {
+        return window != null && position >= windowStart
+                && position < windowStart + window.limit();
+    }
+
+    private int readFromWindows(FileBuffer buffer, boolean readOnly,
+            long position, byte[] dst) throws IOException {
+        int done = 0;
+        while (done < dst.length) {
+            final long at = position + done;
+            if (!covers(at) && !fill(buffer, readOnly, at, dst.length - done)) {
+                break;
+            }
+            final ByteBuffer view = window.duplicate();
+            view.position((int) (at - windowStart));
+            final int length = Math.min(dst.length - done, view.remaining());
+            view.get(dst, done, length);
+            done += length;
+        }
+        return done == 0 && dst.length > 0 ? -1 : done;
+    }
+
+    /**
+     * Replaces the window by one starting at the given position.
+     * @return if there is anything to read at that position
+     */
+    private boolean fill(FileBuffer buffer, boolean readOnly, long position,
+            int wanted) throws IOException {
+        window = null;
+        final Path path = Paths.get(buffer.getPath());
+        final BasicFileAttributes attrs = Files.readAttributes(path,
+                BasicFileAttributes.class);
+        final long fileSize = attrs.size();
+        if (position >= fileSize) {
+            return false;
+        }
+        final int length = (int) Math.min(Math.max(windowSize, wanted),
+                fileSize - position);
+        if (readOnly && fileSize >= mapThreshold && !Files.isWritable(path)) {
+            if (mapChannel == null) {
+                mapChannel = new RandomAccessFile(buffer.getPath(), "r")
+                        .getChannel();
+            }
+            window = mapChannel.map(MapMode.READ_ONLY, position, length);
+        } else {
+            if (heapWindow == null || heapWindow.capacity() < length) {
+                heapWindow = ByteBuffer.allocate(length);
+            }
+            heapWindow.clear();
+            heapWindow.limit(length);
+            while (heapWindow.hasRemaining()) {
+                if (buffer.read(heapWindow, position + heapWindow.position()) < 0) {
+                    break;
+                }
+            }
+            heapWindow.flip();
+            if (!heapWindow.hasRemaining()) {
+                return false;
+            }
+            window = heapWindow;
+        }
+        windowStart = position;
+        windowFileSize = fileSize;
+        windowModified = attrs.lastModifiedTime();
+        return true;
+    }
+
+    /**
+     * Drops the window, as must be done when the file is modified through
+     * the same service.
+     */
+    public synchronized void invalidate() {
+        window = null;
+        nextPosition = -1;
+    }
+
+    /**
+     * Drops the window and releases the resources held for reading ahead.
+     */
+    public synchronized void close() {
+        invalidate();
+        heapWindow = null;
+        if (mapChannel != null) {
+            try {
+                mapChannel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close mapped channel", e);
+            }
+            mapChannel = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes read
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of reads
+     */
+    public synchronized long getReadCount() {
+        return reads;
+    }
+
+    /**
+     * @return the total time spent reading, in nanoseconds
+     */
+    public synchronized long getReadNanos() {
+        return nanos;
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ome.conditions.InternalException;
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.PixelBuffer;
+import ome.util.PixelData;
+
+/**
+ * Calculates the histograms of the channels of a plane for
+ * {@link RawPixelsBean}. The plane is streamed in blocks: strips of whole
+ * rows for flat images and the tiles of the current resolution level for
+ * pyramids, so that only one block per channel is held in memory. Only the
+ * blocks of the requested region are read for binning and each block is
+ * read exactly for its intersection with the region, so no pixel is tested
+ * for being inside the region. The values of each row are converted in one
+ * typed loop for the pixels type.
+ * <p>
+ * Blocks are read from the {@link PixelBuffer} in the calling thread, which
+ * need not be thread-safe, while the channels of each block are binned in
+ * parallel on the executor, if any.
+ * </p>
+ * <p>
+ * Binning is the same as that of the original per-pixel implementation: the
+ * range <code>max - min + 1</code> is divided into <code>binCount</code>
+ * bins and values outside of it are ignored.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class HistogramEngine {
+
+    private static final String INT8 = "int8";
+
+    private static final String UINT8 = "uint8";
+
+    private static final String INT16 = "int16";
+
+    private static final String UINT16 = "uint16";
+
+    private static final String INT32 = "int32";
+
+    private static final String UINT32 = "uint32";
+
+    private static final String FLOAT = "float";
+
+    private static final String DOUBLE = "double";
+
+    /** The number of pixels in the strips read from flat images. */
+    private static final int STRIP_PIXELS = 1024 * 1024;
+
+    /** Where the channels of a block are processed, or {@code null}. */
+    private final ExecutorService executor;
+
+    /**
+     * Creates an engine which works in the calling thread.
+     */
+    public HistogramEngine() {
+        this(null);
+    }
+
+    /**
+     * Creates an engine.
+     * @param executor where to process the channels of each block, may be
+     * {@code null} to work in the calling thread
+     */
+    public HistogramEngine(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Calculates the histograms of channels over a region of a plane at the
+     * current resolution level of the buffer.
+     * @param buffer the buffer of the Pixels set
+     * @param pixelsType the pixels type of the Pixels set
+     * @param tiled if the buffer is a pyramid to be read in tiles
+     * @param z the Z-section of the plane
+     * @param t the timepoint of the plane
+     * @param channels the channels for which to calculate histograms
+     * @param ranges the minimum and maximum of the bins of each channel; for
+     * an entry which is {@code null} the range is that of the values of the
+     * whole plane, as calculated by {@link #getRanges}
+     * @param initialRange the minimum and maximum from which to calculate the
+     * range of a plane, usually those of the pixels type, in reverse
+     * @param binCount the number of bins
+     * @param x the left of the region
+     * @param y the top of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     * @return the histogram of each channel, in the order of the channels
+     * @throws IOException if the buffer could not be read
+     * @throws DimensionsOutOfBoundsException if the plane does not exist
+     */
+    public int[][] getHistograms(PixelBuffer buffer, String pixelsType,
+            boolean tiled, int z, int t, int[] channels, double[][] ranges,
+            double[] initialRange, final int binCount, int x, int y, int w,
+            int h) throws IOException, DimensionsOutOfBoundsException {
+        final List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < channels.length; i++) {
+            if (ranges[i] == null) {
+                missing.add(channels[i]);
+            }
+        }
+        final double[][] resolved = ranges.clone();
+        if (!missing.isEmpty()) {
+            final int[] unknown = new int[missing.size()];
+            for (int i = 0; i < unknown.length; i++) {
+                unknown[i] = missing.get(i);
+            }
+            final double[][] planeRanges = getRanges(buffer, pixelsType,
+                    tiled, z, t, unknown, initialRange);
+            for (int i = 0, j = 0; i < channels.length; i++) {
+                if (resolved[i] == null) {
+                    resolved[i] = planeRanges[j++];
+                }
+            }
+        }
+
+        final int[][] histograms = new int[channels.length][binCount];
+        final Block[] blocks = new Block[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            final double min = resolved[i][0];
+            final double binRange = (resolved[i][1] - min + 1) / binCount;
+            final int[] histogram = histograms[i];
+            blocks[i] = new Block(pixelsType) {
+                void process(double[] row, int length) {
+                    for (int p = 0; p < length; p++) {
+                        int bin = (int) ((row[p] - min) / binRange);
+                        // if there are more bins than values (binRange < 1)
+                        // the bin will be offset by -1, as for the maximum.
+                        if (bin > 0 && binRange < 1) {
+                            bin++;
+                        }
+                        if (bin >= 0 && bin < binCount) {
+                            histogram[bin]++;
+                        }
+                    }
+                }
+            };
+        }
+        process(buffer, tiled, z, t, channels, blocks, x, y, w, h);
+        return histograms;
+    }
+
+    /**
+     * Calculates the minimum and maximum values of channels of a plane at the
+     * current resolution level of the buffer.
+     * @param buffer the buffer of the Pixels set
+     * @param pixelsType the pixels type of the Pixels set
+     * @param tiled if the buffer is a pyramid to be read in tiles
+     * @param z the Z-section of the plane
+     * @param t the timepoint of the plane
+     * @param channels the channels
+     * @param initialRange the minimum and maximum from which to start, usually
+     * those of the pixels type, in reverse
+     * @return the minimum and maximum of each channel, in the order of the
+     * channels
+     * @throws IOException if the buffer could not be read
+     * @throws DimensionsOutOfBoundsException if the plane does not exist
+     */
+    public double[][] getRanges(PixelBuffer buffer, String pixelsType,
+            boolean tiled, int z, int t, int[] channels, double[] initialRange)
+            throws IOException, DimensionsOutOfBoundsException {
+        final double[][] ranges = new double[channels.length][];
+        final Block[] blocks = new Block[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            final double[] range = ranges[i] = initialRange.clone();
+            blocks[i] = new Block(pixelsType) {
+                void process(double[] row, int length) {
+                    double min = range[0];
+                    double max = range[1];
+                    for (int p = 0; p < length; p++) {
+                        final double v = row[p];
+                        min = Math.min(min, v);
+                        max = Math.max(max, v);
+                    }
+                    range[0] = min;
+                    range[1] = max;
+                }
+            };
+        }
+        process(buffer, tiled, z, t, channels, blocks, 0, 0,
+                buffer.getSizeX(), buffer.getSizeY());
+        return ranges;
+    }
+
+    /**
+     * Streams the blocks of a region to the given per-channel processing.
+     */
+    private void process(PixelBuffer buffer, boolean tiled, int z, int t,
+            int[] channels, Block[] blocks, int x, int y, int w, int h)
+            throws IOException, DimensionsOutOfBoundsException {
+        final int right = Math.min(x + w, buffer.getSizeX());
+        final int bottom = Math.min(y + h, buffer.getSizeY());
+        if (x >= right || y >= bottom) {
+            return;
+        }
+        final int blockWidth;
+        final int blockHeight;
+        if (tiled) {
+            final Dimension tileSize = buffer.getTileSize();
+            blockWidth = (int) tileSize.getWidth();
+            blockHeight = (int) tileSize.getHeight();
+        } else {
+            blockWidth = buffer.getSizeX();
+            blockHeight = Math.max(1, STRIP_PIXELS / blockWidth);
+        }
+        // Align the blocks with the grid so that a pyramid's tiles are read
+        // whole or clipped by the region only.
+        for (int by = y - y % blockHeight; by < bottom; by += blockHeight) {
+            final int top = Math.max(by, y);
+            final int height = Math.min(by + blockHeight, bottom) - top;
+            for (int bx = x - x % blockWidth; bx < right; bx += blockWidth) {
+                final int left = Math.max(bx, x);
+                final int width = Math.min(bx + blockWidth, right) - left;
+                final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int i = 0; i < channels.length; i++) {
+                    final PixelData data = buffer.getTile(z, channels[i], t,
+                            left, top, width, height);
+                    final Block block = blocks[i];
+                    if (executor == null || channels.length == 1) {
+                        try {
+                            block.read(data, width, height);
+                        } finally {
+                            data.dispose();
+                        }
+                        continue;
+                    }
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() {
+                            try {
+                                block.read(data, width, height);
+                            } finally {
+                                data.dispose();
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                await(futures);
+            }
+        }
+    }
+
+    /**
+     * Waits for the channels of a block to have been processed.
+     */
+    private static void await(List<Future<Void>> futures) {
+        try {
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (final Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while binning pixels");
+        } catch (ExecutionException e) {
+            final InternalException ie = new InternalException(
+                    "Failed to bin pixels: " + e.getCause());
+            ie.initCause(e.getCause());
+            throw ie;
+        }
+    }
+
+    /**
+     * The processing of the blocks of one channel. The values of each row of
+     * a block are converted with one loop for the pixels type into a row
+     * buffer which is reused from one block to the next.
+     */
+    abstract static class Block {
+
+        private final String pixelsType;
+
+        private double[] row;
+
+        Block(String pixelsType) {
+            this.pixelsType = pixelsType;
+        }
+
+        /**
+         * Processes the values of one row.
+         * @param row the values
+         * @param length the number of values in the row
+         */
+        abstract void process(double[] row, int length);
+
+        /**
+         * Reads a block row by row, honoring its byte order.
+         * @param block the pixels of the block
+         * @param width the width of the block
+         * @param height the height of the block
+         */
+        void read(PixelData block, int width, int height) {
+            if (row == null || row.length < width) {
+                row = new double[width];
+            }
+            final double[] row = this.row;
+            final ByteBuffer data = block.getData().duplicate();
+            data.order(block.getData().order());
+            for (int r = 0, offset = 0; r < height; r++, offset += width) {
+                if (UINT8.equals(pixelsType)) {
+                    for (int p = 0; p < width; p++) {
+                        row[p] = data.get(offset + p) & 0xff;
+                    }
+                } else if (INT8.equals(pixelsType)) {
+                    for (int p = 0; p < width; p++) {
+                        row[p] = data.get(offset + p);
+                    }
+                } else if (UINT16.equals(pixelsType)) {
+                    for (int p = 0, b = offset * 2; p < width; p++, b += 2) {
+                        row[p] = data.getShort(b) & 0xffff;
+                    }
+                } else if (INT16.equals(pixelsType)) {
+                    for (int p = 0, b = offset * 2; p < width; p++, b += 2) {
+                        row[p] = data.getShort(b);
+                    }
+                } else if (UINT32.equals(pixelsType)) {
+                    for (int p = 0, b = offset * 4; p < width; p++, b += 4) {
+                        row[p] = data.getInt(b) & 0xffffffffL;
+                    }
+                } else if (INT32.equals(pixelsType)) {
+                    for (int p = 0, b = offset * 4; p < width; p++, b += 4) {
+                        row[p] = data.getInt(b);
+                    }
+                } else if (FLOAT.equals(pixelsType)) {
+                    for (int p = 0, b = offset * 4; p < width; p++, b += 4) {
+                        row[p] = data.getFloat(b);
+                    }
+                } else if (DOUBLE.equals(pixelsType)) {
+                    for (int p = 0, b = offset * 8; p < width; p++, b += 8) {
+                        row[p] = data.getDouble(b);
+                    }
+                } else {
+                    // Packed bits
+                    for (int p = 0; p < width; p++) {
+                        row[p] = block.getPixelValue(offset + p);
+                    }
+                }
+                process(row, width);
+            }
+        }
+    }
+}
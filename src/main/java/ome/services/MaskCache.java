@@ -0,0 +1,299 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ome.model.meta.EventLog;
+import ome.model.roi.Mask;
+import ome.model.roi.Roi;
+import ome.services.messages.EventLogsMessage;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Bounded cache of the masks which {@link RenderingBean} overlays on the
+ * planes it renders, so that rendering the tiles of a plane with its shapes
+ * queries the database for the masks only once. Entries are keyed by the
+ * Pixels set, plane, active channels and requested shape IDs and also by the
+ * user and group querying since the masks returned depend on what they may
+ * see.
+ * <p>
+ * Entries are invalidated from the {@link EventLogsMessage} published at the
+ * end of each transaction: updated or deleted masks remove the entries which
+ * contain them while new masks or changed ROIs, for which the image is not
+ * known here, clear the whole cache.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class MaskCache implements ApplicationListener<EventLogsMessage> {
+
+    private static final Logger log = LoggerFactory.getLogger(MaskCache.class);
+
+    /**
+     * Identifies the masks found for one plane.
+     */
+    public static final class Key {
+
+        private final long pixelsId;
+
+        private final int z;
+
+        private final int t;
+
+        private final List<Long> channelIds;
+
+        private final List<Long> shapeIds;
+
+        private final long userId;
+
+        private final long groupId;
+
+        /**
+         * Creates a new key.
+         * @param pixelsId the ID of the Pixels set
+         * @param z the Z-section of the plane
+         * @param t the timepoint of the plane
+         * @param channelIds the indexes of the active channels
+         * @param shapeIds the IDs of the shapes requested, empty for all
+         * @param userId the ID of the user querying
+         * @param groupId the ID of the group context of the query
+         */
+        public Key(long pixelsId, int z, int t, List<Long> channelIds,
+                List<Long> shapeIds, long userId, long groupId) {
+            this.pixelsId = pixelsId;
+            this.z = z;
+            this.t = t;
+            this.channelIds = channelIds;
+            this.shapeIds = shapeIds;
+            this.userId = userId;
+            this.groupId = groupId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return pixelsId == other.pixelsId && z == other.z && t == other.t
+                    && userId == other.userId && groupId == other.groupId
+                    && channelIds.equals(other.channelIds)
+                    && shapeIds.equals(other.shapeIds);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (pixelsId ^ (pixelsId >>> 32));
+            hash = 31 * hash + z;
+            hash = 31 * hash + t;
+            hash = 31 * hash + channelIds.hashCode();
+            hash = 31 * hash + shapeIds.hashCode();
+            hash = 31 * hash + (int) (userId ^ (userId >>> 32));
+            hash = 31 * hash + (int) (groupId ^ (groupId >>> 32));
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Pixels:%d(z=%d,t=%d,c=%s,shapes=%s,"
+                    + "user=%d,group=%d)", pixelsId, z, t, channelIds,
+                    shapeIds, userId, groupId);
+        }
+    }
+
+    /** The masks found for one plane. */
+    private static final class Entry {
+
+        final Map<byte[], Integer> masks;
+
+        final Set<Long> maskIds;
+
+        final long size;
+
+        Entry(Map<byte[], Integer> masks, Set<Long> maskIds) {
+            this.masks = Collections.unmodifiableMap(masks);
+            this.maskIds = maskIds;
+            long size = 0;
+            for (final byte[] bytes : masks.keySet()) {
+                size += bytes.length;
+            }
+            this.size = size;
+        }
+    }
+
+    /** Sizes entries by the total length of their masks. */
+    private static final SizeBoundedLruCache.Sizer<Entry> ENTRY_SIZER =
+            new SizeBoundedLruCache.Sizer<Entry>() {
+        @Override
+        public long sizeOf(Entry entry) {
+            return entry.size;
+        }
+    };
+
+    private final SizeBoundedLruCache<Key, Entry> entries;
+
+    /** Incremented on each invalidation; guarded by {@code this}. */
+    private long generation = 0;
+
+    /**
+     * Creates a cache which is disabled.
+     */
+    public MaskCache() {
+        this(new NullMetrics(), 0);
+    }
+
+    /**
+     * Creates a new cache.
+     * @param metrics where to report hits, misses and evictions
+     * @param maxMegabytes the maximum total size of the cached masks in
+     * megabytes; if not positive then nothing is cached
+     */
+    public MaskCache(Metrics metrics, int maxMegabytes) {
+        this.entries = new SizeBoundedLruCache<Key, Entry>(metrics, this,
+                Math.max(0, maxMegabytes) * 1024L * 1024L, ENTRY_SIZER);
+    }
+
+    /**
+     * @return if masks are cached at all
+     */
+    public boolean isEnabled() {
+        return entries.isEnabled();
+    }
+
+    /**
+     * Retrieves the cached masks of a plane.
+     * @param key the plane's key, may be {@code null}
+     * @return the mask bytes mapped to their fill colors, not modifiable, or
+     * {@code null} on a cache miss
+     */
+    public Map<byte[], Integer> get(Key key) {
+        final Entry entry = entries.get(key);
+        return entry == null ? null : entry.masks;
+    }
+
+    /**
+     * @return the current generation of the cache, to be passed to
+     * {@link #put(Key, Map, Set, long)} once the masks have been queried
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches the masks of a plane, evicting the least recently used entries
+     * as necessary. The masks are not cached if the cache has been
+     * invalidated since they were queried.
+     * @param key the plane's key, may be {@code null}
+     * @param masks the mask bytes mapped to their fill colors
+     * @param maskIds the IDs of the masks
+     * @param queriedGeneration the generation of the cache before the masks
+     * were queried
+     * @return the cached masks, not modifiable
+     */
+    public Map<byte[], Integer> put(Key key, Map<byte[], Integer> masks,
+            Set<Long> maskIds, long queriedGeneration) {
+        final Entry entry = new Entry(masks, maskIds);
+        synchronized (this) {
+            if (queriedGeneration == generation) {
+                entries.put(key, entry);
+            }
+        }
+        return entry.masks;
+    }
+
+    /**
+     * Removes the cached entries which contain any of the given masks.
+     * @param maskIds the IDs of the masks
+     */
+    public synchronized void invalidateMasks(final Set<Long> maskIds) {
+        generation++;
+        entries.invalidate(new Predicate<Map.Entry<Key, Entry>>() {
+            @Override
+            public boolean apply(Map.Entry<Key, Entry> entry) {
+                return !Collections.disjoint(entry.getValue().maskIds, maskIds);
+            }
+        });
+    }
+
+    /**
+     * Removes all the cached masks.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Invalidates the entries affected by the event logs of a transaction.
+     */
+    @Override
+    public void onApplicationEvent(EventLogsMessage elm) {
+        if (!isEnabled()) {
+            return;
+        }
+        final String mask = Mask.class.getName();
+        final String roi = Roi.class.getName();
+        if (!elm.matches(mask, "INSERT").isEmpty()
+                || !elm.matches(roi, "UPDATE").isEmpty()
+                || !elm.matches(roi, "DELETE").isEmpty()) {
+            log.debug("Masks or ROIs added or changed, clearing mask cache");
+            clear();
+            return;
+        }
+        final Set<Long> changed = new HashSet<Long>();
+        for (final String action : new String[] {"UPDATE", "DELETE"}) {
+            for (final EventLog el : elm.matches(mask, action)) {
+                changed.add(el.getEntityId());
+            }
+        }
+        if (!changed.isEmpty()) {
+            invalidateMasks(changed);
+        }
+    }
+
+    /**
+     * @return the number of lookups which found cached masks
+     */
+    public long getHitCount() {
+        return entries.getHitCount();
+    }
+
+    /**
+     * @return the number of lookups which did not find cached masks
+     */
+    public long getMissCount() {
+        return entries.getMissCount();
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size of the cached masks in bytes
+     */
+    public long getSizeInBytes() {
+        return entries.getSizeInBytes();
+    }
+}
@@ -116,6 +116,25 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
     /** is file service checking for disk overflow */
     private transient boolean diskSpaceChecking;
 
+    /**
+     * The checksum of the file's content, kept up to date while the file is
+     * written sequentially from its start so that {@link #save()} need not
+     * read the file back, or <code>null</code>. Guarded by {@code this}.
+     */
+    private transient RunningChecksum runningChecksum;
+
+    /** The minimum number of bytes read ahead for sequential reads. */
+    private transient int readAheadSize;
+
+    /** The file size from which read-ahead windows are memory-mapped. */
+    private transient long mapThreshold = Long.MAX_VALUE;
+
+    /** The read path of the current file, created with the buffer. */
+    private transient FileReadAhead readAhead;
+
+    /** If {@link #buffer} was opened only for reading. */
+    private transient boolean readOnlyBuffer;
+
     /**
      * default constructor
      */
@@ -169,6 +188,24 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         this.checksumProviderFactory = checksumProviderFactory;
     }
 
+    /**
+     * Sets the number of bytes read ahead once a file is read sequentially.
+     * @param readAheadSize a size in megabytes, reads are never served from
+     *                      a read-ahead window if not positive
+     */
+    public void setReadAheadSize(int readAheadSize) {
+        this.readAheadSize = Math.max(0, readAheadSize) * 1024 * 1024;
+    }
+
+    /**
+     * Sets the size from which files opened only for reading are
+     * memory-mapped when read ahead.
+     * @param mapThreshold a size in megabytes
+     */
+    public void setMapThreshold(int mapThreshold) {
+        this.mapThreshold = Math.max(0, mapThreshold) * 1024L * 1024L;
+    }
+
     // See documentation on JobBean#passivate
     @RolesAllowed("user")
     @Transactional(readOnly = true)
@@ -234,13 +271,17 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
 
             StopWatch checksum = new Slf4JStopWatch();
             try {
+                File f = new File(path);
                 if (file.getHasher() != null) {
                     final ChecksumType checksumType = checksumAlgorithms.get(file.getHasher().getValue());
-                    file.setHash(this.checksumProviderFactory
-                            .getProvider(checksumType).putFile(path).checksumAsString());
+                    String hash = finishRunningChecksum(checksumType, f);
+                    if (hash == null) {
+                        hash = this.checksumProviderFactory
+                            .getProvider(checksumType).putFile(path).checksumAsString();
+                    }
+                    file.setHash(hash);
                 }
 
-                File f = new File(path);
                 long size = f.length();
                 file.setSize(size);
                 file.setMtime(new java.sql.Timestamp(f.lastModified()));
@@ -295,10 +336,32 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
     public void clean() {
         ioService = null;
         file = null;
+        stopRunningChecksum();
+        closeReadAhead();
         closeFileBuffer();
         buffer = null;
     }
 
+    /**
+     * Report the reads of the active file and release the resources held for
+     * reading ahead.
+     */
+    private synchronized void closeReadAhead() {
+        if (readAhead == null) {
+            return;
+        }
+        final long bytes = readAhead.getBytesRead();
+        if (bytes > 0 && log.isDebugEnabled()) {
+            final double seconds = readAhead.getReadNanos() / 1e9;
+            log.debug(String.format(
+                    "Read %d bytes of file %d in %d reads (%.1f MB/s)", bytes,
+                    id, readAhead.getReadCount(),
+                    seconds > 0 ? bytes / seconds / (1024 * 1024) : 0.0));
+        }
+        readAhead.close();
+        readAhead = null;
+    }
+
     /**
      * Close the active file buffer, cleaning up any potential messes left by
      * the file buffer itself.
@@ -348,6 +411,7 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         if (id == null || id.longValue() != fileId) {
             id = new Long(fileId);
             file = null;
+            closeReadAhead();
             closeFileBuffer();
             this.buffer = null;
 
@@ -383,12 +447,84 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
                 }
 
                 this.buffer = ioService.getFileBuffer(file, mode);
+                this.readOnlyBuffer = "r".equals(mode);
             } else {
                 this.buffer = buffer;
+                this.readOnlyBuffer = false;
+            }
+            this.readAhead = new FileReadAhead(readAheadSize, mapThreshold);
+            startRunningChecksum();
+        }
+    }
+
+    /**
+     * Starts keeping a running checksum of the file if it is empty, so that
+     * an upload written sequentially need not be read back when saved.
+     */
+    private synchronized void startRunningChecksum() {
+        stopRunningChecksum();
+        if (file.getHasher() == null || checksumProviderFactory == null) {
+            return;
+        }
+        final ChecksumType checksumType =
+                checksumAlgorithms.get(file.getHasher().getValue());
+        if (checksumType == null) {
+            return;
+        }
+        try {
+            if (buffer.size() != 0) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        runningChecksum = new RunningChecksum(
+                checksumProviderFactory.getProvider(checksumType), checksumType);
+    }
+
+    /**
+     * Adds written bytes to the running checksum if they directly follow
+     * those already added, otherwise abandons the running checksum.
+     * @param buf the bytes written
+     * @param position the position at which they were written
+     * @param length the number of bytes written
+     */
+    private synchronized void updateRunningChecksum(byte[] buf, long position,
+            int length) {
+        if (runningChecksum == null) {
+            return;
+        }
+        if (!runningChecksum.update(buf, position, length)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Out of order write to file " + id
+                        + ": checksum will be calculated on save");
             }
+            stopRunningChecksum();
+        }
+    }
+
+    /**
+     * Finishes the running checksum if it covers the whole of the file.
+     * Either way the running checksum is then abandoned.
+     * @param checksumType the checksum type required
+     * @param f the file, already flushed
+     * @return the checksum or <code>null</code> if the file must be read to
+     * calculate it
+     */
+    private synchronized String finishRunningChecksum(ChecksumType checksumType,
+            File f) {
+        try {
+            return runningChecksum == null ? null
+                    : runningChecksum.finish(checksumType, f.length());
+        } finally {
+            stopRunningChecksum();
         }
     }
 
+    private synchronized void stopRunningChecksum() {
+        runningChecksum = null;
+    }
+
 
     private synchronized void errorIfNotLoaded() {
         // If we're not loaded because of passivation, then load.
@@ -423,15 +559,17 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         sec.checkRestriction(BinaryAccessPolicy.NAME, file);
 
         byte[] rawBuf = new byte[length];
-        ByteBuffer buf = ByteBuffer.wrap(rawBuf);
 
+        StopWatch read = new Slf4JStopWatch();
         try {
-            buffer.read(buf, position);
+            readAhead().read(buffer, readOnlyBuffer, position, rawBuf);
         } catch (IOException e) {
             if (log.isDebugEnabled()) {
                 log.debug("Buffer could not be read.", e);
             }
             throw new ResourceError(e.getMessage());
+        } finally {
+            read.stop("omero.services.file.read", length + " bytes");
         }
         return rawBuf;
     }
@@ -443,6 +581,8 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         try {
             if (length < buffer.size()) {
                 buffer.truncate(length);
+                readAhead().invalidate();
+                stopRunningChecksum();
                 modified();
                 return true;
             }
@@ -482,11 +622,14 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
             iRepositoryInfo.sanityCheckRepository();
         }
 
+        final long start = position;
         try {
+            readAhead().invalidate();
             do {
                 position += buffer.write(nioBuffer, position);
             } while (nioBuffer.hasRemaining());
             // Write was successful, update state.
+            updateRunningChecksum(buf, start, length);
             modified();
         } catch (NonWritableChannelException nwce) {
             throw new SecurityViolation("File not writeable!");
@@ -498,6 +641,16 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         }
     }
 
+    /**
+     * @return the read path of the current file
+     */
+    private synchronized FileReadAhead readAhead() {
+        if (readAhead == null) {
+            readAhead = new FileReadAhead(readAheadSize, mapThreshold);
+        }
+        return readAhead;
+    }
+
     /**
      * getter disk overflow checking
      * @return See above.
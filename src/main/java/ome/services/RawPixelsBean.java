@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -98,6 +99,12 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     /** The server's OMERO data directory. */
     private transient String omeroDataDir;
 
+    /** The rendered tiles to invalidate when pixel data is saved. */
+    private transient RenderedTileCache tileCache;
+
+    /** Calculates histograms and ranges of planes. */
+    private transient HistogramEngine histogramEngine;
+
     /**
      * default constructor
      */
@@ -149,6 +156,27 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         this.sql = sql;
     }
 
+    /**
+     * Rendered tile cache Bean injector
+     * @param tileCache a <code>RenderedTileCache</code>
+     */
+    public synchronized final void setTileCache(RenderedTileCache tileCache) {
+        getBeanHelper().throwIfAlreadySet(this.tileCache, tileCache);
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Histogram engine Bean injector. If not set then histograms are
+     * calculated in the calling thread.
+     * @param histogramEngine a <code>HistogramEngine</code>
+     */
+    public synchronized final void setHistogramEngine(
+            HistogramEngine histogramEngine) {
+        getBeanHelper().throwIfAlreadySet(this.histogramEngine,
+                histogramEngine);
+        this.histogramEngine = histogramEngine;
+    }
+
     // ~ Lifecycle methods
     // =========================================================================
 
@@ -198,6 +226,9 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
             iUpdate.flush();
             modified = false;
+            if (tileCache != null) {
+                tileCache.invalidatePixels(id);
+            }
             return new ShallowCopy().copy(pixelsInstance);
         }
         return null;
@@ -682,10 +713,6 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             int binCount, boolean globalRange, PlaneDef plane) {
         errorIfNotLoaded();
 
-        if (requiresPixelsPyramid())
-            throw new ApiUsageException(
-                    "This method can not handle tiled images yet.");
-
         if (binCount <= 0)
             binCount = DEFAULT_HISTOGRAM_BINSIZE;
 
@@ -706,37 +733,21 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
         Map<Integer, int[]> result = new HashMap<Integer, int[]>();
 
+        // Skip the channels which do not exist, as before.
+        int[] existing = existingChannels(channels);
+        double[][] ranges = new double[existing.length][];
+        for (int i = 0; i < existing.length; i++) {
+            ranges[i] = determineHistogramMinMax(
+                    pixelsInstance.getChannel(existing[i]), globalRange);
+        }
+
         try {
-            for (int ch : channels) {
-                Channel channel = pixelsInstance.getChannel(ch);
-                if (channel == null)
-                    continue;
-                PixelData px = buffer.getPlane(z, ch, t);
-                int[] data = new int[binCount];
-
-                double[] minmax = determineHistogramMinMax(px, channel,
-                        globalRange);
-                double min = minmax[0];
-                double max = minmax[1];
-
-                double range = max - min + 1;
-                double binRange = range / binCount;
-                for (int i = 0; i < px.size(); i++) {
-                    int pxx = i % imgWidth;
-                    int pxy = i / imgWidth;
-                    if (pxx >= x && pxx < (x + w) && pxy >= y && pxy < (y + h)) {
-                        int bin = (int) ((px.getPixelValue(i) - min) / binRange);
-                        // if there are more bins than values (binRange < 1) the bin will be offset by -1.
-                        // e.g. min=0.0, max=127.0, binCount=256: a pixel with max value 127.0 would go
-                        // into bin 254 (expected: 255). Therefore increment by one for these cases.
-                        if (bin > 0 && binRange < 1)
-                            bin++;
-
-                        if (bin >= 0 && bin < binCount)
-                            data[bin]++;
-                    }
-                }
-                result.put(ch, data);
+            int[][] histograms = getHistogramEngine().getHistograms(buffer,
+                    pixelsInstance.getPixelsType().getValue(),
+                    requiresPixelsPyramid(), z, t, existing, ranges,
+                    initialRange(), binCount, x, y, w, h);
+            for (int i = 0; i < existing.length; i++) {
+                result.put(existing[i], histograms[i]);
             }
         } catch (Exception e) {
             handleException(e);
@@ -753,17 +764,16 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             return result;
 
         try {
-            for (int ch : channels) {
-                Channel channel = pixelsInstance.getChannel(ch);
-                if (channel == null)
-                    continue;
-                int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
-                int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
-                PixelData px = buffer.getPlane(z, ch, t);
-                double[] minmax = determineHistogramMinMax(px, channel, false);
-                result.put(ch, minmax);
+            int[] existing = existingChannels(channels);
+            int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
+            int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
+            double[][] minmax = getHistogramEngine().getRanges(buffer,
+                    pixelsInstance.getPixelsType().getValue(), false, z, t,
+                    existing, initialRange());
+            for (int i = 0; i < existing.length; i++) {
+                result.put(existing[i], minmax[i]);
             }
-        } catch (IOException e) {
+        } catch (Exception e) {
             handleException(e);
         }
         return result;
@@ -778,39 +788,52 @@ public class RawPixelsBean extends AbstractStatefulBean implements
      * minimum and maximum will be used, otherwise the minimum and maximum value
      * of the plane will be used.
      * 
-     * @param px
-     *            The {@link PixelData}
      * @param channel
      *            The {@link Channel}
      * @param useGlobal
      *            Try to use the global minimum/maximum
-     * @return See above
+     * @return See above, <code>null</code> for the minimum and maximum of the
+     *         plane to be determined by the {@link HistogramEngine}
      */
-    private double[] determineHistogramMinMax(PixelData px, Channel channel,
+    private double[] determineHistogramMinMax(Channel channel,
             boolean useGlobal) {
-        double min, max;
-
         if (useGlobal && channel != null && channel.getStatsInfo() != null) {
-            min = channel.getStatsInfo().getGlobalMin();
-            max = channel.getStatsInfo().getGlobalMax();
+            double min = channel.getStatsInfo().getGlobalMin();
+            double max = channel.getStatsInfo().getGlobalMax();
             // if max == 1.0 the global min/max probably has not been
             // calculated; fall back to plane min/max
             if (max != 1.0)
                 return new double[] { min, max };
         }
+        return null;
+    }
 
-        StatsFactory sf = new StatsFactory();
-        double[] pixelMinMax = sf.initPixelsRange(channel.getPixels());
-
-        min = pixelMinMax[1];
-        max = pixelMinMax[0];
+    /**
+     * @return the range of the pixels type in reverse, from which the minimum
+     *         and maximum of a plane are determined
+     */
+    private double[] initialRange() {
+        double[] pixelMinMax = new StatsFactory().initPixelsRange(
+                pixelsInstance);
+        return new double[] { pixelMinMax[1], pixelMinMax[0] };
+    }
 
-        for (int i = 0; i < px.size(); i++) {
-            min = Math.min(min, px.getPixelValue(i));
-            max = Math.max(max, px.getPixelValue(i));
+    /**
+     * @return the given channels which exist in the Pixels set
+     */
+    private int[] existingChannels(int[] channels) {
+        int[] existing = new int[channels.length];
+        int count = 0;
+        for (int ch : channels) {
+            if (pixelsInstance.getChannel(ch) != null)
+                existing[count++] = ch;
         }
+        return Arrays.copyOf(existing, count);
+    }
 
-        return new double[] { min, max };
+    private HistogramEngine getHistogramEngine() {
+        return histogramEngine == null ? new HistogramEngine()
+                : histogramEngine;
     }
     
     private synchronized byte[] bufferAsByteArrayWithExceptionIfNull(ByteBuffer buffer) {
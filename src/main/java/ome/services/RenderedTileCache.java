@@ -0,0 +1,436 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Bounded cache of compressed tiles as rendered by {@link RenderingBean}, shared
+ * between all rendering engines so that viewers panning over the same slide
+ * with the same settings do not render and compress the same tiles again.
+ * Entries are keyed by the Pixels set, a canonical description of the
+ * rendering state, the resolution level, the plane and region rendered and
+ * the compression level, so that a change to any of these produces a new key.
+ * <p>
+ * The least recently used tiles are evicted once the total size of the tiles
+ * held in memory exceeds the configured limit. If a spill directory is
+ * configured then evicted tiles are written to a subdirectory of it which the
+ * cache creates, {@link #SUBDIRECTORY}, and read back on a later request, up
+ * to a second limit on the size of the spilled tiles. Only files named as
+ * spilled tiles are ever deleted from there.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class RenderedTileCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RenderedTileCache.class);
+
+    /** The subdirectory of the configured spill directory used by the cache. */
+    public static final String SUBDIRECTORY = "omero-rendered-tiles";
+
+    /** The suffix of spilled tiles which are still being written. */
+    private static final String PARTIAL = ".part";
+
+    /** The names of spilled tiles, as from {@link #fileFor(Key)}. */
+    private static final Pattern TILE_FILE =
+            Pattern.compile("-?\\d+-[0-9a-f]{40}(\\.part)?");
+
+    /**
+     * Identifies one rendered and compressed tile.
+     */
+    public static final class Key {
+
+        private final long pixelsId;
+
+        private final String state;
+
+        private final int resolutionLevel;
+
+        private final String plane;
+
+        private final float compressionLevel;
+
+        private final int hash;
+
+        /**
+         * Creates a new key.
+         * @param pixelsId the ID of the Pixels set
+         * @param state a canonical description of the rendering state which
+         * includes everything that affects the rendered pixels
+         * @param resolutionLevel the resolution level rendered, or -1 for
+         * the Pixels set's default
+         * @param plane a canonical description of the plane and region
+         * rendered
+         * @param compressionLevel the compression level of the tile
+         */
+        public Key(long pixelsId, String state, int resolutionLevel,
+                String plane, float compressionLevel) {
+            this.pixelsId = pixelsId;
+            this.state = state;
+            this.resolutionLevel = resolutionLevel;
+            this.plane = plane;
+            this.compressionLevel = compressionLevel;
+            int hash = (int) (pixelsId ^ (pixelsId >>> 32));
+            hash = 31 * hash + state.hashCode();
+            hash = 31 * hash + resolutionLevel;
+            hash = 31 * hash + plane.hashCode();
+            hash = 31 * hash + Float.floatToIntBits(compressionLevel);
+            this.hash = hash;
+        }
+
+        public long getPixelsId() {
+            return pixelsId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hash == other.hash
+                    && pixelsId == other.pixelsId
+                    && resolutionLevel == other.resolutionLevel
+                    && Float.floatToIntBits(compressionLevel)
+                        == Float.floatToIntBits(other.compressionLevel)
+                    && plane.equals(other.plane)
+                    && state.equals(other.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Pixels:%d[%s]@%d/%s/%s", pixelsId, state,
+                    resolutionLevel, plane, compressionLevel);
+        }
+    }
+
+    /** Sizes spilled tiles by their recorded length. */
+    private static final SizeBoundedLruCache.Sizer<Integer> SPILLED_LENGTHS =
+            new SizeBoundedLruCache.Sizer<Integer>() {
+        @Override
+        public long sizeOf(Integer length) {
+            return length;
+        }
+    };
+
+    /** The tiles held in memory. */
+    private final SizeBoundedLruCache<Key, byte[]> entries;
+
+    /** The lengths of the tiles spilled to disk. */
+    private final SizeBoundedLruCache<Key, Integer> spilled;
+
+    private final File spillDirectory;
+
+    /**
+     * Creates a cache which is disabled.
+     */
+    public RenderedTileCache() {
+        this(new NullMetrics(), 0, null, 0);
+    }
+
+    /**
+     * Creates a new cache.
+     * @param metrics where to report hits, misses and evictions
+     * @param maxMegabytes the maximum total size of the tiles held in memory
+     * in megabytes; if not positive then nothing is cached
+     * @param spillDirectory the local directory in whose {@link #SUBDIRECTORY}
+     * tiles evicted from memory are written, may be empty or {@code null} to
+     * not spill tiles
+     * @param maxSpillMegabytes the maximum total size of the spilled tiles in
+     * megabytes; if not positive then no tiles are spilled
+     */
+    public RenderedTileCache(Metrics metrics, int maxMegabytes,
+            String spillDirectory, int maxSpillMegabytes) {
+        this.entries = new SizeBoundedLruCache<Key, byte[]>(metrics, this,
+                Math.max(0, maxMegabytes) * 1024L * 1024L,
+                SizeBoundedLruCache.BYTE_ARRAYS);
+        File directory = null;
+        if (entries.isEnabled() && maxSpillMegabytes > 0
+                && StringUtils.isNotBlank(spillDirectory)) {
+            directory = new File(spillDirectory, SUBDIRECTORY);
+            try {
+                FileUtils.forceMkdir(directory);
+                // Tiles spilled by an earlier run are not indexed.
+                deleteSpilledFiles(directory);
+            } catch (IOException e) {
+                log.warn("Cannot use " + spillDirectory
+                        + " for rendered tiles, not spilling to disk", e);
+                directory = null;
+            }
+        }
+        this.spillDirectory = directory;
+        this.spilled = new SizeBoundedLruCache<Key, Integer>(new NullMetrics(),
+                this, directory == null ? 0 : maxSpillMegabytes * 1024L * 1024L,
+                SPILLED_LENGTHS);
+    }
+
+    /**
+     * @return if tiles are cached at all
+     */
+    public boolean isEnabled() {
+        return entries.isEnabled();
+    }
+
+    /**
+     * @return if tiles evicted from memory are written to disk
+     */
+    public boolean isSpilling() {
+        return spillDirectory != null;
+    }
+
+    /**
+     * Retrieves a cached tile, reading it back into memory if it was spilled.
+     * @param key the tile's key, may be {@code null}
+     * @return the compressed tile or {@code null} on a cache miss
+     */
+    public byte[] get(Key key) {
+        if (key == null || !isEnabled()) {
+            return null;
+        }
+        byte[] value = entries.find(key);
+        if (value == null && spilled.find(key) != null) {
+            value = readSpilled(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        entries.countLookup(value != null);
+        return value;
+    }
+
+    /**
+     * Caches a tile, evicting the least recently used tiles from memory as
+     * necessary. Tiles larger than the whole cache are not cached.
+     * @param key the tile's key, may be {@code null}
+     * @param value the compressed tile, not to be modified hereafter
+     */
+    public void put(Key key, byte[] value) {
+        final List<Map.Entry<Key, byte[]>> evicted = entries.put(key, value);
+        if (isSpilling()) {
+            for (final Map.Entry<Key, byte[]> entry : evicted) {
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached tiles of a Pixels set, from memory and from disk.
+     * @param pixelsId the ID of the Pixels set
+     */
+    public void invalidatePixels(final long pixelsId) {
+        if (!isEnabled()) {
+            return;
+        }
+        entries.invalidate(new Predicate<Map.Entry<Key, byte[]>>() {
+            @Override
+            public boolean apply(Map.Entry<Key, byte[]> entry) {
+                return entry.getKey().pixelsId == pixelsId;
+            }
+        });
+        final List<Key> deleted = spilled.invalidate(
+                new Predicate<Map.Entry<Key, Integer>>() {
+            @Override
+            public boolean apply(Map.Entry<Key, Integer> entry) {
+                return entry.getKey().pixelsId == pixelsId;
+            }
+        });
+        for (final Key key : deleted) {
+            FileUtils.deleteQuietly(fileFor(key));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidated rendered tiles of Pixels:" + pixelsId);
+        }
+    }
+
+    /**
+     * Removes all the cached tiles, from memory and from disk.
+     */
+    public void clear() {
+        entries.clear();
+        spilled.clear();
+        if (isSpilling()) {
+            try {
+                deleteSpilledFiles(spillDirectory);
+            } catch (IOException e) {
+                log.warn("Failed to remove spilled tiles from "
+                        + spillDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the files of spilled tiles from a directory, leaving any
+     * other files there.
+     * @param directory the directory
+     * @throws IOException if the directory cannot be listed or a tile deleted
+     */
+    private static void deleteSpilledFiles(File directory) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        for (final File file : files) {
+            if (file.isFile() && TILE_FILE.matcher(file.getName()).matches()) {
+                FileUtils.forceDelete(file);
+            }
+        }
+    }
+
+    /**
+     * Writes a tile evicted from memory to the spill directory, evicting the
+     * least recently used spilled tiles as necessary.
+     */
+    private void spill(Key key, byte[] value) {
+        if (value.length > spilled.getMaxBytes()) {
+            return;
+        }
+        final File file = fileFor(key);
+        final File partial = new File(file.getPath() + PARTIAL);
+        try {
+            FileUtils.writeByteArrayToFile(partial, value);
+            if (!partial.renameTo(file)) {
+                throw new IOException("Cannot rename " + partial);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to spill rendered tile " + key, e);
+            FileUtils.deleteQuietly(partial);
+            return;
+        }
+        for (final Map.Entry<Key, Integer> evicted : spilled.put(key, value.length)) {
+            FileUtils.deleteQuietly(fileFor(evicted.getKey()));
+        }
+    }
+
+    /**
+     * Reads a spilled tile back from disk.
+     * @return the tile or {@code null} if it is no longer on disk
+     */
+    private byte[] readSpilled(Key key) {
+        final File file = fileFor(key);
+        try {
+            return FileUtils.readFileToByteArray(file);
+        } catch (IOException e) {
+            // Concurrently evicted from disk or invalidated.
+            if (log.isDebugEnabled()) {
+                log.debug("Failed to read spilled rendered tile " + key, e);
+            }
+            spilled.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * @return the file in the spill directory which holds the given tile
+     */
+    private File fileFor(Key key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash =
+                digest.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+        final StringBuilder name = new StringBuilder(hash.length * 2 + 16);
+        name.append(key.pixelsId).append('-');
+        for (final byte b : hash) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(spillDirectory, name.toString());
+    }
+
+    /**
+     * Removes the spilled tiles when the cache is destroyed.
+     */
+    public void destroy() {
+        clear();
+    }
+
+    /**
+     * @return the number of lookups which found a cached tile
+     */
+    public long getHitCount() {
+        return entries.getHitCount();
+    }
+
+    /**
+     * @return the number of lookups which did not find a cached tile
+     */
+    public long getMissCount() {
+        return entries.getMissCount();
+    }
+
+    /**
+     * @return the number of tiles evicted from memory
+     */
+    public long getEvictionCount() {
+        return entries.getEvictionCount();
+    }
+
+    /**
+     * @return the number of tiles held in memory
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of tiles spilled to disk
+     */
+    public int spilledSize() {
+        return spilled.size();
+    }
+
+    /**
+     * @return the total size of the tiles held in memory in bytes
+     */
+    public long getSizeInBytes() {
+        return entries.getSizeInBytes();
+    }
+
+    /**
+     * @return the total size of the tiles spilled to disk in bytes
+     */
+    public long getSpilledSizeInBytes() {
+        return spilled.getSizeInBytes();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RenderedTileCache(%d entries, %d/%d bytes, "
+                + "%d spilled, %d/%d bytes, hits=%d, misses=%d, evictions=%d)",
+                size(), getSizeInBytes(), entries.getMaxBytes(), spilledSize(),
+                getSpilledSizeInBytes(), spilled.getMaxBytes(), getHitCount(),
+                getMissCount(), getEvictionCount());
+    }
+}
@@ -5,16 +5,21 @@
 package ome.services;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -46,7 +51,6 @@ import ome.services.util.Executor;
 import ome.system.EventContext;
 import ome.system.ServiceFactory;
 import ome.system.SimpleEventContext;
-import ome.util.ImageUtil;
 import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
 import omeis.providers.re.Renderer;
@@ -67,6 +71,8 @@ import org.perf4j.StopWatch;
 import org.perf4j.slf4j.Slf4JStopWatch;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+
 /**
  * Provides the {@link RenderingEngine} service. This class is an Adapter to
  * wrap the {@link Renderer} so to make it thread-safe.
@@ -158,6 +164,36 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** Notification that the bean has just returned from passivation. */
     private transient boolean wasPassivated = false;
 
+    /** The in-memory thumbnail cache to invalidate when saving settings. */
+    private transient ThumbnailCache thumbnailCache;
+
+    /** The cache of compressed tiles shared between rendering engines. */
+    private transient RenderedTileCache tileCache;
+
+    /** The cache of the masks overlaid on rendered planes. */
+    private transient MaskCache maskCache;
+
+    /**
+     * The canonical description of the current rendering state used in the
+     * keys of {@link #tileCache}, or {@code null} if it must be recomputed.
+     */
+    private transient String renderingState;
+
+    /**
+     * Set once overlays have been passed to the renderer, after which its
+     * output is no longer described by the rendering state alone.
+     */
+    private transient boolean hasOverlays = false;
+
+    /** The pool on which the tiles of a batch are rendered. */
+    private transient ExecutorService tileExecutor;
+
+    /**
+     * The number of threads available in {@link #tileExecutor}. Batches of
+     * tiles are rendered in the calling thread if this is not greater than 1.
+     */
+    private transient int tileThreads = 1;
+
     /** The resolution level to be used by the pixel buffer. */
     private Integer resolutionLevel;
 
@@ -192,6 +228,155 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.lutProvider = lutProvider;
     }
 
+    /**
+     * In-memory thumbnail cache Bean injector.
+     *
+     * @param thumbnailCache
+     *          the cache of which the thumbnails are invalidated whenever
+     *          rendering settings are saved.
+     */
+    public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    /**
+     * Removes the cached thumbnails of the current pixels set from the
+     * in-memory thumbnail cache.
+     */
+    private void invalidateCachedThumbnails() {
+        if (thumbnailCache != null && pixelsObj != null
+                && pixelsObj.getId() != null) {
+            thumbnailCache.invalidatePixels(pixelsObj.getId());
+        }
+    }
+
+    /**
+     * Rendered tile cache Bean injector.
+     *
+     * @param tileCache
+     *          the cache consulted by {@link #renderCompressed(PlaneDef)}.
+     */
+    public void setTileCache(RenderedTileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Mask cache Bean injector.
+     *
+     * @param maskCache
+     *          the cache of the masks overlaid when shapes are rendered.
+     */
+    public void setMaskCache(MaskCache maskCache) {
+        this.maskCache = maskCache;
+    }
+
+    /**
+     * Tile rendering pool Bean injector.
+     *
+     * @param tileExecutor
+     *          the pool on which {@link #renderCompressedTiles(List)} renders.
+     */
+    public void setTileExecutor(ExecutorService tileExecutor) {
+        this.tileExecutor = tileExecutor;
+    }
+
+    /**
+     * Sets the number of threads available in the tile rendering pool.
+     *
+     * @param tileThreads
+     *          the number of tiles of a batch to render at once.
+     */
+    public void setTileThreads(int tileThreads) {
+        this.tileThreads = tileThreads;
+    }
+
+    /**
+     * Notes that the rendering state has changed so that rendered tiles are
+     * looked up under new keys.
+     */
+    private void renderingStateChanged() {
+        renderingState = null;
+    }
+
+    /**
+     * Notes that overlays have been passed to the renderer so that no more
+     * tiles are cached until the renderer is next loaded.
+     */
+    private void overlaysSet() {
+        renderingState = null;
+        hasOverlays = true;
+    }
+
+    /**
+     * Describes everything in the current rendering state that affects the
+     * rendered pixels: the model, the quantum definition and, for each
+     * channel, its binding and its codomain maps.
+     *
+     * @return See above.
+     */
+    private String describeRenderingState() {
+        final StringBuilder sb = new StringBuilder(128);
+        final QuantumDef qd = rendDefObj.getQuantization();
+        sb.append("m=").append(rendDefObj.getModel().getId());
+        sb.append(";q=").append(qd.getBitResolution()).append(',');
+        sb.append(qd.getCdStart()).append(',').append(qd.getCdEnd());
+        final ChannelBinding[] bindings = renderer.getChannelBindings();
+        for (int w = 0; w < bindings.length; w++) {
+            final ChannelBinding cb = bindings[w];
+            sb.append(";c").append(w).append('=').append(cb.getActive());
+            if (!Boolean.TRUE.equals(cb.getActive())) {
+                continue;
+            }
+            sb.append(',').append(cb.getInputStart());
+            sb.append(',').append(cb.getInputEnd());
+            sb.append(',').append(cb.getFamily().getId());
+            sb.append(',').append(cb.getCoefficient());
+            sb.append(',').append(cb.getNoiseReduction());
+            sb.append(',').append(cb.getRed()).append(',').append(cb.getGreen());
+            sb.append(',').append(cb.getBlue()).append(',').append(cb.getAlpha());
+            sb.append(',').append(cb.getLookupTable());
+            for (ome.model.display.CodomainMapContext ctx :
+                    cb.unmodifiableSpatialDomainEnhancement()) {
+                sb.append(',').append(ctx.getClass().getSimpleName());
+                if (ctx instanceof ome.model.display.ReverseIntensityContext) {
+                    sb.append('=').append(((ome.model.display.ReverseIntensityContext) ctx).getReverse());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the key of the tile that would be rendered for the given plane
+     * definition, or {@code null} if the tile is not to be cached.
+     *
+     * @param pd The plane definition.
+     * @return See above.
+     */
+    private RenderedTileCache.Key tileCacheKey(PlaneDef pd) {
+        if (tileCache == null || !tileCache.isEnabled() || renderer == null
+                || hasOverlays || pd.getRenderShapes()
+                || pd.getSlice() != PlaneDef.XY) {
+            return null;
+        }
+        if (renderingState == null) {
+            renderingState = describeRenderingState();
+        }
+        final StringBuilder plane = new StringBuilder(64);
+        plane.append(pd.getZ()).append(',').append(pd.getT());
+        plane.append(",s=").append(Math.max(pd.getStride(), 0));
+        final RegionDef region = pd.getRegion();
+        if (region != null) {
+            plane.append(",r=").append(region.getX()).append(',');
+            plane.append(region.getY()).append(',');
+            plane.append(region.getWidth()).append(',');
+            plane.append(region.getHeight());
+        }
+        return new RenderedTileCache.Key(pixelsObj.getId(), renderingState,
+                resolutionLevel == null ? -1 : resolutionLevel,
+                plane.toString(), compressionSrv.getCompressionLevel());
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -417,6 +602,8 @@ public class RenderingBean implements RenderingEngine, Serializable {
             PixelBuffer buffer = getPixelBuffer();
             renderer = new Renderer(quantumFactory, renderingModels, pixelsObj,
                     rendDefObj, buffer, lutProvider);
+            renderingStateChanged();
+            hasOverlays = false;
         } finally {
             rwl.writeLock().unlock();
         }
@@ -432,6 +619,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public void setOverlays(Map<byte[], Integer> overlays)
     {
+        overlaysSet();
     	renderer.setOverlays(overlays);
     }
 
@@ -474,6 +662,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
             if (overlays.size() > 0) {
+                overlaysSet();
                 renderer.setOverlays(overlays);
             }
             errorIfInvalidState();
@@ -501,6 +690,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             final Map<byte[], Integer> overlays = getMasks(pd);
             if (overlays.size() > 0) {
+                overlaysSet();
                 renderer.setOverlays(overlays);
             }
             errorIfInvalidState();
@@ -524,48 +714,204 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compressToBytes(int[], int, int)
      */
     @RolesAllowed("user")
     public byte[] renderCompressed(PlaneDef pd) {
         rwl.writeLock().lock();
 
-        ByteArrayOutputStream byteStream = null;
         try {
-            final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
+            errorIfInvalidState();
+            final RenderedTileCache.Key key = tileCacheKey(pd);
+            if (key != null) {
+                final byte[] tile = tileCache.get(key);
+                if (tile != null) {
+                    return tile;
+                }
             }
-            int stride = pd.getStride();
-            if (stride < 0) stride = 0;
-            stride++;
+            // Overlays are set by renderAsPackedInt.
             int[] buf = renderAsPackedInt(pd);
-            int sizeX = pixelsObj.getSizeX();
-            int sizeY = pixelsObj.getSizeY();
-            RegionDef region = pd.getRegion();
-            if (region != null) {
-                sizeX = region.getWidth();
-                sizeY = region.getHeight();
-            }
-            sizeX = sizeX/stride;
-            sizeY = sizeY/stride;
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            return compressTile(buf, pd, key);
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
             rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
+        }
+    }
+
+    /**
+     * Compresses a rendered tile, caching it if it has a key.
+     *
+     * @param buf The rendered tile.
+     * @param pd The plane definition the tile was rendered for.
+     * @param key The key of the tile in the {@link #tileCache} or
+     *            <code>null</code>.
+     * @return See above.
+     * @throws IOException If the tile could not be compressed.
+     */
+    private byte[] compressTile(int[] buf, PlaneDef pd,
+            RenderedTileCache.Key key) throws IOException {
+        int stride = pd.getStride();
+        if (stride < 0) stride = 0;
+        stride++;
+        int sizeX = pixelsObj.getSizeX();
+        int sizeY = pixelsObj.getSizeY();
+        RegionDef region = pd.getRegion();
+        if (region != null) {
+            sizeX = region.getWidth();
+            sizeY = region.getHeight();
+        }
+        sizeX = sizeX/stride;
+        sizeY = sizeY/stride;
+        final byte[] tile = compressionSrv.compressToBytes(buf, sizeX, sizeY);
+        if (key != null) {
+            tileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Renders and compresses a batch of tiles with the current rendering
+     * settings, as {@link #renderCompressed(PlaneDef)} would each of them.
+     * The settings cannot change while the batch is rendered so the tiles
+     * are split between the threads of the tile rendering pool, each with
+     * its own {@link Renderer} and pixel buffer. Those are created in the
+     * calling thread so that the workers never access the database.
+     * <p>
+     * The failure of a tile does not fail the batch: its entry in the result
+     * is <code>null</code> instead.
+     * </p>
+     *
+     * @param pds The plane definitions of the tiles.
+     * @return The compressed tiles, in the order of <code>pds</code>.
+     */
+    @RolesAllowed("user")
+    public List<byte[]> renderCompressedTiles(List<PlaneDef> pds) {
+        StopWatch t0 = new Slf4JStopWatch(
+                "omero.rendering_bean.renderCompressedTiles");
+        rwl.writeLock().lock();
+
+        final List<Renderer> renderers = new ArrayList<Renderer>();
+        try {
+            errorIfInvalidState();
+            final byte[][] tiles = new byte[pds.size()][];
+            final RenderedTileCache.Key[] keys =
+                    new RenderedTileCache.Key[pds.size()];
+            final List<Integer> pending = new ArrayList<Integer>();
+            for (int i = 0; i < pds.size(); i++) {
+                final PlaneDef pd = pds.get(i);
+                if (pd == null) {
+                    continue;
+                }
+                try {
+                    if (pd.getRenderShapes()) {
+                        // Masks are loaded from the database.
+                        tiles[i] = renderCompressed(pd);
+                        continue;
+                    }
+                    keys[i] = tileCacheKey(pd);
+                    if (keys[i] != null) {
+                        tiles[i] = tileCache.get(keys[i]);
+                        if (tiles[i] != null) {
+                            continue;
+                        }
+                    }
+                    checkPlaneDef(pd);
+                    pending.add(i);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to render tile " + i + " of batch.", e);
+                }
+            }
+            if (pending.isEmpty()) {
+                return Arrays.asList(tiles);
+            }
+            if (resolutionLevel != null) {
+                renderer.setResolutionLevel(resolutionLevel);
+            }
+            renderers.add(renderer);
+            int workers = Math.min(tileThreads, pending.size());
+            if (tileExecutor == null || hasOverlays) {
+                workers = 1;
+            }
+            if (workers > 1) {
+                final List<Family> families = getAllEnumerations(Family.class);
+                final List<RenderingModel> renderingModels =
+                        getAllEnumerations(RenderingModel.class);
+                while (renderers.size() < workers) {
+                    try {
+                        final Renderer r = new Renderer(
+                                new QuantumFactory(families), renderingModels,
+                                pixelsObj, rendDefObj, getPixelBuffer(),
+                                lutProvider);
+                        renderers.add(r);
+                        if (resolutionLevel != null) {
+                            r.setResolutionLevel(resolutionLevel);
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("Rendering batch of tiles on "
+                                + renderers.size() + " threads.", e);
+                        break;
+                    }
+                }
+            }
+            if (renderers.size() == 1) {
+                renderTiles(renderer, pds, pending, keys, tiles);
+                return Arrays.asList(tiles);
+            }
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int w = 0; w < renderers.size(); w++) {
+                final Renderer r = renderers.get(w);
+                final List<Integer> share = new ArrayList<Integer>();
+                for (int i = w; i < pending.size(); i += renderers.size()) {
+                    share.add(pending.get(i));
+                }
+                futures.add(tileExecutor.submit(new Callable<Object>() {
+                    public Object call() {
+                        renderTiles(r, pds, share, keys, tiles);
+                        return null;
+                    }
+                }));
+            }
+            // The workers use the renderers, which are closed below.
+            for (final Future<?> future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    log.warn("Failed to render tiles of batch.", e.getCause());
+                }
+            }
+            return Arrays.asList(tiles);
+        } finally {
+            for (final Renderer r : renderers) {
+                if (r != renderer) {
+                    r.close();
                 }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
+            }
+            rwl.writeLock().unlock();
+            t0.stop();
+        }
+    }
+
+    /**
+     * Renders and compresses some of the tiles of a batch.
+     *
+     * @param r The renderer to use; not used by any other thread meanwhile.
+     * @param pds The plane definitions of the batch.
+     * @param indexes The indexes of the tiles to render.
+     * @param keys The keys of the tiles in the {@link #tileCache}.
+     * @param tiles The compressed tiles to fill in.
+     */
+    private void renderTiles(Renderer r, List<PlaneDef> pds,
+            List<Integer> indexes, RenderedTileCache.Key[] keys,
+            byte[][] tiles) {
+        for (final int i : indexes) {
+            final PlaneDef pd = pds.get(i);
+            try {
+                tiles[i] = compressTile(r.renderAsPackedInt(pd, null), pd,
+                        keys[i]);
+            } catch (Exception e) {
+                log.warn("Failed to render tile " + i + " of batch.", e);
             }
         }
     }
@@ -626,14 +972,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compressToBytes(int[], int, int)
      */
     @RolesAllowed("user")
     public byte[] renderProjectedCompressed(int algorithm, int timepoint,
             int stepping, int start, int end) {
         rwl.writeLock().lock();
 
-        ByteArrayOutputStream byteStream = null;
         try {
             if (resolutionLevel != null)
             {
@@ -643,24 +988,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
                     stepping, start, end);
             int sizeX = pixelsObj.getSizeX();
             int sizeY = pixelsObj.getSizeY();
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            return compressionSrv.compressToBytes(buf, sizeX, sizeY);
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
             rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
         }
     }
 
@@ -727,6 +1060,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                     // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
                     load();
                 }
+                invalidateCachedThumbnails();
             }
             return rendDefObj.getId();
         } finally {
@@ -1024,6 +1358,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
             }
             load();
+            invalidateCachedThumbnails();
             return id;
         } finally {
             rwl.writeLock().unlock();
@@ -1212,6 +1547,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfNullRenderingDef();
+            renderingStateChanged();
             renderer.setChannelLookupTable(w, lookup);
         } finally {
             rwl.readLock().unlock();
@@ -1363,6 +1699,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             ChannelBinding[] cb = renderer.getChannelBindings();
             for (int i = 0; i < pixelsObj.getSizeC(); i++) {
               boolean b = renderer.getCodomainChain(i).add(mapCtx);
@@ -1382,6 +1719,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             boolean b = renderer.getCodomainChain(w).add(mapCtx);
             if (b) {
                 ChannelBinding[] cb = renderer.getChannelBindings();
@@ -1428,6 +1766,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         rwl.writeLock().lock();
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             ChannelBinding[] cb = renderer.getChannelBindings();
             for (int i = 0; i < pixelsObj.getSizeC(); i++) {
                 boolean b = renderer.getCodomainChain(i).remove(mapCtx.copy());
@@ -1452,6 +1791,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         rwl.writeLock().lock();
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             boolean b = renderer.getCodomainChain(w).remove(mapCtx.copy());
             if (b) {
                 ChannelBinding[] cb = renderer.getChannelBindings();
@@ -1477,6 +1817,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             for (int i = 0; i < pixelsObj.getSizeC(); i++) {
                 renderer.getCodomainChain(i).update(mapCtx.copy());
             }
@@ -1496,6 +1837,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             rwl.writeLock().lock();
             errorIfInvalidState();
+            renderingStateChanged();
             renderer.setActive(w, active);
         } finally {
             rwl.writeLock().unlock();
@@ -1516,6 +1858,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             renderer.setChannelWindow(w, start, end);
         } finally {
             rwl.writeLock().unlock();
@@ -1535,6 +1878,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         rwl.writeLock().lock();
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             renderer.setCodomainInterval(start, end);
         } finally {
             rwl.writeLock().unlock();
@@ -1593,6 +1937,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             errorIfInvalidState();
             RenderingModel m = lookup(model);
+            renderingStateChanged();
             renderer.setModel(m);
         } finally {
             rwl.writeLock().unlock();
@@ -1615,6 +1960,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             errorIfInvalidState();
             Family f = lookup(family);
+            renderingStateChanged();
             renderer.setQuantizationMap(w, f, coefficient, noiseReduction);
         } finally {
             rwl.writeLock().unlock();
@@ -1635,6 +1981,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             renderer.setQuantumStrategy(bitResolution);
         } finally {
             rwl.writeLock().unlock();
@@ -1654,6 +2001,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
 
         try {
             errorIfInvalidState();
+            renderingStateChanged();
             renderer.setRGBA(w, red, green, blue, alpha);
         } finally {
             rwl.writeLock().unlock();
@@ -2242,6 +2590,19 @@ public class RenderingBean implements RenderingEngine, Serializable {
         }});
     }
 
+    /**
+     * Returns the indexes of the active channels.
+     */
+    private List<Long> getActiveChannelIds() {
+        List<Long> channelIds = new ArrayList<Long>();
+        for (int c = 0; c < pixelsObj.getSizeC(); c++) {
+            if (rendDefObj.getChannelBinding(c).getActive()) {
+                channelIds.add((long) c);
+            }
+        }
+        return channelIds;
+    }
+
     /**
      * Get Masks attached to the image for rendering filtered by the user.
      */
@@ -2252,12 +2613,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         final long z = pd.getZ();
         final long t = pd.getT();
 
-        List<Long> channelIds = new ArrayList<Long>();
-        for (int c = 0; c < pixelsObj.getSizeC(); c++) {
-            if (rendDefObj.getChannelBinding(c).getActive()) {
-                channelIds.add((long) c);
-            }
-        }
+        List<Long> channelIds = getActiveChannelIds();
 
         final Parameters params = new Parameters();
         params.addLong("pid", pid);
@@ -2301,12 +2657,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         final long z = pd.getZ();
         final long t = pd.getT();
 
-        List<Long> channelIds = new ArrayList<Long>();
-        for (int c = 0; c < pixelsObj.getSizeC(); c++) {
-            if (rendDefObj.getChannelBinding(c).getActive()) {
-                channelIds.add((long) c);
-            }
-        }
+        List<Long> channelIds = getActiveChannelIds();
 
         final Parameters params = new Parameters();
         params.addLong("pid", pid);
@@ -2348,17 +2699,37 @@ public class RenderingBean implements RenderingEngine, Serializable {
         if (!pd.getRenderShapes()) {
             return maskMap;
         }
+        MaskCache.Key key = null;
+        long generation = 0;
+        if (maskCache != null && maskCache.isEnabled()) {
+            final EventContext ec = secSys.getEventContext();
+            key = new MaskCache.Key(pixelsObj.getId(), pd.getZ(), pd.getT(),
+                    getActiveChannelIds(),
+                    new ArrayList<Long>(pd.getShapeIds()),
+                    ec.getCurrentUserId(), ec.getCurrentGroupId() == null
+                        ? -1 : ec.getCurrentGroupId());
+            final Map<byte[], Integer> cached = maskCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = maskCache.getGeneration();
+        }
         if (pd.getShapeIds().isEmpty()) {
             masks = getAllMasks(pd);
         } else {
             masks = getMasksById(pd);
         }
 
+        final Set<Long> maskIds = new HashSet<Long>();
         for (int i = 0; i < masks.size(); i++) {
            maskMap.put(
                    ((Mask) masks.get(i)).getBytes(),
                    ((Mask) masks.get(i)).getFillColor()
            );
+           maskIds.add(masks.get(i).getId());
+        }
+        if (key != null) {
+            return maskCache.put(key, maskMap, maskIds, generation);
         }
         return maskMap;
     }
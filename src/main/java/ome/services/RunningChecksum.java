@@ -0,0 +1,94 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import ome.util.checksum.ChecksumProvider;
+import ome.util.checksum.ChecksumType;
+
+/**
+ * Checksum of a file kept up to date by {@link RawFileBean} while the file is
+ * written contiguously from its start, so that saving the file need not read
+ * it back. Any write which does not directly follow the bytes already added,
+ * whether out of order or overwriting earlier bytes, abandons the checksum so
+ * that the caller falls back to calculating it from the whole file.
+ * <p>
+ * Not thread-safe, as guarded by {@link RawFileBean}.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class RunningChecksum {
+
+    private final ChecksumType type;
+
+    /** The checksum so far, or {@code null} once abandoned. */
+    private ChecksumProvider provider;
+
+    /** The number of bytes added to {@link #provider}. */
+    private long length;
+
+    /**
+     * Starts a checksum of an empty file.
+     * @param provider a fresh provider of the checksum
+     * @param type the type of the checksum
+     */
+    public RunningChecksum(ChecksumProvider provider, ChecksumType type) {
+        this.provider = provider;
+        this.type = type;
+    }
+
+    /**
+     * Adds written bytes to the checksum if they directly follow those
+     * already added, otherwise abandons the checksum.
+     * @param buf the bytes written
+     * @param position the position at which they were written
+     * @param count the number of bytes written
+     * @return if the checksum is still kept
+     */
+    public boolean update(byte[] buf, long position, int count) {
+        if (provider == null) {
+            return false;
+        }
+        if (position != length) {
+            provider = null;
+            return false;
+        }
+        provider.putBytes(buf, 0, count);
+        length += count;
+        return true;
+    }
+
+    /**
+     * Abandons the checksum, as when the file is truncated.
+     */
+    public void abandon() {
+        provider = null;
+    }
+
+    /**
+     * @return if the checksum has been abandoned
+     */
+    public boolean isAbandoned() {
+        return provider == null;
+    }
+
+    /**
+     * Finishes the checksum if it covers the whole of the file. The checksum
+     * may not be updated afterward.
+     * @param requiredType the checksum type required
+     * @param fileLength the length of the file, already flushed
+     * @return the checksum or {@code null} if the file must be read to
+     * calculate it
+     */
+    public String finish(ChecksumType requiredType, long fileLength) {
+        final ChecksumProvider finished = provider;
+        provider = null;
+        if (finished == null || requiredType != type || fileLength != length) {
+            return null;
+        }
+        return finished.checksumAsString();
+    }
+}
@@ -27,6 +27,7 @@ import ome.services.search.FullText;
 import ome.services.search.HqlQuery;
 import ome.services.search.Intersection;
 import ome.services.search.SearchAction;
+import ome.services.search.SearchCache;
 import ome.services.search.SearchValues;
 import ome.services.search.SimilarTerms;
 import ome.services.search.SomeMustNone;
@@ -66,6 +67,8 @@ public class SearchBean extends AbstractStatefulBean implements Search {
 
     private/* final */transient Integer maxClauseCount;
 
+    private/* final */transient SearchCache searchCache;
+
     public SearchBean(Executor executor, Class<? extends Analyzer> analyzer) {
         this.executor = executor;
         this.analyzer = analyzer;
@@ -105,6 +108,13 @@ public class SearchBean extends AbstractStatefulBean implements Search {
         this.maxClauseCount = maxClauseCount;
     }
 
+    /**
+     * Injector used by Spring.
+     */
+    public void setSearchCache(SearchCache searchCache) {
+        this.searchCache = searchCache;
+    }
+
     // Lifecycle methods
     // ===================================================
 
@@ -269,7 +279,15 @@ public class SearchBean extends AbstractStatefulBean implements Search {
             return false;
         }
         SearchAction action = actions.popFirst();
+        if (action instanceof FullText) {
+            // Loads a batch at a time rather than every hit.
+            ((FullText) action).setPageSize(values.batchSize);
+            ((FullText) action).setSearchCache(searchCache);
+        }
         List<IObject> list = (List<IObject>) executor.execute(null, action);
+        if (action instanceof FullText && ((FullText) action).hasMorePages()) {
+            actions.pushFirst(action);
+        }
         results.add(list);
         return hasNext(); // recursive call
     }
@@ -355,7 +373,7 @@ public class SearchBean extends AbstractStatefulBean implements Search {
     @Transactional
     @RolesAllowed("user")
     public int activeQueries() {
-        return actions.size();
+        return actions.queries();
     }
 
     @Transactional
@@ -700,6 +718,12 @@ public class SearchBean extends AbstractStatefulBean implements Search {
 
         final private List<SearchAction> actions = new ArrayList<SearchAction>();
 
+        /**
+         * If the first action is a query already run and queued again only
+         * to return its further pages, so not counted as an active query.
+         */
+        private boolean firstIsPaging = false;
+
         synchronized void union() {
             state = State.union;
         }
@@ -744,22 +768,46 @@ public class SearchBean extends AbstractStatefulBean implements Search {
             return actions.size();
         }
 
+        /**
+         * @return the number of queries not yet run
+         */
+        synchronized int queries() {
+            return firstIsPaging ? actions.size() - 1 : actions.size();
+        }
+
         synchronized void clear() {
             actions.clear();
+            firstIsPaging = false;
         }
 
         synchronized SearchAction popFirst() {
-            assertNonZero();
+            if (!firstIsPaging) {
+                assertNonZero();
+            }
+            firstIsPaging = false;
             return actions.remove(0);
         }
 
+        /**
+         * Queues again a query just run so that its further pages are
+         * returned before any other query is run.
+         */
+        synchronized void pushFirst(SearchAction a) {
+            actions.add(0, a);
+            firstIsPaging = true;
+        }
+
         synchronized SearchAction popLast() {
             assertNonZero();
             return actions.remove(actions.size() - 1);
         }
 
+        /**
+         * Requires a query not yet run, as a query already paging may not
+         * be joined with another.
+         */
         synchronized void assertNonZero() {
-            if (actions.size() == 0) {
+            if (queries() == 0) {
                 throw new ApiUsageException("There must be at least 1"
                         + " active query for this operation.");
             }
@@ -0,0 +1,264 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Thread-safe in-memory cache which evicts the least recently used entries
+ * once the total size of the cached values exceeds a limit in bytes. Holds the
+ * bookkeeping shared by {@link ThumbnailCache}, {@link RenderedTileCache} and
+ * {@link MaskCache}: the access-ordered map, the running total of the sizes,
+ * the hit, miss and eviction counts and invalidation by a predicate.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values, not to be modified once cached
+ * @since 5.5
+ */
+public class SizeBoundedLruCache<K, V> {
+
+    /**
+     * Determines how many bytes a cached value takes.
+     * @param <V> the type of the cached values
+     */
+    public interface Sizer<V> {
+        /**
+         * @param value a value to be cached
+         * @return the size of the value in bytes
+         */
+        long sizeOf(V value);
+    }
+
+    /** Sizes byte arrays by their length. */
+    public static final Sizer<byte[]> BYTE_ARRAYS = new Sizer<byte[]>() {
+        @Override
+        public long sizeOf(byte[] value) {
+            return value.length;
+        }
+    };
+
+    /** Access-ordered map; guarded by {@code this}. */
+    private final LinkedHashMap<K, V> entries =
+            new LinkedHashMap<K, V>(1024, 0.75f, true);
+
+    private final long maxBytes;
+
+    private final Sizer<? super V> sizer;
+
+    /** Total size of all values in {@link #entries}; guarded by {@code this}. */
+    private long currentBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final Counter hitCount;
+
+    private final Counter missCount;
+
+    private final Counter evictionCount;
+
+    /**
+     * Creates a new cache.
+     * @param metrics where to report hits, misses and evictions
+     * @param owner the object for which the hits, misses and evictions are
+     * reported
+     * @param maxBytes the maximum total size of the cached values in bytes;
+     * if not positive then nothing is cached
+     * @param sizer determines the size of the cached values
+     */
+    public SizeBoundedLruCache(Metrics metrics, Object owner, long maxBytes,
+            Sizer<? super V> sizer) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.sizer = sizer;
+        this.hitCount = metrics.counter(owner, "hits");
+        this.missCount = metrics.counter(owner, "misses");
+        this.evictionCount = metrics.counter(owner, "evictions");
+    }
+
+    /**
+     * @return if values are cached at all
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return the maximum total size of the cached values in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Retrieves a cached value, counting a hit or a miss.
+     * @param key the value's key, may be {@code null}
+     * @return the value or {@code null} on a cache miss
+     */
+    public V get(K key) {
+        if (key == null || !isEnabled()) {
+            return null;
+        }
+        final V value = find(key);
+        countLookup(value != null);
+        return value;
+    }
+
+    /**
+     * Retrieves a cached value without counting a hit or a miss, for callers
+     * that look elsewhere before settling on either.
+     * @param key the value's key
+     * @return the value or {@code null} if it is not cached
+     */
+    synchronized V find(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Counts a lookup, for callers of {@link #find(Object)}.
+     * @param isHit if a value was found
+     */
+    void countLookup(boolean isHit) {
+        if (isHit) {
+            hits.incrementAndGet();
+            hitCount.inc();
+        } else {
+            misses.incrementAndGet();
+            missCount.inc();
+        }
+    }
+
+    /**
+     * Caches a value, evicting the least recently used values as necessary.
+     * Values larger than the whole cache are not cached.
+     * @param key the value's key, may be {@code null}
+     * @param value the value, not to be modified hereafter
+     * @return the entries evicted to make room, in order of eviction
+     */
+    public List<Map.Entry<K, V>> put(K key, V value) {
+        if (key == null || value == null || !isEnabled()) {
+            return Collections.emptyList();
+        }
+        final long size = sizer.sizeOf(value);
+        if (size > maxBytes) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<K, V>> evicted = Collections.emptyList();
+        synchronized (this) {
+            final V previous = entries.put(key, value);
+            if (previous != null) {
+                currentBytes -= sizer.sizeOf(previous);
+            }
+            currentBytes += size;
+            final Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                final Map.Entry<K, V> entry = eldest.next();
+                currentBytes -= sizer.sizeOf(entry.getValue());
+                if (evicted.isEmpty()) {
+                    evicted = new ArrayList<Map.Entry<K, V>>();
+                }
+                evicted.add(new SimpleImmutableEntry<K, V>(entry));
+                eldest.remove();
+            }
+        }
+        if (!evicted.isEmpty()) {
+            evictions.addAndGet(evicted.size());
+            for (int i = 0; i < evicted.size(); i++) {
+                evictionCount.inc();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes a cached value.
+     * @param key the value's key
+     * @return the value or {@code null} if it was not cached
+     */
+    public synchronized V remove(K key) {
+        final V value = entries.remove(key);
+        if (value != null) {
+            currentBytes -= sizer.sizeOf(value);
+        }
+        return value;
+    }
+
+    /**
+     * Removes the cached entries that match a predicate.
+     * @param toRemove which entries to remove
+     * @return the keys of the removed entries
+     */
+    public synchronized List<K> invalidate(Predicate<? super Map.Entry<K, V>> toRemove) {
+        final List<K> removed = new ArrayList<K>();
+        final Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<K, V> entry = it.next();
+            if (toRemove.apply(entry)) {
+                currentBytes -= sizer.sizeOf(entry.getValue());
+                removed.add(entry.getKey());
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all the cached values.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * @return the number of lookups which found a cached value
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which did not find a cached value
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of values evicted to keep within the size limit
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size of the cached values in bytes
+     */
+    public synchronized long getSizeInBytes() {
+        return currentBytes;
+    }
+}
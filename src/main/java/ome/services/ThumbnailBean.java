@@ -20,6 +20,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -68,6 +72,8 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.core.io.Resource;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.collect.Lists;
+
 /**
  * Provides methods for directly querying object graphs. The service is entirely
  * read/write transactionally because of the requirements of rendering engine
@@ -130,6 +136,18 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** If the file service checking for disk overflow. */
     private transient boolean diskSpaceChecking;
 
+    /** The in-memory cache of compressed thumbnails. */
+    private transient ThumbnailCache thumbnailCache;
+
+    /** The pool on which missing thumbnails of a set are rendered. */
+    private transient ExecutorService thumbnailExecutor;
+
+    /**
+     * The number of threads available in {@link #thumbnailExecutor}. Thumbnail
+     * sets are rendered serially in the calling thread unless greater than 1.
+     */
+    private transient int thumbnailThreads = 1;
+
     /** If the renderer is dirty. */
     private Boolean dirty = true;
 
@@ -459,6 +477,40 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.compressionService = compressionService;
     }
 
+    /**
+     * In-memory thumbnail cache Bean injector.
+     *
+     * @param thumbnailCache
+     *            a <code>ThumbnailCache</code>.
+     */
+    public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailCache, thumbnailCache);
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    /**
+     * Thumbnail rendering pool Bean injector.
+     *
+     * @param thumbnailExecutor
+     *            the pool on which missing thumbnails of a set are rendered.
+     */
+    public void setThumbnailExecutor(ExecutorService thumbnailExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailExecutor,
+                thumbnailExecutor);
+        this.thumbnailExecutor = thumbnailExecutor;
+    }
+
+    /**
+     * Sets the number of threads of the thumbnail rendering pool. If not
+     * greater than 1 then thumbnail sets are rendered serially.
+     *
+     * @param thumbnailThreads
+     *            the number of thumbnail rendering threads.
+     */
+    public void setThumbnailThreads(int thumbnailThreads) {
+        this.thumbnailThreads = thumbnailThreads;
+    }
+
     /**
      * Rendering settings service Bean injector.
      *
@@ -485,6 +537,7 @@ public class ThumbnailBean extends AbstractLevel2Service
             iRepositoryInfo.sanityCheckRepository();
         }
 
+        invalidateCachedThumbnails(metadata);
         try (FileOutputStream stream = ioService.getThumbnailOutputStream(metadata)) {
             if (inProgress) {
                 compressInProgressImageToStream(metadata.getSizeX(), metadata.getSizeY(),
@@ -495,6 +548,44 @@ public class ThumbnailBean extends AbstractLevel2Service
         }
     }
 
+    /**
+     * Reads a thumbnail from the in-memory cache or, failing that, from the
+     * on disk cache. Thumbnails read from disk are added to the in-memory
+     * cache unless they are <i>in progress</i> images.
+     *
+     * @param metadata the thumbnail metadata.
+     * @param settings the rendering settings of the thumbnail, may be null.
+     * @return the compressed thumbnail.
+     * @throws IOException if there is a problem reading from disk.
+     */
+    private byte[] readThumbnail(Thumbnail metadata, RenderingDef settings)
+            throws IOException {
+        if (thumbnailCache == null
+                || PROGRESS_VERSION.equals(metadata.getVersion())) {
+            return ioService.getThumbnail(metadata);
+        }
+        final ThumbnailCache.Key key = ThumbnailCache.Key.of(metadata, settings);
+        byte[] thumbnail = thumbnailCache.get(key);
+        if (thumbnail == null) {
+            thumbnail = ioService.getThumbnail(metadata);
+            thumbnailCache.put(key, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Removes the thumbnails of a Pixels set from the in-memory cache; to be
+     * called before its thumbnail is rewritten or removed on disk.
+     *
+     * @param metadata the thumbnail metadata.
+     */
+    private void invalidateCachedThumbnails(Thumbnail metadata) {
+        if (thumbnailCache != null && metadata.getPixels() != null
+                && metadata.getPixels().getId() != null) {
+            thumbnailCache.invalidatePixels(metadata.getPixels().getId());
+        }
+    }
+
     /**
      * Compresses a buffered image thumbnail to a byte array.
      *
@@ -505,13 +596,12 @@ public class ThumbnailBean extends AbstractLevel2Service
      */
     private byte[] convertThumbnailToBytes(BufferedImage image, boolean inProgress)
             throws IOException {
+        if (!inProgress) {
+            return compressionService.compressToBytes(image);
+        }
         try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream()) {
-            if (inProgress) {
-                compressInProgressImageToStream(image.getWidth(), image.getHeight(),
-                        byteStream, inProgressImageResource);
-            } else {
-                compressionService.compressToStream(image, byteStream);
-            }
+            compressInProgressImageToStream(image.getWidth(), image.getHeight(),
+                    byteStream, inProgressImageResource);
             return byteStream.toByteArray();
         }
     }
@@ -604,6 +694,31 @@ public class ThumbnailBean extends AbstractLevel2Service
             return null;
         }
 
+        return createScaledImage(renderer, pixels, settings,
+                thumbnailMetadata.getSizeX(), thumbnailMetadata.getSizeY(),
+                theZ, theT);
+    }
+
+    /**
+     * Creates a scaled buffered image using the given renderer. Only the
+     * arguments are used so that this may be called from the thumbnail
+     * worker threads as well as from the bean's own state.
+     *
+     * @param renderer the renderer to use, not shared with other threads.
+     * @param pixels the Pixels set the renderer was created for.
+     * @param settings the rendering settings the renderer was created for.
+     * @param sizeX the X-width of the thumbnail.
+     * @param sizeY the Y-width of the thumbnail.
+     * @param theZ the optical section (offset across the Z-axis) requested.
+     * <pre>null</pre> signifies the rendering engine default.
+     * @param theT the timepoint (offset across the T-axis) requested.
+     * <pre>null</pre> signifies the rendering engine default.
+     * @return a scaled buffered image.
+     */
+    private BufferedImage createScaledImage(Renderer renderer, Pixels pixels,
+            RenderingDef settings, int sizeX, int sizeY, Integer theZ,
+            Integer theT)
+    {
         // Retrieve our rendered data
         if (theZ == null)
             theZ = settings.getDefaultZ();
@@ -626,8 +741,7 @@ public class ThumbnailBean extends AbstractLevel2Service
                 renderer.setResolutionLevel(resolutionLevel);
                 pixelBufferSizeX = pixelBuffer.getSizeX();
                 pixelBufferSizeY = pixelBuffer.getSizeY();
-                if (pixelBufferSizeX <= thumbnailMetadata.getSizeX()
-                    || pixelBufferSizeY <= thumbnailMetadata.getSizeY())
+                if (pixelBufferSizeX <= sizeX || pixelBufferSizeY <= sizeY)
                 {
                     break;
                 }
@@ -650,10 +764,8 @@ public class ThumbnailBean extends AbstractLevel2Service
                     buf, pixelBufferSizeX, pixelBufferSizeY);
 
             // Finally, scale our image using scaling factors (percentage).
-            float xScale = (float)
-                    thumbnailMetadata.getSizeX() / pixelBufferSizeX;
-            float yScale = (float)
-                    thumbnailMetadata.getSizeY() / pixelBufferSizeY;
+            float xScale = (float) sizeX / pixelBufferSizeX;
+            float yScale = (float) sizeY / pixelBufferSizeY;
             log.debug(String.format("Using scaling factors x:%f y:%f",
                     xScale, yScale));
             return iScale.scaleBufferedImage(image, xScale, yScale);
@@ -1021,6 +1133,12 @@ public class ThumbnailBean extends AbstractLevel2Service
             @Override
             protected void actOnOneGroup(Set<Long> pixelsIds) {
                 final List<Thumbnail> toSave = new ArrayList<Thumbnail>();
+                if (isParallelThumbnailSet(pixelsIds)) {
+                    // Anything which could not be handled in parallel falls
+                    // through to the serial handling below.
+                    pixelsIds = retrieveThumbnailSetInParallel(
+                            pixelsIds, toReturn, toSave);
+                }
                 for (final Long pixelsId : pixelsIds) {
                     // Ensure that the renderer has been made dirty otherwise the
                     // same renderer will be used to return all thumbnails with dirty
@@ -1075,6 +1193,259 @@ public class ThumbnailBean extends AbstractLevel2Service
         return toReturn;
     }
 
+    /**
+     * Whether the thumbnails of a set should be retrieved using the thumbnail
+     * rendering pool.
+     * @param pixelsIds The Pixels IDs to retrieve thumbnails for.
+     * @return <code>true</code> if the set should be retrieved in parallel.
+     */
+    private boolean isParallelThumbnailSet(Set<Long> pixelsIds)
+    {
+        return thumbnailExecutor != null && thumbnailThreads > 1
+                && pixelsIds.size() > 1;
+    }
+
+    /**
+     * A missing thumbnail that has been prepared for rendering on the
+     * thumbnail rendering pool. All database access happens in the calling
+     * thread when the job is created; the worker only renders, scales,
+     * compresses and writes to the on disk cache.
+     */
+    private class ThumbnailJob implements Callable<byte[]>
+    {
+        /** The thumbnail metadata, possibly with an incremented version. */
+        private final Thumbnail metadata;
+
+        /** If {@link #metadata} must be saved once the thumbnail is written. */
+        private final boolean dirty;
+
+        /** The Pixels set the renderer was created for. */
+        private final Pixels pixels;
+
+        /** The rendering settings the renderer was created for. */
+        private final RenderingDef settings;
+
+        /** The renderer owned by this job; closed once the job is done. */
+        private final Renderer renderer;
+
+        /** Set once the thumbnail has been written to the on disk cache. */
+        private volatile boolean written;
+
+        ThumbnailJob(Thumbnail metadata, boolean dirty, Pixels pixels,
+                RenderingDef settings, Renderer renderer)
+        {
+            this.metadata = metadata;
+            this.dirty = dirty;
+            this.pixels = pixels;
+            this.settings = settings;
+            this.renderer = renderer;
+        }
+
+        public byte[] call() throws IOException
+        {
+            try
+            {
+                BufferedImage image = createScaledImage(renderer, pixels,
+                        settings, metadata.getSizeX(), metadata.getSizeY(),
+                        null, null);
+                byte[] thumbnail = convertThumbnailToBytes(image, false);
+                if (metadata.getId() != null)
+                {
+                    invalidateCachedThumbnails(metadata);
+                    try (FileOutputStream stream =
+                            ioService.getThumbnailOutputStream(metadata))
+                    {
+                        stream.write(thumbnail);
+                        written = true;
+                    }
+                    catch (IOException e)
+                    {
+                        log.warn("Thumbnail could not be written to disk. "
+                                + "Returning without caching", e);
+                    }
+                }
+                if (written && thumbnailCache != null)
+                {
+                    thumbnailCache.put(
+                            ThumbnailCache.Key.of(metadata, settings), thumbnail);
+                }
+                return thumbnail;
+            }
+            finally
+            {
+                renderer.close();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the thumbnails of a set using the thumbnail rendering pool.
+     * Cached thumbnails are read from disk in the calling thread while the
+     * missing thumbnails are rendered, each by its own {@link Renderer}. The
+     * Pixels sets which cannot be handled here, such as those whose pyramids
+     * are still being generated, are returned for serial handling.
+     * @param pixelsIds The Pixels IDs to retrieve thumbnails for.
+     * @param toReturn Map of Pixels ID vs. thumbnail bytes to fill in.
+     * @param toSave List of changed thumbnail metadata to fill in.
+     * @return The Pixels IDs which were not handled.
+     */
+    private Set<Long> retrieveThumbnailSetInParallel(Set<Long> pixelsIds,
+            Map<Long, byte[]> toReturn, List<Thumbnail> toSave)
+    {
+        StopWatch s1 = new Slf4JStopWatch("omero.retrieveThumbnailSetInParallel");
+        final Set<Long> remaining = new HashSet<Long>();
+        final Map<Long, Thumbnail> hits = new HashMap<Long, Thumbnail>();
+        final List<Long> misses = new ArrayList<Long>();
+        try
+        {
+            for (final Long pixelsId : pixelsIds) {
+                resetMetadata();
+                try {
+                    if (!ctx.hasSettings(pixelsId)) {
+                        remaining.add(pixelsId);
+                    } else if (ctx.isThumbnailCached(pixelsId)) {
+                        hits.put(pixelsId, ctx.getMetadata(pixelsId));
+                    } else {
+                        misses.add(pixelsId);
+                    }
+                } catch (Throwable t) {
+                    remaining.add(pixelsId);
+                }
+            }
+            if (!misses.isEmpty() && diskSpaceChecking) {
+                try {
+                    iRepositoryInfo.sanityCheckRepository();
+                } catch (RuntimeException e) {
+                    log.debug("Repository check failed; rendering serially", e);
+                    remaining.addAll(misses);
+                    misses.clear();
+                }
+            }
+            // Bound the number of pixel buffers which are open at once.
+            final List<List<Long>> batches =
+                    Lists.partition(misses, 2 * thumbnailThreads);
+            boolean hitsRead = false;
+            for (final List<Long> batch : batches) {
+                final Map<Long, ThumbnailJob> jobs =
+                        new HashMap<Long, ThumbnailJob>();
+                final Map<Long, Future<byte[]>> futures =
+                        new HashMap<Long, Future<byte[]>>();
+                for (final Long pixelsId : batch) {
+                    final ThumbnailJob job = prepareThumbnailJob(pixelsId);
+                    if (job == null) {
+                        remaining.add(pixelsId);
+                        continue;
+                    }
+                    try {
+                        futures.put(pixelsId, thumbnailExecutor.submit(job));
+                        jobs.put(pixelsId, job);
+                    } catch (RuntimeException e) {
+                        job.renderer.close();
+                        remaining.add(pixelsId);
+                    }
+                }
+                if (!hitsRead) {
+                    readCachedThumbnails(hits, toReturn, remaining);
+                    hitsRead = true;
+                }
+                for (final Map.Entry<Long, Future<byte[]>> entry : futures.entrySet()) {
+                    final Long pixelsId = entry.getKey();
+                    final ThumbnailJob job = jobs.get(pixelsId);
+                    try {
+                        toReturn.put(pixelsId, entry.getValue().get());
+                        if (job.dirty && job.written) {
+                            toSave.add(job.metadata);
+                        }
+                    } catch (ExecutionException e) {
+                        log.warn("Retrieving thumbnail in set for " + "Pixels ID " + pixelsId + " failed.", e.getCause());
+                        toReturn.put(pixelsId, null);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        log.warn("Interrupted retrieving thumbnail in set for Pixels ID " + pixelsId);
+                        toReturn.put(pixelsId, null);
+                    }
+                }
+            }
+            if (!hitsRead) {
+                readCachedThumbnails(hits, toReturn, remaining);
+            }
+            return remaining;
+        }
+        finally
+        {
+            resetMetadata();
+            s1.stop();
+        }
+    }
+
+    /**
+     * Reads cached thumbnails from the on disk cache.
+     * @param hits The thumbnail metadata of the cached thumbnails by Pixels ID.
+     * @param toReturn Map of Pixels ID vs. thumbnail bytes to fill in.
+     * @param remaining Pixels IDs to fill in whose thumbnails could not be read.
+     */
+    private void readCachedThumbnails(Map<Long, Thumbnail> hits,
+            Map<Long, byte[]> toReturn, Set<Long> remaining)
+    {
+        for (final Map.Entry<Long, Thumbnail> hit : hits.entrySet()) {
+            try {
+                toReturn.put(hit.getKey(), readThumbnail(hit.getValue(),
+                        ctx.getSettings(hit.getKey())));
+            } catch (IOException e) {
+                log.debug("Cache miss, thumbnail missing or out of date.");
+                remaining.add(hit.getKey());
+            }
+        }
+    }
+
+    /**
+     * Prepares a missing thumbnail for rendering on the thumbnail rendering
+     * pool, updating its metadata and creating its renderer.
+     * @param pixelsId The Pixels ID to retrieve the thumbnail for.
+     * @return The prepared job or <code>null</code> if the thumbnail must
+     * be retrieved serially.
+     */
+    private ThumbnailJob prepareThumbnailJob(Long pixelsId)
+    {
+        resetMetadata();
+        PixelBuffer buffer = null;
+        try {
+            pixels = ctx.getPixels(pixelsId);
+            settings = ctx.getSettings(pixelsId);
+            final Pixels loadedPixels = iPixels.retrievePixDescription(pixelsId);
+            final RenderingDef loadedSettings =
+                    iPixels.loadRndSettings(settings.getId());
+            buffer = pixelDataService.getPixelBuffer(loadedPixels, false);
+            final Renderer jobRenderer = new Renderer(
+                    new QuantumFactory(getFamilies()), getRenderingModels(),
+                    loadedPixels, loadedSettings, buffer, lutProvider);
+            buffer = null;
+            try {
+                final Thumbnail metadata =
+                        _createThumbnail(ctx.getMetadata(pixelsId));
+                return new ThumbnailJob(metadata, dirtyMetadata,
+                        loadedPixels, loadedSettings, jobRenderer);
+            } catch (Throwable t) {
+                jobRenderer.close();
+                throw t;
+            }
+        } catch (ConcurrencyException e) {
+            log.debug("ConcurrencyException on retrieveThumbnailSetInParallel: pyramid in progress");
+        } catch (Throwable t) {
+            log.debug("Could not prepare thumbnail for Pixels ID " + pixelsId, t);
+        } finally {
+            dirtyMetadata = false;
+            if (buffer != null) {
+                try {
+                    buffer.close();
+                } catch (IOException e) {
+                    log.warn("Could not close pixel buffer", e);
+                }
+            }
+        }
+        return null;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -1188,7 +1559,9 @@ public class ThumbnailBean extends AbstractLevel2Service
                 }
                 _createThumbnail();
             }
-            byte[] thumbnail = ioService.getThumbnail(thumbnailMetadata);
+            byte[] thumbnail = inProgress
+                    ? ioService.getThumbnail(thumbnailMetadata)
+                    : readThumbnail(thumbnailMetadata, settings);
             //Thumbnails are always saved to disk and then retrieved when the
             //call stack includes retrieveThumbnail(). This includes the "clock".
             //inProgress is not set early enough for retrieveThumbnailDirect()
@@ -1207,6 +1580,7 @@ public class ThumbnailBean extends AbstractLevel2Service
             //Otherwise the "clock" would stay as the cached thumbnail until
             //the valid rendering settings for the current user are modified.
             if (inProgress) {
+                invalidateCachedThumbnails(thumbnailMetadata);
                 ioService.removeThumbnails(
                         Arrays.asList(new Long[] { thumbnailMetadata.getId() }));
             }
@@ -1231,7 +1605,7 @@ public class ThumbnailBean extends AbstractLevel2Service
                 // If the thumbnail is not dirty, belongs to the user and is on disk
                 // try to load it.
                 try {
-                    return ioService.getThumbnail(thumbMetaData);
+                    return readThumbnail(thumbMetaData, settings);
                 } catch (IOException e) {
                     if (log.isDebugEnabled()) {
                         log.debug("Cache miss, thumbnail missing or out of date.");
@@ -1289,7 +1663,7 @@ public class ThumbnailBean extends AbstractLevel2Service
         // If we get here the compressThumbnailToDisk method above succeeded and
         // we can load the thumbnail from disk
         try {
-            return ioService.getThumbnail(thumbnailMetadata);
+            return readThumbnail(thumbnailMetadata, settings);
         } catch (IOException e) {
             log.error("Could not obtain thumbnail", e);
             throw new ResourceError(e.getMessage());
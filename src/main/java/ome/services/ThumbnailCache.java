@@ -0,0 +1,237 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.util.Map;
+
+import ome.model.display.RenderingDef;
+import ome.model.display.Thumbnail;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Bounded in-memory cache of compressed thumbnails which sits in front of the
+ * on disk thumbnail cache of the {@link ome.io.nio.ThumbnailService}. Entries
+ * are keyed by everything which identifies the bytes on disk so that any
+ * change to the thumbnail metadata produces a new key; entries for a Pixels
+ * set are additionally invalidated whenever its thumbnail is rewritten or its
+ * rendering settings are saved. The least recently used entries are evicted
+ * once the total size of the cached thumbnails exceeds the configured limit.
+ *
+ * @since 5.5
+ */
+public class ThumbnailCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    /**
+     * Identifies one compressed thumbnail. Only created for thumbnail metadata
+     * that has been saved.
+     */
+    public static final class Key {
+
+        private final long pixelsId;
+
+        private final long renderingDefId;
+
+        private final long thumbnailId;
+
+        private final Integer version;
+
+        private final int sizeX;
+
+        private final int sizeY;
+
+        Key(long pixelsId, long renderingDefId, long thumbnailId,
+                Integer version, int sizeX, int sizeY) {
+            this.pixelsId = pixelsId;
+            this.renderingDefId = renderingDefId;
+            this.thumbnailId = thumbnailId;
+            this.version = version;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+        }
+
+        /**
+         * Creates the key for the given thumbnail metadata.
+         * @param metadata the thumbnail metadata.
+         * @param settings the rendering settings the thumbnail was rendered
+         * with, may be {@code null}.
+         * @return the key or {@code null} if the thumbnail is not cacheable
+         */
+        public static Key of(Thumbnail metadata, RenderingDef settings) {
+            if (metadata == null || metadata.getId() == null
+                    || metadata.getPixels() == null
+                    || metadata.getPixels().getId() == null) {
+                return null;
+            }
+            final Long renderingDefId = settings == null ? null : settings.getId();
+            return new Key(metadata.getPixels().getId(),
+                    renderingDefId == null ? -1 : renderingDefId,
+                    metadata.getId(), metadata.getVersion(),
+                    metadata.getSizeX(), metadata.getSizeY());
+        }
+
+        public long getPixelsId() {
+            return pixelsId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return pixelsId == other.pixelsId
+                    && renderingDefId == other.renderingDefId
+                    && thumbnailId == other.thumbnailId
+                    && sizeX == other.sizeX && sizeY == other.sizeY
+                    && (version == null ? other.version == null
+                            : version.equals(other.version));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (thumbnailId ^ (thumbnailId >>> 32));
+            hash = 31 * hash + (int) (pixelsId ^ (pixelsId >>> 32));
+            hash = 31 * hash + (int) (renderingDefId ^ (renderingDefId >>> 32));
+            hash = 31 * hash + (version == null ? 0 : version);
+            hash = 31 * hash + sizeX;
+            hash = 31 * hash + sizeY;
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Thumbnail:%d(Pixels:%d,RenderingDef:%d,v%s,%dx%d)",
+                    thumbnailId, pixelsId, renderingDefId, version, sizeX, sizeY);
+        }
+    }
+
+    private final SizeBoundedLruCache<Key, byte[]> entries;
+
+    /**
+     * Creates a cache which is disabled.
+     */
+    public ThumbnailCache() {
+        this(new NullMetrics(), 0);
+    }
+
+    /**
+     * Creates a new cache.
+     * @param metrics where to report hits, misses and evictions
+     * @param maxMegabytes the maximum total size of the cached thumbnails in
+     * megabytes; if not positive then nothing is cached
+     */
+    public ThumbnailCache(Metrics metrics, int maxMegabytes) {
+        this.entries = new SizeBoundedLruCache<Key, byte[]>(metrics, this,
+                Math.max(0, maxMegabytes) * 1024L * 1024L,
+                SizeBoundedLruCache.BYTE_ARRAYS);
+    }
+
+    /**
+     * @return if thumbnails are cached at all
+     */
+    public boolean isEnabled() {
+        return entries.isEnabled();
+    }
+
+    /**
+     * Retrieves a cached thumbnail.
+     * @param key the thumbnail's key, may be {@code null}
+     * @return the compressed thumbnail or {@code null} on a cache miss
+     */
+    public byte[] get(Key key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Caches a thumbnail, evicting the least recently used thumbnails as
+     * necessary. Thumbnails larger than the whole cache are not cached.
+     * @param key the thumbnail's key, may be {@code null}
+     * @param value the compressed thumbnail, not to be modified hereafter
+     */
+    public void put(Key key, byte[] value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * Removes all the cached thumbnails of a Pixels set.
+     * @param pixelsId the ID of the Pixels set
+     */
+    public void invalidatePixels(final long pixelsId) {
+        if (!isEnabled()) {
+            return;
+        }
+        entries.invalidate(new Predicate<Map.Entry<Key, byte[]>>() {
+            @Override
+            public boolean apply(Map.Entry<Key, byte[]> entry) {
+                return entry.getKey().pixelsId == pixelsId;
+            }
+        });
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidated cached thumbnails of Pixels:" + pixelsId);
+        }
+    }
+
+    /**
+     * Removes all the cached thumbnails.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of lookups which found a cached thumbnail
+     */
+    public long getHitCount() {
+        return entries.getHitCount();
+    }
+
+    /**
+     * @return the number of lookups which did not find a cached thumbnail
+     */
+    public long getMissCount() {
+        return entries.getMissCount();
+    }
+
+    /**
+     * @return the number of thumbnails evicted to keep within the size limit
+     */
+    public long getEvictionCount() {
+        return entries.getEvictionCount();
+    }
+
+    /**
+     * @return the number of cached thumbnails
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size of the cached thumbnails in bytes
+     */
+    public long getSizeInBytes() {
+        return entries.getSizeInBytes();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ThumbnailCache(%d entries, %d/%d bytes, "
+                + "hits=%d, misses=%d, evictions=%d)", size(),
+                getSizeInBytes(), entries.getMaxBytes(), getHitCount(), getMissCount(),
+                getEvictionCount());
+    }
+}
@@ -18,13 +18,11 @@
 
 package ome.services.eventlogs;
 
-import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
 import ome.model.IObject;
@@ -59,115 +57,167 @@ import org.springframework.context.ApplicationEvent;
 public class EventLogQueue extends PersistentEventLogLoader {
 
     /**
-     * Basic states which an {@link Entry} can be in.
+     * Open-addressing map from the id of an object to the slot of its entry
+     * in {@link Data}, using linear probing. One is kept for each entity type
+     * so that later log items for a queued object are merged into its entry.
      *
-     * @since 5.0.3
+     * @since 5.5
      */
-    enum State {
+    private static class SlotIndex {
+
+        private static final int NONE = -1;
+
+        private long[] keys;
+
+        private int[] slots;
+
+        private int size;
+
+        SlotIndex(int capacity) {
+            clear(capacity);
+        }
+
+        private int home(long key) {
+            final long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+        }
 
         /**
-         * Newly created and still unprocessed.
+         * @return the slot for the given object id or {@link #NONE}
          */
-        OPEN,
+        int get(long key) {
+            final int mask = keys.length - 1;
+            for (int i = home(key); slots[i] != NONE; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return slots[i];
+                }
+            }
+            return NONE;
+        }
 
         /**
-         * Marked on the <em>previous</em> {@link Entry} when
-         * {@link EventLogQueue#next} is about to return.
+         * Adds the slot for an object id which is not yet present.
          */
-        PASS,
+        void put(long key, int slot) {
+            if (2 * (size + 1) > keys.length) {
+                final long[] oldKeys = keys;
+                final int[] oldSlots = slots;
+                clear(keys.length * 2);
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldSlots[i] != NONE) {
+                        put(oldKeys[i], oldSlots[i]);
+                    }
+                }
+            }
+            final int mask = keys.length - 1;
+            int i = home(key);
+            while (slots[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            slots[i] = slot;
+            size++;
+        }
 
         /**
-         * Marked when {@link EventLogQueue#onApplicationEvent(ApplicationEvent)}
-         * is called with a {@link EventLogFailure}.
+         * Removes an object id, shifting back any later keys of its probe
+         * sequence so that lookups need no tombstones.
          */
-        FAIL;
+        void remove(long key) {
+            final int mask = keys.length - 1;
+            int i = home(key);
+            while (keys[i] != key || slots[i] == NONE) {
+                if (slots[i] == NONE) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            for (int j = (i + 1) & mask; slots[j] != NONE; j = (j + 1) & mask) {
+                final int k = home(keys[j]);
+                final boolean inPlace = i <= j ? i < k && k <= j : i < k || k <= j;
+                if (!inPlace) {
+                    keys[i] = keys[j];
+                    slots[i] = slots[j];
+                    i = j;
+                }
+            }
+            slots[i] = NONE;
+            size--;
+        }
+
+        void clear(int capacity) {
+            keys = new long[capacity];
+            slots = new int[capacity];
+            Arrays.fill(slots, NONE);
+            size = 0;
+        }
     }
 
     /**
-     * Simple container for the data returned from
-     * {@link SqlAction#getEventLogPartitions(java.util.Collection, java.util.Collection, long, long)}
-     * . State is mutable so that subsequent data for the same IObject can be
-     * merged into a single representation.
+     * Array-backed double-ended queue of slots in {@link Data}.
      *
-     * @since 5.0.3
+     * @since 5.5
      */
-    private static class Entry implements Serializable {
-
-        private static final long serialVersionUID = 1L;
+    private static class SlotRing {
 
-        /**
-         * Id of {@link EventLog} for this entry. If less than 0, then this
-         * represents a backlog item.
-         * @see EventLog#getId()
-         */
-        long eventLog;
+        private int[] items;
 
-        /**
-         * Class name for this {@link EventLog}.
-         * @see EventLog#getEntityType()
-         */
-        final String objType;
+        private int head;
 
-        /**
-         * Id of object for this {@link EventLog}.
-         * @see EventLog#getEntityId()
-         */
-        final long objId;
-
-        /**
-         * Action for this {@link EventLog}.
-         * @see EventLog#getAction()
-         */
-        String action;
+        private int size;
 
-        /**
-         * Number of rows that were skipped by the {@link SqlAction}
-         * windowing function.
-         */
-        int skipped;
+        SlotRing(int capacity) {
+            clear(capacity);
+        }
 
-        State state = State.OPEN;
+        boolean isEmpty() {
+            return size == 0;
+        }
 
-        Entry(long log, String type, long id, String action, int skipped) {
-            this.eventLog = log;
-            this.objType = type;
-            this.objId = id;
-            this.action = action;
-            this.skipped = skipped;
+        int size() {
+            return size;
         }
 
-        public void update(long eventLogId, String action, int skipped) {
-            this.eventLog = eventLogId;
-            this.action = action;
-            this.skipped = skipped;
+        void addLast(int slot) {
+            if (size == items.length) {
+                final int[] grown = new int[items.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = items[(head + i) & (items.length - 1)];
+                }
+                items = grown;
+                head = 0;
+            }
+            items[(head + size) & (items.length - 1)] = slot;
+            size++;
         }
 
-        public void pass() {
-            state = State.PASS;
+        int removeFirst() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            final int slot = items[head];
+            head = (head + 1) & (items.length - 1);
+            size--;
+            return slot;
         }
 
-        public void fail() {
-            state = State.FAIL;
+        int removeLast() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            size--;
+            return items[(head + size) & (items.length - 1)];
         }
 
-        public String toString() {
-            final StringBuilder sb = new StringBuilder();
-            sb.append("Entry[");
-            sb.append(eventLog);
-            sb.append("]");
-            sb.append("<");
-            sb.append(objType);
-            sb.append(":");
-            sb.append(objId);
-            sb.append("=");
-            sb.append(action);
-            sb.append(">");
-            return sb.toString();
+        void clear(int capacity) {
+            items = new int[capacity];
+            head = 0;
+            size = 0;
         }
     }
 
     /**
-     * Wrapper to combine {@link EventLog} and {@link Entry} instances for
+     * Wrapper to combine {@link EventLog} and the queued entry for
      * consumption by the FullTextIndexer.
      *
      * @since 5.0.3
@@ -178,86 +228,101 @@ public class EventLogQueue extends PersistentEventLogLoader {
 
         private static final long serialVersionUID = 1L;
 
-        private final Entry entry;
+        /**
+         * Number of rows that were skipped by the {@link SqlAction}
+         * windowing function or by the backlog.
+         */
+        private final int skipped;
+
+        private Timer.Context timer;
 
-        private final Timer.Context timer;
+        WrappedEventLog(long eventLog, String type, long id, String action,
+                int skipped) {
+            this.skipped = skipped;
+            setId(eventLog);
+            setAction(action);
+            setEntityType(type);
+            setEntityId(id);
+        }
 
-        WrappedEventLog(Entry e, Timer.Context timer) {
-            this.timer = timer;
-            this.entry = e;
-            setId(e.eventLog);
-            setAction(e.action);
-            setEntityType(e.objType);
-            setEntityId(e.objId);
+        String describe() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Entry[");
+            sb.append(getId());
+            sb.append("]");
+            sb.append("<");
+            sb.append(getEntityType());
+            sb.append(":");
+            sb.append(getEntityId());
+            sb.append("=");
+            sb.append(getAction());
+            sb.append(">");
+            return sb.toString();
         }
     }
 
     /**
-     * Collection of collections which must be kept in sync during additions
-     * and removals. Three queues are available from which {@link Entry}
-     * instances will be "popped": {@link #priorityQ}, {@link #regularQ},
-     * and {@link #failureQ}. At the same time, an index is maintained per
-     * each {@link EventLog#getEntityType() entityType} so that later log
-     * items are not repeated.
+     * Collections which must be kept in sync during additions and removals.
+     * Each queued entry is a slot in parallel primitive arrays holding the
+     * {@link EventLog#getId() id} of its log (less than 0 for a backlog item),
+     * the {@link EventLog#getEntityType() entity type},
+     * {@link EventLog#getEntityId() entity id} and
+     * {@link EventLog#getAction() action} of the log, and the number of rows
+     * merged into it. Two queues of slots are available from which entries
+     * will be "popped": {@link #priorityQ} and {@link #regularQ}. At the same
+     * time, an index is maintained per each entity type so that later log
+     * items are not repeated. Failed items are kept in {@link #failureQ}.
      *
      * @since 5.0.3
      */
-    private static class Data implements Serializable {
+    private static class Data {
 
-        private static final Logger log = LoggerFactory.getLogger(Data.class);
+        private static final int INITIAL_CAPACITY = 1024;
 
-        private static final long serialVersionUID = 1L;
+        /**
+         * @see EventLogQueue#types
+         */
+        final private List<String> types;
 
         /**
-         * Intended to hide access to much of the {@link Map} interface in order
-         * to simplify keeping the various collections in sync.
-         *
-         * @since 5.0.3
+         * Actions seen so far, indexed by {@link #actionCodes}.
          */
-        private class Entries implements Serializable {
+        final private List<String> actions = new ArrayList<String>();
 
-            private static final long serialVersionUID = 1L;
+        private long[] eventLogs;
 
-            private final Map<Long, Entry> entries;
+        private long[] objIds;
 
-            public Entries(Map<Long, Entry> entries) {
-                this.entries = entries;
-            }
+        private int[] skips;
 
-            public Entry get(Long objId) {
-                return this.entries.get(objId);
-            }
+        private byte[] typeCodes;
 
-            private void addRegular(Entry entry) {
-                entries.put(entry.objId, entry);
-                regularQ.add(entry);
-                regularCount.inc();
-            }
+        private byte[] actionCodes;
 
-            public void addPriority(Entry entry) {
-                entries.put(entry.objId, entry);
-                priorityQ.add(entry);
-                priorityCount.inc();
-            }
-        }
+        /**
+         * Slots freed by {@link #release(int)} for reuse, and how many slots
+         * have ever been used.
+         */
+        private int[] freeSlots;
+
+        private int freeCount, usedCount;
 
         /**
-         * A weak-valued map of all the entries to be found elsewhere in the
-         * queues.
+         * The slot of each queued object, one index per type.
          */
-        final private Entries[] entriesArray;
+        final private SlotIndex[] indexes;
 
         /**
          * Priority queue, essentially the backlog from other implementations,
          * which should be handled first.
          */
-        final private LinkedList<Entry> priorityQ = new LinkedList<Entry>();
+        final private SlotRing priorityQ = new SlotRing(INITIAL_CAPACITY);
 
         /**
-         * Ordered list of {@link Entry} items which should be processed next if
-         * there is nothing in the priority queue.
+         * Ordered list of entries which should be processed next if there is
+         * nothing in the priority queue. Loaded in order of event log id.
          */
-        final private LinkedList<Entry> regularQ = new LinkedList<Entry>();
+        final private SlotRing regularQ = new SlotRing(INITIAL_CAPACITY);
 
         /**
          * List of failed items. They may be retried when no other processing is
@@ -265,34 +330,133 @@ public class EventLogQueue extends PersistentEventLogLoader {
          */
         final private LinkedList<WrappedEventLog> failureQ = new LinkedList<WrappedEventLog>();
 
-        /**
-         * @see EventLogQueue#types
-         */
-        final private List<String> types;
-
-        final transient private Counter priorityCount, regularCount, failureCount;
+        final private Counter priorityCount, regularCount, failureCount;
 
         public Data(Counter priority, Counter regular, Counter failure,
                 List<String> types) {
+            if (types.size() > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("too many types: " + types.size());
+            }
             this.priorityCount = priority;
             this.regularCount = regular;
             this.failureCount = failure;
             this.types = types;
-            this.entriesArray = new Entries[types.size()];
+            this.indexes = new SlotIndex[types.size()];
             for (int i = 0; i < types.size(); i++) {
-                this.entriesArray[i] = new Entries(new HashMap<Long, Entry>());
+                this.indexes[i] = new SlotIndex(INITIAL_CAPACITY);
+            }
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            eventLogs = new long[capacity];
+            objIds = new long[capacity];
+            skips = new int[capacity];
+            typeCodes = new byte[capacity];
+            actionCodes = new byte[capacity];
+            freeSlots = new int[capacity];
+            freeCount = 0;
+            usedCount = 0;
+        }
+
+        /**
+         * Return the index of the given type or -1 if the type is not queued.
+         */
+        public int type(String type) {
+            return types.indexOf(type);
+        }
+
+        /**
+         * Return the slot of the given object or -1 if it is not queued.
+         */
+        public int find(int type, long objId) {
+            return indexes[type].get(objId);
+        }
+
+        private int action(String action) {
+            int code = actions.indexOf(action);
+            if (code < 0) {
+                if (actions.size() > Byte.MAX_VALUE) {
+                    throw new IllegalArgumentException("too many actions: " + action);
+                }
+                code = actions.size();
+                actions.add(action);
+            }
+            return code;
+        }
+
+        private int acquire(int type, long eventLog, long objId,
+                String action, int skipped) {
+            final int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (usedCount == eventLogs.length) {
+                    final int capacity = usedCount * 2;
+                    eventLogs = Arrays.copyOf(eventLogs, capacity);
+                    objIds = Arrays.copyOf(objIds, capacity);
+                    skips = Arrays.copyOf(skips, capacity);
+                    typeCodes = Arrays.copyOf(typeCodes, capacity);
+                    actionCodes = Arrays.copyOf(actionCodes, capacity);
+                    freeSlots = Arrays.copyOf(freeSlots, capacity);
+                }
+                slot = usedCount++;
             }
+            eventLogs[slot] = eventLog;
+            objIds[slot] = objId;
+            typeCodes[slot] = (byte) type;
+            update(slot, eventLog, action, skipped);
+            indexes[type].put(objId, slot);
+            return slot;
         }
 
         /**
-         * Return the {@link Entry} map which matches the given type.
+         * Removes the entry in the given slot from its type's index and
+         * makes the slot available. Once nothing is queued the storage is
+         * shrunk back so that a large batch does not hold the heap.
          */
-        protected Entries entries(String type) {
-            int idx = types.indexOf(type);
-            if (idx >= 0) {
-                return entriesArray[idx];
+        private void release(int slot) {
+            indexes[typeCodes[slot]].remove(objIds[slot]);
+            freeSlots[freeCount++] = slot;
+            if (freeCount == usedCount && usedCount > INITIAL_CAPACITY) {
+                allocate(INITIAL_CAPACITY);
+                priorityQ.clear(INITIAL_CAPACITY);
+                regularQ.clear(INITIAL_CAPACITY);
+                for (final SlotIndex index : indexes) {
+                    index.clear(INITIAL_CAPACITY);
+                }
             }
-            return null;
+        }
+
+        public void addRegular(int type, long eventLog, long objId,
+                String action, int skipped) {
+            regularQ.addLast(acquire(type, eventLog, objId, action, skipped));
+            regularCount.inc();
+        }
+
+        public void addPriority(int type, long eventLog, long objId,
+                String action, int skipped) {
+            priorityQ.addLast(acquire(type, eventLog, objId, action, skipped));
+            priorityCount.inc();
+        }
+
+        public void update(int slot, long eventLog, String action, int skipped) {
+            eventLogs[slot] = eventLog;
+            actionCodes[slot] = (byte) action(action);
+            skips[slot] = skipped;
+        }
+
+        public void skip(int slot) {
+            skips[slot]++;
+        }
+
+        public String describe(int slot) {
+            return new WrappedEventLog(eventLogs[slot], types.get(typeCodes[slot]),
+                    objIds[slot], actions.get(actionCodes[slot]), skips[slot]).describe();
+        }
+
+        public int size() {
+            return priorityQ.size() + regularQ.size();
         }
 
         public boolean hasNext() {
@@ -305,32 +469,47 @@ public class EventLogQueue extends PersistentEventLogLoader {
             return false;
         }
 
-        public Entry next() {
-            String which = null;
-            Entry entry = null;
+        public WrappedEventLog next() {
+            final int slot;
             if (!priorityQ.isEmpty()) {
-                entry = priorityQ.remove(0);
+                slot = priorityQ.removeFirst();
                 priorityCount.dec();
-                which = "priority";
             } else if (!regularQ.isEmpty()) {
-                entry = regularQ.remove(0);
+                slot = regularQ.removeFirst();
                 regularCount.dec();
-                which = "regular";
             } else {
                 throw new NoSuchElementException();
             }
-            entries(entry.objType).entries.remove(entry.objId);
-//            log.debug("Returning {}. Remaining: priority={}, regular={}",
-//                    entry, priorityCount.getCount(), regularCount.getCount());
+            final WrappedEventLog entry = new WrappedEventLog(eventLogs[slot],
+                    types.get(typeCodes[slot]), objIds[slot],
+                    actions.get(actionCodes[slot]), skips[slot]);
+            release(slot);
             return entry;
         }
 
+        /**
+         * Drops the newest regular entries until no more than the given
+         * number of entries are queued. Regular entries are queued in order
+         * of event log id and the current id only advances as they are
+         * processed, so the dropped entries will be loaded again from the
+         * database once the retained ones are done. Backlog entries have no
+         * such source so are never dropped.
+         * @return how many entries were dropped
+         */
+        public int spill(int capacity) {
+            int spilled = 0;
+            while (size() > capacity && !regularQ.isEmpty()) {
+                release(regularQ.removeLast());
+                regularCount.dec();
+                spilled++;
+            }
+            return spilled;
+        }
+
         public void fail(EventLogFailure failure) {
             WrappedEventLog wrapped = (WrappedEventLog) failure.log;
             failureQ.add(wrapped);
-            wrapped.entry.fail();
             failureCount.inc();
-            // Note: this will stay in the hash map to prevent future access.
         }
 
     }
@@ -343,6 +522,12 @@ public class EventLogQueue extends PersistentEventLogLoader {
      */
     final static public int DEFAULT_MAX = 1000 * 1000;
 
+    /**
+     * Approximate number of bytes of heap used for each queued entry,
+     * allowing for the growth of the arrays that hold it.
+     */
+    final static int ENTRY_BYTES = 64;
+
     /**
      * Array of entity types which will be used in
      * {@link SqlAction#getEventLogPartitions(String[], String[], long, long)}
@@ -365,6 +550,12 @@ public class EventLogQueue extends PersistentEventLogLoader {
      */
     final private int max;
 
+    /**
+     * Maximum number of entries to hold at once, derived from the memory
+     * limit. Regular entries beyond this are left to be loaded again later.
+     */
+    private int capacity;
+
     /**
      * Length of time for loading rows from the database.
      */
@@ -382,7 +573,7 @@ public class EventLogQueue extends PersistentEventLogLoader {
     private int batchCount;
 
     /**
-     * Last {@link Entry} which was returned by the {@link #next()} method. If a
+     * Last entry which was returned by the {@link #next()} method. If a
      * {@link EventLogFailure} is received, then this should be marked as such.
      * If {@link #next()} is called again without a failure, it can be assumed
      * that the processing was successful.
@@ -407,25 +598,28 @@ public class EventLogQueue extends PersistentEventLogLoader {
         this.regularCount = metrics.counter(this, "regularCount");
         this.failureCount = metrics.counter(this, "failureCount");
 
-        // Rough testing shows each entry in the queue to take up about
-        // 100 bytes of storage. If the max would use "too much memory",
-        // then scale it down by 10%. E.g. the default would use ~100MB,
-        // if this is more than 25% of memory, scale down.
-        long memory = Runtime.getRuntime().maxMemory();
-        long queueBytes = max * 100;
-        if (queueBytes >  (.25 * memory)) {
-            this.max = max/10;
-            log.warn("max_partition_size set to more than 25% of "
-                    + "total heap size. Reducing by 1/10th to {}", this.max);
-        } else {
-            this.max = max;
-        }
+        this.max = max;
+        setMaxMemory(0);
         this.types = Arrays.asList(types);
         this.actions = Arrays.asList(actions);
         this.data = new Data(priorityCount, regularCount, failureCount,
                 this.types);
     }
 
+    /**
+     * Limits the heap used by the queued entries.
+     * @param megabytes the limit in megabytes, or 0 for a quarter of the heap
+     */
+    public void setMaxMemory(long megabytes) {
+        final long bytes = megabytes > 0 ? megabytes * 1024 * 1024
+                : Runtime.getRuntime().maxMemory() / 4;
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / ENTRY_BYTES));
+        if (max > capacity) {
+            log.info("max_partition_size exceeds the memory limit: "
+                    + "loading at most {} entries at a time", capacity);
+        }
+    }
+
     //
     // HELPERS
     //
@@ -434,11 +628,12 @@ public class EventLogQueue extends PersistentEventLogLoader {
         final Timer.Context ctx = lookupTime.time();
         try {
             final long current = getCurrentId();
+            final int limit = Math.max(1, Math.min(max, capacity - data.size()));
             List<Object[]> rv = sql.getEventLogPartitions(types, actions,
-                    current, max);
+                    current, limit);
             log.debug(String.format("objects found searching " +
                     "from %s (max: %s): %s",
-                    current, max, rv.size()));
+                    current, limit, rv.size()));
             return rv;
         } finally {
             ctx.stop();
@@ -460,7 +655,12 @@ public class EventLogQueue extends PersistentEventLogLoader {
                 loaded++;
             }
         }
-        return loaded;
+        final int spilled = data.spill(capacity);
+        if (spilled > 0) {
+            log.info("Memory limit reached: {} entries left for a later load",
+                    spilled);
+        }
+        return loaded - spilled;
     }
 
     /**
@@ -471,14 +671,13 @@ public class EventLogQueue extends PersistentEventLogLoader {
             Long objId, String action,
             Integer skipped) {
         boolean added = false;
-        final Data.Entries entries = data.entries(type);
-        Entry entry = entries.get(objId);
-        if (entry == null) {
-            entry = new Entry(eventLogId, type, objId, action, skipped);
-            entries.addRegular(entry);
+        final int typeIdx = data.type(type);
+        final int slot = data.find(typeIdx, objId);
+        if (slot < 0) {
+            data.addRegular(typeIdx, eventLogId, objId, action, skipped);
             added = true;
         } else {
-            entry.update(eventLogId, action,  skipped);
+            data.update(slot, eventLogId, action, skipped);
         }
         return added;
     }
@@ -501,27 +700,26 @@ public class EventLogQueue extends PersistentEventLogLoader {
     }
 
     /**
-     * Handles cleanup of the previously offered {@link Entry} and prepares the
-     * new {@link Entry} for processing.
+     * Handles cleanup of the previously offered entry and prepares the
+     * new entry for processing.
      */
-    private EventLog offer(Entry entry) {
+    private EventLog offer(WrappedEventLog entry) {
         // First handle the previously returned
         if (this.lastReturned != null) {
             this.lastReturned.timer.stop(); // In case of success
-            Entry last = this.lastReturned.entry;
-            last.pass();
-            if (last.eventLog >= 0) {
-                setCurrentId(last.eventLog);
+            final WrappedEventLog last = this.lastReturned;
+            if (last.getId() >= 0) {
+                setCurrentId(last.getId());
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Successfully handled %s. Skipped: %s",
+                        last.describe(), last.skipped));
             }
-            log.debug(String.format("Successfully handled %s. Skipped: %s",
-                    last, last.skipped));
             this.lastReturned = null;
         }
 
-        if (entry.state != State.OPEN) {
-            return null;
-        }
-        this.lastReturned = new WrappedEventLog(entry, processTime.time());
+        entry.timer = processTime.time();
+        this.lastReturned = entry;
         return this.lastReturned;
     }
 
@@ -530,7 +728,7 @@ public class EventLogQueue extends PersistentEventLogLoader {
     //
 
     /**
-     * Checks if either any {@link ome.services.eventlogs.EventLogQueue.Entry} instances are available or tries
+     * Checks if either any entries are available or tries
      * to load them if not. Conditions which will lead this to return false
      * include: "stop" being set, the batch size being met, the current
      * id in the database being equivalent to the newest event log.
@@ -554,8 +752,7 @@ public class EventLogQueue extends PersistentEventLogLoader {
     }
 
     /**
-     * Return a wrapped version of {@link ome.services.eventlogs.EventLogQueue.Data#next()} which could possibly be
-     * null.
+     * Return a wrapped version of {@link ome.services.eventlogs.EventLogQueue.Data#next()}.
      */
     public EventLog next() {
         nextCount.inc();
@@ -596,27 +793,28 @@ public class EventLogQueue extends PersistentEventLogLoader {
     public boolean addEventLog(Class<? extends IObject> cls, long id) {
         final boolean debug = log.isDebugEnabled();
         final String type = cls.getName();
-        final Data.Entries entries = data.entries(type);
-        if (entries == null) {
+        final int typeIdx = data.type(type);
+        if (typeIdx < 0) {
             if (debug) {
                 log.debug("Type not available for backlog:" + type);
             }
             return false;
         }
 
-        Entry entry = entries.get(id);
-        if (entry != null) {
+        final int slot = data.find(typeIdx, id);
+        if (slot >= 0) {
             if (debug) {
-                log.debug("Entry already scheduled:" + entry);
+                log.debug("Entry already scheduled:" + data.describe(slot));
             }
-            entry.skipped++;
+            data.skip(slot);
            return false;
         } else {
-            entry = new Entry(-1, type, id, "REINDEX", 0);
-            entries.addPriority(entry);
+            data.addPriority(typeIdx, -1, id, "REINDEX", 0);
             if (debug) {
-                log.debug("New backlog entry:" + entry);
+                log.debug("New backlog entry:" + new WrappedEventLog(-1, type,
+                        id, "REINDEX", 0).describe());
             }
+            data.spill(capacity);
             return true;
         }
     }
@@ -255,6 +255,8 @@ public class FullTextBridge extends BridgeHelper {
                 String omename = e.getOmeName();
                 String firstName = e.getFirstName();
                 String lastName = e.getLastName();
+                add(document, "details.owner.id", e.getId().toString(),
+                        storedNotAnalyzed);
                 add(document, "details.owner.omeName", omename, stored);
                 add(document, "details.owner.firstName", firstName, opts);
                 add(document, "details.owner.lastName", lastName, opts);
@@ -263,6 +265,8 @@ public class FullTextBridge extends BridgeHelper {
             ExperimenterGroup g = details.getGroup();
             if (g != null && g.isLoaded()) {
                 String groupName = g.getName();
+                add(document, "details.group.id", g.getId().toString(),
+                        storedNotAnalyzed);
                 add(document, "details.group.name", groupName, stored);
             }
 
@@ -24,11 +24,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import ome.model.IObject;
@@ -38,6 +45,8 @@ import ome.util.DetailsFieldBridge;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.commons.lang.StringUtils;
 import org.hibernate.CacheMode;
@@ -115,10 +124,15 @@ public class FullTextIndexer2 {
     }
 
     /**
-     * Maximum number of event log entries to process in one transaction.
+     * Initial number of event log entries for each worker to process in one transaction.
      */
     private static final int BATCH_SIZE = 256;
 
+    /**
+     * Least number of event log entries for each worker to process in one transaction.
+     */
+    private static final int MIN_BATCH_SIZE = 16;
+
     /**
      * After how many purges to defragment the search index.
      */
@@ -146,9 +160,23 @@ public class FullTextIndexer2 {
 
     private boolean isIndexerDisabled;
 
+    private int workerCount = 2;
+    private int maxBatchSize = 4096;
+    private long batchLatency = 10000;
+
+    /* Set only while the indexer is running with more than one worker. */
+    private ExecutorService workers;
+
+    /* Adjusted after each indexing according to how long it took. */
+    private int batchSize = BATCH_SIZE;
+
+    /* If the last review of the event log found as many entries as it allowed. */
+    private boolean isBatchFull;
+
     private final AtomicReference<JobKey[]> jobs = new AtomicReference<>();
 
-    private final SetMultimap<String, Long> toIndex = HashMultimap.create();
+    /* Package-private for unit testing. */
+    final SetMultimap<String, Long> toIndex = HashMultimap.create();
     private final SetMultimap<String, Long> toPurge = HashMultimap.create();
     private final Map<Class<? extends IObject>, Integer> purgeCounts = new HashMap<>();
 
@@ -193,6 +221,44 @@ public class FullTextIndexer2 {
         this.isIndexerDisabled = StringUtils.isBlank(cronExpression);
     }
 
+    /**
+     * @param workerCount how many threads are to index model objects concurrently, each with its own session
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("worker count must be positive");
+        }
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * @param maxBatchSize the greatest number of event log entries for each worker to process in one transaction
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < MIN_BATCH_SIZE) {
+            throw new IllegalArgumentException("maximum batch size must be at least " + MIN_BATCH_SIZE);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.batchSize = Math.min(batchSize, maxBatchSize);
+    }
+
+    /**
+     * @param batchLatency the target duration in milliseconds of indexing one batch, toward which the batch size is adjusted
+     */
+    public void setBatchLatency(long batchLatency) {
+        if (batchLatency < 1) {
+            throw new IllegalArgumentException("batch latency must be positive");
+        }
+        this.batchLatency = batchLatency;
+    }
+
+    /**
+     * @return the current number of event log entries for each worker to process in one transaction
+     */
+    int getBatchSize() {
+        return batchSize;
+    }
+
     // HELPERS FOR SCHEDULING JOBS //
 
     /**
@@ -245,7 +311,11 @@ public class FullTextIndexer2 {
             LOGGER.warn("not starting indexer: it is already running");
             return;
         }
-        LOGGER.info("starting indexer");
+        LOGGER.info("starting indexer with {} worker(s)", workerCount);
+        if (workerCount > 1) {
+            workers = Executors.newFixedThreadPool(workerCount,
+                    new ThreadFactoryBuilder().setNameFormat(JOB_GROUP + "-worker-%d").setDaemon(true).build());
+        }
         try {
             for (final Step step : Step.values()) {
                 final MethodInvokingJobDetailFactoryBean factory = new MethodInvokingJobDetailFactoryBean();
@@ -288,6 +358,17 @@ public class FullTextIndexer2 {
         } catch (Throwable t) {
             LOGGER.error("failed to stop indexer promptly", t);
         }
+        if (workers != null) {
+            workers.shutdown();
+            try {
+                if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOGGER.warn("indexer workers did not finish promptly");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            workers = null;
+        }
         LOGGER.info("stopped indexer");
     }
 
@@ -386,11 +467,13 @@ public class FullTextIndexer2 {
             });
             final String hql = "FROM EventLog WHERE id > :id AND action IN (:actions) ORDER BY id";
             final Query query = session.createQuery(hql);
-            query.setMaxResults(BATCH_SIZE);
+            final int maxResults = batchSize * workerCount;
+            query.setMaxResults(maxResults);
             query.setParameter("id", eventLogId);
             query.setParameterList("actions", actions);
             @SuppressWarnings("unchecked")
             final List<EventLog> logEntries = (List<EventLog>) query.list();
+            isBatchFull = logEntries.size() == maxResults;
             if (logEntries.isEmpty()) {
                 LOGGER.debug("no new event log entries");
             } else {
@@ -437,21 +520,36 @@ public class FullTextIndexer2 {
     }
 
     /**
-     * Index a batch of model objects.
+     * Split the model objects to index among the workers. Each partition holds at least {@link #MIN_BATCH_SIZE} objects,
+     * so there may be fewer partitions than workers.
+     * @param entities the model objects to index
+     * @return the partitions of the objects
      */
-    public void index() {
-        LOGGER.info("indexing objects: count = {}", toIndex.size());
-        if (DetailsFieldBridge.tryLock()) {
-            DetailsFieldBridge.setFieldBridge(bridge);
-        } else {
-            LOGGER.info("failed to lock field bridge so will wait awhile");
-            try {
-                register(Step.INDEX, Event.FIELD_BRIDGE_CONTENTION);
-            } catch (Throwable t) {
-                LOGGER.error("failed to continue indexer", t);
-            }
-            return;
+    List<SetMultimap<String, Long>> partition(SetMultimap<String, Long> entities) {
+        final int count = Math.max(1, Math.min(workers == null ? 1 : workerCount, entities.size() / MIN_BATCH_SIZE));
+        final List<SetMultimap<String, Long>> partitions = new ArrayList<>(count);
+        if (count == 1) {
+            partitions.add(entities);
+            return partitions;
+        }
+        for (int i = 0; i < count; i++) {
+            partitions.add(HashMultimap.<String, Long>create());
         }
+        int next = 0;
+        for (final Map.Entry<String, Long> entity : entities.entries()) {
+            partitions.get(next).put(entity.getKey(), entity.getValue());
+            next = (next + 1) % count;
+        }
+        return partitions;
+    }
+
+    /**
+     * Index some model objects in a transaction of their own.
+     * May be run concurrently by the workers so touches no mutable state of the indexer.
+     * The Lucene documents are built in the calling thread; Hibernate Search applies them through the shared index writer.
+     * @param entities the model objects to index
+     */
+    void indexPartition(SetMultimap<String, Long> entities) {
         final ParserSession parserSession = new ParserSession();
         final Session session = sessionFactory.openSession();
         try {
@@ -459,7 +557,7 @@ public class FullTextIndexer2 {
             fullTextSession.setCacheMode(CacheMode.IGNORE);
             fullTextSession.setFlushMode(FlushMode.COMMIT);
             final Transaction transaction = fullTextSession.beginTransaction();
-            for (final Map.Entry<String, Collection<Long>> typeAndIds : toIndex.asMap().entrySet()) {
+            for (final Map.Entry<String, Collection<Long>> typeAndIds : entities.asMap().entrySet()) {
                 final String entityType = typeAndIds.getKey();
                 final Collection<Long> entityIds = typeAndIds.getValue();
                 final String hql = "FROM " + entityType + " WHERE id IN (:ids)";
@@ -478,12 +576,94 @@ public class FullTextIndexer2 {
                 }
             }
             transaction.commit();
-            toIndex.clear();
         } finally {
-            DetailsFieldBridge.unlock();
             session.close();
             parserSession.closeParsedFiles();
         }
+    }
+
+    /**
+     * Adjust the batch size toward that which indexes in the configured latency.
+     * Grows only if the last batch was full, else a larger one would not have been found.
+     * @param elapsed how many milliseconds the last batch took to index
+     * @param wasFull if the last batch had as many event log entries as it allowed
+     */
+    void adjustBatchSize(long elapsed, boolean wasFull) {
+        final int previousBatchSize = batchSize;
+        if (elapsed > batchLatency) {
+            batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+        } else if (wasFull && elapsed < batchLatency / 2) {
+            batchSize = Math.min(maxBatchSize, batchSize * 2);
+        }
+        if (batchSize != previousBatchSize) {
+            LOGGER.info("indexing took {} ms so adjusting batch size from {} to {}", elapsed, previousBatchSize, batchSize);
+        }
+    }
+
+    /**
+     * Index a batch of model objects.
+     * With multiple workers the batch is partitioned among them and indexed concurrently.
+     * The event log entries are noted as processed only once every partition is indexed.
+     */
+    public void index() {
+        LOGGER.info("indexing objects: count = {}", toIndex.size());
+        if (DetailsFieldBridge.tryLock()) {
+            DetailsFieldBridge.setFieldBridge(bridge);
+        } else {
+            LOGGER.info("failed to lock field bridge so will wait awhile");
+            try {
+                register(Step.INDEX, Event.FIELD_BRIDGE_CONTENTION);
+            } catch (Throwable t) {
+                LOGGER.error("failed to continue indexer", t);
+            }
+            return;
+        }
+        final long startTime = System.nanoTime();
+        final List<SetMultimap<String, Long>> partitions = partition(toIndex);
+        try {
+            if (partitions.size() == 1) {
+                indexPartition(toIndex);
+                toIndex.clear();
+            } else {
+                LOGGER.debug("indexing {} partitions concurrently", partitions.size());
+                final List<Future<?>> futures = new ArrayList<>(partitions.size());
+                for (final SetMultimap<String, Long> partition : partitions) {
+                    futures.add(workers.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            indexPartition(partition);
+                            return null;
+                        }
+                    }));
+                }
+                /* the field bridge must remain locked until every worker is finished */
+                Throwable failure = null;
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        Uninterruptibles.getUninterruptibly(futures.get(i));
+                        for (final Map.Entry<String, Long> entity : partitions.get(i).entries()) {
+                            toIndex.remove(entity.getKey(), entity.getValue());
+                        }
+                    } catch (ExecutionException ee) {
+                        if (failure == null) {
+                            failure = ee.getCause();
+                        } else {
+                            LOGGER.warn("another indexer worker also failed", ee.getCause());
+                        }
+                    }
+                }
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else if (failure instanceof Error) {
+                    throw (Error) failure;
+                } else if (failure != null) {
+                    throw new RuntimeException(failure);
+                }
+            }
+        } finally {
+            DetailsFieldBridge.unlock();
+        }
+        adjustBatchSize(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), isBatchFull);
         try {
             if (!toPurge.isEmpty()) {
                 register(Step.PURGE);
@@ -44,9 +44,11 @@ import org.hibernate.proxy.HibernateProxy;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
@@ -77,9 +79,21 @@ public class GraphTraversal {
     /* all bulk operations are batched; this size should be suitable for IN (:ids) for HQL */
     private static final int BATCH_SIZE = 256;
 
+    /* the read-only queries of planning are batched more coarsely to save round-trips */
+    private static final int PLANNING_BATCH_SIZE = 2048;
+
     /* the full name of the model object classes for which subclasses need not be queried */
     private static final Set<String> NO_SUBCLASS_QUERY = Collections.synchronizedSet(new HashSet<String>());
 
+    /* the full name of the model object classes for which TYPE() has been found to work */
+    private static final Set<String> SUBCLASS_QUERY_PROBED = Collections.synchronizedSet(new HashSet<String>());
+
+    /* the link properties, with direction, for which subclasses cannot be queried at the far end of the link */
+    private static final Set<String> NO_JOINED_SUBCLASS_QUERY = Collections.synchronizedSet(new HashSet<String>());
+
+    /* the link properties, with direction, for which TYPE() has been found to work at the far end of the link */
+    private static final Set<String> JOINED_SUBCLASS_QUERY_PROBED = Collections.synchronizedSet(new HashSet<String>());
+
     /**
      * A tuple noting the state of a mapped object instance in the current graph traversal.
      * @author m.t.b.carroll@dundee.ac.uk
@@ -209,7 +223,8 @@ public class GraphTraversal {
 
         @Override
         public int hashCode() {
-            return Objects.hashCode(getClass(), className, id);
+            /* computed without boxing as instances are hashed very often in large graphs */
+            return 31 * className.hashCode() + (int) (id ^ (id >>> 32));
         }
 
         @Override
@@ -262,7 +277,7 @@ public class GraphTraversal {
 
         @Override
         public int hashCode() {
-            return Objects.hashCode(getClass(), className, propertyName);
+            return 31 * className.hashCode() + propertyName.hashCode();
         }
 
         @Override
@@ -324,7 +339,7 @@ public class GraphTraversal {
 
         @Override
         public int hashCode() {
-            return Objects.hashCode(getClass(), className, propertyName, id);
+            return 31 * (31 * className.hashCode() + propertyName.hashCode()) + (int) (id ^ (id >>> 32));
         }
 
         @Override
@@ -375,19 +390,20 @@ public class GraphTraversal {
      */
     private static class Planning {
         /* process state */
-        final Set<CI> toProcess = new HashSet<CI>();
+        final TrackedSet<CI> toProcess = new TrackedSet<CI>();
         final Set<CI> included = new HashSet<CI>();
         final Set<CI> deleted = new HashSet<CI>();
         final Set<CI> outside = new HashSet<CI>();
         final Set<CI> unchanged = new HashSet<CI>();
         /* orphan checks */
-        final Set<CI> findIfLast = new HashSet<CI>();
+        final TrackedSet<CI> findIfLast = new TrackedSet<CI>();
         final Map<CI, Boolean> foundIfLast = new HashMap<CI, Boolean>();
         /* links */
         final Map<CI, CI> aliases = new HashMap<CI, CI>();
         final Set<CI> cached = new HashSet<CI>();
-        final SetMultimap<CPI, CI> forwardLinksCached = HashMultimap.create();
-        final SetMultimap<CPI, CI> backwardLinksCached = HashMultimap.create();
+        /* each object is cached only once so these need not reject duplicate entries; most have only one value */
+        final ListMultimap<CPI, CI> forwardLinksCached = ArrayListMultimap.create(1024, 1);
+        final ListMultimap<CPI, CI> backwardLinksCached = ArrayListMultimap.create(1024, 1);
         final SetMultimap<CI, CI> befores = HashMultimap.create();
         final SetMultimap<CI, CI> afters = HashMultimap.create();
         final Map<CI, Set<CI>> blockedBy = new HashMap<CI, Set<CI>>();
@@ -590,19 +606,26 @@ public class GraphTraversal {
      */
     private void planOperation() throws GraphException {
         /* track state to guarantee progress in reprocessing objects whose orphan status is relevant */
-        Set<CI> optimisticReprocess = null;
+        TrackedSet<CI>.Snapshot optimisticReprocess = null;
         /* set of not-last objects after latest review */
         Set<CI> isNotLast = null;
         while (true) {
             /* process any pending objects */
             while (!(planning.toProcess.isEmpty() && planning.findIfLast.isEmpty())) {
                 /* first process any cached objects that do not await orphan status determination */
-                final Set<CI> toProcess = new HashSet<CI>(planning.toProcess);
-                toProcess.retainAll(planning.cached);
-                toProcess.removeAll(planning.findIfLast);
+                final List<CI> toProcess = new ArrayList<CI>();
+                final List<CI> toCache = new ArrayList<CI>();
+                for (final CI object : planning.toProcess) {
+                    if (!planning.cached.contains(object)) {
+                        toCache.add(object);
+                    } else if (!planning.findIfLast.contains(object)) {
+                        toProcess.add(object);
+                    }
+                }
                 if (!toProcess.isEmpty()) {
-                    if (optimisticReprocess != null && !Sets.difference(planning.toProcess, optimisticReprocess).isEmpty()) {
+                    if (optimisticReprocess != null && optimisticReprocess.isAnyAdded()) {
                         /* processing something beyond optimistic suggestion, so circumstances have changed */
+                        optimisticReprocess.release();
                         optimisticReprocess = null;
                     }
                     for (final CI nextObject : toProcess) {
@@ -611,32 +634,41 @@ public class GraphTraversal {
                     continue;
                 }
                 /* if none of the above exist, then fill the cache */
-                final Set<CI> toCache = new HashSet<CI>(planning.toProcess);
-                toCache.removeAll(planning.cached);
                 if (!toCache.isEmpty()) {
-                    optimisticReprocess = null;
+                    if (optimisticReprocess != null) {
+                        optimisticReprocess.release();
+                        optimisticReprocess = null;
+                    }
                     cache(toCache);
                     continue;
                 }
                 /* try processing the findIfLast in case of any changes */
                 if (!planning.toProcess.isEmpty()) {
-                    final Set<CI> previousToProcess = new HashSet<CI>(planning.toProcess);
-                    final Set<CI> previousFindIfLast = new HashSet<CI>(planning.findIfLast);
+                    final List<CI> previousToProcess = planning.toProcess.copy();
+                    final TrackedSet<CI>.Snapshot toProcessChanges = planning.toProcess.snapshot();
+                    final TrackedSet<CI>.Snapshot findIfLastChanges = planning.findIfLast.snapshot();
                     for (final CI nextObject : previousToProcess) {
                         reviewObject(nextObject, false);
                     }
                     /* This condition is tricky. We do want to reprocess objects that are suggested for such, while
                      * avoiding an infinite loop that comes of such processing not resolving any orphan status. */
-                    if (!Sets.symmetricDifference(previousFindIfLast, planning.findIfLast).isEmpty() ||
-                            (optimisticReprocess == null ||
-                             !Sets.symmetricDifference(planning.toProcess, optimisticReprocess).isEmpty()) &&
-                            !Sets.symmetricDifference(previousToProcess, planning.toProcess).isEmpty()) {
-                        optimisticReprocess = new HashSet<CI>(planning.toProcess);
+                    final boolean isReprocess = findIfLastChanges.isChanged() ||
+                            (optimisticReprocess == null || optimisticReprocess.isChanged()) && toProcessChanges.isChanged();
+                    toProcessChanges.release();
+                    findIfLastChanges.release();
+                    if (isReprocess) {
+                        if (optimisticReprocess != null) {
+                            optimisticReprocess.release();
+                        }
+                        optimisticReprocess = planning.toProcess.snapshot();
                         continue;
                     }   
                 }
                 /* if no other processing or caching is needed, then deem outstanding objects orphans */
-                optimisticReprocess = null;
+                if (optimisticReprocess != null) {
+                    optimisticReprocess.release();
+                    optimisticReprocess = null;
+                }
                 for (final CI orphan : planning.findIfLast) {
                     planning.foundIfLast.put(orphan, true);
                     planning.unchanged.clear();
@@ -740,6 +772,48 @@ public class GraphTraversal {
         policy.noteDetails(session, objectInstance, object.className, object.id);
     }
 
+    /**
+     * Construct the HQL terms that select the details of objects of the given class,
+     * as read back by {@link #toDetails(Object[], int)}.
+     * @param className a model object class name
+     * @param alias the HQL alias for the objects
+     * @return the select terms for the owner, group and permissions of the objects
+     */
+    private List<String> getDetailsSelectTerms(String className, String alias) {
+        final Set<String> linkProperties = new HashSet<String>();
+        for (final String superclassName : model.getSuperclassesOfReflexive(className)) {
+            final Set<Entry<String, String>> forwardLinks = model.getLinkedTo(superclassName);
+            for (final Entry<String, String> forwardLink : forwardLinks) {
+                linkProperties.add(forwardLink.getValue());
+            }
+        }
+        final List<String> soughtProperties = ImmutableList.of("details.owner", "details.group");
+        final List<String> selectTerms = new ArrayList<String>(soughtProperties.size() + 1);
+        for (final String soughtProperty : soughtProperties) {
+            if (linkProperties.contains(soughtProperty)) {
+                selectTerms.add(alias + '.' + soughtProperty);
+            } else {
+                selectTerms.add("NULLIF(0,0)");  /* a simple NULL doesn't work in Hibernate 3.5 */
+            }
+        }
+        selectTerms.add(alias + ".details.permissions");  /* to include among soughtProperties once GraphPathBean knows of it */
+        return selectTerms;
+    }
+
+    /**
+     * Read the details of an object from a query result.
+     * @param result a query result row that includes the terms from {@link #getDetailsSelectTerms(String, String)}
+     * @param offset the index in the row of the first of those terms
+     * @return the object's details
+     */
+    private static ome.model.internal.Details toDetails(Object[] result, int offset) {
+        final ome.model.internal.Details details = ome.model.internal.Details.create();
+        details.setOwner((Experimenter) result[offset]);
+        details.setGroup((ExperimenterGroup) result[offset + 1]);
+        details.setPermissions((Permissions) result[offset + 2]);
+        return details;
+    }
+
     /**
      * For the given class name and IDs, construct the corresponding {@link CI} instances without loading the persisted objects,
      * and ensure that their {@link ome.model.internal.Details} are noted.
@@ -763,68 +837,39 @@ public class GraphTraversal {
         }
 
         if (!idsToQuery.isEmpty()) {
-            boolean subclassesQueried = false;
-
-            if (!NO_SUBCLASS_QUERY.contains(className)) {
-                try {
-                    /* determine the class of persisted objects without loading them */
-                    final String rootQuery = "SELECT r.id, TYPE(r) FROM " + className + " r WHERE r.id IN (:ids)";
-                    for (final List<Long> idsBatch : Iterables.partition(idsToQuery, BATCH_SIZE)) {
-                        for (final Object[] result :
-                            (List<Object[]>) session.createQuery(rootQuery).setParameterList("ids", idsBatch).list()) {
-                            final Long id = (Long) result[0];
-                            final Class<? extends IObject> objectClass = (Class<? extends IObject>) result[1];
-                            final CI object = new CI(objectClass.getName(), id);
-                            objectsById.put(object.id, object);
-                            planning.aliases.put(new CI(className, object.id), object);
-                        }
+            /* determine the class of persisted objects without loading them, querying their details in the same round-trip */
+            final String detailsTerms = Joiner.on(',').join(getDetailsSelectTerms(className, "root"));
+            final String typeProbe = "SELECT TYPE(root) FROM " + className + " AS root WHERE root.id = :id";
+            if (isTypeQueryable(className, typeProbe, idsToQuery.iterator().next(),
+                    NO_SUBCLASS_QUERY, SUBCLASS_QUERY_PROBED)) {
+                final String rootQuery =
+                        "SELECT root.id, TYPE(root), " + detailsTerms + " FROM " + className + " AS root WHERE root.id IN (:ids)";
+                for (final List<Long> idsBatch : Iterables.partition(idsToQuery, PLANNING_BATCH_SIZE)) {
+                    for (final Object[] result :
+                        (List<Object[]>) session.createQuery(rootQuery).setParameterList("ids", idsBatch).list()) {
+                        final Long id = (Long) result[0];
+                        final Class<? extends IObject> objectClass = (Class<? extends IObject>) result[1];
+                        final CI object = new CI(objectClass.getName(), id);
+                        objectsById.put(object.id, object);
+                        planning.aliases.put(new CI(className, object.id), object);
+                        noteDetails(object, toDetails(result, 2));
                     }
-                    subclassesQueried = true;
-                } catch (NullPointerException | QueryException e) {
-                    NO_SUBCLASS_QUERY.add(className);
                 }
-            }
-            if (!subclassesQueried) {
+            } else {
                 /* the class does not have subclasses to determine */
                 for (final Long id : idsToQuery) {
                     final CI object = new CI(className, id);
                     objectsById.put(object.id, object);
                     planning.aliases.put(object, object);
                 }
-            }
-
-            /* construct query according to which details may be queried */
-            final Set<String> linkProperties = new HashSet<String>();
-            for (final String superclassName : model.getSuperclassesOfReflexive(className)) {
-                final Set<Entry<String, String>> forwardLinks = model.getLinkedTo(superclassName);
-                for (final Entry<String, String> forwardLink : forwardLinks) {
-                    linkProperties.add(forwardLink.getValue());
-                }
-            }
-            final List<String> soughtProperties = ImmutableList.of("details.owner", "details.group");
-            final List<String> selectTerms = new ArrayList<String>(soughtProperties.size() + 1);
-            selectTerms.add("root.id");
-            for (final String soughtProperty : soughtProperties) {
-                if (linkProperties.contains(soughtProperty)) {
-                    selectTerms.add("root." + soughtProperty);
-                } else {
-                    selectTerms.add("NULLIF(0,0)");  /* a simple NULL doesn't work in Hibernate 3.5 */
-                }
-            }
-            selectTerms.add("root.details.permissions");  /* to include among soughtProperties once GraphPathBean knows of it */
-            final String detailsQuery =
-                    "SELECT " + Joiner.on(',').join(selectTerms) + " FROM " + className +" AS root WHERE root.id IN (:ids)";
-
-            /* query and note details of objects */
-            for (final List<Long> idsBatch : Iterables.partition(idsToQuery, BATCH_SIZE)) {
-                final Query hibernateQuery = session.createQuery(detailsQuery).setParameterList("ids", idsBatch);
-                for (final Object[] result : (List<Object[]>) hibernateQuery.list()) {
-                    final ome.model.internal.Details details = ome.model.internal.Details.create();
-                    final Long id = (Long) result[0];
-                    details.setOwner((Experimenter) result[1]);
-                    details.setGroup((ExperimenterGroup) result[2]);
-                    details.setPermissions((Permissions) result[3]);
-                    noteDetails(objectsById.get(id), details);
+                final String detailsQuery =
+                        "SELECT root.id, " + detailsTerms + " FROM " + className + " AS root WHERE root.id IN (:ids)";
+                for (final List<Long> idsBatch : Iterables.partition(idsToQuery, PLANNING_BATCH_SIZE)) {
+                    final Query hibernateQuery = session.createQuery(detailsQuery).setParameterList("ids", idsBatch);
+                    for (final Object[] result : (List<Object[]>) hibernateQuery.list()) {
+                        final Long id = (Long) result[0];
+                        noteDetails(objectsById.get(id), toDetails(result, 1));
+                    }
                 }
             }
         }
@@ -883,24 +928,73 @@ public class GraphTraversal {
 
     /**
      * Load a specific link property's object relationships into the various cache fields of {@link Planning}.
+     * The class and details of the objects at the far end of the links are queried in the same round-trip as the links.
      * @param linkProperty the link property being processed
-     * @param query the HQL to query the property's object relationships
+     * @param isForward if the given IDs are of the linker objects, otherwise they are of the linked objects
      * @param ids the IDs of the related objects
      * @return which linker objects are related to which linked objects by the given property
      * @throws GraphException if the objects could not be converted to unloaded instances
      */
-    private List<Entry<CI,CI>> getLinksToCache(CP linkProperty, String query, Collection<Long> ids) throws GraphException {
+    private List<Entry<CI,CI>> getLinksToCache(CP linkProperty, boolean isForward, Collection<Long> ids)
+            throws GraphException {
         final String linkedClassName = getLinkedClass(linkProperty);
         final boolean propertyIsAccessible = model.isPropertyAccessible(linkProperty.className, linkProperty.propertyName);
+        final String nearClassName = isForward ? linkProperty.className : linkedClassName;
+        final String farClassName = isForward ? linkedClassName : linkProperty.className;
+        final String nearAlias = isForward ? "linker" : "linked";
+        final String farAlias = isForward ? "linked" : "linker";
+        final String detailsTerms = Joiner.on(',').join(getDetailsSelectTerms(farClassName, farAlias));
+        final String from = " FROM " + linkProperty.className + " AS linker " +
+                "JOIN linker." + linkProperty.propertyName + " AS linked WHERE " + nearAlias + ".id IN (:ids)";
         final SetMultimap<Long, Long> linkerToLinked = HashMultimap.create();
-        for (final List<Long> idsBatch : Iterables.partition(ids, BATCH_SIZE)) {
-            for (final Object[] result : (List<Object[]>) session.createQuery(query).setParameterList("ids", idsBatch).list()) {
-                linkerToLinked.put((Long) result[0], (Long) result[1]);
+        Map<Long, CI> farsById = new HashMap<Long, CI>();
+        boolean isFarQueried = false;
+        if (NO_SUBCLASS_QUERY.contains(farClassName)) {
+            /* the far class does not have subclasses to determine */
+            final String query = "SELECT linker.id, linked.id, " + detailsTerms + from;
+            for (final List<Long> idsBatch : Iterables.partition(ids, PLANNING_BATCH_SIZE)) {
+                for (final Object[] result : (List<Object[]>) session.createQuery(query).setParameterList("ids", idsBatch).list()) {
+                    linkerToLinked.put((Long) result[0], (Long) result[1]);
+                    final Long farId = (Long) result[isForward ? 1 : 0];
+                    if (!farsById.containsKey(farId)) {
+                        farsById.put(farId, noteFarDetails(farClassName, farClassName, farId, result, 2));
+                    }
+                }
+            }
+            isFarQueried = true;
+        } else if (!ids.isEmpty() && isTypeQueryable(linkProperty + (isForward ? " forward" : " backward"),
+                "SELECT TYPE(" + farAlias + ") FROM " + linkProperty.className + " AS linker " +
+                "JOIN linker." + linkProperty.propertyName + " AS linked WHERE " + nearAlias + ".id = :id",
+                ids.iterator().next(), NO_JOINED_SUBCLASS_QUERY, JOINED_SUBCLASS_QUERY_PROBED)) {
+            final String query = "SELECT linker.id, linked.id, TYPE(" + farAlias + "), " + detailsTerms + from;
+            for (final List<Long> idsBatch : Iterables.partition(ids, PLANNING_BATCH_SIZE)) {
+                for (final Object[] result : (List<Object[]>) session.createQuery(query).setParameterList("ids", idsBatch).list()) {
+                    linkerToLinked.put((Long) result[0], (Long) result[1]);
+                    final Long farId = (Long) result[isForward ? 1 : 0];
+                    if (!farsById.containsKey(farId)) {
+                        final Class<? extends IObject> farClass = (Class<? extends IObject>) result[2];
+                        farsById.put(farId, noteFarDetails(farClassName, farClass.getName(), farId, result, 3));
+                    }
+                }
+            }
+            isFarQueried = true;
+        }
+        if (!isFarQueried) {
+            /* query only the links then determine the far objects separately */
+            final String query = "SELECT linker.id, linked.id" + from;
+            for (final List<Long> idsBatch : Iterables.partition(ids, PLANNING_BATCH_SIZE)) {
+                for (final Object[] result : (List<Object[]>) session.createQuery(query).setParameterList("ids", idsBatch).list()) {
+                    linkerToLinked.put((Long) result[0], (Long) result[1]);
+                }
             }
+            farsById = findObjectDetails(farClassName,
+                    isForward ? new HashSet<Long>(linkerToLinked.values()) : linkerToLinked.keySet());
         }
         final List<Entry<CI,CI>> linkerLinked = new ArrayList<Entry<CI,CI>>();
-        final Map<Long, CI> linkersById = findObjectDetails(linkProperty.className, linkerToLinked.keySet());
-        final Map<Long, CI> linkedsById = findObjectDetails(linkedClassName, new HashSet<Long>(linkerToLinked.values()));
+        final Map<Long, CI> nearsById =
+                findObjectDetails(nearClassName, isForward ? linkerToLinked.keySet() : new HashSet<Long>(linkerToLinked.values()));
+        final Map<Long, CI> linkersById = isForward ? nearsById : farsById;
+        final Map<Long, CI> linkedsById = isForward ? farsById : nearsById;
         for (final Entry<Long, Long> linkerIdLinkedId : linkerToLinked.entries()) {
             final CI linker = linkersById.get(linkerIdLinkedId.getKey());
             final CI linked = linkedsById.get(linkerIdLinkedId.getValue());
@@ -922,6 +1016,57 @@ public class GraphTraversal {
         return linkerLinked;
     }
 
+    /**
+     * Determine if {@code TYPE()} may be selected for the given class or link. The first time for each it is tried alone,
+     * before any query that also notes objects, so that a failure is attributed to {@code TYPE()} and leaves no partial state.
+     * @param key the class or link property whose subclasses are to be queried
+     * @param probeQuery a query that selects {@code TYPE()} for the object with the ID given by the parameter {@code id}
+     * @param probeId the ID of an object to query
+     * @param unqueryable the keys for which {@code TYPE()} has failed
+     * @param probed the keys for which {@code TYPE()} has succeeded
+     * @return if {@code TYPE()} may be selected
+     */
+    private boolean isTypeQueryable(String key, String probeQuery, Long probeId, Set<String> unqueryable,
+            Set<String> probed) {
+        if (unqueryable.contains(key)) {
+            return false;
+        }
+        if (!probed.contains(key)) {
+            try {
+                session.createQuery(probeQuery).setParameter("id", probeId).setMaxResults(1).list();
+            } catch (NullPointerException | QueryException e) {
+                unqueryable.add(key);
+                return false;
+            }
+            probed.add(key);
+        }
+        return true;
+    }
+
+    /**
+     * Construct the {@link CI} for an object at the far end of a link and note its details,
+     * unless it has already been queried.
+     * @param className the class of the object as declared by the link
+     * @param actualClassName the actual class of the object
+     * @param id the ID of the object
+     * @param result the query result row that includes the object's details
+     * @param offset the index in the row of the first term from {@link #getDetailsSelectTerms(String, String)}
+     * @return the object
+     * @throws GraphException if the object could not be converted to an unloaded instance
+     */
+    private CI noteFarDetails(String className, String actualClassName, long id, Object[] result, int offset)
+            throws GraphException {
+        final CI declared = new CI(className, id);
+        final CI alias = planning.aliases.get(declared);
+        if (alias != null) {
+            return alias;
+        }
+        final CI object = new CI(actualClassName, id);
+        planning.aliases.put(declared, object);
+        noteDetails(object, toDetails(result, offset));
+        return object;
+    }
+
     /**
      * Load object instances and their links into the various cache fields of {@link Planning}.
      * @param toCache the objects to cache
@@ -946,18 +1091,14 @@ public class GraphTraversal {
         /* query and cache forward links */
         for (final Entry<CP, Collection<Long>> forwardLink : forwardLinksWanted.asMap().entrySet()) {
             final CP linkProperty = forwardLink.getKey();
-            final String query = "SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
-                    "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linker.id IN (:ids)";
-            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, query, forwardLink.getValue())) {
+            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, true, forwardLink.getValue())) {
                 planning.forwardLinksCached.put(linkProperty.toCPI(linkerLinked.getKey().id), linkerLinked.getValue());
             }
         }
         /* query and cache backward links */
         for (final Entry<CP, Collection<Long>> backwardLink : backwardLinksWanted.asMap().entrySet()) {
             final CP linkProperty = backwardLink.getKey();
-            final String query = "SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
-                    "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linked.id IN (:ids)";
-            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, query, backwardLink.getValue())) {
+            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, false, backwardLink.getValue())) {
                 planning.backwardLinksCached.put(linkProperty.toCPI(linkerLinked.getValue().id), linkerLinked.getKey());
             }
         }
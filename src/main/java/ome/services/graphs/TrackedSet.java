@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.graphs;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hash set that can report how its content differs from that at earlier points without copying the set.
+ * Each {@link Snapshot} notes only the prior membership of the elements added or removed since it was taken
+ * so its cost is in proportion to the changes, not to the size of the set.
+ * Not thread-safe.
+ * @param <E> the type of the elements
+ * @since 5.5
+ */
+class TrackedSet<E> extends AbstractSet<E> {
+
+    /**
+     * The content of a {@link TrackedSet} at some point, for comparison with its current content.
+     */
+    class Snapshot {
+        /* for each element changed since the snapshot, if it was then in the set */
+        private final Map<E, Boolean> wasMember = new HashMap<E, Boolean>();
+
+        private boolean isReleased = false;
+
+        /**
+         * Note that an element may be about to change membership.
+         * @param element the element
+         * @param isMember if the element is currently in the set
+         */
+        private void touch(E element, boolean isMember) {
+            if (!wasMember.containsKey(element)) {
+                wasMember.put(element, isMember);
+            }
+        }
+
+        /**
+         * @return if the set now has an element that it did not have at the snapshot
+         */
+        boolean isAnyAdded() {
+            checkNotReleased();
+            for (final Map.Entry<E, Boolean> change : wasMember.entrySet()) {
+                if (!change.getValue() && elements.contains(change.getKey())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return if the content of the set now differs from that at the snapshot
+         */
+        boolean isChanged() {
+            checkNotReleased();
+            for (final Map.Entry<E, Boolean> change : wasMember.entrySet()) {
+                if (change.getValue() != elements.contains(change.getKey())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Stop tracking changes for this snapshot. It may not be used afterward.
+         */
+        void release() {
+            if (!isReleased) {
+                isReleased = true;
+                snapshots.remove(this);
+                wasMember.clear();
+            }
+        }
+
+        private void checkNotReleased() {
+            if (isReleased) {
+                throw new IllegalStateException("snapshot is released");
+            }
+        }
+    }
+
+    private final Set<E> elements = new HashSet<E>();
+
+    private final List<Snapshot> snapshots = new ArrayList<Snapshot>(2);
+
+    /**
+     * Note the current content of the set. The snapshot should be {@link Snapshot#release()}d once no longer used.
+     * @return a snapshot of the current content
+     */
+    Snapshot snapshot() {
+        final Snapshot snapshot = new Snapshot();
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @return a copy of the current content that may be iterated over while the set is changed
+     */
+    List<E> copy() {
+        return new ArrayList<E>(elements);
+    }
+
+    private void touch(E element, boolean isMember) {
+        for (final Snapshot snapshot : snapshots) {
+            snapshot.touch(element, isMember);
+        }
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (elements.contains(element)) {
+            return false;
+        }
+        touch(element, false);
+        return elements.add(element);
+    }
+
+    @Override
+    public boolean remove(Object object) {
+        if (!elements.contains(object)) {
+            return false;
+        }
+        @SuppressWarnings("unchecked")
+        final E element = (E) object;
+        touch(element, true);
+        return elements.remove(element);
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        return elements.contains(object);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return elements.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        if (!snapshots.isEmpty()) {
+            for (final E element : elements) {
+                touch(element, true);
+            }
+        }
+        elements.clear();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> iterator = elements.iterator();
+        return new Iterator<E>() {
+            private E current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                touch(current, true);
+            }
+        };
+    }
+}
@@ -10,13 +10,16 @@ import java.util.Collection;
 import java.util.List;
 
 import ome.model.meta.EventLog;
+import ome.security.basic.EventLogBuffer;
 import ome.util.messages.InternalMessage;
 
 import com.google.common.collect.Multimap;
 
 /**
  * Published with the final collection of {@link EventLog} instances which
- * <em>will</em> be saved.
+ * <em>will</em> be saved. When published from an {@link EventLogBuffer} the
+ * model objects are only created for the logs which a listener
+ * {@link #matches(String, String) matches}.
  */
 public class EventLogsMessage extends InternalMessage {
 
@@ -24,12 +27,28 @@ public class EventLogsMessage extends InternalMessage {
 
     final Multimap<String, EventLog> logs;
 
+    final EventLogBuffer buffer;
+
     public EventLogsMessage(Object source, Multimap<String, EventLog> logs) {
         super(source);
         this.logs = logs;
+        this.buffer = null;
+    }
+
+    /**
+     * @param source the publisher
+     * @param buffer the logs, not to be changed after publication
+     */
+    public EventLogsMessage(Object source, EventLogBuffer buffer) {
+        super(source);
+        this.logs = null;
+        this.buffer = buffer;
     }
 
     public Collection<EventLog> matches(String klass, String action) {
+        if (buffer != null) {
+            return buffer.toEventLogs(klass, action);
+        }
         List<EventLog> rv = new ArrayList<EventLog>();
         for (EventLog el : logs.get(klass)) {
             if (el.getAction().equals(action)) {
@@ -6,7 +6,9 @@
 package ome.services.pixeldata;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import ome.api.IQuery;
@@ -23,6 +25,7 @@ import ome.services.util.Executor.SimpleWork;
 import ome.system.ServiceFactory;
 import ome.util.SqlAction;
 
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +48,26 @@ public class PixelDataHandler extends SimpleWork {
 
     protected int reps = 5;
 
+    /**
+     * A PIXELDATA {@link EventLog} along with the size of the pixels it
+     * refers to, so that jobs may be scheduled according to their expected
+     * duration.
+     */
+    public static class Job {
+
+        public final EventLog eventLog;
+
+        /**
+         * Size in bytes of the pixels, or 0 if the pixels were not found.
+         */
+        public final long bytes;
+
+        public Job(EventLog eventLog, long bytes) {
+            this.eventLog = eventLog;
+            this.bytes = bytes;
+        }
+    }
+
     /**
      * Spring injector. Sets the number of indexing runs will be made if there
      * is a substantial backlog.
@@ -72,7 +95,8 @@ public class PixelDataHandler extends SimpleWork {
     }
 
     /**
-     * Loads {@link #reps} {@link EventLog} instances and returns them.
+     * Loads {@link #reps} {@link EventLog} instances and returns them as
+     * {@link Job jobs} sized from the dimensions of their pixels.
      * This is the first phase used by the {@link PixelDataThread}. A later
      * phase will invoke {@link #handleEventLog(EventLog, Session, ServiceFactory)}
      * with the returned instance.
@@ -90,14 +114,47 @@ public class PixelDataHandler extends SimpleWork {
             }
         }
 
-        // Preload
+        final List<Job> jobs = new ArrayList<Job>(logs.size());
+        if (logs.isEmpty()) {
+            return jobs;
+        }
+
+        // Preload the events and sizes for all the logs at once
+        final List<Long> logIds = new ArrayList<Long>(logs.size());
+        final List<Long> pixelsIds = new ArrayList<Long>(logs.size());
         for (EventLog el : logs) {
-            EventLog live = (EventLog) session.get(EventLog.class, el.getId());
-            Event evt = live.getEvent();
-            el.setEvent(evt);
+            logIds.add(el.getId());
+            pixelsIds.add(el.getEntityId());
+        }
+        final Map<Long, Event> events = new HashMap<Long, Event>();
+        Query q = session.createQuery("select el.id, ev from EventLog el "
+                + "join el.event ev where el.id in (:ids)");
+        q.setParameterList("ids", logIds);
+        for (Object row : q.list()) {
+            final Object[] cols = (Object[]) row;
+            events.put((Long) cols[0], (Event) cols[1]);
+        }
+        final Map<Long, Long> sizes = new HashMap<Long, Long>();
+        q = session.createQuery("select p.id, p.sizeX, p.sizeY, p.sizeZ, "
+                + "p.sizeC, p.sizeT, p.pixelsType.bitSize from Pixels p "
+                + "where p.id in (:ids)");
+        q.setParameterList("ids", pixelsIds);
+        for (Object row : q.list()) {
+            final Object[] cols = (Object[]) row;
+            long bytes = 1;
+            for (int i = 1; i < 6; i++) {
+                bytes *= ((Integer) cols[i]).longValue();
+            }
+            bytes = bytes * ((Integer) cols[6]).longValue() / 8;
+            sizes.put((Long) cols[0], bytes);
         }
 
-        return logs;
+        for (EventLog el : logs) {
+            el.setEvent(events.get(el.getId()));
+            final Long bytes = sizes.get(el.getEntityId());
+            jobs.add(new Job(el, bytes == null ? 0 : bytes));
+        }
+        return jobs;
     }
 
     /**
@@ -150,13 +207,7 @@ public class PixelDataHandler extends SimpleWork {
                 return false;
             }
 
-            for(int c=0;c<statsInfo.length;c++) {
-                final StatsInfo si = statsInfo[c];
-                final Channel ch = pixels.getChannel(c);
-                long siId = getSqlAction().setStatsInfo(ch, si);
-                log.info(String.format("Added StatsInfo:%s for %s - C:%s Max:%s Min:%s",
-                        siId, ch, c, si.getGlobalMax(), si.getGlobalMin()));
-            }
+            writeStatsInfo(pixels, statsInfo);
         } catch (LockTimeout lt) {
             log.warn("Pixels:" + id + " -- " + lt.getMessage());
             return false;
@@ -168,6 +219,20 @@ public class PixelDataHandler extends SimpleWork {
         return true;
     }
 
+    /**
+     * Saves the StatsInfo of each channel and links them to the channels.
+     */
+    protected void writeStatsInfo(final Pixels pixels,
+            final StatsInfo[] statsInfo) {
+        for (int c = 0; c < statsInfo.length; c++) {
+            final StatsInfo si = statsInfo[c];
+            final Channel ch = pixels.getChannel(c);
+            long siId = getSqlAction().setStatsInfo(ch, si);
+            log.info(String.format("Added StatsInfo:%s for %s - C:%s Max:%s Min:%s",
+                    siId, ch, c, si.getGlobalMax(), si.getGlobalMin()));
+        }
+    }
+
     protected Pixels getPixels(Long id, ServiceFactory sf)
     {
         final IQuery iQuery = sf.getQueryService();
@@ -6,16 +6,16 @@
 package ome.services.pixeldata;
 
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import ome.conditions.InternalException;
 import ome.io.messages.MissingPyramidMessage;
@@ -26,6 +26,7 @@ import ome.model.meta.EventLog;
 import ome.model.meta.Experimenter;
 import ome.model.meta.ExperimenterGroup;
 import ome.security.basic.CurrentDetails;
+import ome.services.eventlogs.PersistentEventLogLoader;
 import ome.services.sessions.SessionManager;
 import ome.services.util.ExecutionThread;
 import ome.services.util.Executor;
@@ -33,6 +34,8 @@ import ome.services.util.ReadOnlyStatus;
 import ome.system.EventContext;
 import ome.system.Principal;
 import ome.system.ServiceFactory;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Histogram;
 import ome.system.metrics.Metrics;
 import ome.system.metrics.NullMetrics;
 import ome.system.metrics.Timer;
@@ -43,6 +46,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationListener;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.collect.TreeMultiset;
+
 /**
  *
  * @author Josh Moore, josh at glencoesoftware.com
@@ -57,6 +62,18 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
 
     private final static int DEFAULT_THREADS = 1;
 
+    /**
+     * Default size in bytes from which pixels are processed in the lane for
+     * large images.
+     */
+    public final static long DEFAULT_LARGE_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * Most large jobs to hold waiting for the large lane before loading of
+     * further event logs is paused.
+     */
+    private final static int MAX_PENDING_LARGE = 64;
+
     /** Server session UUID */
     private final String uuid;
 
@@ -74,8 +91,54 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
 
     private final Timer batchTimer;
 
+    private final Timer smallTimer, largeTimer;
+
+    private final Counter queueDepth;
+
+    private final Histogram jobMegabytes;
+
     private final ReadOnlyStatus readOnly;
 
+    /**
+     * Size in bytes from which pixels are processed in the large lane.
+     */
+    private long largeSize = DEFAULT_LARGE_SIZE;
+
+    /**
+     * Most jobs which may run in the large lane at a time. Always less than
+     * {@link #numThreads} unless there is only one thread.
+     */
+    private int largeThreads = 1;
+
+    /**
+     * Jobs waiting for their lane, and the number running in each lane.
+     * Guarded by {@link #lanes}.
+     */
+    private final Deque<PixelDataHandler.Job> smallQ = new ArrayDeque<PixelDataHandler.Job>();
+
+    private final Deque<PixelDataHandler.Job> largeQ = new ArrayDeque<PixelDataHandler.Job>();
+
+    private int smallRunning, largeRunning;
+
+    /**
+     * Event log ids of the jobs which are queued or running, so that the
+     * loader's cursor may be moved back before any that are shed. Guarded by
+     * {@link #lanes}.
+     */
+    private final TreeMultiset<Long> unfinished = TreeMultiset.create();
+
+    /** If {@link #doRun()} is loading event logs. Guarded by {@link #lanes}. */
+    private boolean loading;
+
+    /**
+     * Lowest event log id of the jobs shed on stopping, before which to move
+     * the loader's cursor once loading stops, or -1. Guarded by
+     * {@link #lanes}.
+     */
+    private long rewindTo = -1;
+
+    private final Object lanes = new Object();
+
     /**
      * Uses default {@link Principal} for processing
      */
@@ -204,7 +267,30 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
         this.uuid = uuid;
         this.numThreads = numThreads;
         this.batchTimer = metrics.timer(this, "batch");
+        this.smallTimer = metrics.timer(this, "smallJob");
+        this.largeTimer = metrics.timer(this, "largeJob");
+        this.queueDepth = metrics.counter(this, "queueDepth");
+        this.jobMegabytes = metrics.histogram(this, "jobMegabytes");
         this.readOnly = readOnly;
+        setLargeThreads(1);
+    }
+
+    /**
+     * Spring injector. Sets the size in bytes from which pixels are processed
+     * in the lane for large images.
+     */
+    public void setLargeSize(long largeSize) {
+        this.largeSize = largeSize;
+    }
+
+    /**
+     * Spring injector. Sets how many of the threads may process large images
+     * at a time. At least one thread is always left for small images unless
+     * there is only one.
+     */
+    public void setLargeThreads(int largeThreads) {
+        this.largeThreads = Math.max(1,
+                Math.min(largeThreads, numThreads > 1 ? numThreads - 1 : 1));
     }
 
     /**
@@ -214,7 +300,8 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
         StringBuilder sb = new StringBuilder();
         sb.append("Initializing PixelDataThread");
         if (performProcessing) {
-            sb.append(String.format(" (threads=%s)", numThreads));
+            sb.append(String.format(" (threads=%s, large=%s)", numThreads,
+                    largeThreads));
         } else {
             sb.append(" (create events only)");
         }
@@ -222,50 +309,169 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
     }
 
     /**
-     * Loads event logs from the {@link PixelDataHandler} processing them
-     * all then in a background thread via a {@link ExecutorCompletionService}.
-     *
-     * {@link #numThreads} variable is also used there, so the value returned
-     * <em>should</em> match. In case it isn't, we additionally use an
-     * {@link ArrayBlockingQueue} to hold the results.
+     * Loads event logs from the {@link PixelDataHandler} and processes them
+     * in background threads of the {@link Executor}. Jobs for pixels of at
+     * least {@link #largeSize} bytes run in a lane of their own limited to
+     * {@link #largeThreads} so that they cannot hold up the small jobs behind
+     * them. Event logs are loaded while there is room for further small jobs
+     * and this returns once the loader is exhausted and the small jobs are
+     * done; large jobs continue in the background and further queued large
+     * jobs are started as each completes.
      */
     @Override
     public void doRun() {
         if (performProcessing) {
+            synchronized (lanes) {
+                if (isStopSet()) {
+                    return;
+                }
+                loading = true;
+            }
+            try {
+                load();
+            } finally {
+                long rewind = -1;
+                synchronized (lanes) {
+                    loading = false;
+                    if (isStopSet()) {
+                        // Shed what was loaded after stop() was called
+                        shedLocked();
+                        rewind = rewindTo;
+                        rewindTo = -1;
+                    }
+                }
+                if (rewind >= 0) {
+                    rewindCursor(rewind);
+                }
+            }
+        }
+    }
 
-            final ExecutorCompletionService<Object> ecs =
-                new ExecutorCompletionService<Object>(executor.getService(),
-                        new ArrayBlockingQueue<Future<Object>>(numThreads));
-
+    /**
+     * Loads and dispatches jobs for {@link #doRun()}.
+     */
+    private void load() {
+        boolean more = true;
+        while (more && !isStopSet()) {
+            synchronized (lanes) {
+                if (largeQ.size() >= MAX_PENDING_LARGE) {
+                    log.debug("Large lane is full; loading no more");
+                    break;
+                }
+            }
             @SuppressWarnings("unchecked")
-            List<EventLog> eventLogs = (List<EventLog>)
+            List<PixelDataHandler.Job> jobs = (List<PixelDataHandler.Job>)
                     executor.execute(getPrincipal(), work);
+            more = !jobs.isEmpty();
+            synchronized (lanes) {
+                for (final PixelDataHandler.Job job : jobs) {
+                    (isLarge(job) ? largeQ : smallQ).add(job);
+                    unfinished.add(job.eventLog.getId());
+                    queueDepth.inc();
+                }
+                dispatchLocked();
+                // Wait for room for further small jobs before loading
+                while (!isStopSet()
+                        && smallQ.size() + smallRunning >= numThreads) {
+                    awaitLanes();
+                }
+            }
+        }
 
-            for (final EventLog log : eventLogs) {
-                ecs.submit(new Callable<Object>(){
-                    @Override
-                    public Object call()
-                        throws Exception
-                    {
-                        return go(log);
-                    }
-                });
+        synchronized (lanes) {
+            while (!isStopSet() && (!smallQ.isEmpty() || smallRunning > 0)) {
+                awaitLanes();
+            }
+        }
+    }
+
+    /**
+     * Moves the cursor of a persistent loader back so that the event log of
+     * an unfinished job is loaded again after a restart. Handling the event
+     * logs after it again is harmless since existing pyramids are skipped.
+     * @param eventLogId the lowest event log id of the unfinished jobs
+     */
+    private void rewindCursor(long eventLogId) {
+        final Object loader = ((PixelDataHandler) this.work).loader;
+        if (!(loader instanceof PersistentEventLogLoader)) {
+            return;
+        }
+        final PersistentEventLogLoader persistent = (PersistentEventLogLoader) loader;
+        try {
+            if (persistent.getCurrentId() >= eventLogId) {
+                persistent.setCurrentId(eventLogId - 1);
+                log.info("Moved pixel data cursor back to {} for unfinished "
+                        + "pixels", eventLogId - 1);
             }
+        } catch (RuntimeException e) {
+            log.warn("Failed to move pixel data cursor back to "
+                    + (eventLogId - 1), e);
+        }
+    }
+
+    /**
+     * Waits for a job to complete, then starts what queued jobs it can.
+     * Must be called while holding {@link #lanes}.
+     */
+    private void awaitLanes() {
+        try {
+            lanes.wait(500);
+        } catch (InterruptedException ie) {
+            log.debug("Interrupted; looping", ie);
+        }
+        dispatchLocked();
+    }
 
-            int count = eventLogs.size();
-            while (count > 0) {
+    private boolean isLarge(PixelDataHandler.Job job) {
+        return job.bytes >= largeSize;
+    }
+
+    private boolean isStopSet() {
+        return ((PixelDataHandler) this.work).loader.isStopSet();
+    }
+
+    /**
+     * Starts as many queued jobs as the lanes have room for. Must be called
+     * while holding {@link #lanes}.
+     */
+    private void dispatchLocked() {
+        while (!largeQ.isEmpty() && largeRunning < largeThreads
+                && smallRunning + largeRunning < numThreads) {
+            largeRunning++;
+            submit(largeQ.removeFirst(), true);
+        }
+        while (!smallQ.isEmpty() && smallRunning + largeRunning < numThreads) {
+            smallRunning++;
+            submit(smallQ.removeFirst(), false);
+        }
+    }
+
+    private void submit(final PixelDataHandler.Job job, final boolean large) {
+        queueDepth.dec();
+        executor.getService().submit(new Callable<Object>(){
+            @Override
+            public Object call()
+                throws Exception
+            {
                 try {
-                    Future<Object> future = ecs.poll(500, TimeUnit.MILLISECONDS);
-                    if (future != null && future.get() != null) {
-                        count--;
+                    return go(job, large);
+                } catch (Exception e) {
+                    onExecutionException(new ExecutionException(e));
+                    return null;
+                } finally {
+                    synchronized (lanes) {
+                        unfinished.remove(job.eventLog.getId());
+                        if (large) {
+                            largeRunning--;
+                        } else {
+                            smallRunning--;
+                        }
+                        dispatchLocked();
+                        lanes.notifyAll();
                     }
-                } catch (ExecutionException ee) {
-                    onExecutionException(ee);
-                } catch (InterruptedException ie) {
-                    log.debug("Interrupted; looping", ie);
                 }
             }
-        }
+        });
     }
 
     /**
@@ -296,14 +502,19 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
 
     }
 
-    private Object go(EventLog log) {
+    private Object go(PixelDataHandler.Job job, boolean large) {
+        final EventLog log = job.eventLog;
         final Timer.Context timer = batchTimer.time();
+        final Timer.Context laneTimer = (large ? largeTimer : smallTimer).time();
         try {
              executor.execute(getPrincipal(),
                      new HandleEventLog(log, (PixelDataHandler) work,
                              this, "handleEventLog"));
+             jobMegabytes.update((int) Math.min(Integer.MAX_VALUE,
+                     job.bytes / (1024 * 1024)));
              return log;
         } finally {
+            laneTimer.stop();
             timer.stop();
         }
     }
@@ -322,6 +533,45 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
     public void stop() {
         log.info("Shutting down PixelDataThread");
         ((PixelDataHandler) this.work).loader.setStop(true);
+        long rewind = -1;
+        synchronized (lanes) {
+            shedLocked();
+            if (!loading) {
+                // Otherwise doRun() moves the cursor once it stops loading
+                rewind = rewindTo;
+                rewindTo = -1;
+            }
+            lanes.notifyAll();
+        }
+        if (rewind >= 0) {
+            rewindCursor(rewind);
+        }
+    }
+
+    /**
+     * Drops the queued jobs and notes the lowest event log id of the jobs
+     * which are unfinished, including those running which may not complete,
+     * in {@link #rewindTo}. Must be called while holding {@link #lanes}.
+     */
+    private void shedLocked() {
+        if (!unfinished.isEmpty()) {
+            final long lowest = unfinished.firstEntry().getElement();
+            if (rewindTo < 0 || lowest < rewindTo) {
+                rewindTo = lowest;
+            }
+        }
+        final int pending = smallQ.size() + largeQ.size();
+        if (pending > 0) {
+            log.warn("Dropping {} queued pixels; they will be loaded "
+                    + "again on restart", pending);
+        }
+        for (final Deque<PixelDataHandler.Job> queue : Arrays.asList(smallQ, largeQ)) {
+            for (final PixelDataHandler.Job job : queue) {
+                unfinished.remove(job.eventLog.getId());
+                queueDepth.dec();
+            }
+            queue.clear();
+        }
     }
 
     /**
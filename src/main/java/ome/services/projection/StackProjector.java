@@ -0,0 +1,453 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ome.api.IProjection;
+import ome.conditions.InternalException;
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.util.PixelData;
+
+/**
+ * Projects stacks one optical section at a time. Each section is read as a
+ * whole into an array of its pixels type and accumulated into a running
+ * projection, so that only one section is held in memory and the sections are
+ * traversed sequentially. Accumulating a section and writing out the
+ * projection are split into ranges of pixels which are processed in parallel.
+ * <p>
+ * The projected values are the same as those of projecting pixel by pixel
+ * through {@link PixelData#getPixelValue(int)}: values are accumulated as
+ * <code>double</code>, maxima start from zero, means and sums are clamped to
+ * the maximum of the destination pixels type and a sum or mean includes the
+ * sections from <code>start</code> up to but excluding <code>end</code>.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class StackProjector {
+
+    /** Provides the optical sections of the stack to project. */
+    public interface PlaneSource {
+
+        /**
+         * Retrieves an optical section, which is disposed of once projected.
+         * @param z the index of the section
+         * @return the pixels of the section
+         * @throws IOException if the section could not be read
+         * @throws DimensionsOutOfBoundsException if there is no such section
+         */
+        PixelData getPlane(int z)
+                throws IOException, DimensionsOutOfBoundsException;
+    }
+
+    private static final String INT8 = "int8";
+
+    private static final String UINT8 = "uint8";
+
+    private static final String INT16 = "int16";
+
+    private static final String UINT16 = "uint16";
+
+    private static final String INT32 = "int32";
+
+    private static final String UINT32 = "uint32";
+
+    private static final String FLOAT = "float";
+
+    private static final String DOUBLE = "double";
+
+    /** Sections with fewer pixels than this are processed in one range. */
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 256 * 1024;
+
+    /** The pool on which ranges are processed, or {@code null}. */
+    private final ForkJoinPool pool;
+
+    /** The number of pixels from which to process a section in ranges. */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Creates a projector which works in the calling thread.
+     */
+    public StackProjector() {
+        this(null);
+    }
+
+    /**
+     * Creates a projector.
+     * @param pool the pool on which to process the ranges of large sections,
+     * may be {@code null} to work in the calling thread
+     */
+    public StackProjector(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the number of pixels from which sections are processed in ranges.
+     * @param parallelThreshold a number of pixels
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Projects a stack.
+     * @param source the optical sections of the stack
+     * @param pixelsType the pixels type of the sections
+     * @param planeSizeInPixels the number of pixels of each section
+     * @param algorithm one of {@link IProjection#MAXIMUM_INTENSITY},
+     * {@link IProjection#MEAN_INTENSITY} or {@link IProjection#SUM_INTENSITY}
+     * @param stepping the stepping between the sections to use
+     * @param start the first section to use
+     * @param end the last section to use
+     * @param to where to write the projection
+     * @return the minimum and the maximum of the projected values
+     * @throws IOException if a section could not be read
+     * @throws DimensionsOutOfBoundsException if a section does not exist
+     */
+    public double[] project(PlaneSource source, String pixelsType,
+            int planeSizeInPixels, int algorithm, int stepping, int start,
+            int end, PixelData to)
+            throws IOException, DimensionsOutOfBoundsException {
+        final boolean max;
+        switch (algorithm) {
+            case IProjection.MAXIMUM_INTENSITY:
+                max = true;
+                break;
+            case IProjection.MEAN_INTENSITY:
+            case IProjection.SUM_INTENSITY:
+                max = false;
+                // Sums and means have always excluded the end section.
+                end--;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown algorithm: " + algorithm);
+        }
+        final double[] accumulator = new double[planeSizeInPixels];
+        final Section section = new Section(pixelsType, planeSizeInPixels);
+        int count = 0;
+        for (int z = start; z <= end; z += stepping) {
+            final PixelData plane = source.getPlane(z);
+            try {
+                section.read(plane);
+            } finally {
+                plane.dispose();
+            }
+            inRanges(planeSizeInPixels, new Range() {
+                public void run(int from, int until) {
+                    section.accumulate(accumulator, from, until, max);
+                }
+            });
+            count++;
+        }
+        return write(accumulator, algorithm == IProjection.MEAN_INTENSITY,
+                max ? Double.POSITIVE_INFINITY : to.getMaximum(), count, to);
+    }
+
+    /**
+     * Writes out the projection, clamping sums and means.
+     * @return the minimum and the maximum of the written values
+     */
+    private double[] write(final double[] accumulator, final boolean mean,
+            final double ceiling, final int count, final PixelData to) {
+        final List<double[]> extrema = new ArrayList<double[]>();
+        inRanges(accumulator.length, new Range() {
+            public void run(int from, int until) {
+                double minimum = Double.MAX_VALUE;
+                double maximum = Double.MIN_VALUE;
+                for (int i = from; i < until; i++) {
+                    double value = accumulator[i];
+                    if (mean) {
+                        value = value / count;
+                    }
+                    if (value > ceiling) {
+                        value = ceiling;
+                    }
+                    to.setPixelValue(i, value);
+                    minimum = value < minimum ? value : minimum;
+                    maximum = value > maximum ? value : maximum;
+                }
+                synchronized (extrema) {
+                    extrema.add(new double[] { minimum, maximum });
+                }
+            }
+        });
+        final double[] result = { Double.MAX_VALUE, Double.MIN_VALUE };
+        for (final double[] range : extrema) {
+            result[0] = range[0] < result[0] ? range[0] : result[0];
+            result[1] = range[1] > result[1] ? range[1] : result[1];
+        }
+        return result;
+    }
+
+    /** Work over a range of pixels. */
+    private interface Range {
+        void run(int from, int until);
+    }
+
+    /**
+     * Runs work over all the pixels of a section, in parallel ranges if the
+     * section is large.
+     */
+    private void inRanges(final int size, final Range range) {
+        if (pool == null || size < parallelThreshold) {
+            range.run(0, size);
+            return;
+        }
+        final int ranges = Math.min(pool.getParallelism() * 4,
+                Math.max(1, size / 4096));
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(ranges);
+        for (int r = 0; r < ranges; r++) {
+            final int from = boundary(size, r, ranges);
+            final int until = boundary(size, r + 1, ranges);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    range.run(from, until);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (final Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while projecting");
+        } catch (ExecutionException e) {
+            final InternalException ie = new InternalException(
+                    "Failed to project: " + e.getCause());
+            ie.initCause(e.getCause());
+            throw ie;
+        }
+    }
+
+    /**
+     * The first pixel of a range. Ranges start at multiples of eight pixels
+     * so that, with packed bits, no two ranges set pixels in the same byte.
+     */
+    private static int boundary(int size, int range, int ranges) {
+        if (range == ranges) {
+            return size;
+        }
+        return (int) ((long) size * range / ranges) & ~7;
+    }
+
+    /**
+     * One optical section read into an array of its pixels type. The arrays
+     * are reused from one section to the next.
+     */
+    static final class Section {
+
+        private final String pixelsType;
+
+        private final int size;
+
+        private byte[] bytes;
+
+        private short[] shorts;
+
+        private int[] ints;
+
+        private float[] floats;
+
+        private double[] doubles;
+
+        /** If the section's values were copied into {@link #doubles}. */
+        private boolean copied;
+
+        Section(String pixelsType, int size) {
+            this.pixelsType = pixelsType;
+            this.size = size;
+        }
+
+        /**
+         * Reads the pixels of a section, honoring its byte order.
+         */
+        void read(PixelData plane) {
+            final ByteBuffer data = plane.getData().duplicate();
+            data.order(plane.getData().order());
+            data.clear();
+            copied = false;
+            if (UINT8.equals(pixelsType)
+                    || INT8.equals(pixelsType)) {
+                if (bytes == null) {
+                    bytes = new byte[size];
+                }
+                data.get(bytes);
+            } else if (UINT16.equals(pixelsType)
+                    || INT16.equals(pixelsType)) {
+                if (shorts == null) {
+                    shorts = new short[size];
+                }
+                data.asShortBuffer().get(shorts);
+            } else if (UINT32.equals(pixelsType)
+                    || INT32.equals(pixelsType)) {
+                if (ints == null) {
+                    ints = new int[size];
+                }
+                data.asIntBuffer().get(ints);
+            } else if (FLOAT.equals(pixelsType)) {
+                if (floats == null) {
+                    floats = new float[size];
+                }
+                data.asFloatBuffer().get(floats);
+            } else if (DOUBLE.equals(pixelsType)) {
+                if (doubles == null) {
+                    doubles = new double[size];
+                }
+                data.asDoubleBuffer().get(doubles);
+            } else {
+                // Packed bits; the section is disposed of once accumulated
+                // so copy its values.
+                if (doubles == null) {
+                    doubles = new double[size];
+                }
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = plane.getPixelValue(i);
+                }
+                copied = true;
+            }
+        }
+
+        /**
+         * Accumulates a range of the section into a projection.
+         * @param accumulator the running projection
+         * @param from the first pixel of the range
+         * @param until the pixel after the last of the range
+         * @param max whether to take the maximum rather than the sum
+         */
+        void accumulate(double[] accumulator, int from, int until,
+                boolean max) {
+            if (copied) {
+                accumulate(doubles, accumulator, from, until, max);
+            } else if (UINT8.equals(pixelsType)) {
+                final byte[] src = bytes;
+                if (max) {
+                    for (int i = from; i < until; i++) {
+                        final int v = src[i] & 0xff;
+                        if (v > accumulator[i]) {
+                            accumulator[i] = v;
+                        }
+                    }
+                } else {
+                    for (int i = from; i < until; i++) {
+                        accumulator[i] += src[i] & 0xff;
+                    }
+                }
+            } else if (INT8.equals(pixelsType)) {
+                final byte[] src = bytes;
+                if (max) {
+                    for (int i = from; i < until; i++) {
+                        final int v = src[i];
+                        if (v > accumulator[i]) {
+                            accumulator[i] = v;
+                        }
+                    }
+                } else {
+                    for (int i = from; i < until; i++) {
+                        accumulator[i] += src[i];
+                    }
+                }
+            } else if (UINT16.equals(pixelsType)) {
+                final short[] src = shorts;
+                if (max) {
+                    for (int i = from; i < until; i++) {
+                        final int v = src[i] & 0xffff;
+                        if (v > accumulator[i]) {
+                            accumulator[i] = v;
+                        }
+                    }
+                } else {
+                    for (int i = from; i < until; i++) {
+                        accumulator[i] += src[i] & 0xffff;
+                    }
+                }
+            } else if (INT16.equals(pixelsType)) {
+                final short[] src = shorts;
+                if (max) {
+                    for (int i = from; i < until; i++) {
+                        final int v = src[i];
+                        if (v > accumulator[i]) {
+                            accumulator[i] = v;
+                        }
+                    }
+                } else {
+                    for (int i = from; i < until; i++) {
+                        accumulator[i] += src[i];
+                    }
+                }
+            } else if (UINT32.equals(pixelsType)) {
+                final int[] src = ints;
+                if (max) {
+                    for (int i = from; i < until; i++) {
+                        final long v = src[i] & 0xffffffffL;
+                        if (v > accumulator[i]) {
+                            accumulator[i] = v;
+                        }
+                    }
+                } else {
+                    for (int i = from; i < until; i++) {
+                        accumulator[i] += src[i] & 0xffffffffL;
+                    }
+                }
+            } else if (INT32.equals(pixelsType)) {
+                final int[] src = ints;
+                if (max) {
+                    for (int i = from; i < until; i++) {
+                        final int v = src[i];
+                        if (v > accumulator[i]) {
+                            accumulator[i] = v;
+                        }
+                    }
+                } else {
+                    for (int i = from; i < until; i++) {
+                        accumulator[i] += src[i];
+                    }
+                }
+            } else if (FLOAT.equals(pixelsType)) {
+                final float[] src = floats;
+                if (max) {
+                    for (int i = from; i < until; i++) {
+                        final float v = src[i];
+                        if (v > accumulator[i]) {
+                            accumulator[i] = v;
+                        }
+                    }
+                } else {
+                    for (int i = from; i < until; i++) {
+                        accumulator[i] += src[i];
+                    }
+                }
+            } else {
+                accumulate(doubles, accumulator, from, until, max);
+            }
+        }
+
+        private static void accumulate(double[] src, double[] accumulator,
+                int from, int until, boolean max) {
+            if (max) {
+                for (int i = from; i < until; i++) {
+                    if (src[i] > accumulator[i]) {
+                        accumulator[i] = src[i];
+                    }
+                }
+            } else {
+                for (int i = from; i < until; i++) {
+                    accumulator[i] += src[i];
+                }
+            }
+        }
+    }
+}
@@ -53,8 +53,6 @@ public class Complement extends SearchAction {
         rvA = (List<IObject>) a.doWork(session, sf);
         b.chainedSearch(rvA);
         rvB = (List<IObject>) b.doWork(session, sf);
-        rvA.removeAll(rvB);
-
-        return rvA;
+        return IdSet.complement(rvA, rvB);
     }
 }
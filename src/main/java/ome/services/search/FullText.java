@@ -10,18 +10,22 @@ package ome.services.search;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import ome.conditions.ApiUsageException;
 import ome.model.IAnnotated;
+import ome.model.IGlobal;
 import ome.model.IObject;
 import ome.model.core.Image;
+import ome.system.EventContext;
 import ome.system.ServiceFactory;
 import ome.util.search.InvalidQueryException;
 import ome.util.search.LuceneQueryBuilder;
@@ -29,9 +33,17 @@ import ome.util.search.LuceneQueryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.util.Version;
 import org.hibernate.Criteria;
 import org.hibernate.Session;
@@ -71,6 +83,25 @@ public class FullText extends SearchAction {
 
     private final Class<? extends Analyzer> analyzer;
 
+    /** The number of objects to return per call, or all if not positive. */
+    private int pageSize;
+
+    /** The ids of the hits in order of score, once the query has run. */
+    private long[] hitIds;
+
+    private float[] hitScores;
+
+    /** Only kept if {@link #initializeQuery} adds further projections. */
+    private Object[][] hitProjections;
+
+    /** The position in {@link #hitIds} of the next hit to load. */
+    private int hitCursor;
+
+    private int totalSize;
+
+    /** Keeps the hits between searches of a session, if set. */
+    private transient SearchCache cache;
+
     /**
      * Constructs a new instance; Builds a Lucence query with the provided
      * arguments and passes it on the Lucene parser
@@ -304,20 +335,62 @@ public class FullText extends SearchAction {
                 ProjectionConstants.ID);
     }
 
+    /**
+     * Sets how many objects each call to {@link #doWork(Session, ServiceFactory)}
+     * returns. If positive, the Lucene query is run only by the first call
+     * and each call loads only the next page of its hits, in order of score,
+     * until {@link #hasMorePages()} is false. Otherwise, the default, each
+     * call returns all the hits.
+     *
+     * @param pageSize the maximum number of objects to return per call
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets where the hits of this search are kept for its session so that a
+     * repeat of the same search need not run the Lucene query again.
+     *
+     * @param cache the cache, may be {@code null}
+     */
+    public void setSearchCache(SearchCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return if a paged search has hits which are not yet returned
+     */
+    public boolean hasMorePages() {
+        return hitIds == null || hitCursor < hitIds.length;
+    }
+
     @Transactional(readOnly = true)
     public Object doWork(Session s, ServiceFactory sf) {
 
         if (q == null) {
+            hitIds = new long[0];
             return null;
         }
 
-        final Class<?> cls = values.onlyTypes.get(0);
         FullTextSession session = Search.createFullTextSession(s);
-        Criteria criteria = criteria(session);
-        if (criteria == null) {
+        if (criteria(session) == null) {
+            hitIds = new long[0];
             return null; // EARLY EXIT. See criteria method.
         }
+        return nextPage(session, sf);
+    }
 
+    /**
+     * Runs the Lucene query if its hits are not yet known, or for every call
+     * if unpaged, then loads the next page of the hits in order of score.
+     *
+     * @param session the session in which to search
+     * @param sf the services of the current user, may be {@code null}
+     * @return the objects of the next page of hits
+     */
+    protected List<IObject> nextPage(FullTextSession session, ServiceFactory sf) {
+        final Class<?> cls = values.onlyTypes.get(0);
         final String ticket975 = "ticket:975 - Wrong return type: %s instead of %s\n"
                 + "Under some circumstances, byFullText and related methods \n"
                 + "like bySomeMustNone can return instances of the wrong \n"
@@ -325,73 +398,248 @@ public class FullText extends SearchAction {
                 + "If you are recieving this error, please try using the \n"
                 + "intersection/union methods to achieve the same results.";
 
-        // Main query
-        FullTextQuery ftQuery = session.createFullTextQuery(this.q, cls);
-        initializeQuery(ftQuery);
-        List<?> result = ftQuery.list();
-        int totalSize = ftQuery.getResultSize();
-
-        if (result.size() == 0) {
-            // EARLY EXIT 
-            return result; // of wrong type but with generics it doesn't matter
+        if (hitIds == null || pageSize <= 0) {
+            findHits(session, sf, cls);
         }
 
-        final Map<Long, Integer> order = new HashMap<Long, Integer>();
-        final Map<Long, Float> scores = new HashMap<Long, Float>();
-        final Map<Long, Object[]> projections = new HashMap<Long, Object[]>();
-        for (int i = 0; i < result.size(); i++) {
-            Object[] parts = (Object[]) result.get(i);
-            scores.put((Long) parts[1], (Float) parts[0]);
-            order.put((Long) parts[1], i);
-            projections.put((Long) parts[1], parts);
+        final List<IObject> check975 = new ArrayList<IObject>();
+        if (hitIds.length == 0) {
+            // EARLY EXIT
+            return check975;
         }
 
-        // TODO Could add a performance optimization here on returnUnloaded
-
-        final LinkedList<Long> ids = new LinkedList<Long>(scores.keySet());
-        final List<IObject> check975 = new ArrayList<IObject>();
+        // Load the hits in order of score, a chunk at a time, until the page
+        // is full; hits filtered out by the criteria leave room for more.
+        final int limit = pageSize > 0 ? pageSize : Integer.MAX_VALUE;
+        while (check975.size() < limit && hitCursor < hitIds.length) {
+            final int chunk = Math.min(Math.min(limit - check975.size(), 1000),
+                    hitIds.length - hitCursor);
+            final Map<Long, Integer> order = new HashMap<Long, Integer>();
+            final List<Long> page = new ArrayList<Long>(chunk);
+            for (int i = hitCursor; i < hitCursor + chunk; i++) {
+                order.put(hitIds[i], i);
+                page.add(hitIds[i]);
+            }
+            final List<IObject> loaded = loadHits(session, page);
 
-        while (ids.size() > 0) {
-            final List<Long> page = new ArrayList<Long>();
-            for (int i = 0; i < 1000 && ids.size() > 0; i++) {
-                page.add(ids.removeFirst());
+            for (IObject object : loaded) {
+                // TODO This is now all but impossible. Remove
+                if (!cls.isAssignableFrom(object.getClass())) {
+                    throw new ApiUsageException(String.format(ticket975, object
+                            .getClass(), cls));
+                } else {
+                    final int index = order.get(object.getId());
+                    object.putAt(TOTAL_SIZE, totalSize);
+                    object.putAt(ProjectionConstants.SCORE, hitScores[index]);
+                    object.putAt(ALL_PROJECTIONS, hitProjections != null
+                            ? hitProjections[index]
+                            : new Object[] {hitScores[index], hitIds[index]});
+                }
             }
-            if (criteria == null) {
-                criteria = criteria(session);
+
+            // Order return value based on the original ordering
+            final Comparator cmp = new Comparator() {
+                public int compare(Object obj1, Object obj2) {
+                    IObject o1 = (IObject) obj1;
+                    IObject o2 = (IObject) obj2;
+                    Long id1 = o1.getId();
+                    Long id2 = o2.getId();
+                    Integer idx1 = order.get(id1);
+                    Integer idx2 = order.get(id2);
+                    return idx1.compareTo(idx2);
+                }
+            };
+            Collections.sort(loaded, cmp);
+            check975.addAll(loaded);
+            hitCursor += chunk;
+        }
+        return check975;
+    }
+
+    /**
+     * Loads the objects of the given hits that the criteria allow.
+     *
+     * @param session the session in which to search
+     * @param ids the ids of the hits
+     * @return the objects, in any order, in a list that may be modified
+     */
+    protected List<IObject> loadHits(FullTextSession session, List<Long> ids) {
+        final Criteria criteria = criteria(session);
+        if (criteria == null) {
+            return new ArrayList<IObject>();
+        }
+        criteria.add(Restrictions.in("id", ids));
+        return criteria.list();
+    }
+
+    /**
+     * Runs the Lucene query, restricted by the owner and group of the hits,
+     * and keeps the id and score of each hit in order of score.
+     */
+    private void findHits(FullTextSession session, ServiceFactory sf,
+            Class<?> cls) {
+        final EventContext ec = sf == null ? null : sf.getAdminService()
+                .getEventContext();
+        hitProjections = null;
+        hitCursor = 0;
+
+        String search = null;
+        long generation = 0;
+        if (cache != null && cache.isEnabled() && ec != null) {
+            generation = cache.checkIndex();
+            search = cacheKey(ec);
+            final SearchCache.Hits hits = cache.get(
+                    ec.getCurrentSessionUuid(), search, generation);
+            if (hits != null) {
+                hitIds = hits.ids;
+                hitScores = hits.scores;
+                totalSize = hits.totalSize;
+                return; // EARLY EXIT
             }
-            criteria.add(Restrictions.in("id", page));
-            check975.addAll(criteria.list());
-            criteria = null;
         }
 
-        for (IObject object : check975) {
-            // TODO This is now all but impossible. Remove
-            if (!cls.isAssignableFrom(object.getClass())) {
-                throw new ApiUsageException(String.format(ticket975, object
-                        .getClass(), cls));
-            } else {
-                object.putAt(TOTAL_SIZE, totalSize);
-                object.putAt(ProjectionConstants.SCORE, scores.get(object
-                        .getId()));
-                object.putAt(ALL_PROJECTIONS, projections.get(object.getId()));
+        final SearchCache.Hits hits = queryHits(session, ec, cls);
+        hitIds = hits.ids;
+        hitScores = hits.scores;
+        totalSize = hits.totalSize;
+        if (search != null && hitProjections == null) {
+            cache.put(ec.getCurrentSessionUuid(), search, new SearchCache.Hits(
+                    hitIds, hitScores, totalSize, generation));
+        }
+    }
+
+    /**
+     * Runs the Lucene query, restricted by {@link #detailsFilter}. Keeps
+     * the projections of the hits only if {@link #initializeQuery} adds
+     * further projections.
+     *
+     * @param session the session in which to search
+     * @param ec the current event context, may be {@code null}
+     * @param cls the type of object searched for
+     * @return the distinct hits in order of score
+     */
+    protected SearchCache.Hits queryHits(FullTextSession session,
+            EventContext ec, Class<?> cls) {
+        FullTextQuery ftQuery = session.createFullTextQuery(this.q, cls);
+        initializeQuery(ftQuery);
+        final Filter filter = detailsFilter(ec, cls);
+        if (filter != null) {
+            ftQuery.setFilter(filter);
+        }
+        List<?> result = ftQuery.list();
+        long[] ids = new long[result.size()];
+        float[] scores = new float[result.size()];
+        final Set<Long> seen = new HashSet<Long>();
+        int count = 0;
+        for (int i = 0; i < result.size(); i++) {
+            Object[] parts = (Object[]) result.get(i);
+            if (!seen.add((Long) parts[1])) {
+                continue;
+            }
+            if (parts.length > 2) {
+                // Only kept if an overriding initializeQuery projects more.
+                if (hitProjections == null) {
+                    hitProjections = new Object[result.size()][];
+                }
+                hitProjections[count] = parts;
             }
+            ids[count] = (Long) parts[1];
+            scores[count] = (Float) parts[0];
+            count++;
         }
+        if (count < ids.length) {
+            ids = Arrays.copyOf(ids, count);
+            scores = Arrays.copyOf(scores, count);
+        }
+        return new SearchCache.Hits(ids, scores, ftQuery.getResultSize(), 0);
+    }
 
-        // Order return value based on the original ordering
+    /**
+     * Identifies the hits of this search for the {@link SearchCache}. The
+     * key must include all that restricts the Lucene query; the criteria are
+     * applied to each page as it is loaded and so need not be included. An
+     * overriding {@link #initializeQuery} must extend the key with what it
+     * adds.
+     *
+     * @param ec the current event context
+     * @return the key
+     */
+    protected String cacheKey(EventContext ec) {
+        final OwnerOrGroup oog = new OwnerOrGroup(values.ownedBy);
+        final OwnerOrGroup noog = new OwnerOrGroup(values.notOwnedBy);
+        final StringBuilder sb = new StringBuilder();
+        sb.append(getClass().getName()).append('\0');
+        sb.append(analyzer.getName()).append('\0');
+        sb.append(values.onlyTypes.get(0).getName()).append('\0');
+        sb.append(values.leadingWildcard).append('\0');
+        sb.append(oog.path).append('=').append(oog.id).append('\0');
+        sb.append(noog.path).append('=').append(noog.id).append('\0');
+        sb.append(ec.getCurrentUserId()).append('\0');
+        sb.append(ec.getCurrentGroupId()).append('\0');
+        sb.append(ec.getCurrentShareId()).append('\0');
+        sb.append(queryStr);
+        return sb.toString();
+    }
 
-        final Comparator cmp = new Comparator() {
-            public int compare(Object obj1, Object obj2) {
-                IObject o1 = (IObject) obj1;
-                IObject o2 = (IObject) obj2;
-                Long id1 = o1.getId();
-                Long id2 = o2.getId();
-                Integer idx1 = order.get(id1);
-                Integer idx2 = order.get(id2);
-                return idx1.compareTo(idx2);
+    /**
+     * Builds a filter of the hits on the owner and group ids indexed by
+     * {@link ome.services.fulltext.FullTextBridge} so that the hits which the
+     * criteria would reject for their owner or group are neither counted nor
+     * paged through. A filter rather than added clauses leaves the scores
+     * unchanged. Documents indexed without the ids are not filtered out; the
+     * criteria remain the authoritative check of each loaded object.
+     *
+     * @param ec the current event context, may be {@code null}
+     * @param cls the type of object searched for
+     * @return the filter, or {@code null} if no filter is needed
+     */
+    protected Filter detailsFilter(EventContext ec, Class<?> cls) {
+        if (IGlobal.class.isAssignableFrom(cls)) {
+            return null;
+        }
+        final BooleanQuery constraints = new BooleanQuery();
+        constraints.add(new MatchAllDocsQuery(), Occur.MUST);
+        boolean needed = false;
+
+        final OwnerOrGroup oog = new OwnerOrGroup(values.ownedBy);
+        if (oog.needed()) {
+            constraints.add(termOrUnindexed(oog.path, oog.id), Occur.MUST);
+            needed = true;
+        }
+        final OwnerOrGroup noog = new OwnerOrGroup(values.notOwnedBy);
+        if (noog.needed()) {
+            constraints.add(new TermQuery(new Term(noog.path,
+                    Long.toString(noog.id))), Occur.MUST_NOT);
+            needed = true;
+        }
+        if (ec != null) {
+            // Outside of "-1" and shares the security filter reads only the
+            // current group.
+            final Long groupId = ec.getCurrentGroupId();
+            if (ec.getCurrentShareId() == null && groupId != null
+                    && groupId >= 0) {
+                constraints.add(termOrUnindexed("details.group.id", groupId),
+                        Occur.MUST);
+                needed = true;
             }
-        };
-        Collections.sort(check975, cmp);
-        return check975;
+        }
+        return needed ? new QueryWrapperFilter(constraints) : null;
+    }
+
+    /**
+     * @return a query matching the documents with the given id in the field
+     * or which have no value for the field
+     */
+    protected static Query termOrUnindexed(String field, long id) {
+        final BooleanQuery unindexed = new BooleanQuery();
+        unindexed.add(new MatchAllDocsQuery(), Occur.MUST);
+        unindexed.add(new TermRangeQuery(field, null, null, true, true),
+                Occur.MUST_NOT);
+        final BooleanQuery either = new BooleanQuery();
+        either.add(new TermQuery(new Term(field, Long.toString(id))),
+                Occur.SHOULD);
+        either.add(unindexed, Occur.SHOULD);
+        return either;
     }
 
     public Float getScore(IObject object) {
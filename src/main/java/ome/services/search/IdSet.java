@@ -0,0 +1,180 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.model.IObject;
+import ome.util.Utils;
+
+/**
+ * Compact set of the model objects of a search result, held as a sorted array
+ * of ids for each type, on which {@link Union}, {@link Intersection} and
+ * {@link Complement} combine their results. Membership is by type and id
+ * rather than by {@link IObject#equals(Object)}, and the combined result
+ * keeps the order of its first operand so that the ordering by score of a
+ * {@link FullText} search is preserved. Not thread-safe.
+ *
+ * @since 5.5
+ */
+public class IdSet {
+
+    /**
+     * The sorted, distinct ids of each type of model object in the set.
+     */
+    private final Map<Class<?>, long[]> ids = new HashMap<Class<?>, long[]>();
+
+    /* Results are mostly of one type so the last lookup is kept. */
+    private Class<?> lastType;
+    private long[] lastIds;
+
+    /**
+     * Creates the set of the given model objects. Those without an id are
+     * not in the set.
+     * @param objects some model objects, may include {@code null}
+     */
+    public IdSet(List<? extends IObject> objects) {
+        final Map<Class<?>, long[]> unsorted = new HashMap<Class<?>, long[]>();
+        final Map<Class<?>, int[]> sizes = new HashMap<Class<?>, int[]>();
+        for (final IObject object : objects) {
+            if (object == null || object.getId() == null) {
+                continue;
+            }
+            final Class<?> type = Utils.trueClass(object.getClass());
+            long[] typeIds = unsorted.get(type);
+            int[] size = sizes.get(type);
+            if (typeIds == null) {
+                typeIds = new long[16];
+                size = new int[1];
+                sizes.put(type, size);
+            } else if (size[0] == typeIds.length) {
+                typeIds = Arrays.copyOf(typeIds, size[0] * 2);
+            }
+            typeIds[size[0]++] = object.getId();
+            unsorted.put(type, typeIds);
+        }
+        for (final Map.Entry<Class<?>, long[]> entry : unsorted.entrySet()) {
+            final long[] typeIds = entry.getValue();
+            final int size = sizes.get(entry.getKey())[0];
+            Arrays.sort(typeIds, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || typeIds[i] != typeIds[i - 1]) {
+                    typeIds[distinct++] = typeIds[i];
+                }
+            }
+            ids.put(entry.getKey(), Arrays.copyOf(typeIds, distinct));
+        }
+    }
+
+    /**
+     * @param object a model object
+     * @return the position of the object among those of its type in the
+     * set, or -1 if it is not in the set
+     */
+    private int indexOf(IObject object) {
+        if (object == null || object.getId() == null) {
+            return -1;
+        }
+        final Class<?> type = object.getClass();
+        if (type != lastType) {
+            lastType = type;
+            lastIds = ids.get(Utils.trueClass(type));
+        }
+        final long[] typeIds = lastIds;
+        if (typeIds == null) {
+            return -1;
+        }
+        final int index = Arrays.binarySearch(typeIds, object.getId());
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * @param object a model object
+     * @return if an object of the same type and id is in the set
+     */
+    public boolean contains(IObject object) {
+        return indexOf(object) >= 0;
+    }
+
+    /**
+     * @return how many model objects are in the set
+     */
+    public int size() {
+        int size = 0;
+        for (final long[] typeIds : ids.values()) {
+            size += typeIds.length;
+        }
+        return size;
+    }
+
+    /**
+     * @param a the first result
+     * @param b the second result
+     * @return the objects of {@code a} which are also in {@code b}, in the
+     * order of {@code a}
+     */
+    public static List<IObject> intersection(List<IObject> a, List<IObject> b) {
+        return filter(a, new IdSet(b), true);
+    }
+
+    /**
+     * @param a the first result
+     * @param b the second result
+     * @return the objects of {@code a} which are not in {@code b}, in the
+     * order of {@code a}
+     */
+    public static List<IObject> complement(List<IObject> a, List<IObject> b) {
+        return filter(a, new IdSet(b), false);
+    }
+
+    /**
+     * @param a the first result
+     * @param b the second result
+     * @return the objects of {@code a} followed by those of {@code b}, each
+     * only at its first occurrence
+     */
+    public static List<IObject> union(List<IObject> a, List<IObject> b) {
+        final List<IObject> both = new ArrayList<IObject>(a.size() + b.size());
+        both.addAll(a);
+        both.addAll(b);
+        final IdSet set = new IdSet(both);
+        final Map<Class<?>, boolean[]> seen = new HashMap<Class<?>, boolean[]>();
+        for (final Map.Entry<Class<?>, long[]> entry : set.ids.entrySet()) {
+            seen.put(entry.getKey(), new boolean[entry.getValue().length]);
+        }
+        final List<IObject> union = new ArrayList<IObject>(set.size());
+        for (final IObject object : both) {
+            final int index = set.indexOf(object);
+            if (index < 0) {
+                union.add(object);
+            } else {
+                final boolean[] typeSeen =
+                        seen.get(Utils.trueClass(object.getClass()));
+                if (!typeSeen[index]) {
+                    typeSeen[index] = true;
+                    union.add(object);
+                }
+            }
+        }
+        return union;
+    }
+
+    private static List<IObject> filter(List<IObject> objects, IdSet set,
+            boolean isRetain) {
+        final List<IObject> filtered = new ArrayList<IObject>(objects.size());
+        for (final IObject object : objects) {
+            if (set.contains(object) == isRetain) {
+                filtered.add(object);
+            }
+        }
+        return filtered;
+    }
+}
@@ -53,8 +53,6 @@ public class Intersection extends SearchAction {
         rvA = (List<IObject>) a.doWork(session, sf);
         b.chainedSearch(rvA);
         rvB = (List<IObject>) b.doWork(session, sf);
-        rvA.retainAll(rvB);
-
-        return rvA;
+        return IdSet.intersection(rvA, rvB);
     }
 }
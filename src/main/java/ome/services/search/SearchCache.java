@@ -0,0 +1,190 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.search;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import ome.util.SqlAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Holds for each session the hits of its recent {@link FullText} searches as
+ * arrays of ids and scores so that a client which repeats the same search to
+ * page through its results does not rerun the Lucene query. The entities of
+ * each page are still loaded, and checked by the security filters, per call.
+ * <p>
+ * Each session keeps at most a configured number of searches, least
+ * recently used first out, and searches with very many hits are not kept.
+ * All hits are dropped once the indexer has committed a further batch, as
+ * seen from the event log id which it stores in the configuration table.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class SearchCache {
+
+    private final static Logger log = LoggerFactory.getLogger(SearchCache.class);
+
+    /** Searches with more hits than this are not kept. */
+    private static final int MAX_HITS = 100000;
+
+    /** How many sessions may have searches kept. */
+    private static final int MAX_SESSIONS = 1024;
+
+    /**
+     * The hits of a search in order of score.
+     */
+    public static class Hits {
+
+        public final long[] ids;
+
+        public final float[] scores;
+
+        public final int totalSize;
+
+        /** The indexer's progress when the search was run. */
+        final long generation;
+
+        public Hits(long[] ids, float[] scores, int totalSize, long generation) {
+            this.ids = ids;
+            this.scores = scores;
+            this.totalSize = totalSize;
+            this.generation = generation;
+        }
+    }
+
+    private final SqlAction sql;
+
+    private final String key;
+
+    private final int maxEntries;
+
+    private final LoadingCache<String, Map<String, Hits>> sessions;
+
+    private volatile long generation = Long.MIN_VALUE;
+
+    /**
+     * Creates a cache.
+     * @param sql used to read the indexer's progress
+     * @param key the configuration key under which the indexer stores the id
+     * of the last event log that it indexed
+     * @param maxEntries how many searches to keep per session, none if not
+     * positive
+     * @param timeout how many seconds to keep the searches of an idle session
+     */
+    public SearchCache(SqlAction sql, String key, int maxEntries, long timeout) {
+        this.sql = sql;
+        this.key = key;
+        this.maxEntries = maxEntries;
+        this.sessions = CacheBuilder.newBuilder()
+                .maximumSize(MAX_SESSIONS)
+                .expireAfterAccess(timeout, TimeUnit.SECONDS)
+                .build(new CacheLoader<String, Map<String, Hits>>() {
+                    @Override
+                    public Map<String, Hits> load(String session) {
+                        return Collections.synchronizedMap(
+                                new LinkedHashMap<String, Hits>(16, 0.75f, true) {
+                                    private static final long serialVersionUID = 1L;
+
+                                    @Override
+                                    protected boolean removeEldestEntry(
+                                            Map.Entry<String, Hits> eldest) {
+                                        return size() > SearchCache.this.maxEntries;
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * @return if searches are kept
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Reads the indexer's progress, dropping every search if the indexer has
+     * committed since the last call.
+     * @return the current progress, to pass to {@link #get} and {@link #put}
+     */
+    public long checkIndex() {
+        long current;
+        try {
+            current = sql.selectCurrentEventLog(key);
+        } catch (EmptyResultDataAccessException e) {
+            current = -1;
+        } catch (DataAccessException e) {
+            log.warn("Cannot read indexer progress, dropping cached searches", e);
+            invalidate();
+            return Long.MIN_VALUE;
+        }
+        if (current != generation) {
+            if (generation != Long.MIN_VALUE) {
+                log.debug("Indexer progressed to {}, dropping cached searches",
+                        current);
+            }
+            generation = current;
+            invalidate();
+        }
+        return current;
+    }
+
+    /**
+     * @param session the UUID of the session
+     * @param search the search, as from {@link FullText#cacheKey}
+     * @param generation as returned by {@link #checkIndex()}
+     * @return the hits of the search, or {@code null} if not kept
+     */
+    public Hits get(String session, String search, long generation) {
+        if (!isEnabled() || generation == Long.MIN_VALUE) {
+            return null;
+        }
+        final Map<String, Hits> searches = sessions.getIfPresent(session);
+        if (searches == null) {
+            return null;
+        }
+        final Hits hits = searches.get(search);
+        return hits == null || hits.generation != generation ? null : hits;
+    }
+
+    /**
+     * Keeps the hits of a search unless they are too many.
+     * @param session the UUID of the session
+     * @param search the search, as from {@link FullText#cacheKey}
+     * @param hits the hits of the search
+     */
+    public void put(String session, String search, Hits hits) {
+        if (!isEnabled() || hits.generation == Long.MIN_VALUE
+                || hits.ids.length > MAX_HITS) {
+            return;
+        }
+        try {
+            sessions.get(session).put(search, hits);
+        } catch (ExecutionException e) {
+            /* cannot occur since the loader does not throw */
+        }
+    }
+
+    /**
+     * Drops the searches of all sessions.
+     */
+    public void invalidate() {
+        sessions.invalidateAll();
+    }
+}
@@ -53,8 +53,6 @@ public class Union extends SearchAction {
         rvA = (List<IObject>) a.doWork(session, sf);
         b.chainedSearch(rvA);
         rvB = (List<IObject>) b.doWork(session, sf);
-        rvA.addAll(rvB);
-
-        return rvA;
+        return IdSet.union(rvA, rvB);
     }
 }
@@ -7,15 +7,18 @@ package ome.services.sessions;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 import net.sf.ehcache.Ehcache;
@@ -23,6 +26,7 @@ import net.sf.ehcache.Element;
 
 import ome.model.IObject;
 import ome.system.EventContext;
+import ome.api.IQuery;
 import ome.api.local.LocalAdmin;
 import ome.conditions.ApiUsageException;
 import ome.conditions.AuthenticationException;
@@ -50,6 +54,7 @@ import ome.services.messages.DestroySessionMessage;
 import ome.services.sessions.events.ChangeSecurityContextEvent;
 import ome.services.sessions.events.UserGroupUpdateEvent;
 import ome.services.sessions.state.SessionCache;
+import ome.services.sessions.state.SessionSnapshot;
 import ome.services.sessions.stats.CounterFactory;
 import ome.services.sessions.stats.SessionStats;
 import ome.services.util.Executor;
@@ -62,6 +67,8 @@ import ome.system.ServiceFactory;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
+import org.perf4j.StopWatch;
+import org.perf4j.slf4j.Slf4JStopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
@@ -91,13 +98,30 @@ import com.google.common.collect.MapMaker;
  * @author Josh Moore, josh at glencoesoftware.com
  * @since 3.0-Beta3
  */
-public class SessionManagerImpl implements SessionManager, SessionCache.StaleCacheListener,
+public class SessionManagerImpl implements SessionManager, SessionCache.BatchStaleCacheListener,
         ApplicationContextAware, ApplicationListener<ApplicationEvent> {
 
     public final static String GROUP_SUDO_NS = "openmicroscopy.org/security/group-sudo";
 
     private final static Logger log = LoggerFactory.getLogger(SessionManagerImpl.class);
 
+    /**
+     * Bulk form of {@link LocalAdmin#getMemberOfGroupIds(Experimenter)},
+     * {@link LocalAdmin#getLeaderOfGroupIds(Experimenter)} and
+     * {@link LocalAdmin#getUserRoles(Experimenter)}: the group id, owner flag
+     * and group name of each membership of the users, in the same order.
+     */
+    private final static String MEMBERSHIP_QUERY =
+            "SELECT e.id, m.parent.id, m.owner, m.parent.name " +
+            "FROM Experimenter e JOIN e.groupExperimenterMap m " +
+            "WHERE e.id IN (:ids) ORDER BY e.id, index(m)";
+
+    /**
+     * Number of sessions from the {@link SessionSnapshot} validated and
+     * restored with each set of queries.
+     */
+    private final static int RESTORE_BATCH_SIZE = 500;
+
     /**
      * The id of this session manager, used to identify its own actions. This
      * value may be overwritten by an injector with a value which is used
@@ -119,6 +143,7 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
     protected CounterFactory factory;
     protected boolean readOnly = false;
     protected SessionProvider sessionProvider;
+    protected SessionSnapshot snapshot;
 
     // Local state
 
@@ -136,6 +161,12 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
      */
     protected SessionContext internalSession;
 
+    /**
+     * Sessions read from {@link #snapshot} at startup which have not yet been
+     * restored, or null.
+     */
+    private volatile Map<String, SessionSnapshot.Entry> pendingRestore;
+
     // ~ Injectors
     // =========================================================================
 
@@ -193,6 +224,15 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         this.readOnly = readOnly.isReadOnlyDb();
     }
 
+    /**
+     * Injects the snapshot to which live sessions are written by
+     * {@link #writeSnapshot()} and from which they are restored after a
+     * restart.
+     */
+    public void setSessionSnapshot(SessionSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
     public void setSessionProvider(SessionProvider sessionProvider) {
         this.sessionProvider = sessionProvider;
     }
@@ -214,6 +254,7 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
             session = sessionProvider.executeInternalSession(internal_uuid, session);
             internalSession = new InternalSessionContext(session, LightAdminPrivileges.getAllPrivileges(), roles);
             cache.putSession(internal_uuid, internalSession);
+            readSnapshot();
         } catch (UncategorizedSQLException uncat) {
             log.warn("Assuming that this is read-only");
         } catch (DataAccessException dataAccess) {
@@ -271,6 +312,7 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
 
         // If credentials exist as session, then return that
         if (request.credentials != null) {
+            restoreSnapshot(request.credentials);
             try {
                 SessionContext context = cache
                         .getSessionContext(request.credentials);
@@ -350,6 +392,7 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         }
 
         // If username exists as session, then return that
+        restoreSnapshot(principal.getName());
         try {
             SessionContext context = cache.getSessionContext(principal.getName());
             if (context != null) {
@@ -1082,6 +1125,235 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         return target;
     }
 
+    // Snapshot
+    // =========================================================================
+
+    /**
+     * Writes the live sessions, and those of the previous snapshot which have
+     * not been restored yet, to the {@link SessionSnapshot} if one is
+     * configured. Called periodically and on shutdown.
+     */
+    public void writeSnapshot() {
+        if (snapshot == null || !snapshot.isEnabled()) {
+            return;
+        }
+        final Map<String, SessionSnapshot.Entry> entries =
+                new LinkedHashMap<String, SessionSnapshot.Entry>();
+        final Map<String, SessionSnapshot.Entry> pending = pendingRestore;
+        if (pending != null) {
+            entries.putAll(pending);
+        }
+        for (final SessionSnapshot.Entry entry : cache.getSnapshotEntries()) {
+            if (!entry.uuid.equals(internal_uuid)) {
+                entries.put(entry.uuid, entry);
+            }
+        }
+        snapshot.write(new ArrayList<SessionSnapshot.Entry>(entries.values()));
+    }
+
+    /**
+     * Reads the {@link SessionSnapshot} written before the last shutdown and
+     * starts restoring its sessions in the background. A client which
+     * returns to one of them before then has only its own session restored.
+     */
+    private void readSnapshot() {
+        if (snapshot == null || !snapshot.isEnabled()) {
+            return;
+        }
+        final Map<String, SessionSnapshot.Entry> pending =
+                new ConcurrentHashMap<String, SessionSnapshot.Entry>();
+        for (final SessionSnapshot.Entry entry : snapshot.read()) {
+            pending.put(entry.uuid, entry);
+        }
+        if (!pending.isEmpty()) {
+            log.info("Read {} session(s) to restore from snapshot", pending.size());
+            pendingRestore = pending;
+            executor.submit(Priority.SYSTEM, new Callable<Object>() {
+                public Object call() {
+                    restoreSnapshot(pending);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * If the given session is in the snapshot and not yet restored, validates
+     * it against the database and puts it into the cache if still valid. Only
+     * the one session is looked up so that a client does not wait on the
+     * background restore of the others, nor on other clients.
+     */
+    private void restoreSnapshot(String uuid) {
+        final Map<String, SessionSnapshot.Entry> pending = pendingRestore;
+        if (uuid == null || pending == null) {
+            return;
+        }
+        final SessionSnapshot.Entry entry = pending.get(uuid);
+        if (entry == null) {
+            return;
+        }
+        try {
+            executeRestore(Collections.singletonList(entry));
+        } catch (RuntimeException e) {
+            log.warn("Failed to restore session from snapshot", e);
+        }
+        pending.remove(uuid);
+    }
+
+    /**
+     * Validates all the sessions of the snapshot against the database in
+     * batches and puts those which are still valid into the cache. Sessions
+     * already restored on demand are skipped.
+     */
+    private void restoreSnapshot(Map<String, SessionSnapshot.Entry> pending) {
+        final List<SessionSnapshot.Entry> entries =
+                new ArrayList<SessionSnapshot.Entry>(pending.values());
+        final StopWatch sw = new Slf4JStopWatch("omero.sessions.restore");
+        int restored = 0;
+        try {
+            for (int i = 0; i < entries.size(); i += RESTORE_BATCH_SIZE) {
+                final List<SessionSnapshot.Entry> batch =
+                        new ArrayList<SessionSnapshot.Entry>(RESTORE_BATCH_SIZE);
+                for (final SessionSnapshot.Entry entry : entries.subList(i,
+                        Math.min(i + RESTORE_BATCH_SIZE, entries.size()))) {
+                    if (pending.containsKey(entry.uuid)) {
+                        batch.add(entry);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                try {
+                    restored += executeRestore(batch);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to restore " + batch.size()
+                            + " session(s) from snapshot", e);
+                }
+                for (final SessionSnapshot.Entry entry : batch) {
+                    pending.remove(entry.uuid);
+                }
+            }
+        } finally {
+            pendingRestore = null;
+            sw.stop();
+        }
+        log.info(String.format(
+                "Restored %s of %s session(s) from snapshot in %s ms.",
+                restored, entries.size(), sw.getElapsedTime()));
+    }
+
+    /**
+     * Validates a batch of snapshot entries with a few set-based queries and
+     * puts the sessions which are still open, and whose users are still
+     * members of their groups, into the cache.
+     * @return the number of sessions restored
+     */
+    private int executeRestore(final List<SessionSnapshot.Entry> batch) {
+        final Map<String, List<Object>> lookups = executor.execute(asroot,
+                new Executor.SimpleWork<Map<String, List<Object>>>(this, "restoreSnapshot", batch.size()) {
+            @Transactional(readOnly = true)
+            public Map<String, List<Object>> doWork(org.hibernate.Session __s,
+                    ServiceFactory sf) {
+                final IQuery iQuery = sf.getQueryService();
+                final Set<Long> sessionIds = new HashSet<Long>();
+                final Set<Long> userIds = new HashSet<Long>();
+                final Set<Long> groupIds = new HashSet<Long>();
+                for (final SessionSnapshot.Entry entry : batch) {
+                    sessionIds.add(entry.sessionId);
+                    userIds.add(entry.userId);
+                    groupIds.add(entry.groupId);
+                }
+                final Map<Long, Session> sessions = new HashMap<Long, Session>();
+                for (final Session s : iQuery.<Session>findAllByQuery(
+                        "SELECT DISTINCT s FROM Session s " +
+                        "LEFT OUTER JOIN FETCH s.sudoer " +
+                        "LEFT OUTER JOIN FETCH s.annotationLinks l " +
+                        "LEFT OUTER JOIN FETCH l.child " +
+                        "WHERE s.id IN (:ids) AND s.closed IS NULL",
+                        new Parameters().addIds(sessionIds))) {
+                    sessions.put(s.getId(), s);
+                    if (s.getSudoer() != null) {
+                        userIds.add(s.getSudoer().getId());
+                    }
+                }
+                final Map<Long, Experimenter> users = new HashMap<Long, Experimenter>();
+                for (final Experimenter e : iQuery.<Experimenter>findAllByQuery(
+                        "SELECT e FROM Experimenter e WHERE e.id IN (:ids)",
+                        new Parameters().addIds(userIds))) {
+                    users.put(e.getId(), e);
+                }
+                final Map<Long, ExperimenterGroup> groups = new HashMap<Long, ExperimenterGroup>();
+                for (final ExperimenterGroup g : iQuery.<ExperimenterGroup>findAllByQuery(
+                        "SELECT g FROM ExperimenterGroup g WHERE g.id IN (:ids)",
+                        new Parameters().addIds(groupIds))) {
+                    groups.put(g.getId(), g);
+                }
+                final Map<Long, List<Long>> memberOf = new HashMap<Long, List<Long>>();
+                final Map<Long, List<Long>> leaderOf = new HashMap<Long, List<Long>>();
+                final Map<Long, List<String>> userRoles = new HashMap<Long, List<String>>();
+                for (final Object[] row : iQuery.projection(MEMBERSHIP_QUERY,
+                        new Parameters().addIds(userIds))) {
+                    final Long userId = (Long) row[0];
+                    if (!memberOf.containsKey(userId)) {
+                        memberOf.put(userId, new ArrayList<Long>());
+                        leaderOf.put(userId, new ArrayList<Long>());
+                        userRoles.put(userId, new ArrayList<String>());
+                    }
+                    memberOf.get(userId).add((Long) row[1]);
+                    if (Boolean.TRUE.equals(row[2])) {
+                        leaderOf.get(userId).add((Long) row[1]);
+                    }
+                    userRoles.get(userId).add((String) row[3]);
+                }
+
+                final Long systemGroupId = roles.getSystemGroupId();
+                final Map<String, List<Object>> lookups = new HashMap<String, List<Object>>();
+                for (final SessionSnapshot.Entry entry : batch) {
+                    final Session s = sessions.get(entry.sessionId);
+                    final Experimenter exp = users.get(entry.userId);
+                    final ExperimenterGroup grp = groups.get(entry.groupId);
+                    final List<Long> groupsOfUser = memberOf.get(entry.userId);
+                    if (s == null || s instanceof Share || exp == null || grp == null
+                            || groupsOfUser == null || !entry.uuid.equals(s.getUuid())
+                            || s.getDetails().getOwner() == null
+                            || !exp.getId().equals(s.getDetails().getOwner().getId())
+                            || !groupsOfUser.contains(grp.getId())) {
+                        continue;
+                    }
+                    // As in executeSessionContextLookup
+                    boolean hasAdminPrivileges = groupsOfUser.contains(systemGroupId);
+                    if (s.getSudoer() != null) {
+                        final List<Long> groupsOfSudoer = memberOf.get(s.getSudoer().getId());
+                        hasAdminPrivileges = hasAdminPrivileges && groupsOfSudoer != null
+                                && groupsOfSudoer.contains(systemGroupId);
+                    }
+                    final List<Object> list = new ArrayList<Object>();
+                    list.add(exp);
+                    list.add(grp);
+                    list.add(hasAdminPrivileges ? adminPrivileges.getSessionPrivileges(s) : Collections.emptySet());
+                    list.add(groupsOfUser);
+                    list.add(leaderOf.get(entry.userId));
+                    list.add(userRoles.get(entry.userId));
+                    list.add(new Principal(exp.getOmeName(), grp.getName(), entry.eventType));
+                    list.add(s);
+                    lookups.put(entry.uuid, list);
+                }
+                return lookups;
+            }
+        });
+
+        int restored = 0;
+        for (final SessionSnapshot.Entry entry : batch) {
+            final List<Object> list = lookups.get(entry.uuid);
+            if (list != null && cache.putRestoredSession(entry.uuid,
+                    createSessionContext(list, null), entry.lastAccessTime,
+                    entry.hitCount)) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
     // StaleCacheListener
     // =========================================================================
 
@@ -1117,6 +1389,106 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         return createSessionContext(list, ctx);
     }
 
+    /**
+     * Summarizes with a few set-based queries the state read by
+     * {@link #reload(SessionContext)} for a batch of sessions: the session
+     * row and its annotations, the user and group names, the group
+     * permissions and the user's memberships. Shares, sudo sessions and the
+     * sessions of members of the system group, whose administrator privileges
+     * are not summarized, have no fingerprint and so are always reloaded, as
+     * are sessions which are missing any of their rows.
+     */
+    @Override
+    public Map<String, Object> fingerprint(final List<SessionContext> contexts) {
+        final Map<Long, SessionContext> bySessionId = new HashMap<Long, SessionContext>();
+        final Set<Long> userIds = new HashSet<Long>();
+        final Set<Long> groupIds = new HashSet<Long>();
+        for (final SessionContext ctx : contexts) {
+            final Session session = ctx.getSession();
+            if (session instanceof Share || ctx.getCurrentSudoerId() != null
+                    || session.getId() == null) {
+                continue;
+            }
+            bySessionId.put(session.getId(), ctx);
+            userIds.add(ctx.getCurrentUserId());
+            groupIds.add(ctx.getCurrentGroupId());
+        }
+        if (bySessionId.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return executor.execute(asroot, new Executor.SimpleWork<Map<String, Object>>(
+                this, "fingerprint", bySessionId.size()) {
+            @Transactional(readOnly = true)
+            public Map<String, Object> doWork(org.hibernate.Session session,
+                    ServiceFactory sf) {
+                final IQuery iQuery = sf.getQueryService();
+                final Map<Long, List<Object>> sessions = rowsById(iQuery.projection(
+                        "SELECT s.id, s.timeToIdle, s.timeToLive, s.closed, s.defaultEventType, " +
+                        "s.userAgent, s.message FROM Session s WHERE s.id IN (:ids)",
+                        new Parameters().addIds(bySessionId.keySet())));
+                final Map<Long, List<Object>> annotations = rowsById(iQuery.projection(
+                        "SELECT l.parent.id, l.child.id FROM SessionAnnotationLink l " +
+                        "WHERE l.parent.id IN (:ids) ORDER BY l.parent.id, l.child.id",
+                        new Parameters().addIds(bySessionId.keySet())));
+                final Map<Long, List<Object>> users = rowsById(iQuery.projection(
+                        "SELECT e.id, e.omeName FROM Experimenter e WHERE e.id IN (:ids)",
+                        new Parameters().addIds(userIds)));
+                final Map<Long, List<Object>> groups = rowsById(iQuery.projection(
+                        "SELECT g.id, g.name, g.details.permissions FROM ExperimenterGroup g " +
+                        "WHERE g.id IN (:ids)",
+                        new Parameters().addIds(groupIds)));
+                final Map<Long, List<Object>> memberships = rowsById(iQuery.projection(
+                        MEMBERSHIP_QUERY, new Parameters().addIds(userIds)));
+                final Long systemGroupId = roles.getSystemGroupId();
+                final Map<String, Object> fingerprints = new HashMap<String, Object>();
+                for (final Map.Entry<Long, SessionContext> entry : bySessionId.entrySet()) {
+                    final SessionContext ctx = entry.getValue();
+                    final List<Object> sessionRow = sessions.get(entry.getKey());
+                    final List<Object> userRow = users.get(ctx.getCurrentUserId());
+                    final List<Object> groupRow = groups.get(ctx.getCurrentGroupId());
+                    final List<Object> membershipRows = memberships.get(ctx.getCurrentUserId());
+                    if (sessionRow == null || userRow == null || groupRow == null
+                            || membershipRows == null || membershipRows.contains(systemGroupId)) {
+                        continue;
+                    }
+                    final List<Object> annotationRows = annotations.get(entry.getKey());
+                    fingerprints.put(ctx.getSession().getUuid(), Arrays.asList(sessionRow,
+                            annotationRows == null ? Collections.emptyList() : annotationRows,
+                            userRow, groupRow, membershipRows, ctx.getCurrentEventType()));
+                }
+                return fingerprints;
+            }
+        });
+    }
+
+    /**
+     * Groups the values of projected rows by the identifier in their first
+     * column. Permissions are replaced by their string form so that the
+     * values may be compared with {@link Object#equals(Object)}.
+     */
+    private static Map<Long, List<Object>> rowsById(List<Object[]> rows) {
+        final Map<Long, List<Object>> byId = new HashMap<Long, List<Object>>();
+        for (final Object[] row : rows) {
+            final Long id = (Long) row[0];
+            List<Object> values = byId.get(id);
+            if (values == null) {
+                values = new ArrayList<Object>();
+                byId.put(id, values);
+            }
+            for (int i = 1; i < row.length; i++) {
+                final Object value = row[i];
+                if (value instanceof Permissions) {
+                    values.add(value.toString());
+                } else if (value instanceof IObject) {
+                    values.add(((IObject) value).getId());
+                } else {
+                    values.add(value);
+                }
+            }
+        }
+        return byId;
+    }
+
     // Executor methods
     // =========================================================================
 
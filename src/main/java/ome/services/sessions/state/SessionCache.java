@@ -5,11 +5,17 @@
 package ome.services.sessions.state;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import net.sf.ehcache.CacheManager;
@@ -18,6 +24,7 @@ import ome.conditions.ApiUsageException;
 import ome.conditions.RemovedSessionException;
 import ome.conditions.SessionTimeoutException;
 import ome.model.meta.Session;
+import ome.model.meta.Share;
 import ome.services.messages.DestroySessionMessage;
 import ome.services.sessions.SessionCallback;
 import ome.services.sessions.SessionContext;
@@ -69,12 +76,71 @@ public class SessionCache implements ApplicationContextAware {
         SessionContext reload(SessionContext context);
     }
 
+    /**
+     * Optional extension of {@link StaleCacheListener} which allows
+     * {@link SessionCache#doUpdate()} to check many sessions at once and to
+     * reload only those whose state has changed.
+     */
+    public interface BatchStaleCacheListener extends StaleCacheListener {
+
+        /**
+         * Method called for batches of active sessions in the cache. Returns
+         * for each session a value which changes whenever the state from which
+         * its {@link SessionContext} is created changes, to be compared with
+         * {@link Object#equals(Object)} against the value from the previous
+         * call. Sessions without a value, for instance because their state
+         * cannot be summarized, are reloaded via
+         * {@link #reload(SessionContext)}.
+         *
+         * Any runtime exception can be thrown to show that the batch cannot
+         * be checked, in which case each session is reloaded.
+         * @return the values mapped from session uuid
+         */
+        Map<String, Object> fingerprint(List<SessionContext> contexts);
+    }
+
+    /**
+     * Access information of a session, shared by all the {@link Data}
+     * instances of the session and updated in place so that an access neither
+     * replaces the session's entry nor allocates.
+     */
+    private static class Access {
+
+        final String uuid;
+
+        final AtomicLong lastAccessTime;
+
+        final AtomicLong hitCount = new AtomicLong(1);
+
+        Access(String uuid) {
+            this(uuid, System.currentTimeMillis(), 1);
+        }
+
+        Access(String uuid, long lastAccessTime, long hitCount) {
+            this.uuid = uuid;
+            this.lastAccessTime = new AtomicLong(lastAccessTime);
+            this.hitCount.set(hitCount);
+        }
+
+        /**
+         * Increments {@link #hitCount} by one and, if reset is true, sets
+         * {@link #lastAccessTime} to the current time.
+         */
+        Access touch(boolean reset) {
+            if (reset) {
+                lastAccessTime.set(System.currentTimeMillis());
+            }
+            hitCount.incrementAndGet();
+            return this;
+        }
+    }
+
     /**
      * Container which can be put in a single {@link AtomicReference} instance.
-     * Contains all the data for a single session immutably. Therefore any
-     * thread that manages to get access to this instance can work with this
-     * data even if another thread is currently in the process of removing this
-     * from the map.
+     * Contains all the data for a single session immutably, except for its
+     * {@link Access} information. Therefore any thread that manages to get
+     * access to this instance can work with this data even if another thread
+     * is currently in the process of removing this from the map.
      */
     private static class Data {
 
@@ -92,53 +158,83 @@ public class SessionCache implements ApplicationContextAware {
         final AtomicInteger error = new AtomicInteger(0);
 
         final SessionContext sessionContext;
-        final long lastAccessTime;
-        final long hitCount;
 
-        /**
-         * Initial creation of a Data instance when a new session is
-         * added to the cache.
+        final Access access;
+
+        /*
+         * Copied from the session so that checking for a timeout need not
+         * unbox them on each call.
          */
-        Data(SessionContext sc) {
-            this(sc, System.currentTimeMillis(), 1);
-        }
+        final long started;
+        final long timeToIdle;
+        final long timeToLive;
 
         /**
-         * Copy constructor which uses the current time for {@link #lastAccessTime} and
-         * increments {@link #hitCount} by one. Used when updating the access
-         * time for a session.
+         * Value from {@link BatchStaleCacheListener#fingerprint(List)} when
+         * {@link #sessionContext} was last reloaded, or null.
          */
-        Data(Data old) {
-            this(old, true);
-        }
+        final Object fingerprint;
 
         /**
-         * Copy constructor which uses either the current time for {@link #lastAccessTime}
-         * (if reset is true) or the previous lastAccessTime (if reset is false); and
-         * increments {@link #hitCount} by one. Used when reloading the session.
+         * Initial creation of a Data instance when a new session is
+         * added to the cache.
          */
-        Data(Data old, boolean reset) {
-            this(old, old.sessionContext, reset);
+        Data(String uuid, SessionContext sc) {
+            this(sc, new Access(uuid), null);
         }
 
         /**
-         * Like {@link Data#Data(Data, boolean)} but allows setting the
-         * {@link SessionContext} which should be stored in the new instance.
-         * This is used on reload. See {@link SessionCache#doUpdate()}.
+         * Copy constructor which allows setting the {@link SessionContext}
+         * which should be stored in the new instance and increments the hit
+         * count, also using the current time as last access time if reset is
+         * true. This is used on reload. See {@link SessionCache#doUpdate()}.
          * @param old
          * @param ctx
          * @param reset
          */
         Data(Data old, SessionContext ctx, boolean reset) {
-            this(ctx, reset ? System.currentTimeMillis() : old.lastAccessTime, old.hitCount+1);
+            // A replaced context is no longer known to match the fingerprint
+            this(ctx, old.access.touch(reset),
+                    ctx == old.sessionContext ? old.fingerprint : null);
+        }
+
+        /**
+         * Like {@link Data#Data(Data, SessionContext, boolean)} without reset
+         * but also records the fingerprint of the reloaded state.
+         */
+        Data(Data old, SessionContext ctx, Object fingerprint) {
+            this(ctx, old.access.touch(false), fingerprint);
         }
 
-        Data(SessionContext sc, long last, long count) {
+        Data(SessionContext sc, Access access, Object fingerprint) {
+            final Session session = sc.getSession();
             this.sessionContext = sc;
-            this.lastAccessTime = last;
-            this.hitCount = count;
+            this.access = access;
+            this.started = session.getStarted().getTime();
+            this.timeToIdle = session.getTimeToIdle() == null ? 0 : session.getTimeToIdle();
+            this.timeToLive = session.getTimeToLive() == null ? 0 : session.getTimeToLive();
+            this.fingerprint = fingerprint;
             // clear context
-            sc.getSession().getDetails().setContexts(null);
+            session.getDetails().setContexts(null);
+        }
+
+        /**
+         * @return the time after which the session times out, or
+         * {@link Long#MAX_VALUE} if it never does
+         */
+        long deadline() {
+            long deadline = Long.MAX_VALUE;
+            if (0 < timeToLive) {
+                deadline = started + timeToLive;
+            }
+            if (0 < timeToIdle) {
+                long lastAccess = access.lastAccessTime.get();
+                if (lastAccess == 0) {
+                    lastAccess = started;
+                }
+                deadline = Math.min(deadline, lastAccess + timeToIdle);
+            }
+            return deadline;
         }
 
     }
@@ -212,10 +308,22 @@ public class SessionCache implements ApplicationContextAware {
 
     }
 
+    /**
+     * Duration in milliseconds of the ticks of {@link #expiry}.
+     */
+    private static final long EXPIRY_TICK = 1000;
+
     /**
      *
      */
-    private final Map<String, Data> sessions;
+    private final ConcurrentMap<String, Data> sessions;
+
+    /**
+     * Finds the sessions which may have timed out for
+     * {@link #expireSessions()} without scanning {@link #sessions}.
+     */
+    private final TimerWheel<Access> expiry =
+            new TimerWheel<Access>(EXPIRY_TICK, System.currentTimeMillis());
 
     /**
      *
@@ -229,6 +337,12 @@ public class SessionCache implements ApplicationContextAware {
      */
     private long forceUpdateInterval = 1800000;
 
+    /**
+     * Number of sessions passed at once to
+     * {@link BatchStaleCacheListener#fingerprint(List)}.
+     */
+    private int syncBatchSize = 500;
+
     /**
      * Injected {@link CacheManager} used to create various caches.
      */
@@ -280,6 +394,14 @@ public class SessionCache implements ApplicationContextAware {
         this.forceUpdateInterval = milliseconds;
     }
 
+    /**
+     * Inject the number of sessions checked at once on update if the
+     * {@link StaleCacheListener} is a {@link BatchStaleCacheListener}.
+     */
+    public void setSyncBatchSize(int syncBatchSize) {
+        this.syncBatchSize = Math.max(1, syncBatchSize);
+    }
+
     // Accessors
     // ========================================================================
 
@@ -313,13 +435,61 @@ public class SessionCache implements ApplicationContextAware {
      * therefore usage should be proceeded by a check.
      */
     public void putSession(String uuid, SessionContext sessionContext) {
-        Data data = new Data(sessionContext);
+        Data data = new Data(uuid, sessionContext);
         this.sessions.put(uuid, data);
+        scheduleExpiry(data);
+        final StopWatch sw = new Slf4JStopWatch("omero.session");
+        addSessionCallback(uuid, new SessionCallback.SimpleCloseCallback(){
+            public void close() {
+                sw.stop();
+            }});
+    }
+
+    /**
+     * Puts a session restored from a {@link SessionSnapshot} into the cache
+     * with its previous access information, unless the session is already
+     * present. The usual timeouts apply from the previous access time.
+     * @return if the session was added
+     */
+    public boolean putRestoredSession(String uuid, SessionContext sessionContext,
+            long lastAccessTime, long hitCount) {
+        Data data = new Data(sessionContext, new Access(uuid, lastAccessTime,
+                hitCount), null);
+        if (this.sessions.putIfAbsent(uuid, data) != null) {
+            return false;
+        }
+        scheduleExpiry(data);
         final StopWatch sw = new Slf4JStopWatch("omero.session");
         addSessionCallback(uuid, new SessionCallback.SimpleCloseCallback(){
             public void close() {
                 sw.stop();
             }});
+        return true;
+    }
+
+    /**
+     * Lists the sessions which may be written to a {@link SessionSnapshot}:
+     * those which have not timed out, excluding shares.
+     */
+    public List<SessionSnapshot.Entry> getSnapshotEntries() {
+        final List<SessionSnapshot.Entry> entries =
+                new ArrayList<SessionSnapshot.Entry>(sessions.size());
+        for (String uuid : sessions.keySet()) {
+            final Data data = getDataNullOrThrowOnTimeout(uuid, false);
+            if (data == null) {
+                continue;
+            }
+            final SessionContext ctx = data.sessionContext;
+            final Session session = ctx.getSession();
+            if (session instanceof Share || session.getId() == null) {
+                continue;
+            }
+            entries.add(new SessionSnapshot.Entry(uuid, session.getId(),
+                    ctx.getCurrentUserId(), ctx.getCurrentGroupId(),
+                    ctx.getCurrentEventType(), data.access.lastAccessTime.get(),
+                    data.access.hitCount.get()));
+        }
+        return entries;
     }
 
     /**
@@ -343,6 +513,49 @@ public class SessionCache implements ApplicationContextAware {
         // Adding and upping hit information.
         Data fresh = new Data(data, replacement, false);
         this.sessions.put(uuid, fresh);
+        if (fresh.deadline() < data.deadline()) {
+            scheduleExpiry(fresh);
+        }
+    }
+
+    /**
+     * Schedules the check of a session for {@link #expireSessions()} unless
+     * it never times out.
+     */
+    private void scheduleExpiry(Data data) {
+        final long deadline = data.deadline();
+        if (deadline != Long.MAX_VALUE) {
+            // Timeouts are only reached once exceeded.
+            expiry.schedule(data.access, deadline + 1);
+        }
+    }
+
+    /**
+     * Removes the sessions which have timed out since the last call, as
+     * {@link #doUpdate()} would. Only the sessions whose deadline has been
+     * reached are checked and those which have been accessed in the meantime
+     * are rescheduled for their new deadline. Intended to be called
+     * frequently by a background thread.
+     */
+    public void expireSessions() {
+        final List<Access> due = expiry.advance(System.currentTimeMillis());
+        int expired = 0;
+        for (final Access access : due) {
+            final Data data = sessions.get(access.uuid);
+            if (data == null || data.access != access) {
+                continue; // Removed or replaced since scheduled
+            }
+            if (getDataNullOrThrowOnTimeout(access.uuid, false) == null) {
+                internalRemove(access.uuid, "Timeout");
+                expired++;
+            } else {
+                scheduleExpiry(data);
+            }
+        }
+        if (expired > 0) {
+            log.info(String.format("Expired %s of %s session(s) checked.",
+                    expired, due.size()));
+        }
     }
 
     /**
@@ -369,7 +582,7 @@ public class SessionCache implements ApplicationContextAware {
 
         if (!quietly) {
             // Up'ing access time
-            this.sessions.put(uuid, new Data(data));
+            data.access.touch(true);
         }
         return data.sessionContext;
     }
@@ -391,14 +604,14 @@ public class SessionCache implements ApplicationContextAware {
 
         if (!quietly) {
             // Up'ing access time
-            this.sessions.put(uuid, new Data(data));
+            data.access.touch(true);
         }
 
         return new ImmutableMap.Builder<String, Object>()
             .put("class", getClass().getName())
             .put("sessionContext", data.sessionContext)
-            .put("hitCount", data.hitCount)
-            .put("lastAccessTime", data.lastAccessTime)
+            .put("hitCount", data.access.hitCount.get())
+            .put("lastAccessTime", data.access.lastAccessTime.get())
             // .put("error", data.error.get())
             .build();
     }
@@ -435,15 +648,13 @@ public class SessionCache implements ApplicationContextAware {
             }
         }
 
-        long lastAccess = data.lastAccessTime;
-        long hits = data.hitCount;
+        long lastAccess = data.access.lastAccessTime.get();
 
         // Get session info
-        SessionContext ctx = data.sessionContext;
         long now = System.currentTimeMillis();
-        long start = ctx.getSession().getStarted().getTime();
-        long timeToIdle = ctx.getSession().getTimeToIdle();
-        long timeToLive = ctx.getSession().getTimeToLive();
+        long start = data.started;
+        long timeToIdle = data.timeToIdle;
+        long timeToLive = data.timeToLive;
 
         // If never accessed, used creation time
         if (lastAccess == 0) {
@@ -456,7 +667,9 @@ public class SessionCache implements ApplicationContextAware {
 
         // Do comparisons if timeTo{} is non-0
         if (0 < timeToLive && timeToLive < alive) {
-            String reason = reason("timeToLive", lastAccess, hits, start,
+            SessionContext ctx = data.sessionContext;
+            String reason = reason("timeToLive", lastAccess,
+                    data.access.hitCount.get(), start,
                     timeToLive, (alive - timeToLive));
             if (strict) {
                 throw new SessionTimeoutException(reason, ctx);
@@ -464,7 +677,9 @@ public class SessionCache implements ApplicationContextAware {
                 return null;
             }
         } else if (0 < timeToIdle && timeToIdle < idle) {
-            String reason = reason("timeToIdle", lastAccess, hits, start,
+            SessionContext ctx = data.sessionContext;
+            String reason = reason("timeToIdle", lastAccess,
+                    data.access.hitCount.get(), start,
                     timeToIdle, (idle - timeToIdle));
             if (strict) {
                 throw new SessionTimeoutException(reason, ctx);
@@ -623,8 +838,28 @@ public class SessionCache implements ApplicationContextAware {
             final Set<String> ids = sessions.keySet();
             log.info("Synchronizing session cache. Count = " + ids.size());
             final StopWatch sw = new Slf4JStopWatch();
-            for (String id : ids) {
-                reload(id);
+            final StaleCacheListener listener = staleCacheListener.get();
+            if (listener instanceof BatchStaleCacheListener) {
+                final List<String> batch = new ArrayList<String>(syncBatchSize);
+                int reloaded = 0;
+                for (String id : ids) {
+                    batch.add(id);
+                    if (batch.size() == syncBatchSize) {
+                        reloaded += reloadChanged(
+                                (BatchStaleCacheListener) listener, batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    reloaded += reloadChanged(
+                            (BatchStaleCacheListener) listener, batch);
+                }
+                log.info(String.format("Reloaded %s changed session(s).",
+                        reloaded));
+            } else {
+                for (String id : ids) {
+                    reload(id);
+                }
             }
 
             sw.stop("omero.sessions.synchronization");
@@ -647,6 +882,69 @@ public class SessionCache implements ApplicationContextAware {
      * @see <a href="https://trac.openmicroscopy.org/ome/ticket/5849">ticket:5849</a>
      */
     public void reload(String id) {
+        reload(id, null);
+    }
+
+    /**
+     * Checks a batch of sessions with a single call to the listener, removing
+     * those which have timed out and reloading those whose fingerprint has
+     * changed or is unknown.
+     * @return the number of sessions reloaded
+     */
+    private int reloadChanged(BatchStaleCacheListener listener,
+            List<String> ids) {
+
+        final Map<String, SessionContext> contexts =
+                new LinkedHashMap<String, SessionContext>();
+        for (String id : ids) {
+            try {
+                Data data = getDataNullOrThrowOnTimeout(id, false);
+                if (data == null) {
+                    internalRemove(id, "Timeout");
+                } else {
+                    contexts.put(id, data.sessionContext);
+                }
+            } catch (Exception e) {
+                // As in reload(String), no DB calls are made.
+                log.warn("Removing session on get error of " + id, e);
+                internalRemove(id, "Get error");
+            }
+        }
+        if (contexts.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, Object> fingerprints;
+        try {
+            fingerprints = listener.fingerprint(
+                    new ArrayList<SessionContext>(contexts.values()));
+        } catch (Exception e) {
+            log.warn("Could not check batch of " + contexts.size()
+                    + " sessions, reloading each", e);
+            fingerprints = Collections.emptyMap();
+        }
+
+        int reloaded = 0;
+        for (String id : contexts.keySet()) {
+            final Object fingerprint = fingerprints.get(id);
+            final Data data = sessions.get(id);
+            if (data == null) {
+                continue; // Removed meanwhile
+            }
+            if (fingerprint != null && fingerprint.equals(data.fingerprint)) {
+                continue; // Unchanged
+            }
+            reload(id, fingerprint);
+            reloaded++;
+        }
+        return reloaded;
+    }
+
+    /**
+     * Reloads a session, recording the given fingerprint of its state with
+     * the replacement.
+     */
+    private void reload(String id, Object fingerprint) {
 
         final StaleCacheListener listener = staleCacheListener.get();
         if (listener == null) {
@@ -675,8 +973,14 @@ public class SessionCache implements ApplicationContextAware {
             SessionContext replacement = listener.reload(ctx);
             if (replacement == null) {
                 internalRemove(id, "Replacement null");
-            } else {
+            } else if (fingerprint == null) {
                 refresh(id, data, replacement);
+            } else {
+                Data fresh = new Data(data, replacement, fingerprint);
+                this.sessions.put(id, fresh);
+                if (fresh.deadline() < data.deadline()) {
+                    scheduleExpiry(fresh);
+                }
             }
         } catch (Exception e) {
             // If an exception occurs it MAY be transient, therefore
@@ -0,0 +1,246 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.sessions.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local file holding the live sessions of the {@link SessionCache} so that
+ * after a restart the server may restore them in bulk rather than have each
+ * client's next call miss the cache. Only the identity and access
+ * information of each session is written, never its security context, which
+ * must be validated against the database on restore.
+ * <p>
+ * The file starts with a magic number and a format version and ends with a
+ * CRC-32 of its content; a file which does not match any of these is
+ * ignored. Files are written beside the target and then renamed over it so
+ * that a partially written snapshot is never read. Since the session UUIDs
+ * are credentials, the file is created readable only by its owner.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class SessionSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionSnapshot.class);
+
+    private static final int MAGIC = 0x4f4d5353; // "OMSS"
+
+    private static final int VERSION = 1;
+
+    /**
+     * The state of one session in a snapshot.
+     */
+    public static class Entry {
+
+        public final String uuid;
+
+        public final long sessionId;
+
+        public final long userId;
+
+        public final long groupId;
+
+        public final String eventType;
+
+        public final long lastAccessTime;
+
+        public final long hitCount;
+
+        public Entry(String uuid, long sessionId, long userId, long groupId,
+                String eventType, long lastAccessTime, long hitCount) {
+            this.uuid = uuid;
+            this.sessionId = sessionId;
+            this.userId = userId;
+            this.groupId = groupId;
+            this.eventType = eventType;
+            this.lastAccessTime = lastAccessTime;
+            this.hitCount = hitCount;
+        }
+    }
+
+    /** The snapshot file, or {@code null} if snapshots are disabled. */
+    private final File file;
+
+    /**
+     * Creates a snapshot.
+     * @param path the path of the snapshot file; snapshots are disabled if
+     * empty
+     */
+    public SessionSnapshot(String path) {
+        this.file = StringUtils.isBlank(path) ? null : new File(path.trim());
+    }
+
+    /**
+     * @return if snapshots are enabled
+     */
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Replaces the snapshot file. Failures are logged and otherwise ignored
+     * since snapshots are only an optimization.
+     * @param entries the sessions to write
+     */
+    public synchronized void write(List<Entry> entries) {
+        if (file == null) {
+            return;
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            final File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            final CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(openOwnerOnly(tmp)), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (final Entry entry : entries) {
+                out.writeUTF(entry.uuid);
+                out.writeLong(entry.sessionId);
+                out.writeLong(entry.userId);
+                out.writeLong(entry.groupId);
+                out.writeUTF(entry.eventType == null ? "" : entry.eventType);
+                out.writeLong(entry.lastAccessTime);
+                out.writeLong(entry.hitCount);
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                // Windows does not rename over an existing file.
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + tmp + " to " + file);
+                }
+            }
+            log.debug("Wrote {} session(s) to {}", entries.size(), file);
+        } catch (IOException e) {
+            log.warn("Failed to write session snapshot " + file, e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Creates a file afresh, on POSIX file systems with permissions for only
+     * its owner from the outset so that it is never readable by others.
+     * @param target the file to create
+     * @return a stream to the new file
+     * @throws IOException if the file could not be created
+     */
+    private static OutputStream openOwnerOnly(File target) throws IOException {
+        final Path path = target.toPath();
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            final Set<PosixFilePermission> perms =
+                    PosixFilePermissions.fromString("rw-------");
+            final FileAttribute<Set<PosixFilePermission>> attr =
+                    PosixFilePermissions.asFileAttribute(perms);
+            Files.createFile(path, attr);
+            /* in case the umask removed any */
+            Files.setPosixFilePermissions(path, perms);
+        } else {
+            Files.createFile(path);
+        }
+        return Files.newOutputStream(path, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Reads the snapshot file.
+     * @return the sessions in the file, empty if there is no valid snapshot
+     */
+    public synchronized List<Entry> read() {
+        if (file == null || !file.isFile()) {
+            return Collections.emptyList();
+        }
+        DataInputStream in = null;
+        try {
+            final CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                log.warn("Ignoring session snapshot {}: not a snapshot", file);
+                return Collections.emptyList();
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                log.warn("Ignoring session snapshot {}: version {}", file, version);
+                return Collections.emptyList();
+            }
+            final int count = in.readInt();
+            final List<Entry> entries = new ArrayList<Entry>(Math.min(count, 65536));
+            for (int i = 0; i < count; i++) {
+                final String uuid = in.readUTF();
+                final long sessionId = in.readLong();
+                final long userId = in.readLong();
+                final long groupId = in.readLong();
+                final String eventType = in.readUTF();
+                final long lastAccessTime = in.readLong();
+                final long hitCount = in.readLong();
+                entries.add(new Entry(uuid, sessionId, userId, groupId,
+                        eventType.isEmpty() ? null : eventType, lastAccessTime,
+                        hitCount));
+            }
+            final long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                log.warn("Ignoring session snapshot {}: bad checksum", file);
+                return Collections.emptyList();
+            }
+            return entries;
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable session snapshot " + file, e);
+            return Collections.emptyList();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
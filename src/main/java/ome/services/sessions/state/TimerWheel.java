@@ -0,0 +1,160 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.sessions.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel as used by {@link SessionCache} to find the
+ * sessions which are due to expire. Deadlines are rounded down to ticks and
+ * held in four levels of 64 slots, each slot of a level spanning all the
+ * slots of the level below. Scheduling an item and firing it are constant
+ * time; each item is moved down a level at most three times before it fires.
+ * Deadlines more than 64<sup>4</sup> ticks ahead fire early at the end of the
+ * wheel's span, so the owner must check an item which fires and schedule it
+ * again if it is not yet due.
+ * <p>
+ * Items cannot be cancelled: an owner which drops an item should ignore it
+ * when it fires.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class TimerWheel<T> {
+
+    private static final int BITS = 6;
+
+    private static final int SLOTS = 1 << BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    private static final int LEVELS = 4;
+
+    /** The number of ticks which the wheel spans. */
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    private static final class Node<T> {
+
+        final T item;
+
+        final long tick;
+
+        Node(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+
+    /** The slots of each level, guarded by {@code this}. */
+    private final List<List<Node<T>>> slots;
+
+    /** The next tick to be processed, guarded by {@code this}. */
+    private long current;
+
+    /** The number of scheduled items, guarded by {@code this}. */
+    private int size;
+
+    /**
+     * Creates an empty wheel.
+     * @param tickMillis the duration of a tick in milliseconds
+     * @param nowMillis the current time in milliseconds
+     */
+    public TimerWheel(long tickMillis, long nowMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.current = nowMillis / tickMillis;
+        this.slots = new ArrayList<List<Node<T>>>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<Node<T>>(0));
+        }
+    }
+
+    /**
+     * Schedules an item to be returned by {@link #advance(long)} once the
+     * time reaches its deadline. A deadline in the past fires at the next
+     * advance.
+     * @param item the item
+     * @param deadlineMillis the deadline in milliseconds
+     */
+    public synchronized void schedule(T item, long deadlineMillis) {
+        final long tick = Math.min(Math.max(deadlineMillis / tickMillis,
+                current), current + SPAN - 1);
+        insert(new Node<T>(item, tick));
+        size++;
+    }
+
+    /**
+     * Advances the wheel to the given time.
+     * @param nowMillis the current time in milliseconds
+     * @return the items whose deadlines have been reached, which are no longer
+     * scheduled
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        final long target = nowMillis / tickMillis;
+        if (size == 0) {
+            current = Math.max(current, target + 1);
+            return Collections.emptyList();
+        }
+        final List<T> due = new ArrayList<T>();
+        while (current <= target) {
+            // Move the next span of each level down once the level below has
+            // gone full circle.
+            for (int level = 1; level < LEVELS; level++) {
+                if ((current & ((1L << (BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                cascade(level, (int) ((current >>> (BITS * level)) & MASK));
+            }
+            final List<Node<T>> slot = slots.get((int) (current & MASK));
+            for (final Node<T> node : slot) {
+                due.add(node.item);
+            }
+            size -= slot.size();
+            slot.clear();
+            current++;
+            if (size == 0) {
+                current = Math.max(current, target + 1);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * @return the number of scheduled items
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void cascade(int level, int index) {
+        final List<Node<T>> slot = slots.get(level * SLOTS + index);
+        if (slot.isEmpty()) {
+            return;
+        }
+        final List<Node<T>> nodes = new ArrayList<Node<T>>(slot);
+        slot.clear();
+        for (final Node<T> node : nodes) {
+            insert(node);
+        }
+    }
+
+    private void insert(Node<T> node) {
+        final long tick = Math.max(node.tick, current);
+        final long delta = tick - current;
+        int level = 0;
+        while (delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        final int index = (int) ((tick >>> (BITS * level)) & MASK);
+        slots.get(level * SLOTS + index).add(node);
+    }
+}
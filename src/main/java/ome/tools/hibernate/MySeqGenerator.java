@@ -6,22 +6,57 @@
  */
 package ome.tools.hibernate;
 
+import java.io.Serializable;
 import java.util.Properties;
 
+import ome.util.SqlAction;
+
+import org.hibernate.HibernateException;
 import org.hibernate.MappingException;
 import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.SessionImplementor;
 import org.hibernate.id.PersistentIdentifierGenerator;
 import org.hibernate.id.SequenceGenerator;
 import org.hibernate.type.Type;
 
 /**
  * http://www.hibernate.org/296.html
- * 
+ *
+ * If configured with an {@link #INCREMENT_SIZE} greater than one, identifiers
+ * are allocated in blocks: each block is reserved with a single
+ * <code>ome_nextval(seq, increment)</code> in its own transaction, as is done
+ * by {@link ome.util.TableIdGenerator} and for event logs, and then handed
+ * out from memory. Since the same database function reserves the ranges for
+ * all of those, the blocks never overlap with the identifiers which they
+ * allocate. Identifiers left in a block when the server stops are skipped.
+ * Until {@link SessionFactory} has set the isolated {@link SqlAction} each
+ * identifier is fetched as before.
+ *
  * @author josh
- * 
+ *
  */
 public class MySeqGenerator extends SequenceGenerator {
 
+    /**
+     * The parameter giving the number of identifiers to reserve at a time for
+     * the table, <code>1</code> by default.
+     */
+    public static final String INCREMENT_SIZE = "increment_size";
+
+    private String sequenceName;
+
+    private Type identifierType;
+
+    private int incrementSize = 1;
+
+    private SqlAction sql;
+
+    /** The next identifier of the current block; guarded by {@code this}. */
+    private long next = 1;
+
+    /** The last identifier of the current block; guarded by {@code this}. */
+    private long last = 0;
+
     /**
      * If the parameters do not contain a {@link SequenceGenerator#SEQUENCE}
      * name, we assign one based on the table name.
@@ -38,6 +73,50 @@ public class MySeqGenerator extends SequenceGenerator {
                 params.setProperty(SEQUENCE, seqName);
             }
         }
+        String increment = params.getProperty(INCREMENT_SIZE);
+        if (increment != null && increment.length() > 0) {
+            try {
+                incrementSize = Integer.parseInt(increment.trim());
+            } catch (NumberFormatException nfe) {
+                throw new MappingException("Invalid " + INCREMENT_SIZE
+                        + " for " + params.getProperty(SEQUENCE) + ": "
+                        + increment);
+            }
+        }
+        sequenceName = params.getProperty(SEQUENCE);
+        identifierType = type;
         super.configure(type, params, dialect);
     }
+
+    /**
+     * Sets the {@link SqlAction} with which blocks of identifiers are
+     * reserved. It must not take part in the current transaction, so that
+     * a reserved block is not released by a rollback while still being
+     * handed out.
+     * @param sql an isolated {@link SqlAction}
+     */
+    public synchronized void setSqlAction(SqlAction sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * @return the number of identifiers reserved at a time
+     */
+    public int getIncrementSize() {
+        return incrementSize;
+    }
+
+    @Override
+    public synchronized Serializable generate(SessionImplementor session,
+            Object obj) throws HibernateException {
+        if (incrementSize <= 1 || sql == null
+                || !Long.class.equals(identifierType.getReturnedClass())) {
+            return super.generate(session, obj);
+        }
+        if (next > last) {
+            last = sql.nextValue(sequenceName, incrementSize);
+            next = last - incrementSize + 1;
+        }
+        return next++;
+    }
 }
@@ -64,6 +64,8 @@ public class SessionFactory implements MethodInterceptor {
                 ((SessionFactoryImpl) factory).getIdentifierGenerator((String)k);
             if (ig instanceof TableIdGenerator) {
                 ((TableIdGenerator) ig).setSqlAction(isolatedSqlAction);
+            } else if (ig instanceof MySeqGenerator) {
+                ((MySeqGenerator) ig).setSqlAction(isolatedSqlAction);
             }
         }
 
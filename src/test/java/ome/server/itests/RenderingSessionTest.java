@@ -7,6 +7,8 @@
 
 package ome.server.itests;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -29,10 +31,16 @@ import ome.model.internal.Permissions;
 import ome.model.meta.Experimenter;
 import ome.model.meta.ExperimenterGroup;
 import ome.parameters.Parameters;
+import ome.services.RenderingBean;
+import ome.services.util.Executor;
 import ome.system.ServiceFactory;
 import omeis.providers.re.RenderingEngine;
 import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
 
+import org.hibernate.Session;
+import org.springframework.aop.framework.Advised;
+import org.springframework.transaction.annotation.Transactional;
 import org.testng.annotations.Test;
 
 /**
@@ -125,6 +133,81 @@ public class RenderingSessionTest extends AbstractManagedContextTest {
         re.lookupRenderingDef(-1L);
     }
 
+    /**
+     * A batch of tiles rendered on the tile pool must hold, in the order
+     * requested, the tiles that {@link RenderingEngine#renderCompressed}
+     * gives one at a time, with <code>null</code> for the tiles that cannot
+     * be rendered.
+     */
+    @Test
+    public void testRenderCompressedTilesMatchesPerTile() throws Exception {
+        loginNewUser();
+        Fixture f = new Fixture();
+        Pixels pixels = factory.getPixelsService().retrievePixDescription(
+                f.pixelsID);
+        int halfX = pixels.getSizeX() / 2;
+        int halfY = pixels.getSizeY() / 2;
+        final List<PlaneDef> pds = new ArrayList<PlaneDef>();
+        pds.add(tile(halfX, halfY, pixels.getSizeX() - halfX,
+                pixels.getSizeY() - halfY));
+        pds.add(tile(0, 0, halfX, halfY));
+        pds.add(null);
+        pds.add(tile(halfX, 0, pixels.getSizeX() - halfX, halfY));
+        PlaneDef outside = tile(0, 0, halfX, halfY);
+        outside.setZ(pixels.getSizeZ());
+        pds.add(outside);
+        pds.add(tile(0, halfY, halfX, pixels.getSizeY() - halfY));
+        pds.add(new PlaneDef(PlaneDef.XY, 0));
+
+        final RenderingBean bean = renderingBean(f.re);
+        bean.setTileThreads(4);
+        @SuppressWarnings("unchecked")
+        List<byte[]> tiles = (List<byte[]>) executor.execute(loginAop.p,
+                new Executor.SimpleWork(this, "renderCompressedTiles") {
+                    @Transactional(readOnly = true)
+                    public Object doWork(Session session, ServiceFactory sf) {
+                        return bean.renderCompressedTiles(pds);
+                    }
+                });
+        assertEquals(pds.size(), tiles.size());
+        assertNull(tiles.get(2));
+        assertNull(tiles.get(4));
+        Set<Integer> lengths = new HashSet<Integer>();
+        for (int i = 0; i < pds.size(); i++) {
+            if (i == 2 || i == 4) {
+                continue;
+            }
+            byte[] tile = tiles.get(i);
+            assertNotNull(tile);
+            assertTrue(Arrays.equals(f.re.renderCompressed(pds.get(i)), tile));
+            lengths.add(tile.length);
+        }
+        // The whole plane is not any one of the tiles.
+        assertTrue(lengths.size() > 1);
+    }
+
+    private PlaneDef tile(int x, int y, int width, int height) {
+        PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
+        pd.setZ(0);
+        pd.setRegion(new RegionDef(x, y, width, height));
+        return pd;
+    }
+
+    /**
+     * Unwraps a managed rendering engine to call the methods of its bean.
+     */
+    private RenderingBean renderingBean(RenderingEngine re) throws Exception {
+        Object internal = re;
+        int count = 0;
+        while (internal instanceof Advised) {
+            if (++count > 100) {
+                throw new RuntimeException("Something's funky");
+            }
+            internal = ((Advised) internal).getTargetSource().getTarget();
+        }
+        return (RenderingBean) internal;
+    }
+
     @Test
     public void testReadWriteMethod() throws Exception {
         final ServiceFactory sf = this.factory;// new InternalServiceFactory();
@@ -5,8 +5,11 @@
 
 package ome.server.itests;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,9 +23,11 @@ import ome.model.enums.RenderingModel;
 import ome.model.internal.Permissions;
 import ome.model.meta.Experimenter;
 import ome.model.meta.ExperimenterGroup;
+import ome.services.ThumbnailBean;
 import ome.system.ServiceFactory;
 import omeis.providers.re.RenderingEngine;
 
+import org.springframework.aop.framework.Advised;
 import org.testng.annotations.Test;
 
 /**
@@ -173,6 +178,119 @@ public class ThumbnailServiceTest extends AbstractManagedContextTest {
         assertTrue(before.length != after.length);
     }
 
+    /**
+     * Thumbnails of a set rendered on the thumbnail pool must be those of the
+     * serial rendering, each returned for its own Pixels, and be read back
+     * from the cache once rendered.
+     */
+    @Test
+    public void testParallelThumbnailSetMatchesSerial() throws Exception {
+        loginNewUser();
+        final ServiceFactory sf = this.factory;
+        RenderingEngine re = sf.createRenderingEngine();
+        RenderingModel rgbModel = getModel(re.getAvailableModels(), "rgb");
+        int[][] colors = {{255, 0, 0}, {0, 255, 0}, {0, 0, 255}, {255, 255, 0}};
+        Set<Long> parallelIds = new LinkedHashSet<Long>();
+        Set<Long> serialIds = new LinkedHashSet<Long>();
+        Map<Long, Long> serialIdOf = new HashMap<Long, Long>();
+        for (int[] color : colors) {
+            Pixels parallel = makePixels();
+            Pixels serial = makePixels();
+            setColor(re, rgbModel, parallel, color);
+            setColor(re, rgbModel, serial, color);
+            parallelIds.add(parallel.getId());
+            serialIds.add(serial.getId());
+            serialIdOf.put(parallel.getId(), serial.getId());
+        }
+        ThumbnailStore parallelTb = sf.createThumbnailService();
+        thumbnailBean(parallelTb).setThumbnailThreads(4);
+        ThumbnailStore serialTb = sf.createThumbnailService();
+        thumbnailBean(serialTb).setThumbnailThreads(1);
+
+        Map<Long, byte[]> parallel = parallelTb.getThumbnailSet(96, 96, parallelIds);
+        Map<Long, byte[]> serial = serialTb.getThumbnailSet(96, 96, serialIds);
+        assertEquals(parallelIds, parallel.keySet());
+        assertEquals(serialIds, serial.keySet());
+        Set<Integer> lengths = new HashSet<Integer>();
+        for (Long pixelsId : parallelIds) {
+            byte[] thumbnail = parallel.get(pixelsId);
+            assertNotNull(thumbnail);
+            assertTrue(Arrays.equals(serial.get(serialIdOf.get(pixelsId)),
+                    thumbnail));
+            assertTrue(lengths.add(thumbnail.length));
+        }
+
+        Map<Long, byte[]> cached = parallelTb.getThumbnailSet(96, 96, parallelIds);
+        for (Long pixelsId : parallelIds) {
+            assertTrue(Arrays.equals(parallel.get(pixelsId), cached.get(pixelsId)));
+        }
+        Map<Long, byte[]> byLongestSide =
+                parallelTb.getThumbnailByLongestSideSet(48, parallelIds);
+        Map<Long, byte[]> serialByLongestSide =
+                serialTb.getThumbnailByLongestSideSet(48, serialIds);
+        for (Long pixelsId : parallelIds) {
+            assertTrue(Arrays.equals(
+                    serialByLongestSide.get(serialIdOf.get(pixelsId)),
+                    byLongestSide.get(pixelsId)));
+        }
+    }
+
+    /**
+     * A thumbnail of a set that fails to render on the thumbnail pool is
+     * returned as null without failing the others.
+     */
+    @Test
+    public void testParallelThumbnailSetFailure() throws Exception {
+        loginNewUser();
+        final ServiceFactory sf = this.factory;
+        Pixels good1 = new Fixture().pixels;
+        Pixels bad = new Fixture().pixels;
+        Pixels good2 = new Fixture().pixels;
+        // A default plane outside of the Pixels cannot be rendered.
+        RenderingDef def = iPixels.retrieveRndSettings(bad.getId());
+        def.setDefaultZ(1000);
+        iUpdate.saveObject(def);
+        Set<Long> pixelsIds = new LinkedHashSet<Long>(Arrays.asList(
+                good1.getId(), bad.getId(), good2.getId()));
+        ThumbnailStore tb = sf.createThumbnailService();
+        thumbnailBean(tb).setThumbnailThreads(4);
+        Map<Long, byte[]> thumbnails = tb.getThumbnailSet(96, 96, pixelsIds);
+        assertEquals(pixelsIds, thumbnails.keySet());
+        assertNull(thumbnails.get(bad.getId()));
+        assertNotNull(thumbnails.get(good1.getId()));
+        assertNotNull(thumbnails.get(good2.getId()));
+    }
+
+    /**
+     * Times the rendering of a thumbnail set serially and on the thumbnail
+     * pool. Run by {@code benchmark.testng.xml}.
+     */
+    @Test(groups = "benchmark")
+    public void testThumbnailSetBenchmark() throws Exception {
+        loginNewUser();
+        final ServiceFactory sf = this.factory;
+        final int count = 24;
+        Set<Long> serialIds = new HashSet<Long>();
+        Set<Long> parallelIds = new HashSet<Long>();
+        for (int i = 0; i < count; i++) {
+            serialIds.add(new Fixture().pixelsID);
+            parallelIds.add(new Fixture().pixelsID);
+        }
+        ThumbnailStore serialTb = sf.createThumbnailService();
+        thumbnailBean(serialTb).setThumbnailThreads(1);
+        ThumbnailStore parallelTb = sf.createThumbnailService();
+        thumbnailBean(parallelTb).setThumbnailThreads(
+                Runtime.getRuntime().availableProcessors());
+        long start = System.currentTimeMillis();
+        assertEquals(count, serialTb.getThumbnailSet(96, 96, serialIds).size());
+        long serial = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        assertEquals(count, parallelTb.getThumbnailSet(96, 96, parallelIds).size());
+        long parallel = System.currentTimeMillis() - start;
+        log.info(String.format("%d thumbnails: %d ms serially, %d ms in parallel",
+                count, serial, parallel));
+    }
+
     @Test(groups = {"ticket:3161"})
     public void testTicket3161ThreeUserView() throws Exception {
         Experimenter e1 = loginNewUser();
@@ -309,6 +427,34 @@ public class ThumbnailServiceTest extends AbstractManagedContextTest {
         return toReturn;
     }
 
+    private void setColor(RenderingEngine re, RenderingModel rgbModel,
+            Pixels pixels, int[] color) {
+        re.lookupPixels(pixels.getId());
+        if (!re.lookupRenderingDef(pixels.getId())) {
+            re.resetDefaultSettings(true);
+            re.lookupRenderingDef(pixels.getId());
+        }
+        re.load();
+        re.setModel(rgbModel);
+        re.setRGBA(0, color[0], color[1], color[2], 255);
+        re.saveCurrentSettings();
+    }
+
+    /**
+     * Unwraps a managed thumbnail service to set how it renders thumbnail sets.
+     */
+    private ThumbnailBean thumbnailBean(ThumbnailStore tb) throws Exception {
+        Object internal = tb;
+        int count = 0;
+        while (internal instanceof Advised) {
+            if (++count > 100) {
+                throw new RuntimeException("Something's funky");
+            }
+            internal = ((Advised) internal).getTargetSource().getTarget();
+        }
+        return (ThumbnailBean) internal;
+    }
+
     private RenderingModel getModel(List<RenderingModel> models, String value) {
         for (RenderingModel model : models) {
             if (model.getValue().equals(value)) {
@@ -0,0 +1,201 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.itests.graphs;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import ome.model.IObject;
+import ome.model.annotations.Annotation;
+import ome.model.annotations.CommentAnnotation;
+import ome.model.annotations.ImageAnnotationLink;
+import ome.model.annotations.LongAnnotation;
+import ome.model.annotations.TagAnnotation;
+import ome.model.core.Image;
+import ome.parameters.Parameters;
+import ome.security.ACLVoter;
+import ome.server.itests.AbstractManagedContextTest;
+import ome.services.graphs.GraphException;
+import ome.services.graphs.GraphPathBean;
+import ome.services.graphs.GraphPolicy;
+import ome.services.graphs.GraphTraversal;
+import ome.services.util.Executor;
+import ome.system.ServiceFactory;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Tests that planning a graph operation notes the objects at the far end of
+ * links, whose class is queried along with the links, with the same class
+ * and details as when each is queried separately.
+ */
+public class GraphTraversalTest extends AbstractManagedContextTest {
+
+    /**
+     * A policy that changes nothing but notes the details of every object
+     * that it is asked to review, keyed by class name and ID.
+     */
+    private static class RecordingPolicy extends GraphPolicy {
+
+        final Map<String, GraphPolicy.Details> reviewed =
+                new HashMap<String, GraphPolicy.Details>();
+
+        @Override
+        public GraphPolicy getCleanInstance() {
+            return new RecordingPolicy();
+        }
+
+        @Override
+        public void setCondition(String name) {
+        }
+
+        @Override
+        public boolean isCondition(String name) {
+            return false;
+        }
+
+        @Override
+        public Set<GraphPolicy.Details> review(
+                Map<String, Set<GraphPolicy.Details>> linkedFrom,
+                GraphPolicy.Details rootObject,
+                Map<String, Set<GraphPolicy.Details>> linkedTo,
+                Set<String> notNullable, boolean isErrorRules) {
+            for (final GraphPolicy.Details object : allObjects(
+                    linkedFrom.values(), rootObject, linkedTo.values())) {
+                reviewed.put(key(object.subject.getClass().getName(),
+                        object.subject.getId()), object);
+            }
+            return Collections.emptySet();
+        }
+    }
+
+    /** A processor for planning only. */
+    private static final GraphTraversal.Processor NO_PROCESSING =
+            new GraphTraversal.Processor() {
+        @Override
+        public void nullProperties(String className, String propertyName,
+                Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteInstances(String className, Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void processInstances(String className, Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<GraphPolicy.Ability> getRequiredPermissions() {
+            return EnumSet.noneOf(GraphPolicy.Ability.class);
+        }
+
+        @Override
+        public void assertMayProcess(String className, long id,
+                ome.model.internal.Details details) {
+        }
+    };
+
+    private static String key(String className, Long id) {
+        return className + ":" + id;
+    }
+
+    @Test
+    public void testSubclassedFarEnds() throws Exception {
+        final Image image = new Image("graph traversal");
+        image.linkAnnotation(new CommentAnnotation());
+        image.linkAnnotation(new TagAnnotation());
+        image.linkAnnotation(new LongAnnotation());
+        final long imageId = iUpdate.saveAndReturnObject(image).getId();
+        final List<ImageAnnotationLink> links = iQuery.findAllByQuery(
+                "select l from ImageAnnotationLink l join fetch l.child "
+                        + "where l.parent.id = :id",
+                new Parameters().addId(imageId));
+        assertEquals(3, links.size());
+
+        final GraphPathBean graphPathBean =
+                applicationContext.getBean("graphPathBean", GraphPathBean.class);
+        final ACLVoter aclVoter =
+                applicationContext.getBean("aclVoter", ACLVoter.class);
+        final String linkClass = ImageAnnotationLink.class.getName();
+        final String annotationClass = Annotation.class.getName();
+
+        executor.execute(loginAop.p, new Executor.SimpleWork(this,
+                "testSubclassedFarEnds") {
+            @SuppressWarnings("unchecked")
+            @Transactional(readOnly = true)
+            public Object doWork(Session session, ServiceFactory sf) {
+                final RecordingPolicy policy = new RecordingPolicy();
+                final GraphTraversal traversal = new GraphTraversal(session,
+                        securitySystem.getEventContext(), aclVoter,
+                        graphPathBean, HashMultimap.<String, String>create(),
+                        policy, NO_PROCESSING);
+                final SetMultimap<String, Long> objects = HashMultimap.create();
+                for (final ImageAnnotationLink link : links) {
+                    objects.put(linkClass, link.getId());
+                }
+                final Entry<SetMultimap<String, Long>, SetMultimap<String, Long>> planned;
+                try {
+                    planned = traversal.planOperation(objects, true, true);
+                } catch (GraphException e) {
+                    throw new RuntimeException(e);
+                }
+
+                final Set<Class<? extends IObject>> expectedClasses =
+                        new HashSet<Class<? extends IObject>>();
+                for (final ImageAnnotationLink link : links) {
+                    final Long annotationId = link.getChild().getId();
+                    /* as queried before the class and details were merged */
+                    final Class<? extends IObject> expectedClass =
+                            (Class<? extends IObject>) session.createQuery(
+                                    "SELECT TYPE(root) FROM " + annotationClass
+                                    + " AS root WHERE root.id = :id")
+                            .setParameter("id", annotationId).uniqueResult();
+                    final Object[] expectedDetails = (Object[]) session.createQuery(
+                            "SELECT root.details.owner.id, root.details.group.id FROM "
+                            + expectedClass.getName() + " AS root WHERE root.id = :id")
+                            .setParameter("id", annotationId).uniqueResult();
+                    expectedClasses.add(expectedClass);
+
+                    final SetMultimap<String, Long> linkeds =
+                            traversal.getLinkeds(linkClass, "child", link.getId());
+                    assertEquals(1, linkeds.size());
+                    assertEquals(Collections.singleton(annotationId),
+                            linkeds.get(expectedClass.getName()));
+
+                    final GraphPolicy.Details details = policy.reviewed.get(
+                            key(expectedClass.getName(), annotationId));
+                    assertNotNull(details);
+                    assertEquals(expectedDetails[0], details.ownerId);
+                    assertEquals(expectedDetails[1], details.groupId);
+                    assertFalse(policy.reviewed.containsKey(
+                            key(annotationClass, annotationId)));
+                    assertTrue(planned.getKey().get(linkClass).contains(link.getId()));
+                }
+                assertEquals(new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+                        CommentAnnotation.class, TagAnnotation.class,
+                        LongAnnotation.class)), expectedClasses);
+                return null;
+            }
+        });
+    }
+}
@@ -172,6 +172,27 @@ public class EventLogQueueTest extends MockObjectTestCase {
         assertFalse(q.hasNext());
     }
 
+    @Test
+    public void testMemoryLimitLeavesNewestForLaterLoad() {
+        q.setMaxMemory(1);
+        q.setBatchSize(Integer.MAX_VALUE);
+        final int capacity = 1024 * 1024 / 64;
+        for (int i = 0; i < capacity + 10; i++) {
+            results.add(project(i, "INSERT", 0));
+        }
+        assertTrue(q.hasNext());
+        q.addEventLog(Dataset.class, 1L);
+        match(fields("objType", Dataset.class.getName(), "objId", 1L));
+        int count = 0;
+        long last = -1;
+        while (q.hasNext()) {
+            last = q.next().getEntityId();
+            count++;
+        }
+        assertEquals(capacity - 1, count);
+        assertEquals(capacity - 2, last);
+    }
+
     @Test
     public void testStopSet() {
         q.addEventLog(Project.class, 1L);
@@ -0,0 +1,324 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ome.model.IObject;
+import ome.model.core.Image;
+import ome.model.internal.Details;
+import ome.model.meta.Experimenter;
+import ome.model.meta.ExperimenterGroup;
+import ome.services.SearchBean;
+import ome.services.fulltext.FullTextAnalyzer;
+import ome.services.search.FullText;
+import ome.services.search.SearchCache;
+import ome.services.search.SearchValues;
+import ome.services.util.Executor;
+import ome.system.EventContext;
+import ome.system.Principal;
+import ome.system.ServiceFactory;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.hibernate.Session;
+import org.hibernate.search.FullTextSession;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests how {@link FullText} pages through its hits, how {@link SearchBean}
+ * returns those pages across batches, and the Lucene filter of the hits by
+ * owner and group.
+ */
+@Test(groups = "unit")
+public class FullTextPagingTest {
+
+    /**
+     * Has fixed hits rather than running a Lucene query and rejects some of
+     * them as the criteria would.
+     */
+    private static class PagedFullText extends FullText {
+
+        private static final long serialVersionUID = 1L;
+
+        final long[] ids;
+
+        final Set<Long> rejected = new HashSet<Long>();
+
+        int queries = 0;
+
+        PagedFullText(SearchValues values, long... ids) {
+            super(values, "dapi", FullTextAnalyzer.class);
+            this.ids = ids;
+        }
+
+        @Override
+        public Object doWork(Session session, ServiceFactory sf) {
+            return nextPage(null, null);
+        }
+
+        @Override
+        protected SearchCache.Hits queryHits(FullTextSession session,
+                EventContext ec, Class<?> cls) {
+            queries++;
+            final float[] scores = new float[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                scores[i] = ids.length - i;
+            }
+            return new SearchCache.Hits(ids, scores, ids.length, 0);
+        }
+
+        @Override
+        protected List<IObject> loadHits(FullTextSession session,
+                List<Long> page) {
+            final List<IObject> loaded = new ArrayList<IObject>();
+            for (Long id : page) {
+                if (!rejected.contains(id)) {
+                    loaded.add(new Image(id, true));
+                }
+            }
+            // as from the database, not in order of score
+            Collections.reverse(loaded);
+            return loaded;
+        }
+
+        Filter filter(EventContext ec) {
+            return detailsFilter(ec, Image.class);
+        }
+
+        static Query termOrUnindexedQuery(String field, long id) {
+            return termOrUnindexed(field, id);
+        }
+    }
+
+    private static SearchValues values() {
+        final SearchValues values = new SearchValues();
+        values.onlyTypes = new ArrayList<Class>();
+        values.onlyTypes.add(Image.class);
+        return values;
+    }
+
+    private static List<Long> ids(List<? extends IObject> objects) {
+        final List<Long> ids = new ArrayList<Long>();
+        for (IObject object : objects) {
+            ids.add(object.getId());
+        }
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<IObject> page(FullText search) {
+        return (List<IObject>) search.doWork(null, null);
+    }
+
+    /**
+     * Pages are filled in order of score, with the hits after those
+     * rejected by the criteria, and the query is run only once.
+     */
+    public void testPagesInOrderOfScore() {
+        final PagedFullText search = new PagedFullText(values(), 5, 3, 9, 1, 7,
+                2, 8);
+        search.rejected.add(9L);
+        search.setPageSize(3);
+        Assert.assertTrue(search.hasMorePages());
+        final List<IObject> first = page(search);
+        Assert.assertEquals(ids(first), Arrays.asList(5L, 3L, 1L));
+        Assert.assertEquals(search.getScore(first.get(0)), 7.0f);
+        Assert.assertEquals(search.getTotalSize(first.get(0)),
+                Integer.valueOf(7));
+        Assert.assertTrue(search.hasMorePages());
+        Assert.assertEquals(ids(page(search)), Arrays.asList(7L, 2L, 8L));
+        Assert.assertFalse(search.hasMorePages());
+        Assert.assertEquals(search.queries, 1);
+    }
+
+    /**
+     * Without a page size every call returns all the hits.
+     */
+    public void testUnpagedReturnsAll() {
+        final PagedFullText search = new PagedFullText(values(), 4, 2, 6);
+        search.rejected.add(2L);
+        Assert.assertEquals(ids(page(search)), Arrays.asList(4L, 6L));
+        Assert.assertFalse(search.hasMorePages());
+        Assert.assertEquals(ids(page(search)), Arrays.asList(4L, 6L));
+        Assert.assertEquals(search.queries, 2);
+    }
+
+    /**
+     * The search bean loads one page per batch and counts the paged query
+     * as active only until it is first run, as it did before paging.
+     */
+    public void testSearchBeanPagesAcrossBatches() {
+        final Executor executor = new Executor.Impl(null, null, null, null) {
+            @Override
+            public Object execute(Principal p, Work work) {
+                return work.doWork(null, null);
+            }
+        };
+        final SearchBean bean = new SearchBean(executor, FullTextAnalyzer.class);
+        bean.setBatchSize(2);
+        final PagedFullText first = new PagedFullText(values(), 1, 2, 3, 4, 5);
+        final PagedFullText second = new PagedFullText(values(), 6);
+        bean.addAction(first);
+        bean.addAction(second);
+        Assert.assertEquals(bean.activeQueries(), 2);
+
+        Assert.assertEquals(ids(bean.results()), Arrays.asList(1L, 2L));
+        Assert.assertEquals(bean.activeQueries(), 1);
+        Assert.assertEquals(ids(bean.results()), Arrays.asList(3L, 4L));
+        Assert.assertEquals(bean.activeQueries(), 1);
+        // the last page is short so the batch goes on to the next query
+        Assert.assertEquals(ids(bean.results()), Arrays.asList(5L, 6L));
+        Assert.assertEquals(bean.activeQueries(), 0);
+        Assert.assertFalse(bean.hasNext());
+        Assert.assertEquals(first.queries, 1);
+        Assert.assertEquals(second.queries, 1);
+    }
+
+    /**
+     * Clearing the queries also drops a query that is still paging.
+     */
+    public void testClearDropsPaging() {
+        final Executor executor = new Executor.Impl(null, null, null, null) {
+            @Override
+            public Object execute(Principal p, Work work) {
+                return work.doWork(null, null);
+            }
+        };
+        final SearchBean bean = new SearchBean(executor, FullTextAnalyzer.class);
+        bean.setBatchSize(1);
+        bean.addAction(new PagedFullText(values(), 1, 2));
+        Assert.assertEquals(ids(bean.results()), Arrays.asList(1L));
+        bean.clearQueries();
+        Assert.assertEquals(bean.activeQueries(), 0);
+        Assert.assertFalse(bean.hasNext());
+    }
+
+    /*
+     * The Lucene filter.
+     */
+
+    private static EventContext context(final Long groupId, final Long shareId) {
+        return (EventContext) Proxy.newProxyInstance(
+                FullTextPagingTest.class.getClassLoader(),
+                new Class<?>[] {EventContext.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getCurrentGroupId")) {
+                            return groupId;
+                        } else if (method.getName().equals("getCurrentShareId")) {
+                            return shareId;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * @param docs for each document its id then its owner and group ids,
+     * {@code null} for a document indexed without them
+     * @return the ids of the documents that the filter lets through
+     */
+    private static Set<String> filtered(Filter filter, String[]... docs)
+            throws Exception {
+        final RAMDirectory directory = new RAMDirectory();
+        final IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(Version.LUCENE_31,
+                        new WhitespaceAnalyzer(Version.LUCENE_31)));
+        for (String[] doc : docs) {
+            final Document document = new Document();
+            document.add(new Field("id", doc[0], Field.Store.YES,
+                    Field.Index.NOT_ANALYZED));
+            if (doc[1] != null) {
+                document.add(new Field("details.owner.id", doc[1],
+                        Field.Store.YES, Field.Index.NOT_ANALYZED));
+                document.add(new Field("details.group.id", doc[2],
+                        Field.Store.YES, Field.Index.NOT_ANALYZED));
+            }
+            writer.addDocument(document);
+        }
+        writer.close();
+        final IndexReader reader = IndexReader.open(directory);
+        try {
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            final Set<String> ids = new HashSet<String>();
+            for (ScoreDoc hit : searcher.search(new MatchAllDocsQuery(),
+                    filter, docs.length + 1).scoreDocs) {
+                ids.add(searcher.doc(hit.doc).get("id"));
+            }
+            return ids;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static final String[][] DOCS = new String[][] {
+        {"1", "10", "100"},
+        {"2", "10", "200"},
+        {"3", "20", "100"},
+        {"4", null, null}};
+
+    private static Set<String> set(String... ids) {
+        return new HashSet<String>(Arrays.asList(ids));
+    }
+
+    public void testTermOrUnindexed() throws Exception {
+        final Filter filter = new QueryWrapperFilter(
+                PagedFullText.termOrUnindexedQuery("details.owner.id", 10));
+        Assert.assertEquals(filtered(filter, DOCS), set("1", "2", "4"));
+    }
+
+    public void testNoFilterWithoutRestriction() {
+        Assert.assertNull(new PagedFullText(values()).filter(null));
+        Assert.assertNull(new PagedFullText(values()).filter(context(-1L, null)));
+        Assert.assertNull(new PagedFullText(values()).filter(context(100L, 5L)));
+    }
+
+    public void testFilterByCurrentGroup() throws Exception {
+        final Filter filter = new PagedFullText(values()).filter(
+                context(100L, null));
+        Assert.assertEquals(filtered(filter, DOCS), set("1", "3", "4"));
+    }
+
+    public void testFilterByOwner() throws Exception {
+        final SearchValues values = values();
+        values.ownedBy = Details.create();
+        values.ownedBy.setOwner(new Experimenter(10L, false));
+        final Filter filter = new PagedFullText(values).filter(
+                context(100L, null));
+        Assert.assertEquals(filtered(filter, DOCS), set("1", "4"));
+    }
+
+    public void testFilterByNotOwnedByGroup() throws Exception {
+        final SearchValues values = values();
+        values.notOwnedBy = Details.create();
+        values.notOwnedBy.setGroup(new ExperimenterGroup(200L, false));
+        final Filter filter = new PagedFullText(values).filter(
+                context(-1L, null));
+        Assert.assertEquals(filtered(filter, DOCS), set("1", "3", "4"));
+    }
+}
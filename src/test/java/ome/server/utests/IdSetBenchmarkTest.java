@@ -0,0 +1,95 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import ome.model.IObject;
+import ome.model.core.Image;
+import ome.services.search.IdSet;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Times the {@link IdSet} operations on search results of 10k, 100k and 1M
+ * hits, where half of each result overlaps the other. The list operations
+ * that they replaced are timed only at 10k since they are quadratic.
+ * Run by {@code benchmark.testng.xml}, not with the unit tests.
+ */
+@Test(groups = "benchmark")
+public class IdSetBenchmarkTest {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(IdSetBenchmarkTest.class);
+
+    /**
+     * @return {@code hits} images in random order with ids starting from
+     * {@code first}
+     */
+    private static List<IObject> hits(int hits, long first, Random random) {
+        final List<IObject> result = new ArrayList<IObject>(hits);
+        for (long id = first; id < first + hits; id++) {
+            result.add(new Image(id, false));
+        }
+        Collections.shuffle(result, random);
+        return result;
+    }
+
+    private void benchmark(int hits) {
+        final Random random = new Random(hits);
+        final List<IObject> a = hits(hits, 0, random);
+        final List<IObject> b = hits(hits, hits / 2, random);
+
+        StopWatch sw = new LoggingStopWatch("search.intersection." + hits);
+        final List<IObject> intersection = IdSet.intersection(a, b);
+        sw.stop();
+        Assert.assertEquals(intersection.size(), hits / 2);
+        final long intersectionTime = sw.getElapsedTime();
+
+        sw = new LoggingStopWatch("search.union." + hits);
+        final List<IObject> union = IdSet.union(a, b);
+        sw.stop();
+        Assert.assertEquals(union.size(), hits + hits / 2);
+        final long unionTime = sw.getElapsedTime();
+
+        sw = new LoggingStopWatch("search.complement." + hits);
+        final List<IObject> complement = IdSet.complement(a, b);
+        sw.stop();
+        Assert.assertEquals(complement.size(), hits / 2);
+        final long complementTime = sw.getElapsedTime();
+
+        log.info(String.format("%d hits: intersection %d ms, union %d ms, "
+                + "complement %d ms", hits, intersectionTime, unionTime,
+                complementTime));
+    }
+
+    @Test(timeOut = 60000)
+    public void testScaling() {
+        benchmark(10000);
+        benchmark(100000);
+        benchmark(1000000);
+    }
+
+    @Test(timeOut = 60000)
+    public void testListRetainAll() {
+        final Random random = new Random(1);
+        final List<IObject> a = hits(10000, 0, random);
+        final List<IObject> b = hits(10000, 5000, random);
+        final StopWatch sw = new LoggingStopWatch("search.retainAll.10000");
+        a.retainAll(b);
+        sw.stop();
+        log.info(String.format("10000 hits: List.retainAll %d ms",
+                sw.getElapsedTime()));
+    }
+}
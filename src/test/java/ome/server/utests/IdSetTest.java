@@ -0,0 +1,83 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.model.IObject;
+import ome.model.containers.Dataset;
+import ome.model.core.Image;
+import ome.services.search.IdSet;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the set operations of {@link IdSet} used to combine search results.
+ */
+@Test(groups = "unit")
+public class IdSetTest {
+
+    private static List<IObject> objects(IObject... objects) {
+        return new ArrayList<IObject>(Arrays.asList(objects));
+    }
+
+    private static void assertSame(List<IObject> actual, IObject... expected) {
+        Assert.assertEquals(actual.size(), expected.length, actual.toString());
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertSame(actual.get(i), expected[i]);
+        }
+    }
+
+    public void testMembershipIsByTypeAndId() {
+        final IdSet set = new IdSet(objects(new Image(1L, false),
+                new Image(1L, false), new Dataset(2L, false), null));
+        Assert.assertEquals(set.size(), 2);
+        Assert.assertTrue(set.contains(new Image(1L, false)));
+        Assert.assertFalse(set.contains(new Dataset(1L, false)));
+        Assert.assertFalse(set.contains(new Image(2L, false)));
+        Assert.assertFalse(set.contains(new Image()));
+    }
+
+    public void testIntersectionKeepsOrderOfFirst() {
+        final Image i3 = new Image(3L, false);
+        final Image i1 = new Image(1L, false);
+        final Image i2 = new Image(2L, false);
+        final List<IObject> result = IdSet.intersection(objects(i3, i1, i2),
+                objects(new Image(2L, false), new Image(3L, false),
+                        new Dataset(1L, false)));
+        assertSame(result, i3, i2);
+    }
+
+    public void testComplementKeepsOrderOfFirst() {
+        final Image i3 = new Image(3L, false);
+        final Image i1 = new Image(1L, false);
+        final Dataset d2 = new Dataset(2L, false);
+        final List<IObject> result = IdSet.complement(objects(i3, i1, d2),
+                objects(new Image(1L, false), new Image(2L, false)));
+        assertSame(result, i3, d2);
+    }
+
+    public void testUnionRemovesDuplicates() {
+        final Image i3 = new Image(3L, false);
+        final Image i1 = new Image(1L, false);
+        final Dataset d1 = new Dataset(1L, false);
+        final Image i4 = new Image(4L, false);
+        final List<IObject> result = IdSet.union(objects(i3, i1, i3),
+                objects(new Image(1L, false), d1, i4, new Image(4L, false)));
+        assertSame(result, i3, i1, d1, i4);
+    }
+
+    public void testEmpty() {
+        final List<IObject> empty = objects();
+        final Image i1 = new Image(1L, false);
+        assertSame(IdSet.intersection(objects(i1), empty));
+        assertSame(IdSet.complement(objects(i1), empty), i1);
+        assertSame(IdSet.union(empty, objects(i1)), i1);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import ome.logic.JpegEncoder;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the throughput of {@link JpegEncoder} with that of looking up a
+ * new JPEG writer for each tile, as <code>CompressImpl</code> used to, when
+ * encoding 256&times;256 tiles as packed by the renderer, on one thread and
+ * on several as under the load of a web viewer.
+ * Run by {@code benchmark.testng.xml}, not with the unit tests.
+ */
+@Test(groups = "benchmark")
+public class JpegEncoderBenchmarkTest {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(JpegEncoderBenchmarkTest.class);
+
+    private static final int TILE = 256;
+
+    private static final int TILES = 500;
+
+    private static final int THREADS = 4;
+
+    private static final float QUALITY = 0.85f;
+
+    /** An encoder of packed pixels. */
+    private interface Encoder {
+        byte[] encode(int[] pixels) throws IOException;
+    }
+
+    private final JpegEncoder pooled = new JpegEncoder();
+
+    private final List<int[]> tiles = new ArrayList<int[]>();
+
+    private ExecutorService pool;
+
+    @BeforeClass
+    public void setUp() {
+        final Random random = new Random(1234);
+        for (int i = 0; i < 8; i++) {
+            final int[] tile = new int[TILE * TILE];
+            for (int p = 0; p < tile.length; p++) {
+                final int noise = random.nextInt(32);
+                final int level = (p % TILE + p / TILE + i * 16) % 224;
+                tile[p] = ((level + noise) << 16) | (level << 8) | noise;
+            }
+            tiles.add(tile);
+        }
+        pool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /** As <code>CompressImpl</code> encoded before {@link JpegEncoder}. */
+    private static byte[] encodeWithNewWriter(int[] pixels) throws IOException {
+        final BufferedImage image =
+                new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, TILE, TILE, pixels, 0, TILE);
+        final ImageWriter writer =
+                ImageIO.getImageWritersByFormatName("jpeg").next();
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(QUALITY);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final ImageOutputStream imageOutputStream =
+                ImageIO.createImageOutputStream(stream);
+        try {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            imageOutputStream.close();
+            writer.dispose();
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Encodes the tiles on the given number of threads and logs the rate.
+     */
+    private void benchmark(String name, final Encoder encoder, int threads)
+            throws Exception {
+        final List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+        for (int i = 0; i < TILES; i++) {
+            final int[] tile = tiles.get(i % tiles.size());
+            tasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return encoder.encode(tile);
+                }
+            });
+        }
+        final ExecutorService executor =
+                threads == 1 ? Executors.newSingleThreadExecutor() : pool;
+        try {
+            /* warm up the writers of every thread */
+            for (final Future<byte[]> tile : executor.invokeAll(tasks)) {
+                tile.get();
+            }
+            final StopWatch sw = new LoggingStopWatch("jpeg." + name);
+            for (final Future<byte[]> tile : executor.invokeAll(tasks)) {
+                Assert.assertTrue(tile.get().length > 0);
+            }
+            sw.stop();
+            final double rate = TILES * 1000.0 / Math.max(sw.getElapsedTime(), 1);
+            log.info(String.format("%s: %.0f tiles/s on %d threads", name,
+                    rate, threads));
+        } finally {
+            if (executor != pool) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test(timeOut = 300000)
+    public void testCompareEncoders() throws Exception {
+        final Encoder perCall = new Encoder() {
+            @Override
+            public byte[] encode(int[] pixels) throws IOException {
+                return encodeWithNewWriter(pixels);
+            }
+        };
+        final Encoder perThread = new Encoder() {
+            @Override
+            public byte[] encode(int[] pixels) throws IOException {
+                return pooled.encode(pixels, TILE, TILE, QUALITY);
+            }
+        };
+        benchmark("newWriter", perCall, 1);
+        benchmark("pooled", perThread, 1);
+        benchmark("newWriterConcurrent", perCall, THREADS);
+        benchmark("pooledConcurrent", perThread, THREADS);
+        /* the pooling changes the speed but not the encoding */
+        for (final int[] tile : tiles) {
+            Assert.assertTrue(Arrays.equals(perThread.encode(tile),
+                    perCall.encode(tile)));
+        }
+    }
+}
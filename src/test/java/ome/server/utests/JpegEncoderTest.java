@@ -0,0 +1,182 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import ome.logic.JpegEncoder;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link JpegEncoder} gives the same bytes for the same image and
+ * quality however its per-thread writers and buffers have been used before.
+ */
+@Test(groups = "unit", timeOut = 60000)
+public class JpegEncoderTest {
+
+    private static final int SIZE_X = 123;
+
+    private static final int SIZE_Y = 77;
+
+    private final JpegEncoder encoder = new JpegEncoder();
+
+    /**
+     * @return packed RGB pixels of a noisy gradient
+     */
+    private static int[] pixels(long seed) {
+        final Random random = new Random(seed);
+        final int[] pixels = new int[SIZE_X * SIZE_Y];
+        for (int y = 0; y < SIZE_Y; y++) {
+            for (int x = 0; x < SIZE_X; x++) {
+                final int noise = random.nextInt(48);
+                final int r = x * 200 / SIZE_X + noise;
+                final int g = y * 200 / SIZE_Y + noise;
+                final int b = (x + y) % 32 < 16 ? 30 : 220;
+                pixels[y * SIZE_X + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static BufferedImage image(int[] pixels) {
+        final BufferedImage image =
+                new BufferedImage(SIZE_X, SIZE_Y, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, SIZE_X, SIZE_Y, pixels, 0, SIZE_X);
+        return image;
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    public void testQualityIsRespected() throws IOException {
+        final BufferedImage image = image(pixels(1));
+        final byte[] low = encoder.encode(image, 0.3f);
+        final byte[] high = encoder.encode(image, 0.95f);
+        Assert.assertTrue(high.length > low.length,
+                high.length + " <= " + low.length);
+        /* the quality of the earlier call is not kept by the writer */
+        Assert.assertTrue(Arrays.equals(encoder.encode(image, 0.3f), low));
+        Assert.assertTrue(Arrays.equals(encoder.encode(image, 0.95f), high));
+    }
+
+    public void testReuseGivesSameBytes() throws IOException {
+        final BufferedImage image = image(pixels(2));
+        final byte[] first = encoder.encode(image, 0.85f);
+        final BufferedImage larger = new BufferedImage(SIZE_X * 4, SIZE_Y * 4,
+                BufferedImage.TYPE_INT_RGB);
+        encoder.encode(larger, 0.85f);
+        final byte[] second = encoder.encode(image, 0.85f);
+        Assert.assertNotSame(second, first);
+        Assert.assertTrue(Arrays.equals(second, first));
+        final BufferedImage decoded = decode(second);
+        Assert.assertEquals(decoded.getWidth(), SIZE_X);
+        Assert.assertEquals(decoded.getHeight(), SIZE_Y);
+    }
+
+    public void testEncodersAreIndependent() throws IOException {
+        final BufferedImage image = image(pixels(3));
+        final byte[] expected = encoder.encode(image, 0.5f);
+        Assert.assertTrue(Arrays.equals(new JpegEncoder().encode(image, 0.5f),
+                expected));
+        Assert.assertTrue(Arrays.equals(encoder.encode(image, 0.5f), expected));
+    }
+
+    public void testPackedPixelsMatchImage() throws IOException {
+        final int[] pixels = pixels(4);
+        final byte[] expected = encoder.encode(image(pixels), 0.85f);
+        final int[] copy = pixels.clone();
+        Assert.assertTrue(Arrays.equals(
+                encoder.encode(pixels, SIZE_X, SIZE_Y, 0.85f), expected));
+        /* encoding does not modify the renderer's pixels */
+        Assert.assertTrue(Arrays.equals(pixels, copy));
+    }
+
+    public void testWrapSharesPixels() {
+        final int[] pixels = pixels(5);
+        final BufferedImage image = JpegEncoder.wrap(pixels, SIZE_X, SIZE_Y);
+        Assert.assertEquals(image.getWidth(), SIZE_X);
+        Assert.assertEquals(image.getHeight(), SIZE_Y);
+        Assert.assertEquals(image.getRGB(7, 5) & 0xffffff, pixels[5 * SIZE_X + 7]);
+        pixels[5 * SIZE_X + 7] = 0x123456;
+        Assert.assertEquals(image.getRGB(7, 5) & 0xffffff, 0x123456);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTooFewPixels() throws IOException {
+        encoder.encode(new int[SIZE_X * SIZE_Y - 1], SIZE_X, SIZE_Y, 0.85f);
+    }
+
+    public void testRecoversAfterFailedStream() throws IOException {
+        final BufferedImage image = image(pixels(6));
+        final byte[] expected = encoder.encode(image, 0.85f);
+        final OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        try {
+            encoder.encode(image, 0.85f, failing);
+            Assert.fail("failure of the stream must be reported");
+        } catch (IOException e) {
+            /* expected */
+        }
+        Assert.assertTrue(Arrays.equals(encoder.encode(image, 0.85f), expected));
+    }
+
+    public void testConcurrentEncoding() throws Exception {
+        final int images = 8;
+        final List<BufferedImage> inputs = new ArrayList<BufferedImage>();
+        final List<byte[]> expected = new ArrayList<byte[]>();
+        for (int i = 0; i < images; i++) {
+            inputs.add(image(pixels(100 + i)));
+            expected.add(encoder.encode(inputs.get(i), 0.1f * (i + 1)));
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < images; i++) {
+                    final BufferedImage input = inputs.get(i);
+                    final float quality = 0.1f * (i + 1);
+                    results.add(pool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return encoder.encode(input, quality);
+                        }
+                    }));
+                }
+            }
+            for (int j = 0; j < results.size(); j++) {
+                Assert.assertTrue(Arrays.equals(results.get(j).get(),
+                        expected.get(j % images)), "image " + j % images);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+
+import ome.tools.hibernate.MySeqGenerator;
+import ome.util.SqlAction;
+
+import org.hibernate.Hibernate;
+import org.hibernate.MappingException;
+import org.hibernate.cfg.DefaultNamingStrategy;
+import org.hibernate.cfg.NamingStrategy;
+import org.hibernate.cfg.ObjectNameNormalizer;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests how {@link MySeqGenerator} hands out identifiers from the blocks that
+ * it reserves through {@link SqlAction}.
+ */
+@Test(groups = "unit")
+public class MySeqGeneratorTest extends MockObjectTestCase {
+
+    Mock mockSql;
+
+    SqlAction sql;
+
+    @BeforeMethod
+    public void setup() {
+        mockSql = mock(SqlAction.class);
+        sql = (SqlAction) mockSql.proxy();
+    }
+
+    private static MySeqGenerator generator(String incrementSize) {
+        final Properties params = new Properties();
+        params.setProperty(PersistentIdentifierGenerator.TABLE, "image");
+        if (incrementSize != null) {
+            params.setProperty(MySeqGenerator.INCREMENT_SIZE, incrementSize);
+        }
+        params.put(PersistentIdentifierGenerator.IDENTIFIER_NORMALIZER,
+                new ObjectNameNormalizer() {
+                    @Override
+                    protected boolean isUseQuotedIdentifiersGlobally() {
+                        return false;
+                    }
+
+                    @Override
+                    protected NamingStrategy getNamingStrategy() {
+                        return DefaultNamingStrategy.INSTANCE;
+                    }
+                });
+        final MySeqGenerator generator = new MySeqGenerator();
+        generator.configure(Hibernate.LONG, params, new PostgreSQLDialect());
+        return generator;
+    }
+
+    /**
+     * A session which fails on use, noting that the generator has fallen
+     * back to fetching an identifier from the sequence through the session.
+     */
+    private static SessionImplementor session(final boolean[] used) {
+        return (SessionImplementor) Proxy.newProxyInstance(
+                MySeqGeneratorTest.class.getClassLoader(),
+                new Class<?>[] {SessionImplementor.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        used[0] = true;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    public void testBlocksAreHandedOutInOrder() {
+        final MySeqGenerator generator = generator("3");
+        assertEquals(3, generator.getIncrementSize());
+        generator.setSqlAction(sql);
+        final boolean[] used = new boolean[1];
+        final SessionImplementor session = session(used);
+
+        mockSql.expects(once()).method("nextValue")
+                .with(eq("seq_image"), eq(3)).will(returnValue(12L));
+        assertEquals(10L, generator.generate(session, null));
+        assertEquals(11L, generator.generate(session, null));
+        assertEquals(12L, generator.generate(session, null));
+        mockSql.verify();
+
+        mockSql.reset();
+        mockSql.expects(once()).method("nextValue")
+                .with(eq("seq_image"), eq(3)).will(returnValue(20L));
+        assertEquals(18L, generator.generate(session, null));
+        assertEquals(19L, generator.generate(session, null));
+        mockSql.verify();
+        assertFalse(used[0]);
+    }
+
+    public void testWithoutSqlActionFallsBack() {
+        final MySeqGenerator generator = generator("3");
+        final boolean[] used = new boolean[1];
+        try {
+            generator.generate(session(used), null);
+        } catch (UnsupportedOperationException e) {
+            // Only the session has been used.
+        }
+        assertTrue(used[0]);
+        mockSql.verify();
+    }
+
+    public void testIncrementOfOneFallsBack() {
+        final MySeqGenerator generator = generator(null);
+        assertEquals(1, generator.getIncrementSize());
+        generator.setSqlAction(sql);
+        final boolean[] used = new boolean[1];
+        try {
+            generator.generate(session(used), null);
+        } catch (UnsupportedOperationException e) {
+            // Only the session has been used.
+        }
+        assertTrue(used[0]);
+        mockSql.verify();
+    }
+
+    @Test(expectedExceptions = MappingException.class)
+    public void testNonNumericIncrementSize() {
+        generator("ten");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ome.logic.PackedIntScaleService;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the area averaging of {@link PackedIntScaleService}, serially and
+ * split into bands. Its speed and quality against the other {@link
+ * ome.api.IScale} implementations are measured by
+ * {@link ScaleServiceBenchmarkTest}.
+ */
+@Test(groups = "unit", timeOut = 60000)
+public class PackedIntScaleServiceTest {
+
+    private PackedIntScaleService packed;
+
+    @BeforeClass
+    public void setUp() {
+        packed = new PackedIntScaleService(4);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        packed.destroy();
+    }
+
+    public void testUniformColorIsPreserved() {
+        final int[] src = new int[301 * 199];
+        Arrays.fill(src, 0x123456);
+        for (final int[] size : new int[][] {{ 96, 64 }, { 7, 3 }, { 602, 398 }}) {
+            final int[] dst = packed.scale(src, 301, 199, size[0], size[1]);
+            Assert.assertEquals(dst.length, size[0] * size[1]);
+            for (final int pixel : dst) {
+                Assert.assertEquals(pixel, 0x123456);
+            }
+        }
+    }
+
+    public void testBoxAverage() {
+        final int[] src = new int[] { 0x000000, 0x0000ff, 0x00ff00, 0xff0000 };
+        final int[] dst = packed.scale(src, 2, 2, 1, 1);
+        Assert.assertEquals(dst[0], (64 << 16) | (64 << 8) | 64);
+    }
+
+    public void testBandsMatchSingleBand() {
+        final int width = 517;
+        final int height = 389;
+        final Random random = new Random(1234);
+        final int[] src = new int[width * height];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = random.nextInt(0x1000000);
+        }
+        final PackedIntScaleService banded = new PackedIntScaleService(3);
+        try {
+            banded.setParallelThreshold(0);
+            final int[] expected =
+                    new PackedIntScaleService(1).scale(src, width, height, 100, 77);
+            Assert.assertTrue(Arrays.equals(
+                    banded.scale(src, width, height, 100, 77), expected));
+        } finally {
+            banded.destroy();
+        }
+    }
+}
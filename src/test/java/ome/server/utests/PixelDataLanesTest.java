@@ -0,0 +1,255 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.model.meta.EventLog;
+import ome.services.eventlogs.PersistentEventLogLoader;
+import ome.services.pixeldata.PixelDataHandler;
+import ome.services.pixeldata.PixelDataThread;
+import ome.services.sessions.SessionManager;
+import ome.services.util.Executor;
+import ome.services.util.ReadOnlyStatus;
+import ome.system.Principal;
+import ome.system.ServiceFactory;
+import ome.system.metrics.NullMetrics;
+import ome.util.SqlAction;
+
+import org.hibernate.Session;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests how {@link PixelDataThread} schedules jobs in its lanes for small and
+ * large pixels and what it does with unfinished jobs on stopping.
+ */
+@Test(groups = "unit", timeOut = 30000)
+public class PixelDataLanesTest {
+
+    private static final long LARGE = 1000;
+
+    private ExecutorService pool;
+
+    /** The loader's persisted cursor. */
+    private volatile long currentId;
+
+    private PersistentEventLogLoader loader;
+
+    private Handler handler;
+
+    /** Provides batches of jobs and records and holds up their handling. */
+    private class Handler extends PixelDataHandler {
+
+        final Queue<List<Job>> batches = new LinkedList<List<Job>>();
+
+        final Set<Long> handled = Collections.synchronizedSet(new HashSet<Long>());
+
+        final Set<Long> blocked = new HashSet<Long>();
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final AtomicInteger running = new AtomicInteger();
+
+        final AtomicInteger mostRunning = new AtomicInteger();
+
+        Handler() {
+            super(loader, null);
+        }
+
+        @Override
+        public synchronized Object doWork(Session session, ServiceFactory sf) {
+            final List<Job> batch = batches.poll();
+            return batch == null ? new ArrayList<Job>() : batch;
+        }
+
+        @Override
+        public void handleEventLog(EventLog eventLog, Session session,
+                ServiceFactory sf) {
+            final int now = running.incrementAndGet();
+            synchronized (mostRunning) {
+                mostRunning.set(Math.max(mostRunning.get(), now));
+            }
+            try {
+                if (blocked.contains(eventLog.getId())) {
+                    release.await();
+                }
+                handled.add(eventLog.getId());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        pool = Executors.newCachedThreadPool();
+        currentId = 0;
+        final SqlAction sql = (SqlAction) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {SqlAction.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("selectCurrentEventLog")) {
+                            return currentId;
+                        } else if (method.getName().equals("setCurrentEventLog")) {
+                            currentId = (Long) args[0];
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        loader = new PersistentEventLogLoader() {
+            @Override
+            public void initialize() {
+            }
+        };
+        loader.setSqlAction(sql);
+        loader.setKey("key");
+        handler = new Handler();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        handler.release.countDown();
+        pool.shutdownNow();
+    }
+
+    private PixelDataThread thread(int numThreads) {
+        final SessionManager manager = (SessionManager) proxy(SessionManager.class,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        final Executor executor = (Executor) proxy(Executor.class,
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getService")) {
+                            return pool;
+                        } else if (method.getName().equals("execute")
+                                && args.length == 2) {
+                            return ((Executor.Work) args[1]).doWork(null, null);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        final PixelDataThread thread = new PixelDataThread(true, manager,
+                executor, handler, new Principal("root", "system", "Task"),
+                "uuid", numThreads, new NullMetrics(),
+                new ReadOnlyStatus(false, false));
+        thread.setLargeSize(LARGE);
+        return thread;
+    }
+
+    private static Object proxy(Class<?> iface, InvocationHandler ih) {
+        return Proxy.newProxyInstance(PixelDataLanesTest.class.getClassLoader(),
+                new Class<?>[] {iface}, ih);
+    }
+
+    private static PixelDataHandler.Job small(long id) {
+        return new PixelDataHandler.Job(new EventLog(id, false), LARGE - 1);
+    }
+
+    private static PixelDataHandler.Job large(long id) {
+        return new PixelDataHandler.Job(new EventLog(id, false), LARGE);
+    }
+
+    private void awaitHandled(Long... ids) throws InterruptedException {
+        while (!handler.handled.containsAll(Arrays.asList(ids))) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Every batch is loaded and doRun returns once all the small jobs are done.
+     */
+    public void testSmallJobsAreDone() {
+        handler.batches.add(Arrays.asList(small(1), small(2), small(3)));
+        handler.batches.add(Arrays.asList(small(4)));
+        thread(2).doRun();
+        Assert.assertEquals(handler.handled,
+                new HashSet<Long>(Arrays.asList(1L, 2L, 3L, 4L)));
+    }
+
+    /**
+     * A large job still running does not hold up the small jobs loaded after
+     * it, nor the return of doRun.
+     */
+    public void testLargeJobDoesNotHoldUpSmall() throws Exception {
+        handler.blocked.add(1L);
+        handler.batches.add(Arrays.asList(large(1), small(2), small(3)));
+        handler.batches.add(Arrays.asList(small(4)));
+        thread(2).doRun();
+        Assert.assertEquals(handler.handled,
+                new HashSet<Long>(Arrays.asList(2L, 3L, 4L)));
+        handler.release.countDown();
+        awaitHandled(1L);
+    }
+
+    /**
+     * No more large jobs run at a time than the large lane allows, and the
+     * queued ones are started as the running ones complete.
+     */
+    public void testLargeLaneIsLimited() throws Exception {
+        handler.blocked.addAll(Arrays.asList(1L, 2L, 3L));
+        handler.batches.add(Arrays.asList(large(1), large(2), large(3)));
+        final PixelDataThread thread = thread(3);
+        thread.setLargeThreads(1);
+        thread.doRun();
+        TimeUnit.MILLISECONDS.sleep(100);
+        Assert.assertEquals(handler.running.get(), 1);
+        handler.release.countDown();
+        awaitHandled(1L, 2L, 3L);
+        Assert.assertEquals(handler.mostRunning.get(), 1);
+    }
+
+    /**
+     * On stopping, the loader's cursor is moved back before the unfinished
+     * jobs so that they are loaded again after a restart.
+     */
+    public void testStopMovesCursorBeforeUnfinished() {
+        handler.blocked.add(10L);
+        handler.batches.add(Arrays.asList(large(10), large(11), large(12)));
+        currentId = 12;
+        final PixelDataThread thread = thread(1);
+        thread.doRun();
+        thread.stop();
+        Assert.assertEquals(currentId, 9L);
+        handler.release.countDown();
+    }
+
+    /**
+     * Stopping once all jobs are done leaves the cursor where it was.
+     */
+    public void testStopKeepsCursorWhenDone() {
+        handler.batches.add(Arrays.asList(small(10), small(11)));
+        currentId = 11;
+        final PixelDataThread thread = thread(2);
+        thread.doRun();
+        thread.stop();
+        Assert.assertEquals(currentId, 11L);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.io.File;
+import java.io.IOException;
+
+import ome.logic.RepositoryInfoImpl;
+import ome.logic.RepositoryInfoImpl.Usage;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the sampling of the repository's disk usage by
+ * {@link RepositoryInfoImpl} and when writes fall back to sampling it.
+ */
+@Test(groups = "unit")
+public class RepositoryInfoUsageTest {
+
+    private File datadir;
+
+    private RepositoryInfoImpl info;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        datadir = File.createTempFile("repository", "");
+        datadir.delete();
+        new File(datadir, "Pixels").mkdirs();
+        info = new RepositoryInfoImpl();
+        info.setDatadir(datadir.getPath());
+        info.setUsageInterval(30000);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(datadir);
+    }
+
+    public void testSampleUsage() {
+        Assert.assertNull(info.getLastUsage());
+        Assert.assertTrue(info.needsSanityCheck());
+        final long before = System.currentTimeMillis();
+        final Usage usage = info.sampleUsage();
+        Assert.assertSame(info.getLastUsage(), usage);
+        Assert.assertTrue(usage.time >= before);
+        Assert.assertTrue(usage.percent >= 0.0 && usage.percent <= 100.0);
+        Assert.assertTrue(usage.usableBytes >= 0);
+        Assert.assertNotNull(usage.fileStore);
+        Assert.assertFalse(info.needsSanityCheck());
+    }
+
+    public void testSanityCheckSamplesOnlyWithoutSample() {
+        info.sanityCheckRepository();
+        final Usage usage = info.getLastUsage();
+        Assert.assertNotNull(usage);
+        info.sanityCheckRepository();
+        Assert.assertSame(info.getLastUsage(), usage);
+    }
+
+    public void testStaleness() {
+        final long now = 1000000;
+        Assert.assertTrue(info.isStale(null, now));
+        final long limit = RepositoryInfoImpl.STALE_INTERVALS * 30000L;
+        Assert.assertFalse(info.isStale(new Usage(now - limit, 50.0, "/", 1), now));
+        Assert.assertTrue(info.isStale(new Usage(now - limit - 1, 50.0, "/", 1), now));
+    }
+
+    /**
+     * Nearly full file systems must not have writes sample the usage while
+     * the background sampling keeps up.
+     */
+    public void testHighUsageIsNotStaleWithinInterval() {
+        final long now = 1000000;
+        for (double percent : new double[] {75.0, 90.0, 94.9, 99.0}) {
+            Assert.assertFalse(info.isStale(
+                    new Usage(now - 30000, percent, "/", 1), now));
+        }
+    }
+}
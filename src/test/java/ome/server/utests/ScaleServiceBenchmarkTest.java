@@ -0,0 +1,141 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import ome.api.IScale;
+import ome.logic.AWTScaleService;
+import ome.logic.JavaImageScalingService;
+import ome.logic.PackedIntScaleService;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the quality and the speed of the {@link IScale} implementations
+ * when scaling a 2k&times;2k plane down to a thumbnail. Quality is the peak
+ * signal-to-noise ratio against Java2D's area-averaging scaler. The
+ * correctness of {@link PackedIntScaleService} is tested by
+ * {@link PackedIntScaleServiceTest}.
+ * Run by {@code benchmark.testng.xml}, not with the unit tests.
+ */
+@Test(groups = "benchmark")
+public class ScaleServiceBenchmarkTest {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(ScaleServiceBenchmarkTest.class);
+
+    private static final int SIZE = 2048;
+
+    private static final int THUMBNAIL = 96;
+
+    private static final int ITERATIONS = 5;
+
+    private PackedIntScaleService packed;
+
+    private BufferedImage plane;
+
+    private int[] reference;
+
+    @BeforeClass
+    public void setUp() {
+        packed = new PackedIntScaleService(4);
+        plane = createPlane();
+        reference = pixels(referenceScale(plane));
+    }
+
+    @AfterClass
+    public void tearDown() {
+        packed.destroy();
+    }
+
+    /**
+     * A smooth gradient with noise and a sharp edge, like a fluorescence
+     * image with some structure.
+     */
+    private static BufferedImage createPlane() {
+        final Random random = new Random(1234);
+        final BufferedImage image =
+                new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                final int noise = random.nextInt(32);
+                final int r = (x * 200 / SIZE) + noise;
+                final int g = (y * 200 / SIZE) + noise;
+                final int b = (x < SIZE / 3 ? 40 : 200) + noise / 2;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage referenceScale(BufferedImage image) {
+        final Image scaled = image.getScaledInstance(THUMBNAIL, THUMBNAIL,
+                Image.SCALE_AREA_AVERAGING);
+        final BufferedImage result = new BufferedImage(THUMBNAIL, THUMBNAIL,
+                BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = result.createGraphics();
+        g.drawImage(scaled, 0, 0, null);
+        g.dispose();
+        return result;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null,
+                0, image.getWidth());
+    }
+
+    private static double psnr(int[] expected, int[] actual) {
+        double squares = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                final int diff = ((expected[i] >> shift) & 0xff)
+                        - ((actual[i] >> shift) & 0xff);
+                squares += diff * diff;
+            }
+        }
+        final double mse = squares / (expected.length * 3);
+        return mse == 0 ? Double.POSITIVE_INFINITY
+                : 10 * Math.log10(255 * 255 / mse);
+    }
+
+    private double benchmark(String name, IScale scale) {
+        final float factor = (float) THUMBNAIL / SIZE;
+        BufferedImage scaled = scale.scaleBufferedImage(plane, factor, factor);
+        final StopWatch sw = new LoggingStopWatch("scale." + name);
+        for (int i = 0; i < ITERATIONS; i++) {
+            scaled = scale.scaleBufferedImage(plane, factor, factor);
+        }
+        sw.stop();
+        Assert.assertEquals(scaled.getWidth(), THUMBNAIL);
+        Assert.assertEquals(scaled.getHeight(), THUMBNAIL);
+        final double psnr = psnr(reference, pixels(scaled));
+        log.info(String.format("%s: %.1f ms per thumbnail, PSNR %.1f dB",
+                name, (double) sw.getElapsedTime() / ITERATIONS, psnr));
+        return psnr;
+    }
+
+    @Test(timeOut = 60000)
+    public void testCompareScalers() {
+        final double packedPsnr = benchmark("packedInt", packed);
+        final double serialPsnr =
+                benchmark("packedIntSerial", new PackedIntScaleService(1));
+        benchmark("javaImageScaling", new JavaImageScalingService());
+        benchmark("awt", new AWTScaleService());
+        Assert.assertTrue(packedPsnr > 35, "PSNR " + packedPsnr);
+        Assert.assertEquals(serialPsnr, packedPsnr, 0.001);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import ome.services.search.SearchCache;
+import ome.util.SqlAction;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link SearchCache} keeps hits per session and drops them when
+ * the indexer progresses.
+ */
+@Test(groups = "unit")
+public class SearchCacheTest {
+
+    private long indexed;
+
+    private SqlAction sql;
+
+    @BeforeMethod
+    public void setUp() {
+        indexed = 10;
+        sql = (SqlAction) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {SqlAction.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("selectCurrentEventLog")) {
+                            return indexed;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static SearchCache.Hits hits(long generation, long... ids) {
+        return new SearchCache.Hits(ids, new float[ids.length], ids.length,
+                generation);
+    }
+
+    public void testHitsAreKeptPerSession() {
+        final SearchCache cache = new SearchCache(sql, "key", 2, 60);
+        final long generation = cache.checkIndex();
+        cache.put("a", "dapi", hits(generation, 1, 2, 3));
+        Assert.assertEquals(cache.get("a", "dapi", generation).ids,
+                new long[] {1, 2, 3});
+        Assert.assertNull(cache.get("b", "dapi", generation));
+        Assert.assertNull(cache.get("a", "gfp", generation));
+    }
+
+    public void testLeastRecentlyUsedIsDropped() {
+        final SearchCache cache = new SearchCache(sql, "key", 2, 60);
+        final long generation = cache.checkIndex();
+        cache.put("a", "x", hits(generation, 1));
+        cache.put("a", "y", hits(generation, 2));
+        Assert.assertNotNull(cache.get("a", "x", generation));
+        cache.put("a", "z", hits(generation, 3));
+        Assert.assertNotNull(cache.get("a", "x", generation));
+        Assert.assertNull(cache.get("a", "y", generation));
+        Assert.assertNotNull(cache.get("a", "z", generation));
+    }
+
+    public void testIndexingDropsHits() {
+        final SearchCache cache = new SearchCache(sql, "key", 2, 60);
+        final long generation = cache.checkIndex();
+        cache.put("a", "dapi", hits(generation, 1));
+        Assert.assertEquals(cache.checkIndex(), generation);
+        Assert.assertNotNull(cache.get("a", "dapi", generation));
+        indexed = 20;
+        final long next = cache.checkIndex();
+        Assert.assertNull(cache.get("a", "dapi", next));
+        Assert.assertNull(cache.get("a", "dapi", generation));
+    }
+
+    public void testDisabled() {
+        final SearchCache cache = new SearchCache(sql, "key", 0, 60);
+        Assert.assertFalse(cache.isEnabled());
+        final long generation = cache.checkIndex();
+        cache.put("a", "dapi", hits(generation, 1));
+        Assert.assertNull(cache.get("a", "dapi", generation));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests.sec;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.model.core.Image;
+import ome.model.meta.Event;
+import ome.model.meta.EventLog;
+import ome.model.roi.Roi;
+import ome.security.basic.EventLogBuffer;
+import ome.services.messages.EventLogsMessage;
+import ome.util.SqlAction;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link EventLogBuffer} returns the logs as they were added.
+ */
+@Test(groups = "unit")
+public class EventLogBufferTest {
+
+    public void testLogsAreKept() {
+        final Event e1 = new Event(1L, false);
+        final Event e2 = new Event(2L, false);
+        final EventLogBuffer buffer = new EventLogBuffer();
+        Assert.assertTrue(buffer.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            buffer.add(i % 2 == 0 ? "INSERT" : "UPDATE",
+                    (i % 3 == 0 ? Image.class : Roi.class).getName(), i,
+                    i < 60 ? e1 : e2);
+        }
+        Assert.assertEquals(buffer.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(buffer.getAction(i), i % 2 == 0 ? "INSERT" : "UPDATE");
+            Assert.assertEquals(buffer.getEntityType(i),
+                    (i % 3 == 0 ? Image.class : Roi.class).getName());
+            Assert.assertEquals(buffer.getEntityId(i), i);
+            Assert.assertSame(buffer.getEvent(i), i < 60 ? e1 : e2);
+        }
+        Assert.assertEquals(buffer.getEvents(), Arrays.asList(e1, e2));
+    }
+
+    public void testToEventLogs() {
+        final Event e = new Event(1L, false);
+        final EventLogBuffer buffer = new EventLogBuffer();
+        buffer.add("DELETE", Image.class.getName(), 5L, e);
+        final List<EventLog> logs = buffer.toEventLogs();
+        Assert.assertEquals(logs.size(), 1);
+        Assert.assertEquals(logs.get(0).getAction(), "DELETE");
+        Assert.assertEquals(logs.get(0).getEntityType(), Image.class.getName());
+        Assert.assertEquals(logs.get(0).getEntityId(), Long.valueOf(5L));
+        Assert.assertSame(logs.get(0).getEvent(), e);
+    }
+
+    public void testMatchingLogs() {
+        final Event e = new Event(1L, false);
+        final EventLogBuffer buffer = new EventLogBuffer();
+        buffer.add("INSERT", Image.class.getName(), 1L, e);
+        buffer.add("UPDATE", Image.class.getName(), 2L, e);
+        buffer.add("INSERT", Roi.class.getName(), 3L, e);
+        buffer.add("INSERT", Image.class.getName(), 4L, e);
+        final EventLogsMessage message = new EventLogsMessage(this, buffer);
+        final List<EventLog> logs = new ArrayList<EventLog>(
+                message.matches(Image.class.getName(), "INSERT"));
+        Assert.assertEquals(logs.size(), 2);
+        Assert.assertEquals(logs.get(0).getEntityId(), Long.valueOf(1L));
+        Assert.assertEquals(logs.get(1).getEntityId(), Long.valueOf(4L));
+        Assert.assertTrue(message.matches(Roi.class.getName(), "DELETE").isEmpty());
+        Assert.assertTrue(message.matches("ome.model.NoSuchType", "INSERT").isEmpty());
+        Assert.assertTrue(buffer.hasEntityType(Roi.class.getName()));
+        Assert.assertFalse(buffer.hasEntityType("ome.model.NoSuchType"));
+    }
+
+    public void testManyActions() {
+        final Event e = new Event(1L, false);
+        final EventLogBuffer buffer = new EventLogBuffer();
+        for (int i = 0; i < 300; i++) {
+            buffer.add("ACTION" + i, Image.class.getName(), i, e);
+        }
+        for (int i = 0; i < 300; i++) {
+            Assert.assertEquals(buffer.getAction(i), "ACTION" + i);
+        }
+    }
+
+    /**
+     * @return a SQL action which notes the batches passed to
+     * {@link SqlAction#insertLogs(List)}
+     */
+    private static SqlAction recordInserts(final List<List<Object[]>> batches) {
+        return (SqlAction) Proxy.newProxyInstance(
+                EventLogBufferTest.class.getClassLoader(),
+                new Class<?>[] {SqlAction.class},
+                new InvocationHandler() {
+                    @SuppressWarnings("unchecked")
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (!"insertLogs".equals(method.getName())) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        batches.add(new ArrayList<Object[]>(
+                                (List<Object[]>) args[0]));
+                        return null;
+                    }
+                });
+    }
+
+    public void testInsertLogsInBatches() {
+        final int batchSize = 10000;
+        final int count = 2 * batchSize + 5;
+        final Event e1 = new Event(1L, false);
+        final Event e2 = new Event(2L, false);
+        final EventLogBuffer buffer = new EventLogBuffer();
+        for (int i = 0; i < count; i++) {
+            buffer.add(i % 2 == 0 ? "INSERT" : "UPDATE",
+                    (i % 3 == 0 ? Image.class : Roi.class).getName(), 1000 + i,
+                    i < batchSize + 7 ? e1 : e2);
+        }
+        final List<List<Object[]>> batches = new ArrayList<List<Object[]>>();
+        buffer.insertLogs(recordInserts(batches), 501L, batchSize);
+        Assert.assertEquals(batches.size(), 3);
+        Assert.assertEquals(batches.get(0).size(), batchSize);
+        Assert.assertEquals(batches.get(1).size(), batchSize);
+        Assert.assertEquals(batches.get(2).size(), 5);
+        int i = 0;
+        for (final List<Object[]> batch : batches) {
+            for (final Object[] row : batch) {
+                Assert.assertEquals(row, new Object[] {501L + i, -35L,
+                        1000L + i,
+                        (i % 3 == 0 ? Image.class : Roi.class).getName(),
+                        i % 2 == 0 ? "INSERT" : "UPDATE",
+                        i < batchSize + 7 ? 1L : 2L});
+                i++;
+            }
+        }
+        Assert.assertEquals(i, count);
+    }
+
+    public void testInsertNoLogs() {
+        final List<List<Object[]>> batches = new ArrayList<List<Object[]>>();
+        new EventLogBuffer().insertLogs(recordInserts(batches), 1L, 10000);
+        Assert.assertTrue(batches.isEmpty());
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testOutOfBounds() {
+        new EventLogBuffer().getEntityId(0);
+    }
+}
@@ -8,7 +8,11 @@ package ome.server.utests.sessions;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CyclicBarrier;
 
@@ -29,6 +33,7 @@ import ome.services.sessions.SessionCallback;
 import ome.services.sessions.SessionContext;
 import ome.services.sessions.SessionContextImpl;
 import ome.services.sessions.events.UserGroupUpdateEvent;
+import ome.services.sessions.state.SessionCache.BatchStaleCacheListener;
 import ome.services.sessions.state.SessionCache.StaleCacheListener;
 import ome.services.sessions.state.SessionCache;
 import ome.services.sessions.stats.NullSessionStats;
@@ -296,6 +301,77 @@ public class SessionCacheTest extends TestCase {
         assertTrue(listener.called);
     }
 
+    @Test
+    public void testBatchUpdateReloadsOnlyChangedSessions() throws Exception {
+        final Session s1 = sess();
+        final Session s2 = sess();
+        final FingerprintStaleCacheListener listener = new FingerprintStaleCacheListener();
+        listener.fingerprints.put(s1.getUuid(), "a");
+        listener.fingerprints.put(s2.getUuid(), "a");
+        cache.setSyncBatchSize(1);
+        cache.setStaleCacheListener(listener);
+        cache.putSession(s1.getUuid(), sc(s1));
+        cache.putSession(s2.getUuid(), sc(s2));
+
+        // Unknown fingerprints are always reloaded
+        update();
+        assertEquals(2, listener.reloaded.size());
+
+        listener.reloaded.clear();
+        listener.fingerprints.put(s2.getUuid(), "b");
+        update();
+        assertEquals(Collections.singleton(s2.getUuid()), listener.reloaded);
+
+        // Sessions without a fingerprint are always reloaded
+        listener.reloaded.clear();
+        listener.fingerprints.remove(s1.getUuid());
+        update();
+        assertEquals(Collections.singleton(s1.getUuid()), listener.reloaded);
+    }
+
+    @Test
+    public void testReloadWithShorterTimeoutExpiresOnTime() throws Exception {
+        final Session s = sess();
+        s.setTimeToIdle(60000L);
+        final FingerprintStaleCacheListener listener = new FingerprintStaleCacheListener();
+        listener.fingerprints.put(s.getUuid(), "a");
+        listener.timeToIdle = 100L;
+        cache.setStaleCacheListener(listener);
+        cache.putSession(s.getUuid(), sc(s));
+        update();
+        assertEquals(Collections.singleton(s.getUuid()), listener.reloaded);
+        // Beyond the new timeout by more than a tick of the expiry wheel
+        Thread.sleep(2500L);
+        cache.expireSessions();
+        assertFalse(cache.getIds().contains(s.getUuid()));
+    }
+
+    private void update() throws InterruptedException {
+        Thread.sleep(10L);
+        cache.updateEvent(new UserGroupUpdateEvent(this));
+        cache.doUpdate();
+    }
+
+    @Test
+    public void testExpireSessionsRemovesOnlyTimedOutSessions() throws Exception {
+        final Session idle = sess();
+        idle.setTimeToIdle(100L);
+        final Session active = sess();
+        active.setTimeToIdle(1500L);
+        final Session forever = sess();
+        cache.putSession(idle.getUuid(), sc(idle));
+        cache.putSession(active.getUuid(), sc(active));
+        cache.putSession(forever.getUuid(), sc(forever));
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(500L);
+            cache.getSessionContext(active.getUuid());
+            cache.expireSessions();
+        }
+        assertFalse(cache.getIds().contains(idle.getUuid()));
+        assertTrue(cache.getIds().contains(active.getUuid()));
+        assertTrue(cache.getIds().contains(forever.getUuid()));
+    }
+
     @Test(timeOut=10000)
     public void testGetSessionDoesUpdateTheTimestamp() throws Exception {
         final Session s = sess();
@@ -451,6 +527,32 @@ public class SessionCacheTest extends TestCase {
         }
     }
 
+    private final class FingerprintStaleCacheListener implements BatchStaleCacheListener {
+
+        final Map<String, Object> fingerprints = new HashMap<String, Object>();
+
+        final Set<String> reloaded = new HashSet<String>();
+
+        /** If set, the time to idle of the reloaded sessions. */
+        Long timeToIdle;
+
+        public void prepareReload() {
+            // noop
+        }
+
+        public SessionContext reload(SessionContext context) {
+            reloaded.add(context.getSession().getUuid());
+            if (timeToIdle != null) {
+                context.getSession().setTimeToIdle(timeToIdle);
+            }
+            return context;
+        }
+
+        public Map<String, Object> fingerprint(List<SessionContext> contexts) {
+            return new HashMap<String, Object>(fingerprints);
+        }
+    }
+
     private final class ThrowsStaleCacheListener implements StaleCacheListener {
         public void prepareReload() {
             // noop.
@@ -0,0 +1,100 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests.sessions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.services.sessions.state.SessionSnapshot;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link SessionSnapshot} reads back what it writes and ignores
+ * files which are not valid snapshots.
+ */
+@Test(groups = "unit")
+public class SessionSnapshotTest {
+
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        file = File.createTempFile("sessions", ".snapshot");
+        file.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static List<SessionSnapshot.Entry> entries() {
+        return Arrays.asList(
+                new SessionSnapshot.Entry("a", 1, 2, 3, "User", 1000, 5),
+                new SessionSnapshot.Entry("b", 4, 5, 6, null, 2000, 1));
+    }
+
+    public void testRoundTrip() {
+        final SessionSnapshot snapshot = new SessionSnapshot(file.getPath());
+        snapshot.write(entries());
+        final List<SessionSnapshot.Entry> read = snapshot.read();
+        Assert.assertEquals(read.size(), 2);
+        Assert.assertEquals(read.get(0).uuid, "a");
+        Assert.assertEquals(read.get(0).sessionId, 1);
+        Assert.assertEquals(read.get(0).userId, 2);
+        Assert.assertEquals(read.get(0).groupId, 3);
+        Assert.assertEquals(read.get(0).eventType, "User");
+        Assert.assertEquals(read.get(0).lastAccessTime, 1000);
+        Assert.assertEquals(read.get(0).hitCount, 5);
+        Assert.assertNull(read.get(1).eventType);
+    }
+
+    public void testOwnerOnly() throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            throw new SkipException("not a POSIX file system");
+        }
+        new SessionSnapshot(file.getPath()).write(entries());
+        Assert.assertEquals(Files.getPosixFilePermissions(file.toPath()),
+                PosixFilePermissions.fromString("rw-------"));
+    }
+
+    public void testMissingFileIsEmpty() {
+        Assert.assertTrue(new SessionSnapshot(file.getPath()).read().isEmpty());
+    }
+
+    public void testCorruptFileIsIgnored() throws IOException {
+        final SessionSnapshot snapshot = new SessionSnapshot(file.getPath());
+        snapshot.write(entries());
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(20);
+            final int b = raf.read();
+            raf.seek(20);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        Assert.assertTrue(snapshot.read().isEmpty());
+    }
+
+    public void testDisabled() {
+        final SessionSnapshot snapshot = new SessionSnapshot("");
+        Assert.assertFalse(snapshot.isEnabled());
+        snapshot.write(entries());
+        Assert.assertTrue(snapshot.read().isEmpty());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests.sessions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ome.services.sessions.state.TimerWheel;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link TimerWheel} fires items at their deadlines across the
+ * levels of the wheel.
+ */
+@Test(groups = "unit")
+public class TimerWheelTest {
+
+    public void testFiresAtDeadline() {
+        final TimerWheel<String> wheel = new TimerWheel<String>(10, 1000);
+        wheel.schedule("a", 1055);
+        wheel.schedule("b", 1100);
+        Assert.assertTrue(wheel.advance(1049).isEmpty());
+        Assert.assertEquals(wheel.advance(1050), Collections.singletonList("a"));
+        Assert.assertTrue(wheel.advance(1099).isEmpty());
+        Assert.assertEquals(wheel.advance(1100), Collections.singletonList("b"));
+        Assert.assertEquals(wheel.size(), 0);
+    }
+
+    public void testPastDeadlineFiresAtNextAdvance() {
+        final TimerWheel<String> wheel = new TimerWheel<String>(10, 1000);
+        wheel.schedule("a", 0);
+        Assert.assertEquals(wheel.advance(1000), Collections.singletonList("a"));
+    }
+
+    public void testHigherLevelsCascade() {
+        final TimerWheel<Long> wheel = new TimerWheel<Long>(1, 0);
+        final List<Long> deadlines = Arrays.asList(63L, 64L, 4095L, 4096L,
+                262143L, 262144L, 300000L, 16000000L);
+        for (final Long deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+        final List<Long> fired = new ArrayList<Long>();
+        for (long now = 0; now <= 16000000L; now += 1) {
+            for (final Long deadline : wheel.advance(now)) {
+                Assert.assertEquals(deadline.longValue(), now);
+                fired.add(deadline);
+            }
+        }
+        Assert.assertEquals(fired, deadlines);
+        Assert.assertEquals(wheel.size(), 0);
+    }
+
+    public void testLargeStepsFireEverythingDue() {
+        final TimerWheel<Long> wheel = new TimerWheel<Long>(1, 0);
+        wheel.schedule(5000L, 5000);
+        wheel.schedule(70000L, 70000);
+        Assert.assertEquals(wheel.advance(60000), Collections.singletonList(5000L));
+        Assert.assertEquals(wheel.advance(80000), Collections.singletonList(70000L));
+    }
+
+    public void testDeadlineBeyondSpanFiresEarly() {
+        final TimerWheel<String> wheel = new TimerWheel<String>(1, 0);
+        wheel.schedule("a", Long.MAX_VALUE);
+        Assert.assertEquals(wheel.advance(1L << 24), Collections.singletonList("a"));
+    }
+}
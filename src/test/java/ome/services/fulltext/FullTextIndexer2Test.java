@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.fulltext;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import org.hibernate.search.bridge.FieldBridge;
+import org.quartz.Scheduler;
+import org.quartz.Trigger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Check how {@link FullTextIndexer2} partitions batches among its workers, handles the failure of a partition and
+ * adapts its batch size. The indexing of each partition is replaced so no database is needed.
+ * @since 5.5
+ */
+@Test(groups = "unit", timeOut = 30000)
+public class FullTextIndexer2Test {
+
+    private static final String IMAGE = "ome.model.core.Image";
+    private static final String DATASET = "ome.model.containers.Dataset";
+
+    /* The names of the indexing steps scheduled by the indexer. */
+    private final List<String> scheduled = Collections.synchronizedList(new ArrayList<String>());
+
+    private TestIndexer indexer;
+
+    /**
+     * An indexer that notes the partitions that it indexes and fails to index any that include a given object.
+     */
+    private class TestIndexer extends FullTextIndexer2 {
+
+        final List<SetMultimap<String, Long>> indexed = Collections.synchronizedList(
+                new ArrayList<SetMultimap<String, Long>>());
+
+        final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+
+        volatile Long failOn = null;
+
+        TestIndexer() {
+            super(scheduler(), null, bridge(), "countKey", "INSERT,UPDATE,REINDEX,DELETE", IMAGE);
+            setCronExpression("*/4 * * * * ?");
+        }
+
+        @Override
+        void indexPartition(SetMultimap<String, Long> entities) {
+            threadNames.add(Thread.currentThread().getName());
+            if (failOn != null && entities.containsValue(failOn)) {
+                throw new IllegalStateException("cannot index " + failOn);
+            }
+            indexed.add(HashMultimap.create(entities));
+        }
+    }
+
+    private Scheduler scheduler() {
+        return (Scheduler) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Scheduler.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("scheduleJob") && args.length == 1) {
+                            scheduled.add(((Trigger) args[0]).getJobKey().getName());
+                            return new Date();
+                        } else if (method.getName().equals("deleteJob")) {
+                            return true;
+                        } else if (method.getName().equals("addJob")) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static FieldBridge bridge() {
+        return (FieldBridge) Proxy.newProxyInstance(FullTextIndexer2Test.class.getClassLoader(),
+                new Class<?>[] {FieldBridge.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Start the indexer with the given number of workers.
+     * @param workerCount the number of workers
+     */
+    private void start(int workerCount) {
+        indexer.setWorkerCount(workerCount);
+        indexer.start();
+        scheduled.clear();
+    }
+
+    /**
+     * Add model objects to the indexer's batch.
+     * @param entityType the type of the objects
+     * @param from the ID of the first object
+     * @param count the number of objects
+     */
+    private void add(String entityType, long from, int count) {
+        for (long id = from; id < from + count; id++) {
+            indexer.toIndex.put(entityType, id);
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        scheduled.clear();
+        indexer = new TestIndexer();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        indexer.stop();
+    }
+
+    /**
+     * Check that the batch is not split if the indexer has no workers.
+     */
+    public void testNoWorkersNoPartitions() {
+        add(IMAGE, 1, 100);
+        final List<SetMultimap<String, Long>> partitions = indexer.partition(indexer.toIndex);
+        Assert.assertEquals(partitions.size(), 1);
+        Assert.assertSame(partitions.get(0), indexer.toIndex);
+    }
+
+    /**
+     * Check that the batch is split evenly among the workers, with each type of object spread across the partitions.
+     */
+    public void testPartitionsSpreadTypes() {
+        start(4);
+        add(IMAGE, 1, 40);
+        add(DATASET, 1, 24);
+        final List<SetMultimap<String, Long>> partitions = indexer.partition(indexer.toIndex);
+        Assert.assertEquals(partitions.size(), 4);
+        final SetMultimap<String, Long> union = HashMultimap.create();
+        int total = 0;
+        for (final SetMultimap<String, Long> partition : partitions) {
+            Assert.assertEquals(partition.get(IMAGE).size(), 10);
+            Assert.assertEquals(partition.get(DATASET).size(), 6);
+            union.putAll(partition);
+            total += partition.size();
+        }
+        Assert.assertEquals(total, indexer.toIndex.size());
+        Assert.assertEquals(union, indexer.toIndex);
+    }
+
+    /**
+     * Check that a small batch is split among fewer workers so that each partition is of some size.
+     */
+    public void testSmallBatchesFewerPartitions() {
+        start(4);
+        add(IMAGE, 1, 40);
+        Assert.assertEquals(indexer.partition(indexer.toIndex).size(), 2);
+        indexer.toIndex.clear();
+        add(IMAGE, 1, 10);
+        Assert.assertEquals(indexer.partition(indexer.toIndex).size(), 1);
+    }
+
+    /**
+     * Check that the workers index the partitions and that the progress is then noted.
+     */
+    public void testConcurrentIndexing() {
+        start(2);
+        add(IMAGE, 1, 32);
+        final SetMultimap<String, Long> batch = HashMultimap.create(indexer.toIndex);
+        indexer.index();
+        Assert.assertTrue(indexer.toIndex.isEmpty());
+        Assert.assertEquals(indexer.indexed.size(), 2);
+        final SetMultimap<String, Long> union = HashMultimap.create();
+        for (final SetMultimap<String, Long> partition : indexer.indexed) {
+            union.putAll(partition);
+        }
+        Assert.assertEquals(union, batch);
+        for (final String threadName : indexer.threadNames) {
+            Assert.assertTrue(threadName.contains("-worker-"), threadName);
+        }
+        Assert.assertEquals(scheduled, Collections.singletonList("NOTE"));
+    }
+
+    /**
+     * Check that if a partition fails then progress is not noted, so the event log cursor does not advance,
+     * and only the objects of that partition remain to be indexed.
+     */
+    public void testFailedPartitionKeepsCursor() {
+        start(2);
+        add(IMAGE, 1, 32);
+        indexer.failOn = 7L;
+        final int batchSize = indexer.getBatchSize();
+        try {
+            indexer.index();
+            Assert.fail("failure of partition must be reported");
+        } catch (IllegalStateException e) {
+            /* expected */
+        }
+        Assert.assertFalse(scheduled.contains("NOTE"));
+        Assert.assertEquals(indexer.getBatchSize(), batchSize);
+        Assert.assertEquals(indexer.indexed.size(), 1);
+        final SetMultimap<String, Long> succeeded = indexer.indexed.get(0);
+        Assert.assertEquals(indexer.toIndex.size(), 16);
+        Assert.assertTrue(indexer.toIndex.containsEntry(IMAGE, 7L));
+        for (final Long id : succeeded.values()) {
+            Assert.assertFalse(indexer.toIndex.containsValue(id));
+        }
+
+        /* retrying indexes only the failed partition */
+        indexer.failOn = null;
+        indexer.indexed.clear();
+        final SetMultimap<String, Long> remaining = HashMultimap.create(indexer.toIndex);
+        indexer.index();
+        Assert.assertTrue(indexer.toIndex.isEmpty());
+        Assert.assertEquals(indexer.indexed, Collections.singletonList(remaining));
+        Assert.assertEquals(scheduled, Collections.singletonList("NOTE"));
+    }
+
+    /**
+     * Check that the batch size halves when slow, doubles only when fast on a full batch, and stays within bounds.
+     */
+    public void testBatchSizeAdapts() {
+        indexer.setBatchLatency(1000);
+        indexer.setMaxBatchSize(1024);
+        final int initial = indexer.getBatchSize();
+        indexer.adjustBatchSize(2000, true);
+        Assert.assertEquals(indexer.getBatchSize(), initial / 2);
+        indexer.adjustBatchSize(100, false);
+        Assert.assertEquals(indexer.getBatchSize(), initial / 2);
+        indexer.adjustBatchSize(700, true);
+        Assert.assertEquals(indexer.getBatchSize(), initial / 2);
+        indexer.adjustBatchSize(100, true);
+        Assert.assertEquals(indexer.getBatchSize(), initial);
+        for (int i = 0; i < 20; i++) {
+            indexer.adjustBatchSize(100, true);
+        }
+        Assert.assertEquals(indexer.getBatchSize(), 1024);
+        for (int i = 0; i < 20; i++) {
+            indexer.adjustBatchSize(2000, true);
+        }
+        Assert.assertEquals(indexer.getBatchSize(), 16);
+        indexer.setMaxBatchSize(16);
+        indexer.adjustBatchSize(100, true);
+        Assert.assertEquals(indexer.getBatchSize(), 16);
+    }
+}
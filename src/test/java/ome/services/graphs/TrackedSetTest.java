@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.graphs;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Check that {@link TrackedSet} reports differences from its snapshots as would comparing copies of the set.
+ * @since 5.5
+ */
+@Test(groups = "unit")
+public class TrackedSetTest {
+
+    /**
+     * Check that an unchanged set is reported unchanged even if elements were added then removed.
+     */
+    public void testRestoredContentIsUnchanged() {
+        final TrackedSet<String> set = new TrackedSet<String>();
+        set.addAll(Arrays.asList("a", "b"));
+        final TrackedSet<String>.Snapshot snapshot = set.snapshot();
+        Assert.assertFalse(snapshot.isChanged());
+        set.add("c");
+        set.remove("a");
+        Assert.assertTrue(snapshot.isChanged());
+        Assert.assertTrue(snapshot.isAnyAdded());
+        set.remove("c");
+        set.add("a");
+        Assert.assertFalse(snapshot.isChanged());
+        Assert.assertFalse(snapshot.isAnyAdded());
+    }
+
+    /**
+     * Check that removals are noted as changes but not as additions.
+     */
+    public void testRemovals() {
+        final TrackedSet<String> set = new TrackedSet<String>();
+        set.addAll(Arrays.asList("a", "b", "c"));
+        final TrackedSet<String>.Snapshot snapshot = set.snapshot();
+        final Iterator<String> iterator = set.iterator();
+        iterator.next();
+        iterator.remove();
+        Assert.assertEquals(set.size(), 2);
+        Assert.assertTrue(snapshot.isChanged());
+        Assert.assertFalse(snapshot.isAnyAdded());
+        set.clear();
+        Assert.assertTrue(set.isEmpty());
+        Assert.assertTrue(snapshot.isChanged());
+        Assert.assertFalse(snapshot.isAnyAdded());
+    }
+
+    /**
+     * Check that snapshots taken at different points are independent.
+     */
+    public void testSnapshotsAreIndependent() {
+        final TrackedSet<String> set = new TrackedSet<String>();
+        set.add("a");
+        final TrackedSet<String>.Snapshot first = set.snapshot();
+        set.add("b");
+        final TrackedSet<String>.Snapshot second = set.snapshot();
+        Assert.assertTrue(first.isChanged());
+        Assert.assertFalse(second.isChanged());
+        set.remove("b");
+        Assert.assertFalse(first.isChanged());
+        Assert.assertTrue(second.isChanged());
+        first.release();
+        set.add("c");
+        Assert.assertTrue(second.isAnyAdded());
+    }
+
+    /**
+     * Check that a released snapshot may not be used.
+     */
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testReleasedSnapshot() {
+        final TrackedSet<String> set = new TrackedSet<String>();
+        final TrackedSet<String>.Snapshot snapshot = set.snapshot();
+        snapshot.release();
+        snapshot.isChanged();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import ome.io.nio.FileBuffer;
+import ome.services.FileReadAhead;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link FileReadAhead} returns what reading the file directly
+ * would, whether reads are served directly, from heap or from mapped windows.
+ */
+@Test(groups = "unit")
+public class FileReadAheadTest {
+
+    private static final int SIZE = 100000;
+
+    private File file;
+
+    private byte[] content;
+
+    private FileBuffer buffer;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("readahead", ".bin");
+        content = new byte[SIZE];
+        new Random(3).nextBytes(content);
+        FileUtils.writeByteArrayToFile(file, content);
+        buffer = new FileBuffer(file.getAbsolutePath(), "r");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        buffer.close();
+        file.delete();
+    }
+
+    private void assertReads(FileReadAhead readAhead, boolean readOnly,
+            long... positions) throws Exception {
+        final int length = 3000;
+        for (final long position : positions) {
+            final byte[] dst = new byte[length];
+            final int read = readAhead.read(buffer, readOnly, position, dst);
+            final int expected = (int) Math.max(-1,
+                    Math.min(length, SIZE - position));
+            Assert.assertEquals(read, expected == 0 ? -1 : expected);
+            final byte[] reference = new byte[length];
+            if (expected > 0) {
+                System.arraycopy(content, (int) position, reference, 0,
+                        expected);
+            }
+            Assert.assertTrue(Arrays.equals(dst, reference),
+                    "bytes at " + position);
+        }
+    }
+
+    private static long[] sequential(long from) {
+        final long[] positions = new long[40];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = from + i * 3000L;
+        }
+        return positions;
+    }
+
+    public void testDirectReads() throws Exception {
+        assertReads(new FileReadAhead(), true, sequential(0));
+    }
+
+    public void testSequentialReadsFromHeapWindows() throws Exception {
+        assertReads(new FileReadAhead(8192, Long.MAX_VALUE), false,
+                sequential(0));
+    }
+
+    public void testSequentialReadsFromMappedWindows() throws Exception {
+        file.setWritable(false);
+        final FileReadAhead readAhead = new FileReadAhead(8192, 0);
+        assertReads(readAhead, true, sequential(5));
+        readAhead.close();
+    }
+
+    public void testSeeksAndEndOfFile() throws Exception {
+        assertReads(new FileReadAhead(8192, Long.MAX_VALUE), false, 0, 3000,
+                50000, 1000, 4000, 7000, 98000, 101000, 99999);
+    }
+
+    public void testInvalidate() throws Exception {
+        final FileReadAhead readAhead = new FileReadAhead(65536,
+                Long.MAX_VALUE);
+        assertReads(readAhead, false, 0, 3000);
+        content[6500] = (byte) (content[6500] + 1);
+        FileUtils.writeByteArrayToFile(file, content);
+        readAhead.invalidate();
+        assertReads(readAhead, false, 6000);
+        Assert.assertEquals(readAhead.getReadCount(), 3);
+    }
+
+    /**
+     * Changes by others, which do not invalidate the window, are detected
+     * from the modification time.
+     */
+    public void testExternalWriteIsSeen() throws Exception {
+        final FileReadAhead readAhead = new FileReadAhead(65536, 0);
+        assertReads(readAhead, true, 0, 3000);
+        final long modified = file.lastModified();
+        content[6500] = (byte) (content[6500] + 1);
+        FileUtils.writeByteArrayToFile(file, content);
+        file.setLastModified(modified + 2000);
+        assertReads(readAhead, true, 6000, 9000);
+        readAhead.close();
+    }
+
+    /**
+     * Truncation by others is detected from the size of the file.
+     */
+    public void testExternalTruncationIsSeen() throws Exception {
+        final FileReadAhead readAhead = new FileReadAhead(65536, 0);
+        assertReads(readAhead, true, 0, 3000);
+        final long modified = file.lastModified();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(5000);
+        } finally {
+            raf.close();
+        }
+        file.setLastModified(modified);
+        final byte[] dst = new byte[3000];
+        Assert.assertEquals(readAhead.read(buffer, true, 6000, dst), -1);
+        Assert.assertEquals(readAhead.read(buffer, true, 3000, dst), 2000);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(dst, 0, 2000),
+                Arrays.copyOfRange(content, 3000, 5000)));
+        readAhead.close();
+    }
+}
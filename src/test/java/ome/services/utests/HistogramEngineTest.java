@@ -0,0 +1,177 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.Dimension;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.io.nio.PixelBuffer;
+import ome.services.HistogramEngine;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link HistogramEngine} bins regions of flat and tiled planes
+ * as the original per-pixel implementation of
+ * {@link ome.services.RawPixelsBean#getHistogram} did.
+ */
+@Test(groups = "unit")
+public class HistogramEngineTest {
+
+    private static final int SIZE_X = 300;
+
+    private static final int SIZE_Y = 200;
+
+    private static final int SIZE_C = 3;
+
+    private static final double[] UINT16_RANGE = { 65535, 0 };
+
+    private ExecutorService executor;
+
+    private byte[][] planes;
+
+    @BeforeClass
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        final Random random = new Random(7);
+        planes = new byte[SIZE_C][SIZE_X * SIZE_Y * 2];
+        for (int c = 0; c < SIZE_C; c++) {
+            final ByteBuffer plane = ByteBuffer.wrap(planes[c]);
+            for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                plane.putShort((short) (random.nextGaussian() * 500 + 2000
+                        + c * 1000));
+            }
+        }
+    }
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A buffer of uint16 planes which serves tiles of the given size.
+     */
+    private PixelBuffer buffer(final int tileWidth, final int tileHeight) {
+        return (PixelBuffer) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {PixelBuffer.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        final String name = method.getName();
+                        if ("getSizeX".equals(name)) {
+                            return SIZE_X;
+                        } else if ("getSizeY".equals(name)) {
+                            return SIZE_Y;
+                        } else if ("getTileSize".equals(name)) {
+                            return new Dimension(tileWidth, tileHeight);
+                        } else if ("getTile".equals(name)) {
+                            return tile((Integer) args[1], (Integer) args[3],
+                                    (Integer) args[4], (Integer) args[5],
+                                    (Integer) args[6]);
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private PixelData tile(int c, int x, int y, int w, int h) {
+        Assert.assertTrue(x >= 0 && y >= 0 && x + w <= SIZE_X
+                && y + h <= SIZE_Y, "tile within the plane");
+        final ByteBuffer tile = ByteBuffer.allocate(w * h * 2);
+        for (int row = y; row < y + h; row++) {
+            tile.put(planes[c], (row * SIZE_X + x) * 2, w * 2);
+        }
+        return new PixelData("uint16", tile);
+    }
+
+    /** The per-pixel histogram previously calculated by the bean. */
+    private int[] reference(int c, double min, double max, int binCount,
+            int x, int y, int w, int h) {
+        final PixelData px = new PixelData("uint16",
+                ByteBuffer.wrap(planes[c]));
+        final int[] data = new int[binCount];
+        final double binRange = (max - min + 1) / binCount;
+        for (int i = 0; i < px.size(); i++) {
+            final int pxx = i % SIZE_X;
+            final int pxy = i / SIZE_X;
+            if (pxx >= x && pxx < (x + w) && pxy >= y && pxy < (y + h)) {
+                int bin = (int) ((px.getPixelValue(i) - min) / binRange);
+                if (bin > 0 && binRange < 1)
+                    bin++;
+                if (bin >= 0 && bin < binCount)
+                    data[bin]++;
+            }
+        }
+        return data;
+    }
+
+    private double[] referenceRange(int c) {
+        final PixelData px = new PixelData("uint16",
+                ByteBuffer.wrap(planes[c]));
+        double min = UINT16_RANGE[0];
+        double max = UINT16_RANGE[1];
+        for (int i = 0; i < px.size(); i++) {
+            min = Math.min(min, px.getPixelValue(i));
+            max = Math.max(max, px.getPixelValue(i));
+        }
+        return new double[] { min, max };
+    }
+
+    private void assertHistograms(HistogramEngine engine, boolean tiled,
+            PixelBuffer buffer, int binCount, int x, int y, int w, int h)
+            throws Exception {
+        final int[] channels = { 0, 1, 2 };
+        final double[][] ranges = { null, { 1000, 4000 }, null };
+        final int[][] histograms = engine.getHistograms(buffer, "uint16",
+                tiled, 0, 0, channels, ranges, UINT16_RANGE, binCount,
+                x, y, w, h);
+        for (int c = 0; c < SIZE_C; c++) {
+            final double[] range = ranges[c] == null ? referenceRange(c)
+                    : ranges[c];
+            Assert.assertEquals(histograms[c], reference(c, range[0],
+                    range[1], binCount, x, y, w, h), "channel " + c);
+        }
+    }
+
+    public void testWholeFlatPlane() throws Exception {
+        assertHistograms(new HistogramEngine(), false, buffer(SIZE_X, SIZE_Y),
+                256, 0, 0, SIZE_X, SIZE_Y);
+    }
+
+    public void testRegionOfFlatPlaneInParallel() throws Exception {
+        assertHistograms(new HistogramEngine(executor), false,
+                buffer(SIZE_X, SIZE_Y), 100, 17, 33, 150, 101);
+    }
+
+    public void testRegionOfTiledPlane() throws Exception {
+        assertHistograms(new HistogramEngine(executor), true, buffer(64, 48),
+                256, 17, 33, 150, 101);
+    }
+
+    public void testRegionBeyondPlaneIsClipped() throws Exception {
+        assertHistograms(new HistogramEngine(), true, buffer(64, 48),
+                4096, 250, 150, 100, 100);
+    }
+
+    public void testRanges() throws Exception {
+        final double[][] ranges = new HistogramEngine(executor).getRanges(
+                buffer(64, 48), "uint16", true, 0, 0, new int[] { 0, 2 },
+                UINT16_RANGE);
+        Assert.assertEquals(ranges[0], referenceRange(0));
+        Assert.assertEquals(ranges[1], referenceRange(2));
+    }
+}
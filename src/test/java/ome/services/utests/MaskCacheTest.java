@@ -0,0 +1,126 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.model.meta.EventLog;
+import ome.model.roi.Mask;
+import ome.model.roi.Roi;
+import ome.services.MaskCache;
+import ome.services.messages.EventLogsMessage;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Tests the keys, eviction and event log invalidation of {@link MaskCache}.
+ */
+@Test(groups = "unit")
+public class MaskCacheTest {
+
+    private static final List<Long> NO_SHAPES = Collections.emptyList();
+
+    private MaskCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new MaskCache(new NullMetrics(), 1);
+    }
+
+    private static MaskCache.Key key(long pixelsId, int z, long userId) {
+        return new MaskCache.Key(pixelsId, z, 0, Arrays.asList(0L, 1L),
+                NO_SHAPES, userId, 3L);
+    }
+
+    private static Map<byte[], Integer> masks(int size) {
+        final Map<byte[], Integer> masks = new LinkedHashMap<byte[], Integer>();
+        masks.put(new byte[size], 0xff0000ff);
+        return masks;
+    }
+
+    private void put(MaskCache.Key key, int size, Long... maskIds) {
+        cache.put(key, masks(size), new HashSet<Long>(Arrays.asList(maskIds)),
+                cache.getGeneration());
+    }
+
+    private static EventLogsMessage message(Class<?> type, String action,
+            long id) {
+        final EventLog el = new EventLog();
+        el.setEntityType(type.getName());
+        el.setEntityId(id);
+        el.setAction(action);
+        final Multimap<String, EventLog> logs = ArrayListMultimap.create();
+        logs.put(type.getName(), el);
+        return new EventLogsMessage(new Object(), logs);
+    }
+
+    public void testHitAndMiss() {
+        Assert.assertNull(cache.get(key(1, 0, 2)));
+        put(key(1, 0, 2), 100, 10L);
+        Assert.assertEquals(cache.get(key(1, 0, 2)).size(), 1);
+        Assert.assertNull(cache.get(key(1, 1, 2)));
+        Assert.assertNull(cache.get(key(1, 0, 5)), "keyed by user");
+        Assert.assertEquals(cache.getHitCount(), 1);
+    }
+
+    public void testEmptyResultIsCached() {
+        cache.put(key(1, 0, 2), new LinkedHashMap<byte[], Integer>(),
+                new HashSet<Long>(), cache.getGeneration());
+        Assert.assertTrue(cache.get(key(1, 0, 2)).isEmpty());
+    }
+
+    public void testStaleQueryIsNotCached() {
+        final long generation = cache.getGeneration();
+        cache.onApplicationEvent(message(Mask.class, "INSERT", 11));
+        cache.put(key(1, 0, 2), masks(100), new HashSet<Long>(), generation);
+        Assert.assertNull(cache.get(key(1, 0, 2)));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        put(key(1, 0, 2), 512 * 1024, 10L);
+        put(key(2, 0, 2), 512 * 1024, 11L);
+        Assert.assertNotNull(cache.get(key(1, 0, 2)));
+        put(key(3, 0, 2), 512 * 1024, 12L);
+        Assert.assertNotNull(cache.get(key(1, 0, 2)));
+        Assert.assertNull(cache.get(key(2, 0, 2)));
+        Assert.assertTrue(cache.getSizeInBytes() <= 1024 * 1024);
+    }
+
+    public void testMaskUpdateInvalidatesEntriesContainingIt() {
+        put(key(1, 0, 2), 100, 10L);
+        put(key(1, 1, 2), 100, 11L);
+        cache.onApplicationEvent(message(Mask.class, "UPDATE", 10));
+        Assert.assertNull(cache.get(key(1, 0, 2)));
+        Assert.assertNotNull(cache.get(key(1, 1, 2)));
+    }
+
+    public void testNewMaskOrRoiChangeClearsCache() {
+        put(key(1, 0, 2), 100, 10L);
+        cache.onApplicationEvent(message(Mask.class, "INSERT", 11));
+        Assert.assertEquals(cache.size(), 0);
+        put(key(1, 0, 2), 100, 10L);
+        cache.onApplicationEvent(message(Roi.class, "DELETE", 4));
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    public void testDisabled() {
+        cache = new MaskCache();
+        put(key(1, 0, 2), 100, 10L);
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertNull(cache.get(key(1, 0, 2)));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.io.File;
+import java.util.Arrays;
+
+import ome.services.RenderedTileCache;
+import ome.system.metrics.NullMetrics;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the size-aware eviction, spilling and invalidation of
+ * {@link RenderedTileCache}.
+ */
+@Test(groups = "unit")
+public class RenderedTileCacheTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private File spillDirectory;
+
+    /** Where the cache writes its tiles within {@link #spillDirectory}. */
+    private File tileDirectory;
+
+    private RenderedTileCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        spillDirectory = File.createTempFile("tiles", "");
+        spillDirectory.delete();
+        tileDirectory = new File(spillDirectory, RenderedTileCache.SUBDIRECTORY);
+        cache = new RenderedTileCache(new NullMetrics(), 1,
+                spillDirectory.getAbsolutePath(), 1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        cache.destroy();
+        FileUtils.deleteQuietly(spillDirectory);
+    }
+
+    private static RenderedTileCache.Key key(long pixelsId, String state,
+            int x) {
+        return new RenderedTileCache.Key(pixelsId, state, 0,
+                "0,0,s=0,r=" + x + ",0,256,256", 0.85f);
+    }
+
+    private static byte[] tile(int size, int fill) {
+        final byte[] tile = new byte[size];
+        Arrays.fill(tile, (byte) fill);
+        return tile;
+    }
+
+    public void testHitAndMiss() {
+        final byte[] bytes = tile(100, 1);
+        Assert.assertNull(cache.get(key(1, "a", 0)));
+        cache.put(key(1, "a", 0), bytes);
+        Assert.assertSame(cache.get(key(1, "a", 0)), bytes);
+        Assert.assertEquals(cache.getHitCount(), 1);
+        Assert.assertEquals(cache.getMissCount(), 1);
+    }
+
+    public void testStateChangeIsMiss() {
+        cache.put(key(1, "a", 0), tile(100, 1));
+        Assert.assertNull(cache.get(key(1, "b", 0)));
+        Assert.assertNull(cache.get(key(1, "a", 256)));
+        Assert.assertNull(cache.get(new RenderedTileCache.Key(1, "a", 0,
+                "0,0,s=0,r=0,0,256,256", 0.5f)));
+    }
+
+    public void testEvictedTileIsSpilledAndReadBack() {
+        cache.put(key(1, "a", 0), tile(MB / 2, 1));
+        cache.put(key(1, "a", 1), tile(MB / 2, 2));
+        cache.put(key(1, "a", 2), tile(MB / 2, 3));
+        Assert.assertEquals(cache.getEvictionCount(), 1);
+        Assert.assertEquals(cache.spilledSize(), 1);
+        Assert.assertTrue(cache.getSizeInBytes() <= MB);
+        final byte[] spilled = cache.get(key(1, "a", 0));
+        Assert.assertEquals(spilled, tile(MB / 2, 1));
+    }
+
+    public void testSpilledTilesAreBounded() {
+        for (int i = 0; i < 8; i++) {
+            cache.put(key(1, "a", i), tile(MB / 2, i));
+        }
+        Assert.assertTrue(cache.getSpilledSizeInBytes() <= MB);
+        Assert.assertTrue(tileDirectory.list().length <= 2);
+        Assert.assertNull(cache.get(key(1, "a", 0)));
+    }
+
+    public void testInvalidatePixels() {
+        cache.put(key(1, "a", 0), tile(MB / 2, 1));
+        cache.put(key(1, "a", 1), tile(MB / 2, 2));
+        cache.put(key(2, "a", 0), tile(MB / 2, 3));
+        cache.invalidatePixels(1);
+        Assert.assertNull(cache.get(key(1, "a", 0)));
+        Assert.assertNull(cache.get(key(1, "a", 1)));
+        Assert.assertNotNull(cache.get(key(2, "a", 0)));
+        Assert.assertEquals(cache.spilledSize(), 0);
+        Assert.assertEquals(tileDirectory.list().length, 0);
+    }
+
+    public void testDisabled() {
+        cache = new RenderedTileCache();
+        cache.put(key(1, "a", 0), tile(100, 1));
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertFalse(cache.isSpilling());
+        Assert.assertNull(cache.get(key(1, "a", 0)));
+    }
+
+    /**
+     * Files of others in the spill directory survive the cache's creation
+     * and clearing; only spilled tiles are deleted.
+     */
+    public void testOnlyTilesAreDeleted() throws Exception {
+        cache.put(key(1, "a", 0), tile(MB / 2, 1));
+        cache.put(key(1, "a", 1), tile(MB / 2, 2));
+        cache.put(key(1, "a", 2), tile(MB / 2, 3));
+        Assert.assertEquals(tileDirectory.list().length, 1);
+        final File beside = new File(spillDirectory, "other.dat");
+        final File inside = new File(tileDirectory, "other.dat");
+        FileUtils.writeByteArrayToFile(beside, tile(10, 1));
+        FileUtils.writeByteArrayToFile(inside, tile(10, 1));
+        // A new cache drops the tiles of the earlier one
+        cache = new RenderedTileCache(new NullMetrics(), 1,
+                spillDirectory.getAbsolutePath(), 1);
+        Assert.assertEquals(tileDirectory.list(), new String[] {"other.dat"});
+        cache.put(key(1, "a", 0), tile(MB / 2, 1));
+        cache.put(key(1, "a", 1), tile(MB / 2, 2));
+        cache.put(key(1, "a", 2), tile(MB / 2, 3));
+        cache.clear();
+        Assert.assertEquals(tileDirectory.list(), new String[] {"other.dat"});
+        Assert.assertTrue(beside.isFile());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ome.services.RunningChecksum;
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the checksum kept by {@link RunningChecksum} while a file is
+ * written, or the full recomputation that replaces it when the writes are not
+ * contiguous, always matches the checksum of the file's final content.
+ */
+@Test(groups = "unit")
+public class RunningChecksumTest {
+
+    private static final ChecksumType TYPE = ChecksumType.SHA1;
+
+    private final ChecksumProviderFactory factory = new ChecksumProviderFactoryImpl();
+
+    private final Random random = new Random(42);
+
+    /** An in-memory file written as would be by RawFileBean. */
+    private class File {
+
+        byte[] content = new byte[0];
+
+        final RunningChecksum checksum =
+                new RunningChecksum(factory.getProvider(TYPE), TYPE);
+
+        void write(long position, int length) {
+            final byte[] buf = new byte[length];
+            random.nextBytes(buf);
+            final int end = (int) position + length;
+            if (end > content.length) {
+                content = Arrays.copyOf(content, end);
+            }
+            System.arraycopy(buf, 0, content, (int) position, length);
+            checksum.update(buf, position, length);
+        }
+
+        /**
+         * @return the checksum as would be saved for the file
+         */
+        String save() {
+            final String hash = checksum.finish(TYPE, content.length);
+            return hash == null ? fullChecksum() : hash;
+        }
+
+        String fullChecksum() {
+            return factory.getProvider(TYPE).putBytes(content).checksumAsString();
+        }
+    }
+
+    public void testSequentialWrites() {
+        final File file = new File();
+        file.write(0, 100);
+        file.write(100, 4096);
+        file.write(4196, 1);
+        Assert.assertFalse(file.checksum.isAbandoned());
+        Assert.assertEquals(file.save(), file.fullChecksum());
+    }
+
+    public void testEmptyFile() {
+        final File file = new File();
+        Assert.assertEquals(file.checksum.finish(TYPE, 0), file.fullChecksum());
+    }
+
+    public void testOutOfOrderWrites() {
+        final File file = new File();
+        file.write(100, 100);
+        file.write(0, 100);
+        Assert.assertTrue(file.checksum.isAbandoned());
+        Assert.assertNull(file.checksum.finish(TYPE, file.content.length));
+        Assert.assertEquals(file.save(), file.fullChecksum());
+    }
+
+    public void testGapIsNotContiguous() {
+        final File file = new File();
+        file.write(0, 100);
+        file.write(101, 100);
+        Assert.assertTrue(file.checksum.isAbandoned());
+        Assert.assertEquals(file.save(), file.fullChecksum());
+    }
+
+    public void testOverwrites() {
+        final File file = new File();
+        file.write(0, 200);
+        file.write(50, 50);
+        Assert.assertTrue(file.checksum.isAbandoned());
+        /* continuing from the end may not resume the checksum */
+        file.write(200, 100);
+        Assert.assertTrue(file.checksum.isAbandoned());
+        Assert.assertEquals(file.save(), file.fullChecksum());
+    }
+
+    public void testRandomWrites() {
+        for (int run = 0; run < 20; run++) {
+            final File file = new File();
+            long end = 0;
+            for (int write = 0; write < 10; write++) {
+                final long position = random.nextInt(4) == 0
+                        ? random.nextInt((int) end + 1) : end;
+                final int length = 1 + random.nextInt(1000);
+                file.write(position, length);
+                end = Math.max(end, position + length);
+            }
+            Assert.assertEquals(file.save(), file.fullChecksum());
+        }
+    }
+
+    public void testLengthMismatch() {
+        final File file = new File();
+        file.write(0, 100);
+        Assert.assertNull(file.checksum.finish(TYPE, 99));
+    }
+
+    public void testTypeMismatch() {
+        final File file = new File();
+        file.write(0, 100);
+        Assert.assertNull(file.checksum.finish(ChecksumType.MD5, 100));
+    }
+
+    public void testFinishedOnlyOnce() {
+        final File file = new File();
+        file.write(0, 100);
+        Assert.assertEquals(file.checksum.finish(TYPE, 100), file.fullChecksum());
+        Assert.assertTrue(file.checksum.isAbandoned());
+        Assert.assertNull(file.checksum.finish(TYPE, 100));
+    }
+}
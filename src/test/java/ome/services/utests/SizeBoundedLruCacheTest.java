@@ -0,0 +1,104 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import ome.services.SizeBoundedLruCache;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Tests the size accounting, eviction order and invalidation of
+ * {@link SizeBoundedLruCache}.
+ */
+@Test(groups = "unit")
+public class SizeBoundedLruCacheTest {
+
+    private SizeBoundedLruCache<String, byte[]> cache;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new SizeBoundedLruCache<String, byte[]>(new NullMetrics(),
+                this, 1000, SizeBoundedLruCache.BYTE_ARRAYS);
+    }
+
+    public void testHitAndMiss() {
+        final byte[] bytes = new byte[100];
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", bytes);
+        Assert.assertSame(cache.get("a"), bytes);
+        Assert.assertEquals(cache.getHitCount(), 1);
+        Assert.assertEquals(cache.getMissCount(), 1);
+    }
+
+    public void testReplacementIsNotCountedTwice() {
+        cache.put("a", new byte[600]);
+        cache.put("a", new byte[300]);
+        Assert.assertEquals(cache.size(), 1);
+        Assert.assertEquals(cache.getSizeInBytes(), 300);
+    }
+
+    public void testEvictedInLeastRecentlyUsedOrder() {
+        cache.put("a", new byte[300]);
+        cache.put("b", new byte[300]);
+        cache.put("c", new byte[300]);
+        Assert.assertNotNull(cache.get("a"));
+        final List<Map.Entry<String, byte[]>> evicted =
+                cache.put("d", new byte[500]);
+        Assert.assertEquals(evicted.size(), 2);
+        Assert.assertEquals(evicted.get(0).getKey(), "b");
+        Assert.assertEquals(evicted.get(1).getKey(), "c");
+        Assert.assertEquals(evicted.get(0).getValue().length, 300);
+        Assert.assertEquals(cache.getEvictionCount(), 2);
+        Assert.assertEquals(cache.getSizeInBytes(), 800);
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNotNull(cache.get("d"));
+    }
+
+    public void testOversizedValueIsNotCached() {
+        cache.put("a", new byte[100]);
+        Assert.assertTrue(cache.put("b", new byte[1001]).isEmpty());
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("a"));
+    }
+
+    public void testInvalidate() {
+        cache.put("a1", new byte[100]);
+        cache.put("b1", new byte[100]);
+        cache.put("a2", new byte[100]);
+        final List<String> removed = cache.invalidate(
+                new Predicate<Map.Entry<String, byte[]>>() {
+            @Override
+            public boolean apply(Map.Entry<String, byte[]> entry) {
+                return entry.getKey().startsWith("a");
+            }
+        });
+        Assert.assertEquals(removed, Arrays.asList("a1", "a2"));
+        Assert.assertEquals(cache.size(), 1);
+        Assert.assertEquals(cache.getSizeInBytes(), 100);
+        Assert.assertEquals(cache.remove("b1").length, 100);
+        Assert.assertEquals(cache.getSizeInBytes(), 0);
+        Assert.assertNull(cache.remove("b1"));
+    }
+
+    public void testDisabled() {
+        cache = new SizeBoundedLruCache<String, byte[]>(new NullMetrics(),
+                this, 0, SizeBoundedLruCache.BYTE_ARRAYS);
+        Assert.assertFalse(cache.isEnabled());
+        cache.put("a", new byte[1]);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getMissCount(), 0);
+    }
+}
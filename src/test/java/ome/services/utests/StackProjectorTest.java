@@ -0,0 +1,189 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import ome.api.IProjection;
+import ome.services.projection.StackProjector;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link StackProjector} projects as the original per-pixel
+ * projection of {@link ome.services.projection.ProjectionBean} did.
+ */
+@Test(groups = "unit")
+public class StackProjectorTest {
+
+    private static final int SIZE_Z = 5;
+
+    private static final int PLANE_SIZE = 64 * 48;
+
+    private ForkJoinPool pool;
+
+    @BeforeClass
+    public void setUp() {
+        pool = new ForkJoinPool(3);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /** Large enough to be projected in several ranges, not a multiple of 8. */
+    private static final int LARGE_PLANE_SIZE = 600 * 500 + 3;
+
+    private static byte[][] stack(int bytesPerPixel) {
+        return stack(PLANE_SIZE * bytesPerPixel);
+    }
+
+    private static byte[][] stack(long planeSizeInBytes) {
+        final Random random = new Random(42);
+        final byte[][] planes = new byte[SIZE_Z][];
+        for (int z = 0; z < SIZE_Z; z++) {
+            planes[z] = new byte[(int) planeSizeInBytes];
+            random.nextBytes(planes[z]);
+        }
+        return planes;
+    }
+
+    private static StackProjector.PlaneSource source(final String type,
+            final byte[][] planes) {
+        return new StackProjector.PlaneSource() {
+            public PixelData getPlane(int z) {
+                return new PixelData(type, ByteBuffer.wrap(planes[z]));
+            }
+        };
+    }
+
+    /** The per-pixel projection previously done by the projection bean. */
+    private static byte[] reference(String type, byte[][] planes,
+            int planeSize, int algorithm, int stepping, int start, int end) {
+        final byte[] buf = new byte[planes[0].length];
+        final PixelData to = new PixelData(type, ByteBuffer.wrap(buf));
+        final double maximum = to.getMaximum();
+        for (int i = 0; i < planeSize; i++) {
+            double value = 0;
+            int count = 0;
+            if (algorithm == IProjection.MAXIMUM_INTENSITY) {
+                for (int z = start; z <= end; z += stepping) {
+                    final double v = new PixelData(type,
+                            ByteBuffer.wrap(planes[z])).getPixelValue(i);
+                    value = Math.max(value, v);
+                }
+            } else {
+                for (int z = start; z < end; z += stepping) {
+                    value += new PixelData(type,
+                            ByteBuffer.wrap(planes[z])).getPixelValue(i);
+                    count++;
+                }
+                if (algorithm == IProjection.MEAN_INTENSITY) {
+                    value /= count;
+                }
+                value = Math.min(value, maximum);
+            }
+            to.setPixelValue(i, value);
+        }
+        return buf;
+    }
+
+    private void assertProjection(String type, int bytesPerPixel,
+            int algorithm, int stepping, int start, int end) throws Exception {
+        final StackProjector parallel = new StackProjector(pool);
+        parallel.setParallelThreshold(0);
+        assertProjection(type, PLANE_SIZE, stack(bytesPerPixel), algorithm,
+                stepping, start, end, new StackProjector(), parallel);
+    }
+
+    private void assertProjection(String type, int planeSize, byte[][] planes,
+            int algorithm, int stepping, int start, int end,
+            StackProjector... projectors) throws Exception {
+        final byte[] expected = reference(type, planes, planeSize,
+                algorithm, stepping, start, end);
+        for (final StackProjector projector : projectors) {
+            final byte[] buf = new byte[planes[0].length];
+            projector.project(source(type, planes), type, planeSize,
+                    algorithm, stepping, start, end,
+                    new PixelData(type, ByteBuffer.wrap(buf)));
+            Assert.assertEquals(buf, expected);
+        }
+    }
+
+    /**
+     * Projects sections above the default parallel threshold so that they
+     * are processed in several ranges.
+     */
+    public void testLargeSectionsInRanges() throws Exception {
+        assertProjection("uint16", LARGE_PLANE_SIZE, stack(LARGE_PLANE_SIZE * 2L),
+                IProjection.MEAN_INTENSITY, 1, 0, 4,
+                new StackProjector(), new StackProjector(pool));
+    }
+
+    /**
+     * Projects packed bits in several ranges, which must not share bytes.
+     */
+    public void testLargeBitSectionsInRanges() throws Exception {
+        final byte[][] planes = stack((LARGE_PLANE_SIZE + 7) / 8L);
+        for (int algorithm : new int[] {IProjection.MAXIMUM_INTENSITY,
+                IProjection.SUM_INTENSITY}) {
+            assertProjection("bit", LARGE_PLANE_SIZE, planes, algorithm, 1, 0, 4,
+                    new StackProjector(), new StackProjector(pool));
+        }
+    }
+
+    public void testMaximumUint8() throws Exception {
+        assertProjection("uint8", 1, IProjection.MAXIMUM_INTENSITY, 1, 0, 4);
+    }
+
+    public void testMaximumInt16WithStepping() throws Exception {
+        assertProjection("int16", 2, IProjection.MAXIMUM_INTENSITY, 2, 0, 4);
+    }
+
+    public void testMeanUint16() throws Exception {
+        assertProjection("uint16", 2, IProjection.MEAN_INTENSITY, 1, 0, 4);
+    }
+
+    public void testSumUint16IsClamped() throws Exception {
+        assertProjection("uint16", 2, IProjection.SUM_INTENSITY, 1, 1, 4);
+    }
+
+    public void testSumFloat() throws Exception {
+        assertProjection("float", 4, IProjection.SUM_INTENSITY, 1, 0, 3);
+    }
+
+    public void testMinimumAndMaximum() throws Exception {
+        final byte[][] planes = stack(1);
+        final byte[] buf = new byte[PLANE_SIZE];
+        final double[] minMax = new StackProjector().project(
+                source("uint8", planes), "uint8", PLANE_SIZE,
+                IProjection.MAXIMUM_INTENSITY, 1, 0, 4,
+                new PixelData("uint8", ByteBuffer.wrap(buf)));
+        final PixelData projected = new PixelData("uint8", ByteBuffer.wrap(buf));
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int i = 0; i < PLANE_SIZE; i++) {
+            min = Math.min(min, projected.getPixelValue(i));
+            max = Math.max(max, projected.getPixelValue(i));
+        }
+        Assert.assertEquals(minMax[0], min);
+        Assert.assertEquals(minMax[1], max);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() throws Exception {
+        new StackProjector().project(source("uint8", stack(1)), "uint8",
+                PLANE_SIZE, -1, 1, 0, 4,
+                new PixelData("uint8", ByteBuffer.wrap(new byte[PLANE_SIZE])));
+    }
+}
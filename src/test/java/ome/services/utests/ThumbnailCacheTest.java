@@ -0,0 +1,105 @@
+/*
+ *   Copyright 2018 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import ome.model.display.Thumbnail;
+import ome.services.ThumbnailCache;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the size-aware eviction and invalidation of {@link ThumbnailCache}.
+ */
+@Test(groups = "unit")
+public class ThumbnailCacheTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private ThumbnailCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new ThumbnailCache(new NullMetrics(), 1);
+    }
+
+    private static Thumbnail thumbnail(long id, long pixelsId, Integer version) {
+        final Thumbnail thumbnail = new Thumbnail(id, true);
+        thumbnail.setPixels(new Pixels(pixelsId, false));
+        thumbnail.setVersion(version);
+        thumbnail.setSizeX(96);
+        thumbnail.setSizeY(96);
+        return thumbnail;
+    }
+
+    private static ThumbnailCache.Key key(long id, long pixelsId, Integer version) {
+        return ThumbnailCache.Key.of(thumbnail(id, pixelsId, version),
+                new RenderingDef(10L, false));
+    }
+
+    public void testHitAndMiss() {
+        final byte[] bytes = new byte[100];
+        Assert.assertNull(cache.get(key(1, 2, 0)));
+        cache.put(key(1, 2, 0), bytes);
+        Assert.assertSame(cache.get(key(1, 2, 0)), bytes);
+        Assert.assertEquals(cache.getHitCount(), 1);
+        Assert.assertEquals(cache.getMissCount(), 1);
+    }
+
+    public void testVersionChangeIsMiss() {
+        cache.put(key(1, 2, 0), new byte[100]);
+        Assert.assertNull(cache.get(key(1, 2, 1)));
+        Assert.assertNull(cache.get(key(1, 2, null)));
+    }
+
+    public void testUnsavedThumbnailIsNotCacheable() {
+        final Thumbnail unsaved = new Thumbnail();
+        unsaved.setPixels(new Pixels(2L, false));
+        Assert.assertNull(ThumbnailCache.Key.of(unsaved, null));
+        cache.put(null, new byte[100]);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.put(key(1, 1, 0), new byte[MB / 2]);
+        cache.put(key(2, 2, 0), new byte[MB / 2]);
+        Assert.assertNotNull(cache.get(key(1, 1, 0)));
+        cache.put(key(3, 3, 0), new byte[MB / 2]);
+        Assert.assertNotNull(cache.get(key(1, 1, 0)));
+        Assert.assertNull(cache.get(key(2, 2, 0)));
+        Assert.assertNotNull(cache.get(key(3, 3, 0)));
+        Assert.assertEquals(cache.getEvictionCount(), 1);
+        Assert.assertTrue(cache.getSizeInBytes() <= MB);
+    }
+
+    public void testOversizedThumbnailIsNotCached() {
+        cache.put(key(1, 1, 0), new byte[MB + 1]);
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getSizeInBytes(), 0);
+    }
+
+    public void testInvalidatePixels() {
+        cache.put(key(1, 2, 0), new byte[100]);
+        cache.put(key(3, 2, 0), new byte[100]);
+        cache.put(key(4, 5, 0), new byte[100]);
+        cache.invalidatePixels(2);
+        Assert.assertNull(cache.get(key(1, 2, 0)));
+        Assert.assertNull(cache.get(key(3, 2, 0)));
+        Assert.assertNotNull(cache.get(key(4, 5, 0)));
+        Assert.assertEquals(cache.getSizeInBytes(), 100);
+    }
+
+    public void testDisabled() {
+        cache = new ThumbnailCache();
+        cache.put(key(1, 2, 0), new byte[100]);
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertNull(cache.get(key(1, 2, 0)));
+    }
+}